@@ -2,6 +2,7 @@ package apps;
 
 import java.util.*;
 
+import rmi.*;
 import naming.*;
 
 /** Lists files and directories.
@@ -99,8 +100,15 @@ public class List extends ClientApplication
 
         try
         {
-            if(naming_server.isDirectory(object.path))
-                components = naming_server.list(object.path);
+            // Check the path and list it in one round trip. Listing a file
+            // fails, but the result is only used if the path is a directory.
+            Batch<Service>  batch = new Batch<Service>(naming_server);
+            batch.calls().isDirectory(object.path);
+            batch.calls().list(object.path);
+            Batch.Result[]  results = batch.flush();
+
+            if((Boolean)results[0].get())
+                components = (String[])results[1].get();
             else
                 components = new String[] {object.path.last()};
         }
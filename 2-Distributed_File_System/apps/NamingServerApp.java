@@ -1,5 +1,7 @@
 package apps;
 
+import java.io.*;
+
 import rmi.*;
 
 import naming.NamingServer;
@@ -7,9 +9,12 @@ import naming.NamingServer;
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application starts a naming server listening on the
+    default client and registration ports for clients and storage servers,
+    respectively. It takes one optional argument: a directory in which the
+    naming server journals its namespace. Given the same directory, a
+    restarted naming server recovers the namespace from there instead of
+    waiting for the storage servers to register again.
  */
 public class NamingServerApp extends ServerApplication
 {
@@ -32,17 +37,32 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
-        @throws RMIException If the naming server cannot be started.
+        @throws BadUsageException If there is more than one command line
+                                  argument.
+        @throws RMIException If the naming server cannot be started, or its
+                             namespace cannot be recovered.
      */
     @Override
     protected void startServer(String[] arguments)
         throws BadUsageException, RMIException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("usage: naming");
+        if(arguments.length > 1)
+            throw new BadUsageException("usage: naming [metadata-directory]");
 
-        server = new StoppingNamingServer();
+        if(arguments.length == 0)
+            server = new StoppingNamingServer();
+        else
+        {
+            try
+            {
+                server = new StoppingNamingServer(new File(arguments[0]));
+            }
+            catch(IOException e)
+            {
+                throw new RMIException("cannot recover the namespace from " +
+                                       arguments[0], e);
+            }
+        }
         server.start();
     }
 
@@ -56,6 +76,17 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates a naming server that keeps no metadata. */
+        StoppingNamingServer()
+        {
+        }
+
+        /** Creates a naming server keeping its metadata in a directory. */
+        StoppingNamingServer(File metadata) throws IOException
+        {
+            super(metadata);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
@@ -71,5 +102,12 @@ public class NamingServerApp extends ServerApplication
         {
             serverStopped(cause);
         }
+
+        /** Reports the failure on standard error. */
+        @Override
+        protected void snapshotFailed(Throwable cause)
+        {
+            System.err.println("naming server snapshot failed: " + cause);
+        }
     }
 }
@@ -0,0 +1,113 @@
+package bench;
+
+import java.io.PrintStream;
+
+/** Base class of microbenchmarks.
+
+    <p>
+    A benchmark overrides <code>perform</code> and calls <code>measure</code>
+    once for each operation it compares. Each operation is first run for a
+    number of warm-up rounds, so that it has been compiled by the time it is
+    measured, and then for a number of measured rounds. The mean time per
+    operation of the measured rounds is printed, together with the fastest
+    round.
+
+    <p>
+    Values returned by operations are folded into a field that is visible to
+    other threads, so that the compiler cannot eliminate the work being
+    measured.
+ */
+public abstract class Benchmark
+{
+    /** Number of rounds run before measurement begins. */
+    private static final int    WARMUP_ROUNDS = 5;
+    /** Number of measured rounds. */
+    private static final int    MEASURED_ROUNDS = 5;
+    /** Minimum duration of each round, in nanoseconds. */
+    private static final long   ROUND_TIME = 200L * 1000 * 1000;
+
+    /** Receives the results of measured operations. */
+    public volatile int         sink;
+
+    /** Operation measured by a benchmark. */
+    protected interface Operation
+    {
+        /** Performs the operation once.
+
+            @return Any result of the operation, or <code>null</code>.
+            @throws Throwable If the operation fails. The benchmark is then
+                              abandoned.
+         */
+        Object run() throws Throwable;
+    }
+
+    /** Runs the benchmark and prints the results.
+
+        @param out Stream to which results are printed.
+        @throws Throwable If the benchmark fails.
+     */
+    public abstract void perform(PrintStream out) throws Throwable;
+
+    /** Measures the mean time taken by one operation.
+
+        @param out Stream to which the result is printed.
+        @param name Name of the operation.
+        @param operation The operation to measure.
+        @return The mean time per operation, in nanoseconds.
+        @throws Throwable If the operation fails.
+     */
+    protected double measure(PrintStream out, String name, Operation operation)
+        throws Throwable
+    {
+        for(int round = 0; round < WARMUP_ROUNDS; ++round)
+            round(operation);
+
+        double  total = 0;
+        double  fastest = Double.MAX_VALUE;
+        for(int round = 0; round < MEASURED_ROUNDS; ++round)
+        {
+            double  time = round(operation);
+            total += time;
+            fastest = Math.min(fastest, time);
+        }
+
+        double  mean = total / MEASURED_ROUNDS;
+        out.printf("  %-40s %12.1f ns/op  (best %.1f)%n", name, mean, fastest);
+        return mean;
+    }
+
+    /** Runs one round of an operation.
+
+        <p>
+        The operation is run in batches of doubling size until the round has
+        lasted at least <code>ROUND_TIME</code>, so that the cost of reading
+        the clock is spread over many operations.
+
+        @return The time per operation in this round, in nanoseconds.
+     */
+    private double round(Operation operation) throws Throwable
+    {
+        long    operations = 0;
+        long    batch = 1;
+        int     hash = 0;
+        long    start = System.nanoTime();
+        long    elapsed;
+
+        do
+        {
+            for(long index = 0; index < batch; ++index)
+            {
+                Object  result = operation.run();
+                if(result != null)
+                    hash += result.hashCode();
+            }
+
+            operations += batch;
+            batch *= 2;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < ROUND_TIME);
+
+        sink += hash;
+        return (double)elapsed / operations;
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+/** Runs microbenchmarks of distributed filesystem components.
+
+    <p>
+    Benchmarks performed are:
+    <ul>
+    <li>{@link rmi.DispatchBenchmark}</li>
+    <li>{@link rmi.MetricsBenchmark}</li>
+    <li>{@link rmi.StubBenchmark}</li>
+    <li>{@link naming.RecoveryBenchmark}</li>
+    <li>{@link naming.LockBenchmark}</li>
+    </ul>
+ */
+public class Benchmarks
+{
+    /** Runs the benchmarks.
+
+        @param arguments Simple names of the benchmark classes to run. If no
+                         names are given, all benchmarks are run.
+     */
+    public static void main(String[] arguments) throws Throwable
+    {
+        @SuppressWarnings("unchecked")
+        Class<? extends Benchmark>[]    benchmarks =
+            (Class<? extends Benchmark>[])
+            new Class<?>[] {rmi.DispatchBenchmark.class,
+                            rmi.MetricsBenchmark.class,
+                            rmi.StubBenchmark.class,
+                            naming.RecoveryBenchmark.class,
+                            naming.LockBenchmark.class};
+
+        for(Class<? extends Benchmark> benchmark : benchmarks)
+        {
+            if(!selected(benchmark, arguments))
+                continue;
+
+            System.out.println(benchmark.getName() + ":");
+            benchmark.getDeclaredConstructor().newInstance()
+                .perform(System.out);
+            System.out.println();
+        }
+    }
+
+    /** Checks whether a benchmark was named on the command line. */
+    private static boolean selected(Class<?> benchmark, String[] arguments)
+    {
+        if(arguments.length == 0)
+            return true;
+
+        for(String argument : arguments)
+        {
+            if(argument.equals(benchmark.getSimpleName()) ||
+               argument.equals(benchmark.getName()))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,130 @@
+package naming;
+
+import java.io.PrintStream;
+import java.util.concurrent.CyclicBarrier;
+
+import bench.Benchmark;
+import common.Path;
+
+/** Measures the naming server's path locks under contention.
+
+    <p>
+    Each of a number of threads repeatedly locks and unlocks a directory of
+    its own, <code>/shared/tN</code>. The threads never wait for each other's
+    locks, but every lock and unlock also takes or releases a shared lock on
+    the root and on <code>/shared</code>, which all threads update at once.
+    Each operation measured is one batch of lock and unlock pairs by every
+    thread, first with the threads' own directories locked for reading and
+    then for writing. With a core for each thread, and the ancestors' read
+    locks cheap to share, a batch should take about as long with many threads
+    as with one.
+ */
+public class LockBenchmark extends Benchmark
+{
+    /** Numbers of threads measured. */
+    private static final int[]  THREADS = {1, 2, 4, 8};
+    /** Number of lock and unlock pairs by each thread in each operation. */
+    private static final int    PAIRS = 1000;
+
+    /** Runs the measurements. */
+    @Override
+    public void perform(PrintStream out) throws Throwable
+    {
+        final NamingServer  server = new NamingServer();
+        server.createDirectory(new Path("/shared"));
+        for(int thread = 0; thread < THREADS[THREADS.length - 1]; ++thread)
+            server.createDirectory(new Path("/shared/t" + thread));
+
+        for(final boolean exclusive : new boolean[] {false, true})
+        {
+            for(int threads : THREADS)
+            {
+                final Workers   workers =
+                    new Workers(server, threads, exclusive);
+                try
+                {
+                    measure(out, threads + " threads, " + PAIRS + " " +
+                            (exclusive ? "exclusive" : "shared") + " pairs",
+                            new Operation() {
+                        public Object run() throws Throwable
+                        {
+                            workers.batch();
+                            return null;
+                        }
+                    });
+                }
+                finally
+                {
+                    workers.stop();
+                }
+            }
+        }
+    }
+
+    /** Threads locking their directories, one batch at a time. */
+    private static class Workers
+    {
+        /** Passed by the workers and the measuring thread to start a batch,
+            and again once it is done. */
+        private final CyclicBarrier     barrier;
+        /** Set to stop the workers at the next batch. */
+        private volatile boolean        stopped = false;
+        /** Error thrown by a worker, if any. */
+        private volatile Throwable      failure = null;
+
+        Workers(final NamingServer server, int threads,
+                final boolean exclusive)
+        {
+            barrier = new CyclicBarrier(threads + 1);
+
+            for(int thread = 0; thread < threads; ++thread)
+            {
+                final Path  own = new Path("/shared/t" + thread);
+                Thread      worker = new Thread() {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            while(true)
+                            {
+                                barrier.await();
+                                if(stopped)
+                                    return;
+                                for(int pair = 0; pair < PAIRS; ++pair)
+                                {
+                                    server.lock(own, exclusive);
+                                    server.unlock(own, exclusive);
+                                }
+                                barrier.await();
+                            }
+                        }
+                        catch(Throwable t)
+                        {
+                            failure = t;
+                            barrier.reset();
+                        }
+                    }
+                };
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+
+        /** Runs one batch on every worker. */
+        void batch() throws Throwable
+        {
+            barrier.await();
+            barrier.await();
+            if(failure != null)
+                throw failure;
+        }
+
+        /** Lets the workers end. */
+        void stop() throws Throwable
+        {
+            stopped = true;
+            barrier.await();
+        }
+    }
+}
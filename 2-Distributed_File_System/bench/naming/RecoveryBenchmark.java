@@ -0,0 +1,110 @@
+package naming;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import bench.Benchmark;
+import common.Path;
+import rmi.Stub;
+import storage.Command;
+import storage.Storage;
+import test.TemporaryDirectory;
+
+/** Measures how long a naming server takes to rebuild its namespace.
+
+    <p>
+    For trees of increasing size, three ways of rebuilding are compared. The
+    first is a storage server registering all of its files with a naming
+    server that keeps no metadata, as every storage server must after such a
+    naming server restarts; only the naming server's side is measured, not
+    the listing of the storage server's directory or the transfer of the
+    list. The second recovers the namespace by replaying the journal record
+    of that registration, and the third by loading a snapshot of it. Files
+    are placed a hundred to a directory.
+ */
+public class RecoveryBenchmark extends Benchmark
+{
+    /** Numbers of files in the trees measured. */
+    private static final int[]  SIZES = {1000, 10000, 100000};
+    /** Number of files in each directory. */
+    private static final int    FANOUT = 100;
+
+    /** Runs the comparison. */
+    @Override
+    public void perform(PrintStream out) throws Throwable
+    {
+        final Storage       storage = Stub.create(Storage.class,
+            new InetSocketAddress("127.0.0.1", 9));
+        final Command       command = Stub.create(Command.class,
+            new InetSocketAddress("127.0.0.1", 9));
+
+        for(int size : SIZES)
+        {
+            final Path[]    files = new Path[size];
+            for(int index = 0; index < size; ++index)
+            {
+                files[index] = new Path("/d" + (index / FANOUT) +
+                                        "/f" + (index % FANOUT));
+            }
+
+            measure(out, "register " + size + " files", new Operation() {
+                public Object run() throws Throwable
+                {
+                    return new NamingServer().register(storage, command,
+                                                       files);
+                }
+            });
+
+            TemporaryDirectory  journaled = new TemporaryDirectory();
+            TemporaryDirectory  snapshotted = new TemporaryDirectory();
+            try
+            {
+                NamingServer    server = new NamingServer(journaled.root());
+                server.register(storage, command, files);
+                server.closeMetadata();
+
+                server = new NamingServer(snapshotted.root());
+                server.register(storage, command, files);
+                server.snapshot();
+                server.closeMetadata();
+
+                measure(out, "replay journal of " + size + " files",
+                        recovery(journaled.root()));
+                measure(out, "load snapshot of " + size + " files",
+                        recovery(snapshotted.root()));
+            }
+            finally
+            {
+                journaled.remove();
+                snapshotted.remove();
+            }
+        }
+    }
+
+    /** Returns an operation recovering a naming server from a directory.
+        The journal each recovery starts is deleted again, so that every
+        recovery reads the same files. */
+    private static Operation recovery(final File directory)
+    {
+        final Set<String>   original =
+            new HashSet<String>(Arrays.asList(directory.list()));
+
+        return new Operation() {
+            public Object run() throws Throwable
+            {
+                NamingServer    server = new NamingServer(directory);
+                server.closeMetadata();
+                for(String name : directory.list())
+                {
+                    if(!original.contains(name))
+                        new File(directory, name).delete();
+                }
+                return server;
+            }
+        };
+    }
+}
@@ -0,0 +1,16 @@
+/** Microbenchmarks.
+
+    <p>
+    Benchmarks measure the cost of individual operations in the principal
+    packages, so that an optimization can be compared against the code it
+    replaces. Like unit tests, each benchmark resides in the same package as
+    the code it measures, in a subdirectory of <code>bench/</code>, so that it
+    can reach package-private classes.
+
+    <p>
+    To run all benchmarks, execute <code>make bench</code>, or
+    <code>java -cp .:bench bench.Benchmarks</code> from the command line. Names
+    of benchmark classes may be given as arguments to run only those
+    benchmarks.
+ */
+package bench;
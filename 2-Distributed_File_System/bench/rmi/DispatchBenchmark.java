@@ -0,0 +1,108 @@
+package rmi;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import bench.Benchmark;
+import common.Path;
+
+/** Compares the ways a skeleton can dispatch a decoded call.
+
+    <p>
+    The first operation repeats what the skeleton did before method tables
+    were cached: it looks the method up by name and parameter types, then
+    calls it with <code>Method.invoke</code>. The second calls a cached
+    <code>Method</code>, and the third uses the pre-bound method handle of a
+    cached <code>MethodTable</code>. The remote interface check performed when
+    stubs and skeletons are created is compared in the same way.
+ */
+public class DispatchBenchmark extends Benchmark
+{
+    /** Remote interface used by the benchmark. */
+    public interface Service
+    {
+        /** Returns the size of a file. */
+        public long size(Path file) throws RMIException;
+        /** Reads from a file. */
+        public byte[] read(Path file, long offset, int length)
+            throws RMIException;
+    }
+
+    /** Trivial implementation, so that dispatch dominates the cost. */
+    private static class Server implements Service
+    {
+        private final byte[]    data = new byte[16];
+
+        public long size(Path file)
+        {
+            return file.hashCode();
+        }
+
+        public byte[] read(Path file, long offset, int length)
+        {
+            return data;
+        }
+    }
+
+    /** Runs the comparison. */
+    @Override
+    public void perform(PrintStream out) throws Throwable
+    {
+        final Service       server = new Server();
+        final Object[]      args =
+            new Object[] {new Path("/directory/file"), 0L, 16};
+        final String        name = "read";
+        final Class<?>[]    types =
+            new Class<?>[] {Path.class, long.class, int.class};
+
+        final Method        method = Service.class.getMethod(name, types);
+        final MethodTable   table = MethodTable.of(Service.class);
+        final int           id = table.idOf(method);
+
+        measure(out, "lookup + Method.invoke", new Operation() {
+            public Object run() throws Throwable
+            {
+                return Service.class.getMethod(name, types)
+                    .invoke(server, args);
+            }
+        });
+
+        measure(out, "cached Method.invoke", new Operation() {
+            public Object run() throws Throwable
+            {
+                return method.invoke(server, args);
+            }
+        });
+
+        measure(out, "MethodTable.invoke", new Operation() {
+            public Object run() throws Throwable
+            {
+                return table.invoke(id, server, args);
+            }
+        });
+
+        measure(out, "remote interface check (reflective)",
+                new Operation() {
+            public Object run() throws Throwable
+            {
+                for(Method m : Service.class.getMethods())
+                {
+                    if(!Arrays.asList(m.getExceptionTypes())
+                            .contains(RMIException.class))
+                    {
+                        return Boolean.FALSE;
+                    }
+                }
+                return Boolean.TRUE;
+            }
+        });
+
+        measure(out, "remote interface check (cached)", new Operation() {
+            public Object run() throws Throwable
+            {
+                return MethodTable.isRemoteInterface(Service.class);
+            }
+        });
+    }
+}
@@ -0,0 +1,50 @@
+package rmi;
+
+import java.io.PrintStream;
+
+import bench.Benchmark;
+import common.Path;
+
+/** Measures what call metrics add to each call.
+
+    <p>
+    A skeleton reads the clock before and after every call and records the
+    difference in the histogram of the method called. The first operation
+    measures the clock reads alone, and the second the whole recording.
+    Neither should be noticeable next to the cost of dispatching a call, which
+    is measured by <code>DispatchBenchmark</code>.
+ */
+public class MetricsBenchmark extends Benchmark
+{
+    /** Remote interface whose method table is used by the benchmark. */
+    public interface Service
+    {
+        /** Returns the size of a file. */
+        public long size(Path file) throws RMIException;
+    }
+
+    /** Runs the measurements. */
+    @Override
+    public void perform(PrintStream out) throws Throwable
+    {
+        final MetricsRecorder   recorder =
+            new MetricsRecorder(MethodTable.of(Service.class));
+
+        measure(out, "two clock reads", new Operation() {
+            public Object run() throws Throwable
+            {
+                long    started = System.nanoTime();
+                return System.nanoTime() - started;
+            }
+        });
+
+        measure(out, "timed and recorded call", new Operation() {
+            public Object run() throws Throwable
+            {
+                long    started = System.nanoTime();
+                recorder.call(0, System.nanoTime() - started, false);
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,98 @@
+package rmi;
+
+import java.io.PrintStream;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+
+import bench.Benchmark;
+import common.Path;
+import storage.Command;
+import storage.Storage;
+
+/** Compares generated stubs with dynamic proxy stubs.
+
+    <p>
+    Both stubs call a skeleton in the same JVM, so that each call goes
+    straight to the server object and the cost of the stub itself dominates.
+    The proxy stub compares method names to pick out <code>Object</code>
+    methods and looks up the method ID on every call. The generated stub
+    passes a constant method ID. The last operation measures the skeleton
+    side: a call dispatched by the generated <code>switch</code>, to be
+    compared with <code>MethodTable.invoke</code> in
+    <code>DispatchBenchmark</code>. The generated classes are made by the
+    <code>stubs</code> Makefile target.
+ */
+public class StubBenchmark extends Benchmark
+{
+    /** Trivial implementation, so that the stub dominates the cost. */
+    private static class Server implements Command
+    {
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+
+        public boolean copy(Path file, Storage server)
+        {
+            return true;
+        }
+    }
+
+    /** Runs the comparison. */
+    @Override
+    public void perform(PrintStream out) throws Throwable
+    {
+        final Server            server = new Server();
+        Skeleton<Command>       skeleton =
+            new Skeleton<Command>(Command.class, server);
+        skeleton.start();
+
+        try
+        {
+            InetSocketAddress   address =
+                new InetSocketAddress("127.0.0.1", skeleton.getPort());
+            final Path          file = new Path("/directory/file");
+            final Command       generated = Stub.create(Command.class, address);
+            final Command       proxy = (Command) Proxy.newProxyInstance(
+                Command.class.getClassLoader(), new Class<?>[] {Command.class},
+                new MyInvocationHandler(address, Command.class));
+            final MethodTable   table = MethodTable.of(Command.class);
+            final int           id = table.idOf(
+                Command.class.getMethod("create", Path.class));
+            final Object[]      args = new Object[] {file};
+
+            if(!(generated instanceof GeneratedStub))
+                out.println("  (no generated stub; run make stubs)");
+
+            measure(out, "proxy stub, local call", new Operation() {
+                public Object run() throws Throwable
+                {
+                    return proxy.create(file);
+                }
+            });
+
+            measure(out, "generated stub, local call", new Operation() {
+                public Object run() throws Throwable
+                {
+                    return generated.create(file);
+                }
+            });
+
+            measure(out, "generated skeleton dispatch", new Operation() {
+                public Object run() throws Throwable
+                {
+                    return table.invoke(id, server, args);
+                }
+            });
+        }
+        finally
+        {
+            skeleton.stop();
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package build;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/** Generates stub and skeleton classes for remote interfaces.
+
+    <p>
+    For each remote interface named on the command line, the generator writes
+    the source of two classes into the package's directory under the output
+    directory. The class <code>I_Stub</code> extends
+    <code>rmi.GeneratedStub</code> and implements the interface
+    <code>I</code>. Each method passes its method ID and arguments straight to
+    the RMI layer and casts the result. The class <code>I_Skeleton</code>
+    implements <code>rmi.GeneratedSkeleton</code>. It runs calls on a server
+    object by switching on the method ID. <code>Stub.create</code> and
+    <code>Skeleton</code> use these classes when they are found on the
+    classpath, in place of dynamic proxies and method handles.
+
+    <p>
+    Methods are numbered as <code>rmi.MethodTable</code> numbers them: sorted
+    by name, parameter types and return type, with methods inherited twice
+    counted once. The generated classes list the signatures in that order, so
+    that the RMI layer can ignore classes generated from an older version of
+    an interface.
+
+    <p>
+    The generator is run by the <code>stubs</code> target of the Makefile,
+    after the interfaces have been compiled.
+ */
+public abstract class StubGenerator
+{
+    /** Program entry point.
+
+        @param arguments The output directory, followed by the fully qualified
+                         names of the remote interfaces.
+        @throws ClassNotFoundException If an interface cannot be loaded.
+        @throws IOException If a source file cannot be written.
+     */
+    public static void main(String[] arguments)
+        throws ClassNotFoundException, IOException
+    {
+        if(arguments.length < 1)
+        {
+            System.err.println("usage: java build.StubGenerator " +
+                               "output-directory interface...");
+            System.exit(2);
+        }
+
+        File        output = new File(arguments[0]);
+
+        for(int index = 1; index < arguments.length; ++index)
+        {
+            Class<?>    remote = Class.forName(arguments[index]);
+
+            if(!remote.isInterface())
+            {
+                throw new IllegalArgumentException(remote.getName() +
+                                                   " is not an interface");
+            }
+
+            Method[]    methods = methods(remote);
+            write(output, remote, "_Stub", stub(remote, methods));
+            write(output, remote, "_Skeleton", skeleton(remote, methods));
+        }
+    }
+
+    /** Returns the methods of an interface in method ID order.
+
+        <p>
+        This must agree with the numbering in <code>rmi.MethodTable</code>.
+     */
+    private static Method[] methods(Class<?> remote)
+    {
+        Method[]            all = remote.getMethods();
+        Arrays.sort(all, new Comparator<Method>() {
+            public int compare(Method m1, Method m2)
+            {
+                return signature(m1).compareTo(signature(m2));
+            }
+        });
+
+        ArrayList<Method>   unique = new ArrayList<Method>();
+        String              previous = null;
+
+        for(Method method : all)
+        {
+            String          signature = signature(method);
+
+            if(!signature.equals(previous))
+            {
+                unique.add(method);
+                previous = signature;
+            }
+        }
+
+        return unique.toArray(new Method[unique.size()]);
+    }
+
+    /** Returns the signature of a method as <code>rmi.MethodTable</code>
+        writes it. */
+    private static String signature(Method method)
+    {
+        StringBuilder   signature =
+            new StringBuilder(method.getName()).append('(');
+        Class<?>[]      parameters = method.getParameterTypes();
+
+        for(int index = 0; index < parameters.length; ++index)
+        {
+            if(index > 0)
+                signature.append(',');
+            signature.append(parameters[index].getName());
+        }
+
+        return signature.append(')').append(method.getReturnType().getName())
+                        .toString();
+    }
+
+    /** Returns the source of the stub class for an interface. */
+    private static String stub(Class<?> remote, Method[] methods)
+    {
+        String          name = className(remote, "_Stub");
+        StringBuilder   source = header(remote);
+
+        source.append("/** Stub for {@link ").append(remote.getCanonicalName())
+              .append("}, generated at build time. */\n");
+        source.append("public final class ").append(name)
+              .append(" extends rmi.GeneratedStub implements ")
+              .append(remote.getCanonicalName()).append(" {\n\n");
+        source.append("    private static final long serialVersionUID = 1L;\n\n");
+        signatures(source, methods);
+        source.append("    public ").append(name)
+              .append("(rmi.MyInvocationHandler handler) {\n")
+              .append("        super(handler);\n")
+              .append("    }\n");
+
+        for(int id = 0; id < methods.length; ++id)
+        {
+            Method      method = methods[id];
+            Class<?>[]  parameters = method.getParameterTypes();
+            Class<?>    result = method.getReturnType();
+            Type        generic = method.getGenericReturnType();
+            String      resultName = typeName(generic);
+
+            source.append("\n    @Override\n");
+            // Casting the result to a parameterized type is unchecked.
+            if(generic instanceof ParameterizedType)
+                source.append("    @SuppressWarnings(\"unchecked\")\n");
+            source.append("    public ")
+                  .append(resultName).append(' ')
+                  .append(method.getName()).append('(');
+            for(int index = 0; index < parameters.length; ++index)
+            {
+                if(index > 0)
+                    source.append(", ");
+                source.append(parameters[index].getCanonicalName())
+                      .append(" p").append(index);
+            }
+            source.append(')');
+
+            Class<?>[]  thrown = method.getExceptionTypes();
+            if(thrown.length > 0)
+            {
+                source.append("\n        throws ");
+                for(int index = 0; index < thrown.length; ++index)
+                {
+                    if(index > 0)
+                        source.append(", ");
+                    source.append(thrown[index].getCanonicalName());
+                }
+            }
+            source.append(" {\n");
+
+            StringBuilder   call = new StringBuilder("call(").append(id)
+                                       .append(", new Object[] {");
+            for(int index = 0; index < parameters.length; ++index)
+            {
+                if(index > 0)
+                    call.append(", ");
+                call.append('p').append(index);
+            }
+            call.append("})");
+
+            String          statement;
+            if(result == void.class)
+                statement = call + ";";
+            else
+                statement = "return " + unbox(result, resultName, call.toString()) + ";";
+
+            List<Class<?>>  checked = checked(thrown);
+            if(checked == null)
+            {
+                // The method may throw any exception, so none needs wrapping.
+                source.append("        ").append(statement).append('\n');
+            }
+            else
+            {
+                source.append("        try {\n")
+                      .append("            ").append(statement).append('\n')
+                      .append("        } catch (java.lang.RuntimeException");
+                for(Class<?> exception : checked)
+                {
+                    source.append(" | ")
+                          .append(exception.getCanonicalName());
+                }
+                source.append(" e) {\n")
+                      .append("            throw e;\n")
+                      .append("        } catch (java.lang.Exception e) {\n")
+                      .append("            throw new java.lang.reflect." +
+                              "UndeclaredThrowableException(e);\n")
+                      .append("        }\n");
+            }
+            source.append("    }\n");
+        }
+
+        return source.append("}\n").toString();
+    }
+
+    /** Returns the source of the skeleton dispatcher for an interface. */
+    private static String skeleton(Class<?> remote, Method[] methods)
+    {
+        String          name = className(remote, "_Skeleton");
+        StringBuilder   source = header(remote);
+
+        source.append("/** Dispatcher for skeletons of {@link ")
+              .append(remote.getCanonicalName())
+              .append("}, generated at build time. */\n");
+        source.append("public final class ").append(name)
+              .append(" implements rmi.GeneratedSkeleton {\n\n");
+        signatures(source, methods);
+        source.append("    @Override\n")
+              .append("    public Object invoke(int methodId, Object server, " +
+                      "Object[] args) throws Throwable {\n")
+              .append("        ").append(remote.getCanonicalName())
+              .append(" target = (").append(remote.getCanonicalName())
+              .append(") server;\n")
+              .append("        switch (methodId) {\n");
+
+        for(int id = 0; id < methods.length; ++id)
+        {
+            Method      method = methods[id];
+            Class<?>[]  parameters = method.getParameterTypes();
+            StringBuilder   call = new StringBuilder("target.")
+                .append(method.getName()).append('(');
+
+            for(int index = 0; index < parameters.length; ++index)
+            {
+                if(index > 0)
+                    call.append(", ");
+                call.append(unbox(parameters[index],
+                                  parameters[index].getCanonicalName(),
+                                  "args[" + index + "]"));
+            }
+            call.append(')');
+
+            source.append("        case ").append(id).append(":\n");
+            if(method.getReturnType() == void.class)
+            {
+                source.append("            ").append(call).append(";\n")
+                      .append("            return null;\n");
+            }
+            else
+            {
+                source.append("            return ").append(call)
+                      .append(";\n");
+            }
+        }
+
+        source.append("        default:\n")
+              .append("            throw new IllegalArgumentException(" +
+                      "\"unknown method ID \" + methodId);\n")
+              .append("        }\n")
+              .append("    }\n")
+              .append("}\n");
+        return source.toString();
+    }
+
+    /** Returns the name of a generated class, without its package.
+
+        <p>
+        The name is the binary name of the interface followed by the suffix,
+        which is where <code>rmi.GeneratedClasses</code> looks for it. For an
+        interface <code>I</code> nested in a class <code>C</code>, this is
+        <code>C$I_Stub</code>, a top-level class in the same package.
+     */
+    private static String className(Class<?> remote, String suffix)
+    {
+        String      name = remote.getName();
+        if(remote.getPackage() != null)
+            name = name.substring(remote.getPackage().getName().length() + 1);
+        return name + suffix;
+    }
+
+    /** Starts a generated source file with a notice and the package
+        declaration. */
+    private static StringBuilder header(Class<?> remote)
+    {
+        StringBuilder   source = new StringBuilder();
+
+        source.append("// Generated by build.StubGenerator from ")
+              .append(remote.getName()).append(". Do not edit.\n\n");
+        if(remote.getPackage() != null)
+        {
+            source.append("package ").append(remote.getPackage().getName())
+                  .append(";\n\n");
+        }
+        return source;
+    }
+
+    /** Appends the <code>SIGNATURES</code> field listing the methods in ID
+        order. */
+    private static void signatures(StringBuilder source, Method[] methods)
+    {
+        source.append("    /** Signatures of the remote methods, in method " +
+                      "ID order. */\n")
+              .append("    public static final String[] SIGNATURES = {\n");
+        for(Method method : methods)
+        {
+            source.append("        \"").append(signature(method))
+                  .append("\",\n");
+        }
+        source.append("    };\n\n");
+    }
+
+    /** Returns an expression converting an <code>Object</code> expression to
+        the given type, written as <code>name</code>, unboxing primitive
+        values. */
+    private static String unbox(Class<?> type, String name, String expression)
+    {
+        if(!type.isPrimitive())
+        {
+            if(type == Object.class)
+                return expression;
+            return "(" + name + ") " + expression;
+        }
+
+        String      box;
+        if(type == int.class)
+            box = "Integer";
+        else if(type == char.class)
+            box = "Character";
+        else
+        {
+            box = Character.toUpperCase(type.getName().charAt(0)) +
+                  type.getName().substring(1);
+        }
+
+        return "((java.lang." + box + ") " + expression + ")." +
+               type.getName() + "Value()";
+    }
+
+    /** Returns the name of a type as written in source, with its type
+        arguments if it is parameterized. */
+    private static String typeName(Type type)
+    {
+        if(type instanceof Class)
+            return ((Class<?>)type).getCanonicalName();
+
+        if(!(type instanceof ParameterizedType))
+            return type.getTypeName();
+
+        ParameterizedType   parameterized = (ParameterizedType)type;
+        StringBuilder       name =
+            new StringBuilder(typeName(parameterized.getRawType()));
+        Type[]              arguments = parameterized.getActualTypeArguments();
+
+        name.append('<');
+        for(int index = 0; index < arguments.length; ++index)
+        {
+            if(index > 0)
+                name.append(", ");
+            name.append(typeName(arguments[index]));
+        }
+        return name.append('>').toString();
+    }
+
+    /** Returns the checked exceptions a method declares, leaving out those
+        covered by another, or <code>null</code> if it declares
+        <code>Exception</code> or <code>Throwable</code> and so may throw
+        anything. */
+    private static List<Class<?>> checked(Class<?>[] thrown)
+    {
+        ArrayList<Class<?>>     checked = new ArrayList<Class<?>>();
+
+        for(Class<?> exception : thrown)
+        {
+            if(exception.isAssignableFrom(Exception.class))
+                return null;
+
+            if(RuntimeException.class.isAssignableFrom(exception) ||
+               Error.class.isAssignableFrom(exception))
+            {
+                continue;
+            }
+
+            boolean             covered = false;
+            for(Class<?> other : thrown)
+            {
+                if(other != exception && other.isAssignableFrom(exception))
+                    covered = true;
+            }
+
+            if(!covered && !checked.contains(exception))
+                checked.add(exception);
+        }
+
+        return checked;
+    }
+
+    /** Writes a generated source file under the output directory. */
+    private static void write(File output, Class<?> remote, String suffix,
+                              String source) throws IOException
+    {
+        File        directory = output;
+        if(remote.getPackage() != null)
+        {
+            directory = new File(output, remote.getPackage().getName()
+                                               .replace('.', File.separatorChar));
+        }
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("cannot create " + directory);
+
+        File        file = new File(directory,
+                                    className(remote, suffix) + ".java");
+        Writer      writer = new OutputStreamWriter(new FileOutputStream(file),
+                                                    "UTF-8");
+        try
+        {
+            writer.write(source);
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
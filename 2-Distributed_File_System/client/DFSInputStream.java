@@ -2,6 +2,7 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.*;
 
 import rmi.*;
 import common.*;
@@ -12,10 +13,14 @@ import storage.*;
 
     <p>
     Read calls on a <code>DFSInputStream</code> are directed to a storage server
-    hosting the given file. Each read call corresponds to one network request.
-    If this behavior is not desirable, the <code>DFSInputStream</code> should be
-    wrapped in a <code>BufferedInputStream</code> or other class providing
-    buffered input.
+    hosting the given file. Each read call corresponds to one network request,
+    except that reads longer than <code>READ_CHUNK_SIZE</code> are split into
+    chunks that are requested concurrently. Reads of at least
+    <code>BULK_THRESHOLD</code> bytes from a storage server with a bulk
+    transfer channel go over that channel instead, and arrive directly in the
+    caller's buffer. If this behavior is not desirable, the
+    <code>DFSInputStream</code> should be wrapped in a
+    <code>BufferedInputStream</code> or other class providing buffered input.
 
     <p>
     <code>DFSInputStream</code> does not support marks.
@@ -28,10 +33,26 @@ import storage.*;
  */
 public class DFSInputStream extends InputStream
 {
+    /** Reads longer than this are split into concurrent requests of at most
+        this many bytes. */
+    private static final int    READ_CHUNK_SIZE = 256 * 1024;
+    /** Reads of at least this many bytes use the bulk transfer channel of the
+        storage server, if it has one. */
+    private static final int    BULK_THRESHOLD = 64 * 1024;
+
     /** Path to the file. */
     private final Path      path;
     /** Storage server hosting the file. */
     private final Storage   storage_server;
+    /** Asynchronous stub for the same storage server, created on the first
+        read that is split into chunks. */
+    private StorageAsync    storage_async = null;
+    /** Connection to the bulk transfer channel of the storage server, opened
+        on the first read long enough to use it. */
+    private BulkChannel     bulk_channel = null;
+    /** Indicates that the storage server has been asked for its bulk
+        channel. */
+    private boolean         bulk_checked = false;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
@@ -164,6 +185,15 @@ public class DFSInputStream extends InputStream
     public void close()
     {
         closed = true;
+
+        if(bulk_channel != null)
+        {
+            try
+            {
+                bulk_channel.close();
+            }
+            catch(IOException e) { }
+        }
     }
 
     /** Reads bytes from the input stream into a byte buffer.
@@ -232,6 +262,32 @@ public class DFSInputStream extends InputStream
         if(read_length > (length - offset))
             read_length = (int)(length - offset);
 
+        // Long reads go over the bulk channel when the server has one.
+        if(read_length >= BULK_THRESHOLD && bulkChannel() != null)
+        {
+            try
+            {
+                bulk_channel.read(path, offset, buffer, buffer_offset,
+                                  read_length);
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new IOException("file missing on storage server", e);
+            }
+
+            offset += read_length;
+            return read_length;
+        }
+
+        // Otherwise, they are split into chunks that are all in flight at
+        // once.
+        if(read_length > READ_CHUNK_SIZE)
+        {
+            readChunks(buffer, buffer_offset, read_length);
+            offset += read_length;
+            return read_length;
+        }
+
         // Read bytes from file and advance the stream offset if the request
         // succeeds.
         byte[]      result;
@@ -252,13 +308,118 @@ public class DFSInputStream extends InputStream
 
         // Copy bytes from the buffer that was received over the network into
         // the buffer provided by the caller.
-        for(int index = 0; index < read_length; ++index)
-            buffer[buffer_offset + index] = result[index];
+        System.arraycopy(result, 0, buffer, buffer_offset, read_length);
 
         // Return the number of bytes read.
         return read_length;
     }
 
+    /** Returns a connection to the bulk transfer channel of the storage
+        server, or <code>null</code> if the server has none or it cannot be
+        reached. The server is asked only once.
+
+        @throws IOException If the storage server cannot be contacted.
+     */
+    private BulkChannel bulkChannel() throws IOException
+    {
+        if(bulk_checked)
+            return bulk_channel;
+
+        bulk_checked = true;
+
+        InetSocketAddress   address;
+        try
+        {
+            address = storage_server.bulkAddress();
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("unable to contact storage server", e);
+        }
+
+        // An unreachable bulk channel leaves reads on the RMI interface.
+        if(address != null)
+        {
+            try
+            {
+                bulk_channel = new BulkChannel(address);
+            }
+            catch(IOException e) { }
+        }
+
+        return bulk_channel;
+    }
+
+    /** Reads a range of the file starting at the stream offset by sending
+        one asynchronous request for each chunk of <code>READ_CHUNK_SIZE</code>
+        bytes, so that the round trips overlap.
+
+        @throws IOException If the storage server cannot be contacted, or if a
+                            read error occurs on the storage server.
+     */
+    private void readChunks(byte[] buffer, int buffer_offset, int read_length)
+        throws IOException
+    {
+        if(storage_async == null)
+            storage_async = AsyncStub.create(StorageAsync.class, storage_server);
+
+        int                             chunks =
+            (read_length + READ_CHUNK_SIZE - 1) / READ_CHUNK_SIZE;
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<byte[]>[]     results = new CompletableFuture[chunks];
+
+        for(int chunk = 0; chunk < chunks; ++chunk)
+        {
+            int     start = chunk * READ_CHUNK_SIZE;
+            int     chunk_length = Math.min(READ_CHUNK_SIZE, read_length - start);
+            results[chunk] =
+                storage_async.read(path, offset + start, chunk_length);
+        }
+
+        // Copy each chunk into place as it arrives. A failed chunk fails the
+        // whole read; the stream offset is then left unchanged.
+        for(int chunk = 0; chunk < chunks; ++chunk)
+        {
+            byte[]      result;
+
+            try
+            {
+                result = results[chunk].get();
+            }
+            catch(ExecutionException e)
+            {
+                throw readFailure(e.getCause());
+            }
+            catch(InterruptedException e)
+            {
+                throw new InterruptedIOException("interrupted while reading");
+            }
+
+            System.arraycopy(result, 0, buffer,
+                             buffer_offset + chunk * READ_CHUNK_SIZE,
+                             result.length);
+        }
+    }
+
+    /** Converts the cause of a failed asynchronous read into the exception
+        that a synchronous read would have thrown. */
+    private static IOException readFailure(Throwable cause)
+    {
+        if(cause instanceof FileNotFoundException)
+            return new IOException("file missing on storage server", cause);
+
+        if(cause instanceof RMIException)
+            return new IOException("unable to contact storage server", cause);
+
+        if(cause instanceof IOException)
+            return (IOException)cause;
+
+        if(cause instanceof RuntimeException)
+            throw (RuntimeException)cause;
+
+        return new IOException(cause);
+    }
+
     /** Reads a single byte from the input stream.
 
         @return The value of the byte read, as an integer between <code>0</code>
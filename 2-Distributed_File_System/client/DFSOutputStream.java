@@ -14,7 +14,9 @@ import storage.*;
     Write calls on a <code>DFSOutputStream</code> are directed to a storage
     server hosting the given file. Each call corresponds to one network request.
     If this is not desirable, the <code>DFSOutputStream</code> should be wrapped
-    in a <code>BufferedOutputStream</code> object.
+    in a <code>BufferedOutputStream</code> object. Writes of at least
+    <code>BULK_THRESHOLD</code> bytes to a storage server with a bulk transfer
+    channel go over that channel, straight from the caller's buffer.
 
     <p>
     Creating a <code>DFSOutputStream</code> for a file does not cause the file
@@ -24,12 +26,22 @@ import storage.*;
  */
 public class DFSOutputStream extends OutputStream
 {
+    /** Writes of at least this many bytes use the bulk transfer channel of
+        the storage server, if it has one. */
+    private static final int    BULK_THRESHOLD = 64 * 1024;
+
     /** Path to the file. */
     private final Path      path;
     /** Storage server hosting the file. */
     private final Storage   storage_server;
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
+    /** Connection to the bulk transfer channel of the storage server, opened
+        on the first write long enough to use it. */
+    private BulkChannel     bulk_channel = null;
+    /** Indicates that the storage server has been asked for its bulk
+        channel. */
+    private boolean         bulk_checked = false;
 
     /** Current write offset in the file. */
     private long            offset = 0;
@@ -148,6 +160,9 @@ public class DFSOutputStream extends OutputStream
     public void close() throws IOException
     {
         closed = true;
+
+        if(bulk_channel != null)
+            bulk_channel.close();
     }
 
     /** Writes bytes from a buffer to the output stream.
@@ -199,6 +214,24 @@ public class DFSOutputStream extends OutputStream
         if(write_length == 0)
             return;
 
+        // Long writes go over the bulk channel when the server has one,
+        // without copying the buffer.
+        if(write_length >= BULK_THRESHOLD && bulkChannel() != null)
+        {
+            try
+            {
+                bulk_channel.write(path, offset, buffer, buffer_offset,
+                                   write_length);
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new IOException("file missing on storage server", e);
+            }
+
+            offset += write_length;
+            return;
+        }
+
         // Create the data buffer that will be sent over the network. If the
         // buffer offset is zero and all the bytes in the user-provided buffer
         // are to be written, the user-provided buffer will be serialized
@@ -234,6 +267,42 @@ public class DFSOutputStream extends OutputStream
         }
     }
 
+    /** Returns a connection to the bulk transfer channel of the storage
+        server, or <code>null</code> if the server has none or it cannot be
+        reached. The server is asked only once.
+
+        @throws IOException If the storage server cannot be contacted.
+     */
+    private BulkChannel bulkChannel() throws IOException
+    {
+        if(bulk_checked)
+            return bulk_channel;
+
+        bulk_checked = true;
+
+        InetSocketAddress   address;
+        try
+        {
+            address = storage_server.bulkAddress();
+        }
+        catch(RMIException e)
+        {
+            throw new IOException("unable to contact storage server", e);
+        }
+
+        // An unreachable bulk channel leaves writes on the RMI interface.
+        if(address != null)
+        {
+            try
+            {
+                bulk_channel = new BulkChannel(address);
+            }
+            catch(IOException e) { }
+        }
+
+        return bulk_channel;
+    }
+
     /** Writes a single byte to the output stream.
 
         @param b Value of the byte to be written. The argument is taken modulo
@@ -0,0 +1,24 @@
+package naming;
+
+import rmi.RMIException;
+
+/** Interface through which the naming server notifies clients of changes.
+
+    <p>
+    Clients export an object implementing this interface with
+    <code>rmi.Callbacks.export</code> and pass the stub to
+    <code>Service.subscribe</code>. The naming server then calls it whenever
+    results that clients may have cached, such as those of
+    <code>Service.isDirectory</code> and <code>Service.getStorage</code>, are
+    no longer valid. Notifications are sent asynchronously, and repeated
+    notifications that have not yet been delivered are merged into one.
+ */
+public interface ChangeListener
+{
+    /** Indicates that the filesystem has changed.
+
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void changed() throws RMIException;
+}
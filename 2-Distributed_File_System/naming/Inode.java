@@ -0,0 +1,228 @@
+package naming;
+
+import java.util.Arrays;
+
+import storage.Storage;
+
+/* One file or directory in the naming server's namespace.
+ *
+ * Names are interned, so that a component repeated across the tree, such as
+ * a common file name, is held once. A directory keeps its children in an
+ * open-addressing table with linear probing, keyed by name: one array of
+ * nodes, without the entry objects of a HashMap. Children are added and
+ * removed while holding the directory's monitor. Lookups take no lock and
+ * probe whichever table was last published, so a lookup racing with a change
+ * sees the directory either before or after it. A change that writes a slot
+ * of the current table writes the table's field again afterwards, so that a
+ * lookup reading the field sees the slot, and the child in it, completely.
+ * A removed child leaves a tombstone, which later additions reuse, and which
+ * is dropped when the table is next rebuilt. Tables are rebuilt before three
+ * quarters of their slots are taken, so every probe ends at an empty slot.
+ *
+ * A file keeps the storage servers holding it in an array that is replaced
+ * whenever it changes. Every node has a read/write lock, made the first time
+ * the node is locked.
+ */
+abstract class Inode {
+
+    final String name;
+    private volatile ReadWriteLock lock = null;
+
+    Inode(String name) {
+        this.name = name.intern();
+    }
+
+    ReadWriteLock lock() {
+        ReadWriteLock lock = this.lock;
+        if (lock == null) {
+            synchronized (this) {
+                lock = this.lock;
+                if (lock == null) {
+                    lock = new ReadWriteLock();
+                    this.lock = lock;
+                }
+            }
+        }
+        return lock;
+    }
+
+    static final class Directory extends Inode {
+        private static final Inode[] EMPTY = new Inode[0];
+        private static final Inode TOMBSTONE = new File("", new Storage[0]);
+        private static final int MINIMUM_CAPACITY = 4;
+
+        /* the table, and the numbers of children and of slots taken by
+           children or tombstones; written while holding this */
+        private volatile Inode[] table = EMPTY;
+        private int size = 0;
+        private int used = 0;
+
+        Directory(String name) {
+            super(name);
+        }
+
+        /* Returns the child with the given name, or null. */
+        Inode child(String name) {
+            Inode[] table = this.table;
+            if (table.length == 0) {
+                return null;
+            }
+            int mask = table.length - 1;
+            for (int slot = spread(name.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+                Inode node = table[slot];
+                if (node == null) {
+                    return null;
+                }
+                if (node != TOMBSTONE && (node.name == name || node.name.equals(name))) {
+                    return node;
+                }
+            }
+        }
+
+        /* Adds a child unless one with the same name exists. Returns the
+           existing child, or null if the child was added. */
+        synchronized Inode putIfAbsent(Inode child) {
+            Inode existing = child(child.name);
+            if (existing != null) {
+                return existing;
+            }
+            if ((used + 1) * 4 > this.table.length * 3) {
+                rebuild(size + 1);
+            }
+            Inode[] table = this.table;
+            int mask = table.length - 1;
+            int slot = spread(child.name.hashCode()) & mask;
+            while (table[slot] != null && table[slot] != TOMBSTONE) {
+                slot = (slot + 1) & mask;
+            }
+            if (table[slot] == null) {
+                used++;
+            }
+            table[slot] = child;
+            size++;
+            this.table = table;
+            return null;
+        }
+
+        /* Removes the child with the given name. Returns it, or null if
+           there was none. */
+        synchronized Inode remove(String name) {
+            Inode[] table = this.table;
+            if (table.length == 0) {
+                return null;
+            }
+            int mask = table.length - 1;
+            for (int slot = spread(name.hashCode()) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+                Inode node = table[slot];
+                if (node != TOMBSTONE && node.name.equals(name)) {
+                    table[slot] = TOMBSTONE;
+                    size--;
+                    if (size * 8 < table.length && table.length > MINIMUM_CAPACITY) {
+                        rebuild(size);
+                    } else {
+                        this.table = table;
+                    }
+                    return node;
+                }
+            }
+            return null;
+        }
+
+        /* Returns the children, in no particular order. */
+        Inode[] children() {
+            Inode[] table = this.table;
+            Inode[] children = new Inode[table.length];
+            int count = 0;
+            for (Inode node : table) {
+                if (node != null && node != TOMBSTONE) {
+                    children[count++] = node;
+                }
+            }
+            return Arrays.copyOf(children, count);
+        }
+
+        /* The number of slots in the table, and the number taken by children
+           or tombstones. */
+        synchronized int slots() {
+            return table.length;
+        }
+
+        synchronized int slotsTaken() {
+            return used;
+        }
+
+        /* Publishes a new table, without tombstones, with room for the given
+           number of children. */
+        private void rebuild(int children) {
+            int capacity = MINIMUM_CAPACITY;
+            while (children * 2 > capacity) {
+                capacity *= 2;
+            }
+            Inode[] rebuilt = new Inode[capacity];
+            int mask = capacity - 1;
+            for (Inode node : table) {
+                if (node != null && node != TOMBSTONE) {
+                    int slot = spread(node.name.hashCode()) & mask;
+                    while (rebuilt[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    rebuilt[slot] = node;
+                }
+            }
+            used = size;
+            table = rebuilt;
+        }
+
+        /* spreads the high bits of hash codes into the low bits used as the
+           slot, as HashMap does */
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    static final class File extends Inode {
+        private volatile Storage[] replicas;
+
+        File(String name, Storage[] replicas) {
+            super(name);
+            this.replicas = replicas;
+        }
+
+        /* The storage servers holding the file. The array must not be
+           changed. */
+        Storage[] replicas() {
+            return replicas;
+        }
+
+        synchronized void setReplicas(Storage[] replicas) {
+            this.replicas = replicas;
+        }
+
+        synchronized boolean addReplica(Storage storage) {
+            Storage[] replicas = this.replicas;
+            for (Storage replica : replicas) {
+                if (replica.equals(storage)) {
+                    return false;
+                }
+            }
+            Storage[] added = Arrays.copyOf(replicas, replicas.length + 1);
+            added[replicas.length] = storage;
+            this.replicas = added;
+            return true;
+        }
+
+        synchronized boolean removeReplica(Storage storage) {
+            Storage[] replicas = this.replicas;
+            for (int i = 0; i < replicas.length; i++) {
+                if (replicas[i].equals(storage)) {
+                    Storage[] removed = new Storage[replicas.length - 1];
+                    System.arraycopy(replicas, 0, removed, 0, i);
+                    System.arraycopy(replicas, i + 1, removed, i, removed.length - i);
+                    this.replicas = removed;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
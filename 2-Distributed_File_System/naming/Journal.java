@@ -0,0 +1,192 @@
+package naming;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/* Append-only file of records, each durable by the time append() returns.
+ *
+ * Every record is framed by its length and the CRC32 of its contents, so that
+ * a record torn by a crash is recognized when the file is read, and it and
+ * anything after it ignored.
+ *
+ * Writers do not each pay for an fsync. A writer that finds no flush in
+ * progress writes out everything appended so far and forces the file;
+ * writers that append meanwhile wait for it, and the next of them to wake
+ * flushes all of their records with a single fsync (group commit). As with
+ * ReadWriteLock, waiters park on a condition rather than in Object.wait(),
+ * since they are often virtual threads.
+ */
+final class Journal implements Closeable {
+
+    /* length and CRC preceding each record */
+    private static final int HEADER = 8;
+
+    private final FileChannel channel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+
+    /* records appended and not yet written, the number of records appended
+       and the number known to be durable, whether a writer is flushing, and
+       the error that failed a flush; guarded by lock */
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long appended = 0;
+    private long durable = 0;
+    private boolean flushing = false;
+    private IOException failure = null;
+    private boolean closed = false;
+    private long syncs = 0;
+
+    /* Creates a new, empty journal. The file must not exist. */
+    Journal(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                                        StandardOpenOption.WRITE);
+    }
+
+    /* Appends a record and returns once it is on disk. If a write fails,
+       this and every later append throws. */
+    void append(byte[] record) throws IOException {
+        ByteArrayOutputStream batch;
+        long upto;
+        boolean interrupted = false;
+
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException("journal is closed");
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            DataOutputStream out = new DataOutputStream(pending);
+            out.writeInt(record.length);
+            out.writeInt((int) crc.getValue());
+            out.write(record);
+            long sequence = ++appended;
+
+            while (true) {
+                if (durable >= sequence) {
+                    return;
+                }
+                if (failure != null) {
+                    throw new IOException("journal write failed", failure);
+                }
+                if (!flushing) {
+                    break;
+                }
+                try {
+                    flushed.await();
+                } catch (InterruptedException e) {
+                    /* the record is already queued, so it must be seen to
+                       disk before the caller goes on */
+                    interrupted = true;
+                }
+            }
+
+            flushing = true;
+            batch = pending;
+            pending = new ByteArrayOutputStream();
+            upto = appended;
+        } finally {
+            lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        IOException error = null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            error = e;
+        }
+
+        lock.lock();
+        try {
+            flushing = false;
+            syncs++;
+            if (error == null) {
+                durable = upto;
+            } else {
+                failure = error;
+            }
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /* The number of records appended, and the number of times the file was
+       forced to disk for them. */
+    long records() {
+        lock.lock();
+        try {
+            return appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long syncs() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Closes the file. Every append has returned by then, since each waits
+       for its record to be flushed. */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            while (flushing) {
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+        channel.close();
+    }
+
+    /* Returns the intact records of a journal, in order, leaving out a torn
+       record at the end and anything after it. */
+    static List<byte[]> read(File file) throws IOException {
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        List<byte[]> records = new ArrayList<byte[]>();
+        CRC32 crc = new CRC32();
+
+        while (contents.remaining() >= HEADER) {
+            int length = contents.getInt();
+            int checksum = contents.getInt();
+            if (length < 0 || length > contents.remaining()) {
+                break;
+            }
+            byte[] record = new byte[length];
+            contents.get(record);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+}
@@ -0,0 +1,90 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.Iterator;
+
+import common.Path;
+
+/* Takes and releases the locks guarding paths in the naming server.
+ *
+ * Locking a path locks every directory above it for reading, and the path
+ * itself for reading or writing. The locks are those of the namespace's
+ * nodes, taken from the root down as the path is walked, so each node is
+ * found by a single lookup in its parent while the parent is locked. Since
+ * every thread takes locks in that order, threads cannot deadlock.
+ *
+ * If a node on the path is missing, or the thread is interrupted while
+ * waiting, the locks taken so far are released before the error is thrown.
+ * Unlocking finds every node before releasing any lock, so that a path that
+ * is not in the namespace leaves all locks as they were.
+ */
+final class LockManager {
+
+    private LockManager() {
+    }
+
+    /* Locks a path, and returns its node. */
+    static Inode lock(Inode.Directory root, Path path, boolean exclusive)
+        throws FileNotFoundException, InterruptedException {
+        return lock(root, path.iterator(), exclusive);
+    }
+
+    /* Unlocks a path. Throws IllegalArgumentException if it is not in the
+       namespace. */
+    static void unlock(Inode.Directory root, Path path, boolean exclusive) {
+        unlock(root, path.iterator(), exclusive);
+    }
+
+    private static Inode lock(Inode node, Iterator<String> components, boolean exclusive)
+        throws FileNotFoundException, InterruptedException {
+        if (!components.hasNext()) {
+            if (exclusive) {
+                node.lock().lockWrite();
+            } else {
+                node.lock().lockRead();
+            }
+            return node;
+        }
+
+        node.lock().lockRead();
+        boolean locked = false;
+        try {
+            Inode child = child(node, components.next());
+            if (child == null) {
+                throw new FileNotFoundException();
+            }
+            Inode target = lock(child, components, exclusive);
+            locked = true;
+            return target;
+        } finally {
+            if (!locked) {
+                node.lock().unlockRead();
+            }
+        }
+    }
+
+    private static void unlock(Inode node, Iterator<String> components, boolean exclusive) {
+        if (!components.hasNext()) {
+            if (exclusive) {
+                node.lock().unlockWrite();
+            } else {
+                node.lock().unlockRead();
+            }
+            return;
+        }
+
+        Inode child = child(node, components.next());
+        if (child == null) {
+            throw new IllegalArgumentException();
+        }
+        unlock(child, components, exclusive);
+        node.lock().unlockRead();
+    }
+
+    private static Inode child(Inode node, String name) {
+        if (!(node instanceof Inode.Directory)) {
+            return null;
+        }
+        return ((Inode.Directory) node).child(name);
+    }
+}
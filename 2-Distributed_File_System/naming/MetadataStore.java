@@ -0,0 +1,464 @@
+package naming;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import common.Path;
+import storage.Command;
+import storage.Storage;
+
+/* Durable copy of the naming server's namespace, kept in one directory.
+ *
+ * Each change is appended to a journal before the naming server applies it.
+ * From time to time the naming server takes a snapshot of the whole
+ * namespace and, at the same moment, has a new journal started; once the
+ * snapshot is on disk, the journals and snapshots before it are deleted. On
+ * start, the latest snapshot is loaded and the journals written since it are
+ * replayed, so that storage servers need not register their files again.
+ *
+ * The files are named journal.N and snapshot.N, N a sixteen-digit hex
+ * number; snapshot.N holds the namespace as it was before the first change in
+ * journal.N. A snapshot lists the storage servers, then every path in the
+ * tree, parents before children, each as the varint index of its parent (the
+ * root being 0 and the entries numbered from 1), its last component, and a
+ * varint that is 0 for a directory or one more than the number of storage
+ * servers for a file, followed by their indexes. It ends with a CRC32 of all
+ * that precedes it.
+ */
+final class MetadataStore implements Closeable {
+
+    private static final int SNAPSHOT_MAGIC = 0x4e534e31;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /* journal record types */
+    private static final byte FILE = 1;
+    private static final byte DIRECTORY = 2;
+    private static final byte DELETE = 3;
+    private static final byte REGISTER = 4;
+    private static final byte REPLICA_ADDED = 5;
+    private static final byte REPLICA_REMOVED = 6;
+
+    private static final String JOURNAL = "journal.";
+    private static final String SNAPSHOT = "snapshot.";
+
+    /* records appended to the journal after which a snapshot is due */
+    private static final long SNAPSHOT_INTERVAL = Long.getLong("naming.snapshotInterval", 100000);
+
+    /* Receives the namespace as it is recovered. */
+    interface Namespace {
+        /* A storage server listed in a snapshot. */
+        void storage(int id, Storage storage, Command command);
+
+        /* A storage server registered, possibly again, with the given files. */
+        void registered(int id, Storage storage, Command command, Path[] files);
+
+        void file(Path file, int[] storages);
+
+        void directory(Path directory);
+
+        void deleted(Path path);
+
+        void replica(Path file, int storage, boolean added);
+    }
+
+    /* The namespace at one moment, captured for a snapshot. Paths are added
+       parents first; each is given by the index of its parent, 0 for the
+       root. */
+    static final class Image {
+        private final Storage[] storages;
+        private final Command[] commands;
+        private int size = 0;
+        private int[] parents = new int[64];
+        private String[] names = new String[64];
+        /* null for directories */
+        private int[][] replicas = new int[64][];
+
+        Image(Storage[] storages, Command[] commands) {
+            this.storages = storages;
+            this.commands = commands;
+        }
+
+        /* Adds a path and returns its index. */
+        int add(int parent, String name, int[] replicas) {
+            if (size == parents.length) {
+                parents = Arrays.copyOf(parents, size * 2);
+                names = Arrays.copyOf(names, size * 2);
+                this.replicas = Arrays.copyOf(this.replicas, size * 2);
+            }
+            parents[size] = parent;
+            names[size] = name;
+            this.replicas[size] = replicas;
+            return ++size;
+        }
+    }
+
+    private final File directory;
+    private Journal journal = null;
+    private long sequence = 0;
+    private final AtomicLong sinceSnapshot = new AtomicLong();
+
+    MetadataStore(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        this.directory = directory;
+    }
+
+    /* Loads the latest snapshot into the namespace and replays the journals
+       written after it, then starts a new journal. */
+    void recover(Namespace namespace) throws IOException {
+        TreeMap<Long, File> journals = files(JOURNAL);
+        TreeMap<Long, File> snapshots = files(SNAPSHOT);
+
+        long from = 0;
+        if (!snapshots.isEmpty()) {
+            from = snapshots.lastKey();
+            loadSnapshot(snapshots.lastEntry().getValue(), namespace);
+        }
+
+        long records = 0;
+        for (File file : journals.tailMap(from, true).values()) {
+            for (byte[] record : Journal.read(file)) {
+                replay(record, namespace);
+                records++;
+            }
+        }
+
+        long last = Math.max(from, journals.isEmpty() ? 0 : journals.lastKey());
+        openJournal(last + 1);
+        sinceSnapshot.set(records);
+    }
+
+    void fileCreated(Path file, int[] storages) throws IOException {
+        Record out = record(FILE);
+        out.writeUTF(file.toString());
+        writeIds(out, storages);
+        append(out);
+    }
+
+    void directoryCreated(Path directory) throws IOException {
+        Record out = record(DIRECTORY);
+        out.writeUTF(directory.toString());
+        append(out);
+    }
+
+    void deleted(Path path) throws IOException {
+        Record out = record(DELETE);
+        out.writeUTF(path.toString());
+        append(out);
+    }
+
+    void registered(int id, Storage storage, Command command, Path[] files) throws IOException {
+        Record out = record(REGISTER);
+        writeVarint(out, id);
+        writeObject(out, storage);
+        writeObject(out, command);
+        writeVarint(out, files.length);
+        for (Path file : files) {
+            out.writeUTF(file.toString());
+        }
+        append(out);
+    }
+
+    void replicaChanged(Path file, int storage, boolean added) throws IOException {
+        Record out = record(added ? REPLICA_ADDED : REPLICA_REMOVED);
+        out.writeUTF(file.toString());
+        writeVarint(out, storage);
+        append(out);
+    }
+
+    /* Whether enough has been journaled since the last snapshot to make
+       another worthwhile. */
+    boolean snapshotDue() {
+        return sinceSnapshot.get() >= SNAPSHOT_INTERVAL;
+    }
+
+    /* Starts the next journal and closes the current one. Must not be
+       called while records are being appended. Returns the sequence number
+       of the new journal, under which the snapshot of the namespace as it is
+       now is to be written. If the new journal cannot be created, the
+       current one is kept and records go on being appended to it. */
+    long rotate() throws IOException {
+        Journal previous = journal;
+        openJournal(sequence + 1);
+        sinceSnapshot.set(0);
+        previous.close();
+        return sequence;
+    }
+
+    /* Writes a snapshot taken when the given journal was started, then
+       deletes the files it makes unnecessary. */
+    void writeSnapshot(long at, Image image) throws IOException {
+        File target = new File(directory, name(SNAPSHOT, at));
+        File temporary = new File(directory, target.getName() + ".tmp");
+
+        FileOutputStream file = new FileOutputStream(temporary);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16),
+                                                                  new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeByte(SNAPSHOT_VERSION);
+            writeVarint(out, image.storages.length);
+            for (int id = 0; id < image.storages.length; id++) {
+                writeObject(out, image.storages[id]);
+                writeObject(out, image.commands[id]);
+            }
+            writeVarint(out, image.size);
+            for (int index = 0; index < image.size; index++) {
+                writeVarint(out, image.parents[index]);
+                out.writeUTF(image.names[index]);
+                int[] replicas = image.replicas[index];
+                if (replicas == null) {
+                    writeVarint(out, 0);
+                } else {
+                    writeVarint(out, replicas.length + 1);
+                    for (int replica : replicas) {
+                        writeVarint(out, replica);
+                    }
+                }
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+
+        try {
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory();
+
+        for (File old : files(JOURNAL).headMap(at, false).values()) {
+            old.delete();
+        }
+        for (File old : files(SNAPSHOT).headMap(at, false).values()) {
+            old.delete();
+        }
+    }
+
+    /* The journal being appended to, for tests. */
+    Journal journal() {
+        return journal;
+    }
+
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private void openJournal(long number) throws IOException {
+        journal = new Journal(new File(directory, name(JOURNAL, number)));
+        sequence = number;
+    }
+
+    private Record record(byte type) throws IOException {
+        Record record = new Record();
+        record.writeByte(type);
+        return record;
+    }
+
+    private void append(Record record) throws IOException {
+        journal.append(record.bytes());
+        sinceSnapshot.incrementAndGet();
+    }
+
+    /* A journal record being encoded. */
+    private static final class Record extends DataOutputStream {
+        Record() {
+            super(new ByteArrayOutputStream());
+        }
+
+        byte[] bytes() {
+            return ((ByteArrayOutputStream) out).toByteArray();
+        }
+    }
+
+    private void replay(byte[] record, Namespace namespace) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        switch (type) {
+        case FILE:
+            namespace.file(new Path(in.readUTF()), readIds(in));
+            break;
+        case DIRECTORY:
+            namespace.directory(new Path(in.readUTF()));
+            break;
+        case DELETE:
+            namespace.deleted(new Path(in.readUTF()));
+            break;
+        case REGISTER: {
+            int id = readVarint(in);
+            Storage storage = (Storage) readObject(in);
+            Command command = (Command) readObject(in);
+            Path[] files = new Path[readVarint(in)];
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new Path(in.readUTF());
+            }
+            namespace.registered(id, storage, command, files);
+            break;
+        }
+        case REPLICA_ADDED:
+        case REPLICA_REMOVED:
+            namespace.replica(new Path(in.readUTF()), readVarint(in), type == REPLICA_ADDED);
+            break;
+        default:
+            throw new StreamCorruptedException("unknown journal record type " + type);
+        }
+    }
+
+    private void loadSnapshot(File file, Namespace namespace) throws IOException {
+        CheckedInputStream checked = new CheckedInputStream(
+            new BufferedInputStream(new FileInputStream(file), 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readByte() != SNAPSHOT_VERSION) {
+                throw new StreamCorruptedException(file + " is not a namespace snapshot");
+            }
+            int storages = readVarint(in);
+            for (int id = 0; id < storages; id++) {
+                namespace.storage(id, (Storage) readObject(in), (Command) readObject(in));
+            }
+
+            Path[] paths = new Path[readVarint(in) + 1];
+            paths[0] = new Path();
+            for (int index = 1; index < paths.length; index++) {
+                int parent = readVarint(in);
+                if (parent >= index) {
+                    throw new StreamCorruptedException("snapshot entry precedes its parent");
+                }
+                paths[index] = new Path(paths[parent], in.readUTF());
+                int kind = readVarint(in);
+                if (kind == 0) {
+                    namespace.directory(paths[index]);
+                } else {
+                    int[] replicas = new int[kind - 1];
+                    for (int i = 0; i < replicas.length; i++) {
+                        replicas[i] = readVarint(in);
+                    }
+                    namespace.file(paths[index], replicas);
+                }
+            }
+
+            int expected = (int) checked.getChecksum().getValue();
+            if (in.readInt() != expected) {
+                throw new StreamCorruptedException(file + " is corrupt");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /* Forces the directory entry of a renamed file to disk. Not every
+       platform allows a directory to be opened; there the rename is left to
+       the filesystem. */
+    private void syncDirectory() {
+        try {
+            FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    /* The files with the given prefix, by sequence number. */
+    private TreeMap<Long, File> files(String prefix) {
+        TreeMap<Long, File> files = new TreeMap<Long, File>();
+        String[] names = directory.list();
+        if (names == null) {
+            return files;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.length() == prefix.length() + 16) {
+                try {
+                    files.put(Long.parseUnsignedLong(name.substring(prefix.length()), 16),
+                              new File(directory, name));
+                } catch (NumberFormatException e) {
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String name(String prefix, long number) {
+        return prefix + String.format("%016x", number);
+    }
+
+    private static void writeIds(DataOutputStream out, int[] ids) throws IOException {
+        writeVarint(out, ids.length);
+        for (int id : ids) {
+            writeVarint(out, id);
+        }
+    }
+
+    private static int[] readIds(DataInputStream in) throws IOException {
+        int[] ids = new int[readVarint(in)];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = readVarint(in);
+        }
+        return ids;
+    }
+
+    /* Stubs are written with Java serialization, as when they are sent to a
+       client. */
+    private static void writeObject(DataOutputStream out, Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream serializer = new ObjectOutputStream(bytes);
+        serializer.writeObject(object);
+        serializer.close();
+        writeVarint(out, bytes.size());
+        bytes.writeTo(out);
+    }
+
+    private static Object readObject(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarint(in)];
+        in.readFully(bytes);
+        ObjectInputStream deserializer = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return deserializer.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+    }
+
+    /* Non-negative ints in seven-bit groups, low group first. */
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new StreamCorruptedException("invalid varint");
+                }
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("invalid varint");
+    }
+}
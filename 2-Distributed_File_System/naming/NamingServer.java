@@ -10,6 +10,8 @@ import storage.*;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /** Naming server.
 
@@ -33,6 +35,16 @@ import java.util.concurrent.*;
     specifying the remote network address. To make this possible, the client and
     registration interfaces are available at well-known ports defined in
     <code>NamingStubs</code>.
+
+    <p>
+    A naming server created with a metadata directory records every change to
+    the namespace in a journal there before making it, and from time to time
+    writes a snapshot of the whole namespace. When such a server is created
+    again on the same directory, it loads the latest snapshot and replays the
+    journal written since, instead of waiting for every storage server to
+    register its files again. Storage servers recovered this way may register
+    once more, for example when they restart; their files are then replaced by
+    the ones they list.
  */
 public class NamingServer implements Service, Registration
 {
@@ -40,17 +52,52 @@ public class NamingServer implements Service, Registration
 	private Skeleton<Service> serviceSkeleton;
 	private Skeleton<Registration> registrationSkeleton;
 
-	/* consider replica, a file may be stored in several storage servers */
-	private ConcurrentHashMap<Path, Set<Storage>> pathStorageMap;
+	/* the namespace: every directory and file, the storage servers holding
+	 * each file (consider replica, a file may be stored in several storage
+	 * servers), and the lock of each path */
+	private final Inode.Directory root = new Inode.Directory("");
 
 	private ConcurrentHashMap<Storage, Command> storageCommandMap;
 
-	private ConcurrentHashMap<Path, Set<Path>> fileStructure;
-
-	private ConcurrentHashMap<Path, ReadWriteLock> dfsLocks;
-
 	private final int readRequestThreshold = 5;
 
+	/* clients to notify of changes, each with its own delivery queue so that
+	   a slow client holds up nobody else */
+	private ConcurrentHashMap<ChangeListener, CallbackQueue<ChangeListener>> listeners =
+		new ConcurrentHashMap<ChangeListener, CallbackQueue<ChangeListener>>();
+	private static final int LISTENER_QUEUE_CAPACITY = 16;
+
+	/* limits on commands sent to storage servers, so that one stalled server
+	   cannot hold a lock, and the client waiting for it, forever; copies move
+	   whole files and are given longer */
+	private static final Timeouts COMMAND_TIMEOUTS = new Timeouts(10000, 30000, 60000);
+	private static final Timeouts COPY_TIMEOUTS = new Timeouts(10000, 0, 600000);
+
+	/* storage servers by the number under which the journal knows them,
+	 * with the command stubs they registered, before timeouts were added.
+	 * Changes read them without a lock, so they are copied when a server is
+	 * added, holding registrationLock, and the copies published */
+	private volatile Storage[] storages = new Storage[0];
+	private volatile Command[] registeredCommands = new Command[0];
+	private final Object registrationLock = new Object();
+	private ConcurrentHashMap<Storage, Integer> storageIds = new ConcurrentHashMap<Storage, Integer>();
+
+	/* durable copy of the namespace, or null if the server keeps none.
+	 * Changes are journaled and applied under the read side of stateLock, so
+	 * that a snapshot, taken under the write side, falls between two of
+	 * them */
+	private MetadataStore store = null;
+	private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+	private final Object snapshotLock = new Object();
+	private final AtomicBoolean snapshotting = new AtomicBoolean();
+	/* storage servers recovered from the metadata directory that have not
+	 * registered since */
+	private Set<Storage> recoveredStorages = ConcurrentHashMap.newKeySet();
+
+	private static final String METADATA_LANE = "metadata";
+	private static final int METADATA_THREADS =
+		Integer.getInteger("naming.metadataThreads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+
     /** Creates the naming server object.
 
         <p>
@@ -59,13 +106,35 @@ public class NamingServer implements Service, Registration
     public NamingServer()
     {
 		this.serviceSkeleton = new NotifySkeleton<Service>(Service.class, this, new InetSocketAddress(NamingStubs.SERVICE_PORT));
+		/* clients waiting in lock() each hold a service thread; on virtual
+		 * threads a lock storm costs memory rather than platform threads */
+		this.serviceSkeleton.setExecutor(SkeletonExecutors.virtual());
+		/* metadata reads never block, so a few platform threads serve them
+		 * however many clients are waiting for locks */
+		this.serviceSkeleton.setExecutor(METADATA_LANE, SkeletonExecutors.fixed(METADATA_THREADS));
+		for (String method : new String[] {"isDirectory", "list", "iterate", "getStorage"})
+			this.serviceSkeleton.setLane(method, METADATA_LANE);
 		this.registrationSkeleton = new NotifySkeleton<Registration>(Registration.class, this, new InetSocketAddress(NamingStubs.REGISTRATION_PORT));
-		this.pathStorageMap = new ConcurrentHashMap<Path, Set<Storage>>();
 		this.storageCommandMap = new ConcurrentHashMap<Storage, Command>();
-		this.fileStructure = new ConcurrentHashMap<Path, Set<Path>>();
-		this.fileStructure.put(new Path(), new HashSet());
-		this.dfsLocks = new ConcurrentHashMap<Path, ReadWriteLock>();
-		this.dfsLocks.put(new Path(), new ReadWriteLock());
+    }
+
+    /** Creates a naming server that keeps its namespace in a directory.
+
+        <p>
+        The namespace recorded in the directory by an earlier naming server,
+        if any, is recovered. The naming server is not started.
+
+        @param metadata The directory in which to keep the journal and
+                        snapshots. It is created if it does not exist.
+        @throws IOException If the directory cannot be created, or the
+                            namespace recorded in it cannot be read.
+     */
+    public NamingServer(File metadata) throws IOException
+    {
+		this();
+		this.store = new MetadataStore(metadata);
+		this.store.recover(new Recovery());
+		this.recoveredStorages.addAll(this.storageIds.keySet());
     }
 
     /** Starts the naming server.
@@ -98,10 +167,54 @@ public class NamingServer implements Service, Registration
     {
 		this.serviceSkeleton.stop();
 		this.registrationSkeleton.stop();
+		this.closeMetadata();
 
 		this.stopped(null);
     }
 
+	/* closes the journal; the namespace can no longer be changed */
+	void closeMetadata(){
+		if (this.store == null) return;
+		this.stateLock.writeLock().lock();
+		try {
+			this.store.close();
+		} catch (IOException e) {
+			// every change made so far is already on disk
+		} finally {
+			this.stateLock.writeLock().unlock();
+		}
+	}
+
+    /** Writes a snapshot of the namespace to the metadata directory.
+
+        <p>
+        Snapshots are also written in the background as the journal grows.
+        Taking one shortens the journal that a restart must replay. Changes
+        to the namespace wait only while the snapshot is captured in memory,
+        not while it is written.
+
+        @throws IllegalStateException If the naming server keeps no metadata
+                                      directory.
+        @throws IOException If the snapshot cannot be written.
+     */
+    public void snapshot() throws IOException
+    {
+		if (this.store == null) throw new IllegalStateException("no metadata directory");
+
+		synchronized (this.snapshotLock) {
+			long at;
+			MetadataStore.Image image;
+			this.stateLock.writeLock().lock();
+			try {
+				at = this.store.rotate();
+				image = this.image();
+			} finally {
+				this.stateLock.writeLock().unlock();
+			}
+			this.store.writeSnapshot(at, image);
+		}
+    }
+
     /** Indicates that the server has completely shut down.
 
         <p>
@@ -115,36 +228,34 @@ public class NamingServer implements Service, Registration
     {
     }
 
+    /** Indicates that a snapshot taken in the background has failed.
+
+        <p>
+        The server goes on journaling changes, and takes another snapshot
+        later. This method should be overridden for error reporting purposes.
+        The default implementation does nothing.
+
+        @param cause The exception that failed the snapshot.
+     */
+    protected void snapshotFailed(Throwable cause)
+    {
+    }
+
     // The following public methods are documented in Service.java.
     @Override
     public void lock(Path path, boolean exclusive) throws FileNotFoundException
     {
 		if(path == null) throw new NullPointerException();
-		if(!this.dfsLocks.containsKey(path)) throw new FileNotFoundException();
-
-		Path[] lockPaths = path.subPaths();
-
+		Inode node;
 		try {
-
-			for(int i = 0; i < lockPaths.length; i++) {
-
-				if(i == lockPaths.length - 1) {
-					if(exclusive) {
-						dfsLocks.get(lockPaths[i]).lockWrite();
-					} else {
-						dfsLocks.get(lockPaths[i]).lockRead();
-					}
-				} else {
-					/* deal with parent directory, share access */
-					dfsLocks.get(lockPaths[i]).lockRead();
-				}
-			}
+			/* parent directories are locked for shared access */
+			node = LockManager.lock(this.root, path, exclusive);
 		} catch (InterruptedException e) {
 			throw new IllegalStateException();
 		}
 
-		if(!exclusive && !this.fileStructure.containsKey(path) && this.dfsLocks.get(path).getRequests() > readRequestThreshold) {
-			Set<Storage> existedStorages = this.pathStorageMap.get(path);
+		if(!exclusive && node instanceof Inode.File && node.lock().getRequests() > readRequestThreshold) {
+			Set<Storage> existedStorages = new HashSet<Storage>(Arrays.asList(((Inode.File) node).replicas()));
 			Set<Storage> storageServers = new HashSet<Storage>(this.storageCommandMap.keySet());
 			storageServers.removeAll(existedStorages);
 
@@ -154,7 +265,20 @@ public class NamingServer implements Service, Registration
 
 			if(replicaMachine != null){
 				Command replicaCommand = this.storageCommandMap.get(replicaMachine);
+				/* the copy is made on a set of its own; the replica is
+				 * recorded and added below */
 				new ReplicaThread(path, replicaCommand, existedStorages, replicaMachine).run();
+				int id = this.storageIds.get(replicaMachine);
+				this.beginChange();
+				try {
+					if (this.store != null) this.store.replicaChanged(path, id, true);
+					this.applyReplica(path, id, true);
+				} catch (IOException e) {
+					throw journalFailed(e);
+				} finally {
+					this.endChange();
+				}
+				this.changed();
 			}
 		}
 
@@ -162,9 +286,9 @@ public class NamingServer implements Service, Registration
 		 * if I have 3 copys in 3 server A, B, C, if I want to write new contents to A,
 		 * then I have to delete dirty copy in B & C
 		 */
-		if(exclusive && !this.fileStructure.containsKey(path) && this.pathStorageMap.get(path).size() >= 2){
+		if(exclusive && node instanceof Inode.File && ((Inode.File) node).replicas().length >= 2){
 
-			Set<Storage> existedStorages = this.pathStorageMap.get(path);
+			Storage[] existedStorages = ((Inode.File) node).replicas();
 			Set<Storage> deletedStorages = new HashSet<Storage>();
 
 			int i = 0;
@@ -180,7 +304,19 @@ public class NamingServer implements Service, Registration
 				}
 			}
 
-			existedStorages.removeAll(deletedStorages);
+			this.beginChange();
+			try {
+				for (Storage storage : deletedStorages) {
+					int id = this.storageIds.get(storage);
+					if (this.store != null) this.store.replicaChanged(path, id, false);
+					this.applyReplica(path, id, false);
+				}
+			} catch (IOException e) {
+				throw journalFailed(e);
+			} finally {
+				this.endChange();
+			}
+			this.changed();
 		}
 
     }
@@ -189,61 +325,68 @@ public class NamingServer implements Service, Registration
     public void unlock(Path path, boolean exclusive)
     {
 		if(path == null) throw new NullPointerException();
-		if (!this.dfsLocks.containsKey(path)) throw new IllegalArgumentException();
-
-		Path[] lockPaths = path.subPaths();
-
-		for(int i = 0; i < lockPaths.length; i++) {
-			if(i == lockPaths.length - 1) {
-				if(exclusive) {
-					dfsLocks.get(lockPaths[i]).unlockWrite();
-				} else {
-					dfsLocks.get(lockPaths[i]).unlockRead();
-				}
-			} else {
-				dfsLocks.get(lockPaths[i]).unlockRead();
-			}
-		}
+		LockManager.unlock(this.root, path, exclusive);
 	}
 
     @Override
     public boolean isDirectory(Path path) throws FileNotFoundException
     {
-		boolean isExistedDirectory = this.fileStructure.containsKey(path);
-		boolean isExistedFile = this.pathStorageMap.containsKey(path);
+		Inode node = this.resolve(path);
 
-		if(!isExistedDirectory && !isExistedFile)
+		if(node == null)
 			throw new FileNotFoundException();
 
-		return isExistedDirectory;
+		return node instanceof Inode.Directory;
     }
 
     @Override
     public String[] list(Path directory) throws FileNotFoundException
     {
-		if (!this.isDirectory(directory))
+		Inode node = this.resolve(directory);
+		if (!(node instanceof Inode.Directory))
 			throw new FileNotFoundException();
-		Set<Path> files = this.fileStructure.get(directory);
-		String[] filesInDirectory = new String[files.size()];
-		int i = 0;
-		for(Path path : files)
-			filesInDirectory[i++] = path.last();
+		Inode[] files = ((Inode.Directory) node).children();
+		String[] filesInDirectory = new String[files.length];
+		for(int i = 0; i < files.length; i++)
+			filesInDirectory[i] = files[i].name;
 		return filesInDirectory;
     }
 
+    @Override
+    public RemoteIterator<String> iterate(Path directory) throws FileNotFoundException
+    {
+		Inode node = this.resolve(directory);
+		if (!(node instanceof Inode.Directory))
+			throw new FileNotFoundException();
+		/* the children are copied, which is cheap; their names are the
+		 * ones held by the tree */
+		final Inode[] files = ((Inode.Directory) node).children();
+		return RemoteIterator.of(new Iterator<String>() {
+			private int next = 0;
+
+			public boolean hasNext() {
+				return next < files.length;
+			}
+
+			public String next() {
+				if (next == files.length) throw new NoSuchElementException();
+				return files[next++].name;
+			}
+		});
+    }
+
     @Override
     public boolean createFile(Path file)
         throws RMIException, FileNotFoundException
     {
-		if(!file.isRoot() && !this.fileStructure.containsKey(file.parent()))
+		if(!file.isRoot() && this.directory(file, true, false) == null)
 			throw new FileNotFoundException();
 
 		if(this.storageCommandMap.isEmpty())
 			throw new IllegalStateException();
 
 		if(file.isRoot()) return false;
-		if(this.fileStructure.containsKey(file)) return false;
-		if(this.pathStorageMap.containsKey(file)) return false;
+		if(this.resolve(file) != null) return false;
 
 		Storage curStorageStub = (this.storageCommandMap.keySet()).iterator().next();
 		Command curCommandStub = this.storageCommandMap.get(curStorageStub);
@@ -251,10 +394,17 @@ public class NamingServer implements Service, Registration
 		boolean flag = curCommandStub.create(file);
 
 		if(flag){
-			Set<Storage> storage = new HashSet<Storage>();
-			storage.add(curStorageStub);
-			this.pathStorageMap.put(file, storage);
-			update(file);
+			int[] replicas = {this.storageIds.get(curStorageStub)};
+			this.beginChange();
+			try {
+				if (this.store != null) this.store.fileCreated(file, replicas);
+				this.applyFile(file, replicas);
+			} catch (IOException e) {
+				throw journalFailed(e);
+			} finally {
+				this.endChange();
+			}
+			this.changed();
 		}
 
 		return flag;
@@ -264,16 +414,22 @@ public class NamingServer implements Service, Registration
     public boolean createDirectory(Path directory) throws FileNotFoundException
     {
 		/* 如果父文件夹不存在,返回exception */
-		if (!directory.isRoot() && !this.fileStructure.containsKey(directory.parent()))
+		if (!directory.isRoot() && this.directory(directory, true, false) == null)
     		throw new FileNotFoundException();
 
 		if(directory.isRoot()) return false;
-		if(this.fileStructure.containsKey(directory)) return false;
-		if(this.pathStorageMap.containsKey(directory)) return false;
+		if(this.resolve(directory) != null) return false;
 
-		update(directory);
-		Set<Path> filesInDirectory = new HashSet<Path>();
-		this.fileStructure.put(directory, filesInDirectory);
+		this.beginChange();
+		try {
+			if (this.store != null) this.store.directoryCreated(directory);
+			this.applyDirectory(directory);
+		} catch (IOException e) {
+			throw journalFailed(e);
+		} finally {
+			this.endChange();
+		}
+		this.changed();
 
 		return true;
     }
@@ -283,8 +439,7 @@ public class NamingServer implements Service, Registration
     {
 		if(path == null) throw new NullPointerException();
 		if(path.isRoot()) return false;
-		if(!this.dfsLocks.containsKey(path)) throw new FileNotFoundException();
-		if(!this.fileStructure.containsKey(path.parent())) throw new FileNotFoundException();
+		if(this.resolve(path) == null) throw new FileNotFoundException();
 
 		for (Storage s : this.storageCommandMap.keySet()){
 			Command commandStub = this.storageCommandMap.get(s);
@@ -295,18 +450,45 @@ public class NamingServer implements Service, Registration
 			}
 		}
 
-		this.dfsLocks.remove(path);
-		this.pathStorageMap.remove(path);
-		this.fileStructure.get(path.parent()).remove(path);
+		this.beginChange();
+		try {
+			if (this.store != null) this.store.deleted(path);
+			this.applyDelete(path);
+		} catch (IOException e) {
+			throw journalFailed(e);
+		} finally {
+			this.endChange();
+		}
+		this.changed();
 		return true;
     }
 
     @Override
     public Storage getStorage(Path file) throws FileNotFoundException
     {
-		if (!this.pathStorageMap.containsKey(file))
+		Inode node = this.resolve(file);
+		if (!(node instanceof Inode.File))
 			throw new FileNotFoundException();
-		return (this.pathStorageMap.get(file)).iterator().next();
+		return ((Inode.File) node).replicas()[0];
+    }
+
+    @Override
+    public void subscribe(ChangeListener listener)
+    {
+		if (listener == null) throw new NullPointerException();
+		CallbackQueue<ChangeListener> queue = new CallbackQueue<ChangeListener>(
+			ChangeListener.class, listener, LISTENER_QUEUE_CAPACITY);
+		this.listeners.putIfAbsent(listener, queue);
+    }
+
+    @Override
+    public boolean unsubscribe(ChangeListener listener)
+    {
+		if (listener == null) throw new NullPointerException();
+		CallbackQueue<ChangeListener> queue = this.listeners.remove(listener);
+		if (queue == null) return false;
+		queue.close();
+		return true;
     }
 
     // The method register is documented in Registration.java.
@@ -316,26 +498,46 @@ public class NamingServer implements Service, Registration
     {
 		if (client_stub == null || command_stub == null || files == null)
 			throw new NullPointerException();
-		if (this.storageCommandMap.containsKey(client_stub))
-			throw new IllegalStateException();
-
-		this.storageCommandMap.put(client_stub, command_stub);
 
 		ArrayList<Path> duplicatedPaths = new ArrayList<Path>();
-		for (Path path : files){
-			if(path.isRoot()) {
-				continue;
-			} else if(this.pathStorageMap.containsKey(path) || this.fileStructure.containsKey(path)) {
-				// this file has been added or this directory has been added
-				duplicatedPaths.add(path);
-			} else {
-				Set<Storage> storage = new HashSet<Storage>();
-				storage.add(client_stub);
-    			this.pathStorageMap.put(path, storage);
-    			this.update(path);
+		this.beginChange();
+		try {
+			synchronized (this.registrationLock) {
+				/* a server recovered from the journal may register again */
+				if (!this.recoveredStorages.remove(client_stub) && this.storageCommandMap.containsKey(client_stub))
+					throw new IllegalStateException();
+				Integer known = this.storageIds.get(client_stub);
+				if (known != null)
+					this.forget(client_stub);
+
+				/* paths accepted so far, and the directories they imply */
+				Set<String> acceptedFiles = new HashSet<String>();
+				Set<String> impliedDirectories = new HashSet<String>();
+				ArrayList<Path> accepted = new ArrayList<Path>();
+				for (Path path : files){
+					if(path.isRoot()) {
+						continue;
+					} else if(!this.accept(path, acceptedFiles, impliedDirectories)) {
+						// this file has been added or this directory has been added
+						duplicatedPaths.add(path);
+					} else {
+						accepted.add(path);
+					}
+				}
+
+				int id = known == null ? this.storages.length : known;
+				Path[] acceptedPaths = accepted.toArray(new Path[accepted.size()]);
+				if (this.store != null) this.store.registered(id, client_stub, command_stub, acceptedPaths);
+				this.applyRegister(id, client_stub, command_stub, acceptedPaths);
 			}
+		} catch (IOException e) {
+			throw journalFailed(e);
+		} finally {
+			this.endChange();
 		}
 
+		this.changed();
+
 		Path[] duplicatedPathsRes = new Path[duplicatedPaths.size()];
 		duplicatedPaths.toArray(duplicatedPathsRes);
 		return duplicatedPathsRes;
@@ -345,31 +547,256 @@ public class NamingServer implements Service, Registration
 
 	/**********helper function*****************/
 
-	/* when you create a file like /a/b/c
-	 * you should map a to b, b to c in the tree structure
-	*/
-	private boolean update(Path path){
-		Path childNode = path;
+	/* changes to the namespace are journaled and applied between these two
+	 * calls; a snapshot is started in the background once the journal has
+	 * grown enough */
+	private void beginChange(){
+		this.stateLock.readLock().lock();
+	}
 
-		if(!this.dfsLocks.containsKey(childNode))
-			this.dfsLocks.put(childNode, new ReadWriteLock());
+	private void endChange(){
+		this.stateLock.readLock().unlock();
 
-		while (!childNode.isRoot()){
-			Path parentNode = childNode.parent();
-			if(!this.dfsLocks.containsKey(parentNode)) {
-				this.dfsLocks.put(parentNode, new ReadWriteLock());
+		if (this.store == null || !this.store.snapshotDue() || !this.snapshotting.compareAndSet(false, true))
+			return;
+		Thread snapshotter = new Thread(new Runnable() {
+			public void run() {
+				try {
+					snapshot();
+				} catch (Exception e) {
+					snapshotFailed(e);
+				} finally {
+					snapshotting.set(false);
+				}
 			}
-			if(this.fileStructure.containsKey(parentNode)){
-				this.fileStructure.get(parentNode).add(childNode);
-			} else {
-				Set<Path> filesInDirectory = new HashSet<Path>();
-				filesInDirectory.add(childNode);
-				this.fileStructure.put(parentNode, filesInDirectory);
+		}, "naming-snapshot");
+		snapshotter.setDaemon(true);
+		snapshotter.start();
+	}
+
+	/* a change that could not be journaled is not made */
+	private static IllegalStateException journalFailed(IOException e){
+		return new IllegalStateException("cannot record the change in the metadata journal", e);
+	}
+
+	/* The apply methods make a change that has been journaled. They are
+	 * called both by the running server and when replaying the journal, so
+	 * must have the same effect on the same namespace. */
+
+	private void applyStorage(int id, Storage storage, Command command){
+		Storage[] storages = Arrays.copyOf(this.storages, Math.max(this.storages.length, id + 1));
+		Command[] commands = Arrays.copyOf(this.registeredCommands, storages.length);
+		storages[id] = storage;
+		commands[id] = command;
+		this.registeredCommands = commands;
+		this.storages = storages;
+		this.storageIds.put(storage, id);
+
+		try {
+			command = Stub.withTimeouts(command, COMMAND_TIMEOUTS);
+			command = Stub.withTimeouts(command, "copy", COPY_TIMEOUTS);
+		} catch (IllegalArgumentException e) {
+			// registered in-process with a local object rather than a stub
+		}
+		this.storageCommandMap.put(storage, command);
+	}
+
+	private void applyRegister(int id, Storage storage, Command command, Path[] files){
+		if (this.storageIds.containsKey(storage))
+			this.forget(storage);
+		this.applyStorage(id, storage, command);
+
+		for (Path path : files)
+			this.addFile(path, new Storage[] {storage});
+	}
+
+	/* a storage server registering again lists all of its files, so it is
+	 * first removed from the files it held; files left on no server go */
+	private void forget(Storage storage){
+		ArrayDeque<Inode.Directory> directories = new ArrayDeque<Inode.Directory>();
+		directories.add(this.root);
+		while (!directories.isEmpty()) {
+			Inode.Directory directory = directories.poll();
+			for (Inode child : directory.children()) {
+				if (child instanceof Inode.Directory) {
+					directories.add((Inode.Directory) child);
+				} else {
+					Inode.File file = (Inode.File) child;
+					if (file.removeReplica(storage) && file.replicas().length == 0)
+						directory.remove(file.name);
+				}
 			}
-			childNode = parentNode;
 		}
+	}
+
+	private void applyFile(Path file, int[] ids){
+		Storage[] replicas = new Storage[ids.length];
+		for (int i = 0; i < ids.length; i++)
+			replicas[i] = this.storages[ids[i]];
+		this.addFile(file, replicas);
+	}
+
+	private void applyDirectory(Path directory){
+		this.directory(directory, false, true);
+	}
+
+	private void applyDelete(Path path){
+		Inode.Directory parent = this.directory(path, true, false);
+		if (parent != null)
+			parent.remove(path.last());
+	}
+
+	private void applyReplica(Path file, int id, boolean added){
+		Inode node = this.resolve(file);
+		if (!(node instanceof Inode.File))
+			return;
+		if (added)
+			((Inode.File) node).addReplica(this.storages[id]);
+		else
+			((Inode.File) node).removeReplica(this.storages[id]);
+	}
+
+	/* makes a file, and the directories above it that do not exist yet */
+	private void addFile(Path file, Storage[] replicas){
+		Inode.Directory parent = this.directory(file, true, true);
+		if (parent == null)
+			return;
+		Inode existing = parent.putIfAbsent(new Inode.File(file.last(), replicas));
+		if (existing instanceof Inode.File)
+			((Inode.File) existing).setReplicas(replicas);
+	}
+
+	/* decides whether a storage server may register a path: it must not be
+	 * in the namespace or lie below a file, nor clash with a path accepted
+	 * earlier in the same registration. Accepted paths are added to the
+	 * sets */
+	private boolean accept(Path path, Set<String> acceptedFiles, Set<String> impliedDirectories){
+		Inode node = this.root;
+		for (String component : path) {
+			if (!(node instanceof Inode.Directory)) return false;
+			node = ((Inode.Directory) node).child(component);
+			if (node == null) break;
+		}
+		if (node != null) return false;
 
+		String name = path.toString();
+		if (acceptedFiles.contains(name) || impliedDirectories.contains(name)) return false;
+		for (int end = name.lastIndexOf('/'); end > 0; end = name.lastIndexOf('/', end - 1))
+			if (acceptedFiles.contains(name.substring(0, end))) return false;
+
+		acceptedFiles.add(name);
+		for (int end = name.lastIndexOf('/'); end > 0; end = name.lastIndexOf('/', end - 1))
+			if (!impliedDirectories.add(name.substring(0, end))) break;
 		return true;
 	}
 
+	/* the node at a path, or null if there is none */
+	private Inode resolve(Path path){
+		Inode node = this.root;
+		for (String component : path) {
+			if (!(node instanceof Inode.Directory)) return null;
+			node = ((Inode.Directory) node).child(component);
+			if (node == null) return null;
+		}
+		return node;
+	}
+
+	/* the directory at a path or, if parentOnly is set, the directory that
+	 * holds it. Directories that do not exist are made if create is set.
+	 * Returns null if there is no such directory, or a file is in the way */
+	private Inode.Directory directory(Path path, boolean parentOnly, boolean create){
+		Inode.Directory directory = this.root;
+		Iterator<String> components = path.iterator();
+		while (components.hasNext()) {
+			String component = components.next();
+			if (parentOnly && !components.hasNext()) break;
+			Inode child = directory.child(component);
+			if (child == null && create) {
+				Inode.Directory created = new Inode.Directory(component);
+				child = directory.putIfAbsent(created);
+				if (child == null) child = created;
+			}
+			if (!(child instanceof Inode.Directory)) return null;
+			directory = (Inode.Directory) child;
+		}
+		return directory;
+	}
+
+	/* captures the namespace for a snapshot, walking the tree from the root
+	 * so that parents come before their children */
+	private MetadataStore.Image image(){
+		MetadataStore.Image image = new MetadataStore.Image(
+			this.storages.clone(), this.registeredCommands.clone());
+
+		ArrayDeque<Inode.Directory> directories = new ArrayDeque<Inode.Directory>();
+		ArrayDeque<Integer> indexes = new ArrayDeque<Integer>();
+		directories.add(this.root);
+		indexes.add(0);
+		while (!directories.isEmpty()) {
+			Inode.Directory directory = directories.poll();
+			int index = indexes.poll();
+			for (Inode child : directory.children()) {
+				if (child instanceof Inode.Directory) {
+					directories.add((Inode.Directory) child);
+					indexes.add(image.add(index, child.name, null));
+					continue;
+				}
+				Storage[] replicas = ((Inode.File) child).replicas();
+				int[] ids = new int[replicas.length];
+				for (int i = 0; i < replicas.length; i++)
+					ids[i] = this.storageIds.get(replicas[i]);
+				image.add(index, child.name, ids);
+			}
+		}
+		return image;
+	}
+
+	/* replays recovered changes through the apply methods */
+	private class Recovery implements MetadataStore.Namespace {
+		public void storage(int id, Storage storage, Command command) {
+			applyStorage(id, storage, command);
+		}
+
+		public void registered(int id, Storage storage, Command command, Path[] files) {
+			applyRegister(id, storage, command, files);
+		}
+
+		public void file(Path file, int[] storages) {
+			applyFile(file, storages);
+		}
+
+		public void directory(Path directory) {
+			applyDirectory(directory);
+		}
+
+		public void deleted(Path path) {
+			applyDelete(path);
+		}
+
+		public void replica(Path file, int storage, boolean added) {
+			applyReplica(file, storage, added);
+		}
+	}
+
+	/* results cached by clients are out of date: tell their stubs through
+	 * the next reply, and subscribed listeners at once */
+	private void changed(){
+		this.serviceSkeleton.invalidateCaches();
+
+		Iterator<Map.Entry<ChangeListener, CallbackQueue<ChangeListener>>> iterator =
+			this.listeners.entrySet().iterator();
+		while (iterator.hasNext()) {
+			CallbackQueue<ChangeListener> queue = iterator.next().getValue();
+			if (queue.isFailed()) {
+				iterator.remove();
+			} else {
+				try {
+					queue.calls().changed();
+				} catch (RMIException e) {
+					// queued calls never throw
+				}
+			}
+		}
+	}
+
 }
@@ -58,4 +58,45 @@ public abstract class NamingStubs
     {
         return registration(hostname, REGISTRATION_PORT);
     }
+
+    /** Subscribes a naming server stub to change notifications.
+
+        <p>
+        A listener is exported from this JVM and subscribed with the naming
+        server. Each notification drops the results cached for the stub, and
+        for all other stubs to the same naming server, so that they do not
+        wait for their next call to learn of changes.
+
+        @param service A naming server client service stub.
+        @return The stub of the exported listener, which may be passed to
+                <code>Service.unsubscribe</code> and
+                <code>rmi.Callbacks.unexport</code>.
+        @throws UnknownHostException If the name of this host cannot be
+                                     found.
+        @throws RMIException If the listener cannot be exported or
+                             subscribed.
+     */
+    public static ChangeListener subscribe(final Service service)
+        throws UnknownHostException, RMIException
+    {
+        ChangeListener      listener = Callbacks.export(ChangeListener.class,
+                                                        new ChangeListener() {
+            public void changed()
+            {
+                Stub.invalidateCache(service);
+            }
+        });
+
+        try
+        {
+            service.subscribe(listener);
+        }
+        catch(RMIException e)
+        {
+            Callbacks.unexport(listener);
+            throw e;
+        }
+
+        return listener;
+    }
 }
@@ -1,37 +1,189 @@
 package naming;
 
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Read/write lock guarding one node of the naming server's namespace.
+ *
+ * Every call locks the root, and the directories above its path, for
+ * reading. So a lock that no thread waits for is taken and released with a
+ * single atomic update of its state, which counts the readers holding it and
+ * marks a writer holding it and threads queued for it. Only a thread that
+ * must wait takes the queue's lock, and joins a first-in, first-out queue.
+ *
+ * Once a thread is queued, new readers queue behind it, so a waiting writer
+ * is never starved by a stream of new readers. A thread releasing the lock
+ * to waiters hands it over directly: it grants the lock to the writer at the
+ * head of the queue, or to every reader up to the next writer, and unparks
+ * them. They wake up holding the lock, instead of waking to compete for it.
+ * Waiters park with LockSupport rather than waiting on this object's
+ * monitor: a parked virtual thread releases its carrier, whereas one blocked
+ * in Object.wait() would pin it for as long as the lock is contended.
+ */
 public class ReadWriteLock {
 
-    private volatile int readLockHolders = 0;
-    private volatile boolean isWriteLocked = false;
-    private volatile int pendingWriteRequests = 0;
-    private volatile int requests = 0;
+    /* flags in the state, above the number of readers */
+    private static final int WRITER = 1 << 30;
+    private static final int QUEUED = 1 << 29;
+    private static final int READERS = QUEUED - 1;
+
+    private final AtomicInteger state = new AtomicInteger();
+
+    /* threads waiting, in arrival order; guarded by queueLock. QUEUED is set
+       in the state exactly while the queue is not empty */
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<Waiter>();
+
+    /* read locks requested; striped, since the root's is counted by every
+       call */
+    private final LongAdder requests = new LongAdder();
+
+    private static final class Waiter {
+        final Thread thread = Thread.currentThread();
+        final boolean exclusive;
+        volatile boolean granted = false;
+
+        Waiter(boolean exclusive) {
+            this.exclusive = exclusive;
+        }
+    }
+
+    public void lockRead() throws InterruptedException {
+        this.requests.increment();
+        for (int s = state.get(); (s & (WRITER | QUEUED)) == 0; s = state.get()) {
+            if (state.compareAndSet(s, s + 1)) {
+                return;
+            }
+        }
+        acquire(false);
+    }
+
+    public void unlockRead() {
+        int s = state.getAndDecrement();
+        if ((s & QUEUED) != 0 && (s & READERS) == 1) {
+            release();
+        }
+    }
+
+    public void lockWrite() throws InterruptedException {
+        if (!state.compareAndSet(0, WRITER)) {
+            acquire(true);
+        }
+    }
 
-	public synchronized void lockRead() throws InterruptedException {
-        while(this.isWriteLocked || this.pendingWriteRequests > 0) wait();
-        this.readLockHolders++;
-        this.requests++;
-	}
+    public void unlockWrite() {
+        if (state.compareAndSet(WRITER, 0)) {
+            return;
+        }
+        queueLock.lock();
+        try {
+            state.getAndAdd(-WRITER);
+            grant();
+        } finally {
+            queueLock.unlock();
+        }
+    }
 
-	public synchronized void unlockRead() {
-        this.readLockHolders--;
-        notifyAll();
+    public int getRequests() {
+        return this.requests.intValue();
     }
 
-    public synchronized void lockWrite() throws InterruptedException {
-        this.pendingWriteRequests++;
-        while(this.readLockHolders > 0 || this.isWriteLocked) wait();
-        this.pendingWriteRequests--;
-        this.isWriteLocked = true;
-	}
+    /* Takes the lock, waiting in the queue unless the lock is free and
+       nobody else waits. */
+    private void acquire(boolean exclusive) throws InterruptedException {
+        Waiter waiter = new Waiter(exclusive);
+
+        queueLock.lock();
+        try {
+            if (queue.isEmpty() && tryAcquire(exclusive)) {
+                return;
+            }
+            queue.add(waiter);
+            if (queue.size() == 1) {
+                state.getAndAdd(QUEUED);
+            }
+            /* the holder may have released the lock before it saw this
+               thread queued, leaving nobody to hand it over */
+            grant();
+        } finally {
+            queueLock.unlock();
+        }
+
+        while (!waiter.granted) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                cancel(waiter);
+            }
+        }
+    }
 
-	public synchronized void unlockWrite() {
-        this.isWriteLocked = false;
-        notifyAll();
-	}
+    /* Leaves the queue after an interrupt. If the lock was granted
+       meanwhile, it is kept, and the interrupt left for the caller to see. */
+    private void cancel(Waiter waiter) throws InterruptedException {
+        queueLock.lock();
+        try {
+            if (!waiter.granted) {
+                queue.remove(waiter);
+                if (queue.isEmpty()) {
+                    state.getAndAdd(-QUEUED);
+                }
+                /* readers held back only by this writer may go ahead now */
+                grant();
+                throw new InterruptedException();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+        Thread.currentThread().interrupt();
+    }
+
+    /* Takes the lock if it is free. Called holding queueLock with nobody
+       queued. */
+    private boolean tryAcquire(boolean exclusive) {
+        while (true) {
+            int s = state.get();
+            if ((s & WRITER) != 0 || (exclusive && s != 0)) {
+                return false;
+            }
+            if (state.compareAndSet(s, exclusive ? WRITER : s + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /* Hands the lock to the last reader's or the writer's successors. */
+    private void release() {
+        queueLock.lock();
+        try {
+            grant();
+        } finally {
+            queueLock.unlock();
+        }
+    }
 
-    public synchronized int getRequests() {
-        return this.requests;
+    /* Grants the lock to the waiters at the head of the queue, for as long
+       as it is free for them. Called holding queueLock. */
+    private void grant() {
+        Waiter head;
+        while ((head = queue.peek()) != null) {
+            int s = state.get();
+            if ((s & WRITER) != 0 || (head.exclusive && (s & READERS) != 0)) {
+                return;
+            }
+            /* readers still leaving may change the state meanwhile */
+            if (!state.compareAndSet(s, head.exclusive ? s | WRITER : s + 1)) {
+                continue;
+            }
+            queue.poll();
+            if (queue.isEmpty()) {
+                state.getAndAdd(-QUEUED);
+            }
+            head.granted = true;
+            LockSupport.unpark(head.thread);
+        }
     }
 
 }
@@ -2,7 +2,9 @@ package naming;
 
 import java.io.*;
 import common.*;
+import rmi.Cached;
 import rmi.RMIException;
+import rmi.RemoteIterator;
 import storage.Storage;
 
 /** Naming server client service interface.
@@ -138,6 +140,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Cached(ttl = 1000)
     public boolean isDirectory(Path path)
         throws RMIException, FileNotFoundException;
 
@@ -158,6 +161,26 @@ public interface Service
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
+    /** Lists the contents of a directory a chunk at a time.
+
+        <p>
+        This method is for directories too large to be listed in one array.
+        The names are sent as they are read from the iterator, so that neither
+        the naming server nor the client holds the whole listing as strings.
+        The directory should be locked for shared access until the iterator
+        has been read or closed.
+
+        @param directory The directory to be listed.
+        @return An iterator over the directory entries. The entries are not
+                guaranteed to be in any particular order.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public RemoteIterator<String> iterate(Path directory)
+        throws RMIException, FileNotFoundException;
+
     /** Creates the given file, if it does not exist.
 
         <p>
@@ -221,11 +244,46 @@ public interface Service
         exclusive access.
 
         @param file Path to the file.
+        <p>
+        Stubs may cache the results of this method and of
+        <code>isDirectory</code> for up to a second. The naming server
+        invalidates them whenever files are created, deleted or moved between
+        storage servers.
+
         @return A stub for communicating with the storage server.
         @throws FileNotFoundException If the file does not exist.
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Cached(ttl = 1000)
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Asks the naming server to notify a listener of changes.
+
+        <p>
+        The listener is called whenever files or directories are created or
+        deleted, or a file moves between storage servers. A listener that
+        cannot be reached is dropped. Subscribing a listener that is already
+        subscribed has no effect.
+
+        @param listener A stub for the listener, usually created by
+                        <code>rmi.Callbacks.export</code>.
+        @throws NullPointerException If <code>listener</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void subscribe(ChangeListener listener) throws RMIException;
+
+    /** Stops notifying a listener of changes.
+
+        @param listener The listener given to <code>subscribe</code>.
+        @return <code>true</code> if the listener was subscribed.
+        @throws NullPointerException If <code>listener</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean unsubscribe(ChangeListener listener) throws RMIException;
 }
@@ -0,0 +1,210 @@
+package rmi;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* A skeleton's admission state: the calls in flight, in total and for each
+ * remote address, each address's token bucket and open connections, and the
+ * counts of what was refused. The limits themselves are read from the
+ * skeleton's current AdmissionControl on every check, so they can be changed
+ * while the skeleton runs.
+ *
+ * A null address stands for a client on this host, which is only held to the
+ * total in-flight limit.
+ */
+class Admission {
+
+    /* past this many addresses, those with nothing in flight and a full
+       bucket are forgotten */
+    private static final int SWEEP_THRESHOLD = 1024;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, Client> clients =
+        new ConcurrentHashMap<InetAddress, Client>();
+
+    private final AtomicLong refusedCalls = new AtomicLong();
+    private final AtomicLong throttledCalls = new AtomicLong();
+    private final AtomicLong refusedConnections = new AtomicLong();
+
+    /* Admits a call of the given number of methods, or throws the reason it
+       is refused. The call is counted against its address only if a
+       per-address limit or rate applies. Returns the entry it was counted
+       against, or null if there is none; the call must later be released
+       with what was returned, so that a change of limits meanwhile cannot
+       unbalance the counts. */
+    Client admit(AdmissionControl limits, InetAddress address, int calls) throws RMIException {
+        int max = limits.getMaxInFlight();
+        if (inFlight.incrementAndGet() > max && max > 0) {
+            inFlight.decrementAndGet();
+            refusedCalls.incrementAndGet();
+            throw new RMIException("call refused: skeleton has " + max + " calls in flight");
+        }
+
+        if (address == null
+            || (limits.getMaxInFlightPerAddress() == 0 && limits.getCallsPerSecond() == 0)) {
+            return null;
+        }
+        Client client = enter(address, false, limits.getMaxInFlightPerAddress());
+        if (client == null) {
+            inFlight.decrementAndGet();
+            refusedCalls.incrementAndGet();
+            throw new RMIException("call refused: " + address.getHostAddress() + " has "
+                                   + limits.getMaxInFlightPerAddress() + " calls in flight");
+        }
+
+        if (limits.getCallsPerSecond() > 0
+            && !client.take(calls, limits.getCallsPerSecond(), limits.getBurst())) {
+            client.inFlight.decrementAndGet();
+            inFlight.decrementAndGet();
+            throttledCalls.incrementAndGet();
+            throw new RMIException("call throttled: " + address.getHostAddress() + " exceeded "
+                                   + limits.getCallsPerSecond() + " calls per second");
+        }
+        return client;
+    }
+
+    /* Releases an admitted call, given what admit returned. */
+    void release(Client client) {
+        inFlight.decrementAndGet();
+        if (client != null) {
+            client.inFlight.decrementAndGet();
+        }
+    }
+
+    /* Admits a connection, or throws the reason it is refused. Returns the
+       entry the connection was counted against, or null if no per-address
+       limit applies; the connection must later be released with it. */
+    Client admitConnection(AdmissionControl limits, InetAddress address) throws RMIException {
+        int max = limits.getMaxConnectionsPerAddress();
+        if (address == null || max == 0) {
+            return null;
+        }
+        Client client = enter(address, true, max);
+        if (client == null) {
+            refusedConnections.incrementAndGet();
+            throw new RMIException("connection refused: " + address.getHostAddress() + " has "
+                                   + max + " connections open");
+        }
+        return client;
+    }
+
+    void releaseConnection(Client client) {
+        if (client != null) {
+            client.connections.decrementAndGet();
+        }
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    long refusedCalls() {
+        return refusedCalls.get();
+    }
+
+    long throttledCalls() {
+        return throttledCalls.get();
+    }
+
+    long refusedConnections() {
+        return refusedConnections.get();
+    }
+
+    /* Counts a call or a connection against an address and returns its
+       entry, or returns null if that would take the count past a limit
+       greater than zero. Counts are only raised holding the entry's lock, and
+       only on an entry the sweep has not dropped, so an address with anything
+       counted keeps its entry until it is released. */
+    private Client enter(InetAddress address, boolean connection, int max) {
+        while (true) {
+            Client client = lookup(address);
+            synchronized (client) {
+                if (!client.dropped) {
+                    AtomicInteger count = connection ? client.connections : client.inFlight;
+                    if (count.incrementAndGet() > max && max > 0) {
+                        count.decrementAndGet();
+                        return null;
+                    }
+                    return client;
+                }
+            }
+        }
+    }
+
+    /* Returns the entry of an address, creating it if there is none. */
+    Client lookup(InetAddress address) {
+        Client client = clients.get(address);
+        if (client == null) {
+            if (clients.size() >= SWEEP_THRESHOLD) {
+                sweep(1000000000L);
+            }
+            Client created = new Client();
+            client = clients.putIfAbsent(address, created);
+            if (client == null) {
+                client = created;
+            }
+        }
+        return client;
+    }
+
+    /* Forgets addresses with nothing in flight, no connections and a bucket
+       that has not been used for the given number of nanoseconds. An entry
+       is dropped holding its lock, so that nothing can be counted against it
+       meanwhile; a call that finds it dropped looks its address up again. */
+    void sweep(long idle) {
+        long now = System.nanoTime();
+        for (Map.Entry<InetAddress, Client> entry : clients.entrySet()) {
+            Client client = entry.getValue();
+            synchronized (client) {
+                if (client.inFlight.get() == 0 && client.connections.get() == 0
+                    && now - client.lastTaken >= idle) {
+                    client.dropped = true;
+                    clients.remove(entry.getKey(), client);
+                }
+            }
+        }
+    }
+
+    /* The calls in flight and connections counted against an address, for
+       tests. */
+    int inFlight(InetAddress address) {
+        Client client = clients.get(address);
+        return client == null ? 0 : client.inFlight.get();
+    }
+
+    int connections(InetAddress address) {
+        Client client = clients.get(address);
+        return client == null ? 0 : client.connections.get();
+    }
+
+    static final class Client {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger connections = new AtomicInteger();
+        /* set once the sweep has forgotten this entry; guarded by this */
+        boolean dropped = false;
+
+        /* token bucket; guarded by this */
+        private double tokens = -1;
+        private volatile long lastTaken = System.nanoTime();
+
+        synchronized boolean take(int calls, double perSecond, int burst) {
+            long now = System.nanoTime();
+            if (tokens < 0) {
+                tokens = burst;
+            } else {
+                tokens = Math.min(burst, tokens + (now - lastTaken) * perSecond / 1e9);
+            }
+            lastTaken = now;
+            /* a batch larger than the bucket takes all of a full one */
+            double needed = Math.min(calls, burst);
+            if (tokens < needed) {
+                return false;
+            }
+            tokens -= needed;
+            return true;
+        }
+    }
+}
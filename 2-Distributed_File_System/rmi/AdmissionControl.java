@@ -0,0 +1,155 @@
+package rmi;
+
+import java.io.Serializable;
+
+/** Limits on the calls and connections a skeleton accepts.
+
+    <p>
+    Four limits are applied, each with zero meaning no limit:
+    <ul>
+    <li>The <em>in-flight limit</em> bounds the number of calls being run or
+        waiting for a worker, from all clients together.</li>
+    <li>The <em>per-address in-flight limit</em> bounds the same number for
+        the calls arriving from any one remote address.</li>
+    <li>The <em>rate limit</em> gives each remote address a token bucket
+        holding up to <em>burst</em> calls and refilled at the given number
+        of calls per second. A call arriving when its address's bucket is
+        empty is refused.</li>
+    <li>The <em>per-address connection limit</em> bounds the number of
+        connections open from any one remote address.</li>
+    </ul>
+
+    <p>
+    A call over a limit is not queued: the stub at once receives an
+    <code>RMIException</code> saying which limit it hit, and the call is
+    counted in the skeleton's <code>WorkerStatistics</code>. A connection over
+    the limit is refused during the protocol handshake. A batch counts as one
+    call in flight, and takes one token for each of its calls.
+
+    <p>
+    Calls made within one JVM, and connections over the skeleton's Unix
+    domain socket, which come from the same host, are only subject to the
+    in-flight limit for all clients.
+ */
+public final class AdmissionControl implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** No limits at all. This is the default for skeletons. */
+    public static final AdmissionControl NONE = new AdmissionControl(0, 0, 0, 0, 0);
+
+    private final int maxInFlight;
+    private final int maxInFlightPerAddress;
+    private final double callsPerSecond;
+    private final int burst;
+    private final int maxConnectionsPerAddress;
+
+    private AdmissionControl(int maxInFlight, int maxInFlightPerAddress,
+                             double callsPerSecond, int burst,
+                             int maxConnectionsPerAddress)
+    {
+        this.maxInFlight = maxInFlight;
+        this.maxInFlightPerAddress = maxInFlightPerAddress;
+        this.callsPerSecond = callsPerSecond;
+        this.burst = burst;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    /** Returns these limits with another in-flight limit for all clients.
+
+        @param calls The number of calls, or zero for no limit.
+        @throws IllegalArgumentException If <code>calls</code> is negative.
+     */
+    public AdmissionControl withMaxInFlight(int calls)
+    {
+        check(calls);
+        return new AdmissionControl(calls, maxInFlightPerAddress, callsPerSecond,
+                                    burst, maxConnectionsPerAddress);
+    }
+
+    /** Returns these limits with another in-flight limit for each remote
+        address.
+
+        @param calls The number of calls, or zero for no limit.
+        @throws IllegalArgumentException If <code>calls</code> is negative.
+     */
+    public AdmissionControl withMaxInFlightPerAddress(int calls)
+    {
+        check(calls);
+        return new AdmissionControl(maxInFlight, calls, callsPerSecond, burst,
+                                    maxConnectionsPerAddress);
+    }
+
+    /** Returns these limits with another rate limit for each remote address.
+
+        @param callsPerSecond The rate at which each address's bucket is
+                              refilled, or zero for no rate limit.
+        @param burst The number of calls a full bucket holds, at least one if
+                     the rate is not zero.
+        @throws IllegalArgumentException If either argument is negative, or
+                                         the rate is not zero and the burst
+                                         is.
+     */
+    public AdmissionControl withRateLimit(double callsPerSecond, int burst)
+    {
+        if (!(callsPerSecond >= 0) || burst < 0 || (callsPerSecond > 0 && burst == 0)) {
+            throw new IllegalArgumentException("invalid rate limit");
+        }
+        return new AdmissionControl(maxInFlight, maxInFlightPerAddress, callsPerSecond,
+                                    burst, maxConnectionsPerAddress);
+    }
+
+    /** Returns these limits with another connection limit for each remote
+        address.
+
+        @param connections The number of connections, or zero for no limit.
+        @throws IllegalArgumentException If <code>connections</code> is
+                                         negative.
+     */
+    public AdmissionControl withMaxConnectionsPerAddress(int connections)
+    {
+        check(connections);
+        return new AdmissionControl(maxInFlight, maxInFlightPerAddress, callsPerSecond,
+                                    burst, connections);
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    public int getMaxInFlightPerAddress()
+    {
+        return maxInFlightPerAddress;
+    }
+
+    public double getCallsPerSecond()
+    {
+        return callsPerSecond;
+    }
+
+    public int getBurst()
+    {
+        return burst;
+    }
+
+    public int getMaxConnectionsPerAddress()
+    {
+        return maxConnectionsPerAddress;
+    }
+
+    private static void check(int limit)
+    {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+    }
+
+    public String toString()
+    {
+        return "in flight: " + maxInFlight
+            + ", in flight per address: " + maxInFlightPerAddress
+            + ", calls per second: " + callsPerSecond + " (burst " + burst + ")"
+            + ", connections per address: " + maxConnectionsPerAddress;
+    }
+}
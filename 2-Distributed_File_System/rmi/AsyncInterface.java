@@ -0,0 +1,21 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Marks an interface as the asynchronous companion of a remote interface.
+
+    <p>
+    Each method of the companion interface has the name and parameter types of
+    a method of the remote interface, and returns a
+    <code>CompletableFuture</code> of that method's result (boxed, or
+    <code>Void</code> for methods returning <code>void</code>). Stubs
+    implementing the companion are created with {@link AsyncStub}.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface AsyncInterface
+{
+    /** The remote interface whose methods the companion calls. */
+    Class<?> value();
+}
@@ -0,0 +1,220 @@
+package rmi;
+
+import java.io.IOException;
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+
+/** Asynchronous RMI stub factory.
+
+    <p>
+    An asynchronous stub implements the companion of a remote interface - an
+    interface annotated with {@link AsyncInterface}, whose methods return
+    <code>CompletableFuture</code>s instead of results. Calling a method sends
+    the request and returns at once. The future completes with the result when
+    the skeleton replies, or exceptionally with the exception thrown by the
+    remote method, or with <code>RMIException</code> if the call cannot be
+    completed due to a network error.
+
+    <p>
+    Asynchronous stubs share the multiplexed connections of synchronous stubs
+    for the same address and remote interface, on which any number of calls
+    may be outstanding. The skeleton runs outstanding calls concurrently, so
+    calls made without waiting for each other may run in any order. Futures
+    are completed by the thread reading replies from the connection; actions
+    that block should be attached with the <code>async</code> variants of the
+    <code>CompletableFuture</code> methods.
+
+    <p>
+    An asynchronous stub made from a synchronous one applies that stub's
+    <code>Timeouts</code>; otherwise the default limits apply. A call that
+    gets no reply in time completes exceptionally with
+    <code>java.net.SocketTimeoutException</code>.
+
+    <p>
+    For example, given a companion of <code>storage.Storage</code>:
+    <pre>
+    &#64;AsyncInterface(Storage.class)
+    public interface StorageAsync
+    {
+        public CompletableFuture&lt;byte[]&gt; read(Path file, long offset,
+                                               int length);
+    }
+    </pre>
+    a client can have several reads in flight at once:
+    <pre>
+    StorageAsync                storage =
+        AsyncStub.create(StorageAsync.class, storage_stub);
+    CompletableFuture&lt;byte[]&gt;   first = storage.read(file, 0, 4096);
+    CompletableFuture&lt;byte[]&gt;   second = storage.read(file, 4096, 4096);
+    </pre>
+ */
+public abstract class AsyncStub
+{
+    /* method IDs in the remote interface for the methods of each companion */
+    private static final ClassValue<HashMap<Method, Integer>> companions =
+        new ClassValue<HashMap<Method, Integer>>() {
+            protected HashMap<Method, Integer> computeValue(Class<?> c) {
+                return bindCompanion(c);
+            }
+        };
+
+    /** Creates an asynchronous stub, given the address of a remote server.
+
+        @param c A <code>Class</code> object representing the companion
+                 interface to be implemented by the stub.
+        @param address The network address of the remote skeleton.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> is not the companion of a remote
+                      interface: it must be annotated with
+                      <code>AsyncInterface</code> naming a remote interface,
+                      and each of its methods must match a method of that
+                      interface and return <code>CompletableFuture</code>.
+     */
+    public static <T> T create(Class<T> c, InetSocketAddress address)
+    {
+        if (c == null || address == null) {
+            throw new NullPointerException();
+        }
+
+        HashMap<Method, Integer> methods = companions.get(c);
+        Class<?> remoteInterface = c.getAnnotation(AsyncInterface.class).value();
+        return create(c, address, remoteInterface, methods, null);
+    }
+
+    private static <T> T create(Class<T> c, InetSocketAddress address, Class<?> remoteInterface,
+                                HashMap<Method, Integer> methods, MyInvocationHandler limits) {
+        InvocationHandler handler =
+            new AsyncInvocationHandler(address, c, MethodTable.of(remoteInterface), methods, limits);
+
+        return c.cast(Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c }, handler));
+    }
+
+    /** Creates an asynchronous stub that calls the same skeleton as an
+        existing stub.
+
+        <p>
+        This method should be used when a synchronous stub was received from
+        another server, for example a storage server stub obtained from the
+        naming server.
+
+        @param c A <code>Class</code> object representing the companion
+                 interface to be implemented by the stub.
+        @param stub A stub created by <code>Stub.create</code> for the remote
+                    interface named by the companion.
+        @return The stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub for
+                                         the companion's remote interface.
+        @throws Error If <code>c</code> is not the companion of a remote
+                      interface.
+     */
+    public static <T> T create(Class<T> c, Object stub)
+    {
+        if (c == null || stub == null) {
+            throw new NullPointerException();
+        }
+
+        HashMap<Method, Integer> methods = companions.get(c);
+        Class<?> remoteInterface = c.getAnnotation(AsyncInterface.class).value();
+
+        MyInvocationHandler handler = Stub.handlerOf(stub);
+        if (handler == null) {
+            throw new IllegalArgumentException("not an RMI stub");
+        }
+        if (handler.getinterface() != remoteInterface) {
+            throw new IllegalArgumentException("stub does not implement " + remoteInterface.getName());
+        }
+
+        return create(c, handler.getAddress(), remoteInterface, methods, handler);
+    }
+
+    /* Checks a companion interface and finds the remote method ID for each of
+       its methods. */
+    private static HashMap<Method, Integer> bindCompanion(Class<?> c) {
+        AsyncInterface annotation = c.getAnnotation(AsyncInterface.class);
+        if (!c.isInterface() || annotation == null) {
+            throw new Error(c.getName() + " is not an asynchronous companion interface");
+        }
+        Class<?> remoteInterface = annotation.value();
+        if (!MethodTable.isRemoteInterface(remoteInterface)) {
+            throw new Error(remoteInterface.getName() + " is not a remote interface");
+        }
+
+        MethodTable table = MethodTable.of(remoteInterface);
+        HashMap<Method, Integer> methods = new HashMap<Method, Integer>();
+        for (Method method : c.getMethods()) {
+            if (method.getReturnType() != CompletableFuture.class) {
+                throw new Error(method + " does not return CompletableFuture");
+            }
+            try {
+                Method remote = remoteInterface.getMethod(method.getName(), method.getParameterTypes());
+                methods.put(method, table.idOf(remote));
+            } catch (NoSuchMethodException e) {
+                throw new Error(method + " has no counterpart in " + remoteInterface.getName());
+            }
+        }
+        return methods;
+    }
+
+    /* Sends each call on the shared connection. The Object methods are
+       answered locally, as for synchronous stubs. */
+    private static class AsyncInvocationHandler implements InvocationHandler {
+        private final InetSocketAddress address;
+        private final Class<?> companion;
+        private final MethodTable methodTable;
+        private final HashMap<Method, Integer> methods;
+        /* handler of the stub whose time limits are used, or null for the
+           defaults */
+        private final MyInvocationHandler limits;
+
+        AsyncInvocationHandler(InetSocketAddress address, Class<?> companion,
+                               MethodTable methodTable, HashMap<Method, Integer> methods,
+                               MyInvocationHandler limits) {
+            this.address = address;
+            this.companion = companion;
+            this.methodTable = methodTable;
+            this.methods = methods;
+            this.limits = limits;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            Integer id = methods.get(method);
+            if (id == null) {
+                return invokeObjectMethod(proxy, method, args);
+            }
+
+            try {
+                Timeouts timeouts = limits == null ? Timeouts.getDefault()
+                                                   : limits.timeouts(methodTable.method(id));
+                return ConnectionPool.get(address, methodTable).submit(id, args, timeouts);
+            } catch (IOException e) {
+                CompletableFuture<Object> failed = new CompletableFuture<Object>();
+                failed.completeExceptionally(new RMIException(e));
+                return failed;
+            }
+        }
+
+        private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("equals")) {
+                Object other = args[0];
+                if (other == null || !Proxy.isProxyClass(other.getClass())) {
+                    return false;
+                }
+                InvocationHandler handler = Proxy.getInvocationHandler(other);
+                if (!(handler instanceof AsyncInvocationHandler)) {
+                    return false;
+                }
+                AsyncInvocationHandler that = (AsyncInvocationHandler) handler;
+                return companion == that.companion && address.equals(that.address);
+            }
+            if (method.getName().equals("hashCode")) {
+                return companion.hashCode() * 1011 + address.hashCode() * 17;
+            }
+            return "Interface name : " + companion.getName() + "\n"
+                + "Connecting to : " + address.toString();
+        }
+    }
+}
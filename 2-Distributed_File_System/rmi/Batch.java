@@ -0,0 +1,190 @@
+package rmi;
+
+import java.io.IOException;
+import java.lang.reflect.*;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+/** Records calls on a stub and sends them to the skeleton in one request.
+
+    <p>
+    Calls made on the proxy returned by <code>calls</code> are not sent at
+    once. They are recorded, and return <code>null</code>, <code>false</code>
+    or zero. <code>flush</code> then sends all recorded calls in a single
+    round trip. The skeleton runs them in the order they were recorded, one
+    after another, and returns the result or exception of each. An exception
+    thrown by one call does not prevent the following calls from running.
+
+    <p>
+    For example, a directory can be checked and listed in one round trip:
+    <pre>
+    Batch&lt;Service&gt;     batch = new Batch&lt;Service&gt;(naming_server);
+    batch.calls().isDirectory(path);
+    batch.calls().list(path);
+    Batch.Result[]      results = batch.flush();
+
+    if((Boolean)results[0].get())
+        children = (String[])results[1].get();
+    </pre>
+
+    <p>
+    A <code>Batch</code> is not thread-safe. It may be reused after
+    <code>flush</code>.
+ */
+public class Batch<T>
+{
+    private final InetSocketAddress address;
+    private final MethodTable methodTable;
+    private final Timeouts timeouts;
+    private final T recorder;
+    private final ArrayList<Method> methods = new ArrayList<Method>();
+    private final ArrayList<Object[]> arguments = new ArrayList<Object[]>();
+
+    /** Creates an empty batch of calls to the skeleton of a stub.
+
+        @param stub A stub created by <code>Stub.create</code>.
+        @throws NullPointerException If <code>stub</code> is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not an RMI
+                                         stub.
+     */
+    @SuppressWarnings("unchecked")
+    public Batch(T stub)
+    {
+        if (stub == null) {
+            throw new NullPointerException();
+        }
+        MyInvocationHandler handler = Stub.handlerOf(stub);
+        if (handler == null) {
+            throw new IllegalArgumentException("not an RMI stub");
+        }
+
+        Class<?> c = handler.getinterface();
+        this.address = handler.getAddress();
+        this.methodTable = MethodTable.of(c);
+        this.timeouts = handler.timeouts();
+        this.recorder = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c },
+                                                   new Recorder());
+    }
+
+    /** Returns a proxy on which calls are recorded for this batch. */
+    public T calls()
+    {
+        return recorder;
+    }
+
+    /** Returns the number of calls recorded since the last flush. */
+    public int size()
+    {
+        return methods.size();
+    }
+
+    /** Sends the recorded calls to the skeleton, waits for their results, and
+        empties the batch.
+
+        @return One result for each recorded call, in the order the calls were
+                recorded.
+        @throws RMIException If the batch cannot be completed due to a network
+                             error, or within the time limits of the stub.
+                             None, some or all of the calls may then have
+                             run.
+     */
+    public Result[] flush() throws RMIException
+    {
+        if (methods.isEmpty()) {
+            return new Result[0];
+        }
+
+        Method[] batchMethods = methods.toArray(new Method[methods.size()]);
+        Object[][] batchArguments = arguments.toArray(new Object[arguments.size()][]);
+        methods.clear();
+        arguments.clear();
+
+        myObject[] replies;
+        try {
+            replies = ConnectionPool.get(address, methodTable)
+                .batch(batchMethods, batchArguments, timeouts);
+        } catch (IOException e) {
+            throw new RMIException(e);
+        }
+
+        Result[] results = new Result[replies.length];
+        for (int i = 0; i < replies.length; i++) {
+            results[i] = new Result(replies[i]);
+        }
+        return results;
+    }
+
+    /** Result of one call in a batch. */
+    public static final class Result
+    {
+        private final Object value;
+        private final Throwable exception;
+
+        private Result(myObject reply)
+        {
+            if (reply.getExceptionStatus()) {
+                this.value = null;
+                this.exception = (Throwable) reply.getObject();
+            } else {
+                this.value = reply.getObject();
+                this.exception = null;
+            }
+        }
+
+        /** Returns <code>true</code> if the call threw an exception. */
+        public boolean failed()
+        {
+            return exception != null;
+        }
+
+        /** Returns the exception thrown by the call, or <code>null</code>. */
+        public Throwable getException()
+        {
+            return exception;
+        }
+
+        /** Returns the value returned by the call, or throws the exception
+            the call threw.
+
+            @return The value returned, boxed if the method returns a primitive
+                    type, or <code>null</code> for <code>void</code> methods.
+            @throws Exception The exception thrown by the call.
+         */
+        public Object get() throws Exception
+        {
+            if (exception instanceof Exception) {
+                throw (Exception) exception;
+            }
+            if (exception instanceof Error) {
+                throw (Error) exception;
+            }
+            return value;
+        }
+    }
+
+    /* Records each call instead of sending it. Calls to the Object methods
+       are not recorded. */
+    private class Recorder implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "Batch recorder for " + address;
+            }
+
+            methods.add(method);
+            arguments.add(args);
+
+            /* the zero value of the return type */
+            Class<?> type = method.getReturnType();
+            if (!type.isPrimitive() || type == void.class) {
+                return null;
+            }
+            return Array.get(Array.newInstance(type, 1), 0);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Lets stubs reuse the results of a remote method for a short time.
+
+    <p>
+    A stub calling a method annotated with <code>Cached</code> keeps its
+    result, keyed by the arguments, and answers later calls with the same
+    arguments from the cache for up to <code>ttl</code> milliseconds. Only
+    results are kept; calls that throw are always repeated. All stubs for the
+    same interface and remote address share one cache, whose size is set with
+    <code>ConnectionPool.setMaxCachedResults</code>.
+
+    <p>
+    The skeleton sends a generation number with every reply, which changes
+    when the server calls <code>Skeleton.invalidateCaches</code>. A stub that
+    sees a new generation drops every cached result for that skeleton, so a
+    client notices a change as soon as any of its calls to the skeleton
+    returns. A client can also drop the results itself with
+    <code>Stub.invalidateCache</code>.
+
+    <p>
+    Only methods without side effects, whose results are not modified by
+    their callers, should be annotated. Array results are copied before being
+    returned, but not their elements. Calls to skeletons in the same JVM are
+    not cached, since they are not sent over the network.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cached
+{
+    /** The time in milliseconds for which a result may be reused. */
+    long ttl() default 1000;
+}
@@ -0,0 +1,140 @@
+package rmi;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+/** Snapshot of the calls served by a skeleton or made through stubs.
+
+    <p>
+    Obtained from <code>Skeleton.metrics</code> for the server side, or from
+    <code>Stub.metrics</code> for the client side of one remote address and
+    interface. Counters accumulate from the time the skeleton was created, or
+    the first stub for the address was used. Like
+    <code>WorkerStatistics</code>, the counters are read independently of each
+    other and may not be mutually consistent if calls are in progress.
+
+    <p>
+    Byte counts include the frame headers of calls and replies, but not the
+    handshake that opens a connection. Queue time, the delay between a call
+    being read and a worker starting to run it, is only measured by
+    skeletons; for stubs its distribution is empty.
+
+    <p>
+    On connections that use {@link Compression}, byte counts are of the
+    compressed frames. The frames that were compressed are also counted
+    before and after compression, in both directions, giving the compression
+    ratio.
+ */
+public class CallMetrics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<String, MethodMetrics> methods;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final long uncompressedBytes;
+    private final long compressedBytes;
+    private final int activeConnections;
+    private final LatencyDistribution queueTime;
+
+    CallMetrics(Map<String, MethodMetrics> methods, long bytesIn, long bytesOut,
+                long uncompressedBytes, long compressedBytes,
+                int activeConnections, LatencyDistribution queueTime) {
+        this.methods = Collections.unmodifiableMap(methods);
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.uncompressedBytes = uncompressedBytes;
+        this.compressedBytes = compressedBytes;
+        this.activeConnections = activeConnections;
+        this.queueTime = queueTime;
+    }
+
+    /** Returns the metrics of every method of the remote interface, keyed by
+        <code>MethodMetrics.getName</code>, in a fixed order. */
+    public Map<String, MethodMetrics> getMethods() {
+        return methods;
+    }
+
+    /** Returns the metrics of the method with the given name, as returned by
+        <code>MethodMetrics.getName</code>, or <code>null</code> if the
+        interface has no such method. */
+    public MethodMetrics getMethod(String name) {
+        return methods.get(name);
+    }
+
+    /** Returns the number of calls completed, over all methods. */
+    public long getCalls() {
+        long calls = 0;
+        for (MethodMetrics method : methods.values()) {
+            calls += method.getCalls();
+        }
+        return calls;
+    }
+
+    /** Returns the number of calls that threw an exception, over all
+        methods. */
+    public long getErrors() {
+        long errors = 0;
+        for (MethodMetrics method : methods.values()) {
+            errors += method.getErrors();
+        }
+        return errors;
+    }
+
+    /** Returns the number of bytes received in calls (by a skeleton) or
+        replies (by stubs). */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /** Returns the number of bytes sent in replies (by a skeleton) or calls
+        (by stubs). */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /** Returns the size the compressed frames sent and received would have
+        had without compression. */
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /** Returns the size of the compressed frames sent and received. */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /** Returns how many times smaller compressed frames were than the
+        originals, or <code>1</code> if no frame has been compressed. */
+    public double getCompressionRatio() {
+        return compressedBytes == 0 ? 1.0 : (double) uncompressedBytes / compressedBytes;
+    }
+
+    /** Returns the number of connections currently open. */
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    /** Returns the distribution of the time calls waited for a worker. */
+    public LatencyDistribution getQueueTime() {
+        return queueTime;
+    }
+
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("calls: ").append(getCalls())
+            .append(", errors: ").append(getErrors())
+            .append(", bytes in: ").append(bytesIn)
+            .append(", bytes out: ").append(bytesOut)
+            .append(", compression ratio: ").append(String.format("%.2f", getCompressionRatio()))
+            .append(", active connections: ").append(activeConnections)
+            .append(", queue time: ").append(queueTime);
+        for (MethodMetrics method : methods.values()) {
+            if (method.getCalls() != 0) {
+                text.append("\n  ").append(method);
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,228 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Delivers calls to a listener asynchronously, in order, through a bounded
+    queue.
+
+    <p>
+    Calls made on the proxy returned by <code>calls</code> are queued and
+    return at once with <code>null</code>, <code>false</code> or zero. A
+    delivery thread then makes them on the listener, usually a stub exported
+    by a client with <code>Callbacks.export</code>, one at a time and in the
+    order they were queued. The results of the calls are discarded, and so are
+    exceptions thrown by the listener itself.
+
+    <p>
+    A call equal to one still waiting in the queue, with the same method and
+    equal arguments, is not queued again, so that repeated notifications of
+    the same event are delivered once. A call made when the queue already
+    holds <code>capacity</code> calls is dropped and counted by
+    <code>getDropped</code>. If a call to the listener fails with
+    <code>RMIException</code>, the listener is taken to be gone: the queue is
+    emptied, later calls are dropped, and <code>isFailed</code> returns
+    <code>true</code>. A server keeping queues for its listeners should then
+    discard the queue.
+
+    <p>
+    Delivery threads are daemon threads shared by all queues. A queue holds a
+    thread only while it has calls waiting.
+ */
+public class CallbackQueue<T>
+{
+    private static final ExecutorService delivery = new ThreadPoolExecutor(
+        0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rmi-callback-delivery-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final T listener;
+    private final int capacity;
+    private final T calls;
+
+    /* guarded by this */
+    private final ArrayDeque<Call> queue = new ArrayDeque<Call>();
+    private boolean delivering = false;
+    private boolean closed = false;
+    private volatile boolean failed = false;
+    private volatile long dropped = 0;
+
+    /** Creates a queue of calls to a listener.
+
+        @param c The remote interface of the listener.
+        @param listener The listener, usually a stub.
+        @param capacity The number of calls that may wait for delivery.
+        @throws NullPointerException If <code>c</code> or
+                                     <code>listener</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>capacity</code> is not
+                                         positive.
+     */
+    @SuppressWarnings("unchecked")
+    public CallbackQueue(Class<T> c, T listener, int capacity)
+    {
+        if (c == null || listener == null) {
+            throw new NullPointerException();
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.listener = listener;
+        this.capacity = capacity;
+        this.calls = (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c },
+                                                new Enqueuer());
+    }
+
+    /** Returns a proxy whose calls are queued for the listener. */
+    public T calls()
+    {
+        return calls;
+    }
+
+    /** Returns the listener calls are delivered to. */
+    public T listener()
+    {
+        return listener;
+    }
+
+    /** Returns the number of calls waiting for delivery. */
+    public synchronized int size()
+    {
+        return queue.size();
+    }
+
+    /** Returns the number of calls dropped because the queue was full, or
+        because the listener had failed or the queue was closed. */
+    public long getDropped()
+    {
+        return dropped;
+    }
+
+    /** Returns <code>true</code> if a call to the listener has failed with
+        <code>RMIException</code>. */
+    public boolean isFailed()
+    {
+        return failed;
+    }
+
+    /** Discards the calls waiting for delivery and drops all later ones. A
+        call being delivered is not interrupted. */
+    public synchronized void close()
+    {
+        closed = true;
+        queue.clear();
+    }
+
+    private synchronized void enqueue(Call call)
+    {
+        if (closed || failed) {
+            dropped++;
+            return;
+        }
+        for (Call waiting : queue) {
+            if (waiting.equals(call)) {
+                return;
+            }
+        }
+        if (queue.size() >= capacity) {
+            dropped++;
+            return;
+        }
+        queue.add(call);
+        if (!delivering) {
+            delivering = true;
+            delivery.execute(new Runnable() {
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+    }
+
+    /* Makes the queued calls until the queue is empty. */
+    private void deliver()
+    {
+        while (true) {
+            Call call;
+            synchronized (this) {
+                call = queue.poll();
+                if (call == null) {
+                    delivering = false;
+                    return;
+                }
+            }
+
+            try {
+                call.method.invoke(listener, call.args);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof RMIException) {
+                    synchronized (this) {
+                        failed = true;
+                        dropped += queue.size();
+                        queue.clear();
+                    }
+                }
+            } catch (Throwable e) {
+                /* the listener's own failures are not the sender's concern */
+            }
+        }
+    }
+
+    /* One queued call. */
+    private static final class Call {
+        final Method method;
+        final Object[] args;
+
+        Call(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Call)) {
+                return false;
+            }
+            Call call = (Call) other;
+            return method.equals(call.method) && Arrays.deepEquals(args, call.args);
+        }
+
+        public int hashCode() {
+            return method.hashCode() * 31 + Arrays.deepHashCode(args);
+        }
+    }
+
+    /* Queues each call instead of making it. Calls to the Object methods
+       are not queued. */
+    private class Enqueuer implements InvocationHandler {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "Callback queue for " + listener;
+            }
+
+            enqueue(new Call(method, args == null ? null : args.clone()));
+
+            /* the zero value of the return type */
+            Class<?> type = method.getReturnType();
+            if (!type.isPrimitive() || type == void.class) {
+                return null;
+            }
+            return Array.get(Array.newInstance(type, 1), 0);
+        }
+    }
+}
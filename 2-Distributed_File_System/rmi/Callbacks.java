@@ -0,0 +1,109 @@
+package rmi;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Exports objects that servers call back.
+
+    <p>
+    The RMI library carries calls from stubs to skeletons only. For a server
+    to notify a client, the client exports a listener object with
+    <code>export</code>, which starts a skeleton for it on a port chosen by the
+    system and returns a stub. The client passes the stub as an argument to a
+    remote method, and the server calls the stub like any other. Servers
+    should not call listeners while handling their own calls, since a slow or
+    departed client would then hold them up; <code>CallbackQueue</code>
+    delivers calls to a listener from a thread of its own.
+
+    <p>
+    For example, a client may ask a server to tell it about changes:
+    <pre>
+    Listener    stub = Callbacks.export(Listener.class, new Listener() {
+        public void changed() { ... }
+    });
+    server.subscribe(stub);
+    ...
+    Callbacks.unexport(stub);
+    </pre>
+ */
+public final class Callbacks
+{
+    /* skeletons of exported objects, by port */
+    private static final ConcurrentHashMap<Integer, Skeleton<?>> exported =
+        new ConcurrentHashMap<Integer, Skeleton<?>>();
+
+    private Callbacks()
+    {
+    }
+
+    /** Exports an object under this host's name.
+
+        @param c The remote interface through which the object is called.
+        @param listener The object to export.
+        @return A stub for the object, which may be sent to servers.
+        @throws UnknownHostException If the name of this host cannot be
+                                     found.
+        @throws RMIException If the skeleton cannot be started.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> is not a remote interface.
+     */
+    public static <T> T export(Class<T> c, T listener)
+        throws UnknownHostException, RMIException
+    {
+        return export(c, listener, InetAddress.getLocalHost().getHostName());
+    }
+
+    /** Exports an object under the given host name.
+
+        <p>
+        This form is for hosts whose own name is not one that servers can
+        reach, as with <code>Stub.create</code>.
+
+        @param c The remote interface through which the object is called.
+        @param listener The object to export.
+        @param hostname The host name servers are to connect to.
+        @return A stub for the object, which may be sent to servers.
+        @throws RMIException If the skeleton cannot be started.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> is not a remote interface.
+     */
+    public static <T> T export(Class<T> c, T listener, String hostname)
+        throws RMIException
+    {
+        if (c == null || listener == null || hostname == null) {
+            throw new NullPointerException();
+        }
+
+        Skeleton<T> skeleton = new Skeleton<T>(c, listener);
+        skeleton.start();
+        exported.put(skeleton.getPort(), skeleton);
+        return Stub.create(c, skeleton, hostname);
+    }
+
+    /** Stops the skeleton of an exported object. Later calls through its
+        stubs fail with <code>RMIException</code>.
+
+        @param stub A stub returned by <code>export</code>.
+        @return <code>true</code> if the object was exported and has been
+                unexported, <code>false</code> otherwise.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+     */
+    public static boolean unexport(Object stub)
+    {
+        if (stub == null) {
+            throw new NullPointerException();
+        }
+        MyInvocationHandler handler = Stub.handlerOf(stub);
+        if (handler == null) {
+            return false;
+        }
+        Skeleton<?> skeleton = exported.remove(handler.getAddress().getPort());
+        if (skeleton == null) {
+            return false;
+        }
+        skeleton.stop();
+        return true;
+    }
+}
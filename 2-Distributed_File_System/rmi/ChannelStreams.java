@@ -0,0 +1,60 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/* Streams over a blocking socket channel, for channels that have no socket
+ * adaptor, such as those of Unix domain sockets.
+ *
+ * The streams returned by Channels hold the channel's blocking lock while
+ * reading, which would keep a connection's writers waiting for as long as its
+ * reader is blocked. A socket channel allows one read and one write at a time
+ * anyway, so these streams call it directly.
+ */
+final class ChannelStreams {
+
+    private ChannelStreams() {
+    }
+
+    static InputStream input(final SocketChannel channel) {
+        return new InputStream() {
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(bytes, offset, length));
+            }
+
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    static OutputStream output(final SocketChannel channel) {
+        return new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,168 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Settings for the compression of large calls and replies.
+
+    <p>
+    When a stub connects, it offers compression if it is enabled in its JVM,
+    and the skeleton accepts if it is enabled in its own. On a connection
+    where both agreed, each frame of at least <code>getThreshold()</code>
+    bytes is compressed with <code>Deflater</code> at its fastest level,
+    unless a sample of it looks already compressed or the result would not be
+    smaller. Frames of file data such as <code>Storage.read</code> results
+    and <code>Storage.write</code> arguments are the ones that benefit. The
+    bytes saved are reported by <code>CallMetrics.getCompressionRatio</code>.
+
+    <p>
+    Compression is disabled by default. It can be enabled with the
+    <code>rmi.compression</code> system property, and the threshold set with
+    <code>rmi.compression.threshold</code>, or both changed at run time.
+    Changes apply to connections opened afterwards.
+
+    <p>
+    A compressed frame names the length it inflates to. Frames naming more
+    than <code>rmi.compression.maxInflatedSize</code> bytes, by default the
+    largest frame accepted uncompressed, are refused before any memory is
+    set aside for them, so that a small frame cannot make the receiver
+    allocate without bound.
+ */
+public final class Compression
+{
+    /* handshake feature bit */
+    static final int DEFLATE = 1;
+
+    /* samples of SAMPLE_RUN bytes at SAMPLE_RUNS places in a frame; data
+       whose bytes look more random than MAX_ENTROPY bits each is sent as
+       it is */
+    private static final int SAMPLE_RUNS = 16;
+    private static final int SAMPLE_RUN = 64;
+    private static final double MAX_ENTROPY = 7.0;
+
+    private static volatile boolean enabled = Boolean.getBoolean("rmi.compression");
+    private static volatile int threshold =
+        Integer.getInteger("rmi.compression.threshold", 4096);
+    private static final int MAX_INFLATED_SIZE =
+        Integer.getInteger("rmi.compression.maxInflatedSize", WireProtocol.MAX_FRAME_SIZE);
+
+    /* one codec per thread, since frames are compressed by the threads
+       sending them */
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private Compression() {
+    }
+
+    /** Sets whether connections opened from now on offer or accept
+        compression. */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Sets the size from which frames are compressed.
+
+        @param bytes The smallest frame payload to compress.
+        @throws IllegalArgumentException If <code>bytes</code> is not
+                                         positive.
+     */
+    public static void setThreshold(int bytes) {
+        if (bytes < 1) {
+            throw new IllegalArgumentException("threshold must be positive");
+        }
+        threshold = bytes;
+    }
+
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    /* The features to offer or accept in a handshake. */
+    static int features() {
+        return enabled ? DEFLATE : 0;
+    }
+
+    /* Estimates from the order-0 entropy of samples spread over the data
+       whether it is worth compressing. Compressed, encrypted and random data
+       have nearly eight bits of entropy per byte; text has five or less. */
+    static boolean looksCompressible(byte[] data, int length) {
+        int[] counts = new int[256];
+        int sampled = 0;
+        int runs = Math.min(SAMPLE_RUNS, Math.max(1, length / SAMPLE_RUN));
+        int stride = length / runs;
+        for (int run = 0; run < runs; run++) {
+            int start = run * stride;
+            int end = Math.min(length, start + SAMPLE_RUN);
+            for (int i = start; i < end; i++) {
+                counts[data[i] & 0xff]++;
+            }
+            sampled += end - start;
+        }
+
+        double entropy = 0;
+        for (int count : counts) {
+            if (count != 0) {
+                double p = (double) count / sampled;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2) < MAX_ENTROPY;
+    }
+
+    /* Compresses data into the output array. Returns the compressed length,
+       or -1 if it does not fit, in which case compression is not worth it. */
+    static int deflate(byte[] data, int length, byte[] output) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int written = 0;
+        while (!deflater.finished() && written < output.length) {
+            written += deflater.deflate(output, written, output.length - written);
+        }
+        return deflater.finished() ? written : -1;
+    }
+
+    /* Decompresses data that must expand to exactly the given length. */
+    static byte[] inflate(byte[] data, int length) throws IOException {
+        if (length > MAX_INFLATED_SIZE) {
+            throw new StreamCorruptedException("compressed frame of " + length
+                                               + " bytes exceeds the limit of " + MAX_INFLATED_SIZE);
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] output = new byte[length];
+        try {
+            int read = 0;
+            while (read < length && !inflater.finished()) {
+                int n = inflater.inflate(output, read, length - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if (read != length || !inflater.finished()) {
+                throw new StreamCorruptedException("compressed frame has the wrong length");
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("corrupt compressed frame: " + e.getMessage());
+        }
+        return output;
+    }
+}
@@ -0,0 +1,578 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/** Pool of persistent connections to a single skeleton.
+
+    <p>
+    All stubs carrying the same remote address and interface share one pool.
+    Connections are multiplexed: every call is tagged with a request ID and
+    written without waiting for earlier replies, so calls made by many threads
+    share one TCP connection and its negotiated protocol state, and replies may
+    arrive in any order. The skeleton runs the calls concurrently.
+
+    <p>
+    A call goes to the open connection with the fewest outstanding calls.
+    Another connection is opened only when every open connection already has
+    <code>getMaxPendingPerConnection()</code> calls outstanding, and at most
+    <code>getMaxConnectionsPerEndpoint()</code> connections are open to any one
+    address; beyond that, calls share the existing connections. Connections
+    with no outstanding calls for longer than <code>getIdleTimeout()</code>
+    milliseconds are closed by a background daemon thread. The limits can be
+    set with the <code>rmi.pool.maxConnections</code>,
+    <code>rmi.pool.maxPending</code> and <code>rmi.pool.idleTimeout</code>
+    system properties, or changed at run time.
+
+    <p>
+    A skeleton on this host that listens on a Unix domain socket names it when
+    the first connection is made. That connection is then replaced by one over
+    the local socket, and further connections use the local socket as well.
+    If the local socket cannot be reached, the pool goes back to TCP.
+
+    <p>
+    The pool also holds the results of methods marked {@link Cached}, for at
+    most <code>getMaxCachedResults()</code> distinct calls, set with the
+    <code>rmi.cache.maxEntries</code> system property or at run time. The
+    least recently used result is dropped first.
+
+    <p>
+    A pool that has had no open connection and no call for longer than the
+    idle timeout is dropped, with its metrics and cached results, so that
+    pools for skeletons that have gone away, such as those of unexported
+    listeners, do not accumulate. A later call starts a new pool.
+ */
+public class ConnectionPool {
+
+    private static final ConcurrentHashMap<Key, ConnectionPool> pools =
+        new ConcurrentHashMap<Key, ConnectionPool>();
+
+    private static volatile int maxConnections =
+        Integer.getInteger("rmi.pool.maxConnections", 128);
+    private static volatile int maxPending =
+        Integer.getInteger("rmi.pool.maxPending", 64);
+    private static volatile long idleTimeout =
+        Long.getLong("rmi.pool.idleTimeout", 30000L);
+    private static volatile int maxCachedResults =
+        Integer.getInteger("rmi.cache.maxEntries", 4096);
+
+    private static final long REAPER_PERIOD = 1000L;
+    private static ScheduledThreadPoolExecutor reaper = null;
+
+    private final Key key;
+    private final InetSocketAddress address;
+    private final MethodTable methodTable;
+    private final MetricsRecorder metrics;
+    private final ResultCache cache;
+    /* the skeleton's local socket, once it has been advertised and reached */
+    private volatile java.nio.file.Path localSocket = null;
+    /* open connections; guarded by this */
+    private final ArrayList<MultiplexedConnection> connections =
+        new ArrayList<MultiplexedConnection>();
+    /* the connection being opened outside the lock, if any; guarded by this.
+       It counts against the limit, and calls finding no open connection
+       wait for it */
+    private CompletableFuture<MultiplexedConnection> opening = null;
+    /* when a connection was last asked for, and whether the pool has been
+       dropped from pools; guarded by this */
+    private long lastSelected = System.currentTimeMillis();
+    private boolean retired = false;
+
+    private ConnectionPool(Key key, InetSocketAddress address, MethodTable methodTable) {
+        this.key = key;
+        this.address = address;
+        this.methodTable = methodTable;
+        this.metrics = new MetricsRecorder(methodTable);
+        this.cache = new ResultCache(methodTable);
+    }
+
+    /** Returns the pool shared by all stubs for the given interface that
+        connect to the given address. */
+    static ConnectionPool get(InetSocketAddress address, MethodTable methodTable) {
+        Key key = new Key(address, methodTable.getInterface());
+        ConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            ConnectionPool created = new ConnectionPool(key, address, methodTable);
+            pool = pools.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+                startReaper();
+            }
+        }
+        return pool;
+    }
+
+    /** Sets the maximum number of connections open to any one skeleton.
+
+        @param max The new limit, at least one.
+        @throws IllegalArgumentException If <code>max</code> is not positive.
+     */
+    public static void setMaxConnectionsPerEndpoint(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be positive");
+        }
+        maxConnections = max;
+    }
+
+    public static int getMaxConnectionsPerEndpoint() {
+        return maxConnections;
+    }
+
+    /** Sets the number of outstanding calls a connection carries before
+        another connection to the same skeleton is opened.
+
+        @param max The new limit, at least one.
+        @throws IllegalArgumentException If <code>max</code> is not positive.
+     */
+    public static void setMaxPendingPerConnection(int max) {
+        if (max < 1) {
+            throw new IllegalArgumentException("max must be positive");
+        }
+        maxPending = max;
+    }
+
+    public static int getMaxPendingPerConnection() {
+        return maxPending;
+    }
+
+    /** Sets the time after which an idle connection is closed.
+
+        @param millis Idle time in milliseconds. Zero closes connections as
+                      soon as the reaper finds them idle.
+        @throws IllegalArgumentException If <code>millis</code> is negative.
+     */
+    public static void setIdleTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("timeout must not be negative");
+        }
+        idleTimeout = millis;
+    }
+
+    public static long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /** Sets the number of results of {@link Cached} methods kept for each
+        remote address and interface.
+
+        @param max The new limit. Zero disables caching.
+        @throws IllegalArgumentException If <code>max</code> is negative.
+     */
+    public static void setMaxCachedResults(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("max must not be negative");
+        }
+        maxCachedResults = max;
+    }
+
+    public static int getMaxCachedResults() {
+        return maxCachedResults;
+    }
+
+    /** Performs one call and waits for its result.
+
+        <p>
+        A skeleton that stops reading a connection (for example because it
+        was stopped) first tells the stub the last call it read. Calls sent
+        after that one were never run, and are retried on another connection.
+        Any other failure of the connection is reported to the caller, since
+        the call may already have run, as is a call that exceeds its time
+        limits.
+
+        <p>
+        Calls of {@link Cached} methods are answered from the cache when
+        possible, and are then neither sent nor counted in the metrics.
+     */
+    myObject call(final int id, final Object[] args, Timeouts timeouts) throws IOException {
+        boolean cached = cache.caches(id);
+        int generation = 0;
+        if (cached) {
+            Object value = cache.get(id, args);
+            if (value != ResultCache.NONE) {
+                return new myObject(value, false);
+            }
+            generation = cache.generation();
+        }
+
+        long started = System.nanoTime();
+        boolean failed = true;
+        try {
+            Object value = await(new Request() {
+                public CompletableFuture<Object> send(MultiplexedConnection connection, long budget) {
+                    return connection.call(id, args, budget);
+                }
+            }, timeouts);
+            failed = false;
+            if (cached) {
+                cache.put(id, args, generation, value);
+            }
+            return new myObject(resolve(value, timeouts), false);
+        } catch (ExecutionException e) {
+            return new myObject(e.getCause(), true);
+        } finally {
+            metrics.call(id, System.nanoTime() - started, failed);
+        }
+    }
+
+    /** Performs a batch of calls in one round trip and waits for their
+        results. The skeleton runs the calls in order. The batch is retried
+        as a whole under the same conditions as a single call, and its time
+        limits apply to the batch as a whole. */
+    myObject[] batch(Method[] methods, final Object[][] args, Timeouts timeouts) throws IOException {
+        final int[] ids = new int[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            ids[i] = idOf(methods[i]);
+        }
+        long started = System.nanoTime();
+        try {
+            myObject[] results = (myObject[]) await(new Request() {
+                public CompletableFuture<Object> send(MultiplexedConnection connection, long budget) {
+                    return connection.batch(ids, args, budget);
+                }
+            }, timeouts);
+            /* each call is charged the time of the whole round trip */
+            long elapsed = System.nanoTime() - started;
+            for (int i = 0; i < results.length; i++) {
+                metrics.call(ids[i], elapsed, results[i].getExceptionStatus());
+                if (!results[i].getExceptionStatus()) {
+                    results[i] = new myObject(resolve(results[i].getObject(), timeouts), false);
+                }
+            }
+            return results;
+        } catch (ExecutionException e) {
+            /* a batch reply never carries a single exception */
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private int idOf(Method method) {
+        int id = methodTable.idOf(method);
+        if (id < 0) {
+            throw new IllegalArgumentException(method + " is not a remote method");
+        }
+        return id;
+    }
+
+    /* Turns the first chunk of a remote iterator into an iterator reading
+       the rest from the skeleton. Other values are returned as they are. */
+    private Object resolve(Object value, Timeouts timeouts) {
+        if (value instanceof Cursors.Chunk) {
+            return new StreamedIterator<Object>(this, (Cursors.Chunk) value, timeouts);
+        }
+        return value;
+    }
+
+    /* Sends a request on one of the pool's connections. */
+    private interface Request {
+        /* returns null if the connection has been closed */
+        CompletableFuture<Object> send(MultiplexedConnection connection, long budget);
+    }
+
+    /* Sends a request and waits for its reply, retrying requests the
+       skeleton never read. An exception thrown by the remote method is
+       reported as an ExecutionException, and an exceeded time limit as a
+       SocketTimeoutException. */
+    private Object await(Request request, Timeouts timeouts) throws IOException, ExecutionException {
+        Timeouts.Clock clock = timeouts.start();
+        while (true) {
+            MultiplexedConnection connection = select(clock.connectTimeout());
+            long budget = clock.replyTimeout();
+            CompletableFuture<Object> result = request.send(connection, budget);
+            if (result == null) {
+                continue;
+            }
+
+            try {
+                return budget == 0 ? result.get() : result.get(budget, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof MultiplexedConnection.ConnectionLost) {
+                    if (((MultiplexedConnection.ConnectionLost) cause).neverRead()) {
+                        continue;
+                    }
+                    throw (IOException) cause.getCause();
+                }
+                throw e;
+            } catch (TimeoutException e) {
+                connection.abandon(result);
+                throw clock.expired(budget);
+            } catch (InterruptedException e) {
+                connection.abandon(result);
+                throw new InterruptedIOException("interrupted waiting for a reply");
+            }
+        }
+    }
+
+    /** Starts one call and returns a future for its result, without waiting.
+        Used by asynchronous stubs. A call that gets no reply within its time
+        limits completes exceptionally with a
+        <code>SocketTimeoutException</code>. */
+    CompletableFuture<Object> submit(final int methodId, Object[] args, final Timeouts timeouts)
+        throws IOException {
+        final long started = System.nanoTime();
+        final Timeouts.Clock clock = timeouts.start();
+        while (true) {
+            final MultiplexedConnection connection = select(clock.connectTimeout());
+            final long budget = clock.replyTimeout();
+            final CompletableFuture<Object> result = connection.call(methodId, args, budget);
+            if (result == null) {
+                continue;
+            }
+
+            final ScheduledFuture<?> timer = budget == 0 ? null : expiry().schedule(new Runnable() {
+                public void run() {
+                    if (result.completeExceptionally(clock.expired(budget))) {
+                        connection.abandon(result);
+                    }
+                }
+            }, budget, TimeUnit.MILLISECONDS);
+            result.whenComplete(new BiConsumer<Object, Throwable>() {
+                public void accept(Object value, Throwable failure) {
+                    if (timer != null) {
+                        timer.cancel(false);
+                    }
+                    metrics.call(methodId, System.nanoTime() - started, failure != null);
+                }
+            });
+            if (methodId < 0) {
+                /* chunks fetched by a remote iterator go to the iterator */
+                return result;
+            }
+            return result.thenApply(new java.util.function.Function<Object, Object>() {
+                public Object apply(Object value) {
+                    return resolve(value, timeouts);
+                }
+            });
+        }
+    }
+
+    /** Returns a snapshot of the calls made through this pool. */
+    CallMetrics metrics() {
+        int open = 0;
+        synchronized (this) {
+            for (MultiplexedConnection connection : connections) {
+                if (!connection.isClosed()) {
+                    open++;
+                }
+            }
+        }
+        return metrics.snapshot(open);
+    }
+
+    /* Drops the cached results of calls through this pool. */
+    void invalidateCache() {
+        cache.clear();
+    }
+
+    /* The number of results currently cached. */
+    int cachedResults() {
+        return cache.size();
+    }
+
+    /* Returns the local socket new connections are opened over, or null if
+       they use TCP. */
+    java.nio.file.Path localSocket() {
+        return localSocket;
+    }
+
+    /* Picks the least loaded open connection, opening a new one if there is
+       none or if all are busy and the limit allows. The connection is opened
+       without holding the pool's lock, so calls that can use an open
+       connection are not held up by a slow connect; while one is being
+       opened, calls use the open connections, or wait for it if there are
+       none. */
+    private MultiplexedConnection select(int connectTimeout) throws IOException {
+        CompletableFuture<MultiplexedConnection> opened = null;
+        boolean reserved = false;
+        ConnectionPool live = this;
+        synchronized (this) {
+            lastSelected = System.currentTimeMillis();
+            if (retired) {
+                live = revive();
+            }
+            if (live == this) {
+                MultiplexedConnection best = null;
+                Iterator<MultiplexedConnection> iterator = connections.iterator();
+                while (iterator.hasNext()) {
+                    MultiplexedConnection connection = iterator.next();
+                    if (connection.isClosed()) {
+                        iterator.remove();
+                    } else if (best == null || connection.pending() < best.pending()) {
+                        best = connection;
+                    }
+                }
+
+                if (best != null
+                    && (best.pending() < maxPending || opening != null
+                        || connections.size() >= maxConnections)) {
+                    return best;
+                }
+                if (opening == null) {
+                    opening = new CompletableFuture<MultiplexedConnection>();
+                    reserved = true;
+                }
+                opened = opening;
+            }
+        }
+        if (live != this) {
+            return live.select(connectTimeout);
+        }
+        return reserved ? openReserved(opened, connectTimeout) : awaitOpen(opened, connectTimeout);
+    }
+
+    /* Registers a dropped pool again, for a caller that still held it, such
+       as a remote iterator, and returns it; or returns the pool registered
+       meanwhile, to which connections are then left. Called holding the
+       lock. */
+    private ConnectionPool revive() {
+        ConnectionPool live = pools.putIfAbsent(key, this);
+        if (live != null) {
+            return live;
+        }
+        retired = false;
+        startReaper();
+        return this;
+    }
+
+    /* Opens the connection reserved by select() and publishes it to the
+       pool and to the calls waiting for it. */
+    private MultiplexedConnection openReserved(CompletableFuture<MultiplexedConnection> opened,
+                                               int connectTimeout) throws IOException {
+        MultiplexedConnection connection;
+        try {
+            connection = open(connectTimeout);
+        } catch (Throwable e) {
+            synchronized (this) {
+                opening = null;
+            }
+            opened.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            opening = null;
+            connections.add(connection);
+        }
+        opened.complete(connection);
+        return connection;
+    }
+
+    /* Waits for the connection another call is opening, failing as it did. */
+    private static MultiplexedConnection awaitOpen(CompletableFuture<MultiplexedConnection> opened,
+                                                   int connectTimeout) throws IOException {
+        try {
+            return connectTimeout == 0 ? opened.get() : opened.get(connectTimeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException("connect timed out");
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted waiting for a connection");
+        }
+    }
+
+    /* Opens a connection over the skeleton's local socket if there is one on
+       this host, and over TCP otherwise. */
+    private MultiplexedConnection open(int connectTimeout) throws IOException {
+        if (localSocket != null) {
+            try {
+                return new MultiplexedConnection(localSocket, methodTable, metrics, cache);
+            } catch (IOException e) {
+                localSocket = null;
+            }
+        }
+
+        MultiplexedConnection connection =
+            new MultiplexedConnection(address, methodTable, metrics, cache, connectTimeout);
+        java.nio.file.Path advertised = connection.localSocket();
+        if (advertised != null && LocalSkeletons.isLocal(address.getAddress())) {
+            try {
+                MultiplexedConnection local = new MultiplexedConnection(advertised, methodTable, metrics, cache);
+                localSocket = advertised;
+                connection.close();
+                return local;
+            } catch (IOException e) {
+                /* the socket is on another host after all, or is gone */
+            }
+        }
+        return connection;
+    }
+
+    /* Closes connections that have had no calls for longer than the
+       timeout, and drops the pool once it has had no connection and no call
+       for as long. */
+    private synchronized void evictIdle(long now) {
+        Iterator<MultiplexedConnection> iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            MultiplexedConnection connection = iterator.next();
+            if (connection.closeIfIdle(now, idleTimeout) || connection.isClosed()) {
+                iterator.remove();
+            }
+        }
+        if (connections.isEmpty() && opening == null && now - lastSelected >= idleTimeout) {
+            retired = true;
+            pools.remove(key, this);
+        }
+    }
+
+    /* The reaper thread also fails asynchronous calls whose time is up. */
+    private static synchronized ScheduledExecutorService expiry() {
+        startReaper();
+        return reaper;
+    }
+
+    private static synchronized void startReaper() {
+        if (reaper != null) {
+            return;
+        }
+        reaper = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "rmi-connection-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        /* timers of calls that completed in time are dropped at once */
+        reaper.setRemoveOnCancelPolicy(true);
+        reaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (ConnectionPool pool : pools.values()) {
+                    pool.evictIdle(now);
+                }
+            }
+        }, REAPER_PERIOD, REAPER_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /* Pools are per address and interface, since method IDs are negotiated
+       for one interface when a connection is opened. */
+    private static class Key {
+        private final InetSocketAddress address;
+        private final Class<?> remoteInterface;
+
+        Key(InetSocketAddress address, Class<?> remoteInterface) {
+            this.address = address;
+            this.remoteInterface = remoteInterface;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return address.equals(key.address) && remoteInterface == key.remoteInterface;
+        }
+
+        public int hashCode() {
+            return address.hashCode() * 31 + remoteInterface.hashCode();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package rmi;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Remote iterators returned by a skeleton's server and still being read.
+ *
+ * Each iterator is kept under a cursor ID and sent a chunk at a time. A chunk
+ * is produced only when a stub fetches it; the cursor is dropped when the
+ * iterator is exhausted, when the stub closes it, when it has not been read
+ * for the idle timeout, or when the skeleton stops. Idle cursors are looked
+ * for whenever a new one is opened.
+ */
+final class Cursors {
+
+    private static final long IDLE_TIMEOUT =
+        Long.getLong("rmi.iterator.idleTimeout", 60000L) * 1000000L;
+
+    private final ConcurrentHashMap<Long, Cursor> open = new ConcurrentHashMap<Long, Cursor>();
+    /* starts at random so that a restarted skeleton does not take the IDs of
+       cursors its stubs still hold */
+    private final AtomicLong nextId = new AtomicLong(ThreadLocalRandom.current().nextLong());
+
+    /* Keeps an iterator and returns its first chunk. */
+    Chunk open(RemoteIterator<?> iterator, int chunkSize) throws Exception {
+        long now = System.nanoTime();
+        Iterator<Cursor> cursors = open.values().iterator();
+        while (cursors.hasNext()) {
+            Cursor cursor = cursors.next();
+            if (now - cursor.lastUsed > IDLE_TIMEOUT) {
+                cursors.remove();
+                cursor.iterator.close();
+            }
+        }
+
+        long id = nextId.incrementAndGet();
+        if (id == 0) {
+            /* zero marks the last chunk */
+            id = nextId.incrementAndGet();
+        }
+        Cursor cursor = new Cursor(iterator);
+        open.put(id, cursor);
+        return fetch(id, chunkSize);
+    }
+
+    /* Returns the next chunk of a cursor. */
+    Chunk fetch(long id, int chunkSize) throws Exception {
+        Cursor cursor = open.get(id);
+        if (cursor == null) {
+            throw new RMIException("remote iterator has been closed");
+        }
+        synchronized (cursor) {
+            cursor.lastUsed = System.nanoTime();
+            ArrayList<Object> values = new ArrayList<Object>(Math.min(chunkSize, 1024));
+            boolean more;
+            try {
+                while ((more = cursor.iterator.hasNext()) && values.size() < chunkSize) {
+                    values.add(cursor.iterator.next());
+                }
+            } catch (Exception e) {
+                close(id);
+                throw e;
+            }
+            if (!more) {
+                close(id);
+            }
+            return new Chunk(more ? id : 0, values.toArray(), more);
+        }
+    }
+
+    void close(long id) {
+        Cursor cursor = open.remove(id);
+        if (cursor != null) {
+            cursor.iterator.close();
+        }
+    }
+
+    void closeAll() {
+        for (Long id : open.keySet()) {
+            close(id);
+        }
+    }
+
+    int size() {
+        return open.size();
+    }
+
+    private static final class Cursor {
+        final RemoteIterator<?> iterator;
+        volatile long lastUsed = System.nanoTime();
+
+        Cursor(RemoteIterator<?> iterator) {
+            this.iterator = iterator;
+        }
+    }
+
+    /* One chunk of values as sent to a stub: the cursor to fetch the next
+       one from, the values, and whether there are more. */
+    static final class Chunk {
+        final long cursor;
+        final Object[] values;
+        final boolean more;
+
+        Chunk(long cursor, Object[] values, boolean more) {
+            this.cursor = cursor;
+            this.values = values;
+            this.more = more;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package rmi;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+/* Finds the classes build.StubGenerator made for a remote interface.
+ *
+ * The stub class for an interface p.I is p.I_Stub, and its dispatcher is
+ * p.I_Skeleton; for an interface I nested in a class p.C they are p.C$I_Stub
+ * and p.C$I_Skeleton, named after the binary name. Each lists the signatures of the interface's methods, in
+ * method ID order, in a static SIGNATURES field. A class whose list differs
+ * from the interface's method table was generated from another version of
+ * the interface, and is not used.
+ */
+final class GeneratedClasses {
+
+    private static final ClassValue<Constructor<?>> stubs = new ClassValue<Constructor<?>>() {
+        protected Constructor<?> computeValue(Class<?> c) {
+            Class<?> generated = find(c, "_Stub", MethodTable.of(c));
+            if (generated == null || !GeneratedStub.class.isAssignableFrom(generated)) {
+                return null;
+            }
+            try {
+                return generated.getConstructor(MyInvocationHandler.class);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    };
+
+    private GeneratedClasses() {
+    }
+
+    /* Returns a generated stub for the interface, or null if it has no
+       usable generated stub class. The class is looked up once. */
+    static GeneratedStub stub(Class<?> c, MyInvocationHandler handler) {
+        Constructor<?> constructor = stubs.get(c);
+        if (constructor == null) {
+            return null;
+        }
+        try {
+            return (GeneratedStub) constructor.newInstance(handler);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /* Returns the generated dispatcher for the interface of a method table,
+       or null. Called once, as the table is built. */
+    static GeneratedSkeleton skeleton(MethodTable table) {
+        Class<?> generated = find(table.getInterface(), "_Skeleton", table);
+        if (generated == null || !GeneratedSkeleton.class.isAssignableFrom(generated)) {
+            return null;
+        }
+        try {
+            return (GeneratedSkeleton) generated.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /* Loads the generated class with the given suffix, if it exists and
+       matches the method table. */
+    private static Class<?> find(Class<?> c, String suffix, MethodTable table) {
+        try {
+            Class<?> generated = Class.forName(c.getName() + suffix, true, c.getClassLoader());
+            Field field = generated.getField("SIGNATURES");
+            if (!Arrays.equals((String[]) field.get(null), table.signatures())) {
+                return null;
+            }
+            return generated;
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            return null;
+        }
+    }
+}
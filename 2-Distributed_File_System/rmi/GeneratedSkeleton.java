@@ -0,0 +1,25 @@
+package rmi;
+
+/** Dispatcher generated at build time for the skeletons of one remote
+    interface.
+
+    <p>
+    A skeleton whose interface has a generated dispatcher runs each call by
+    switching on the method ID and calling the server object directly,
+    instead of through a method handle. Classes of this kind are written by
+    <code>build.StubGenerator</code>, and are not meant to be written by hand.
+ */
+public interface GeneratedSkeleton
+{
+    /** Calls a method of a server object.
+
+        @param methodId The ID of the method in its interface's method table.
+        @param server The server object.
+        @param args The arguments of the call, boxed if primitive.
+        @return The result of the method, boxed if it is primitive, or
+                <code>null</code> for <code>void</code> methods.
+        @throws Throwable Whatever the method throws.
+     */
+    public Object invoke(int methodId, Object server, Object[] args)
+        throws Throwable;
+}
@@ -0,0 +1,65 @@
+package rmi;
+
+import java.io.Serializable;
+
+/** Base class of stub classes generated at build time.
+
+    <p>
+    A generated stub class implements one remote interface. Each of its
+    methods passes its method ID and arguments to <code>call</code> and casts
+    the result, so that no dynamic proxy or method lookup is involved in a
+    call. Stubs are otherwise the same as those made with dynamic proxies:
+    they are equal to any stub for the same interface and address, and can be
+    given to <code>Stub.withTimeouts</code>, <code>Stub.metrics</code>,
+    <code>AsyncStub</code> and <code>Batch</code>.
+
+    <p>
+    Classes of this kind are written by <code>build.StubGenerator</code>, and
+    are not meant to be written by hand.
+ */
+public abstract class GeneratedStub implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final MyInvocationHandler handler;
+
+    /** Creates a stub calling through the given handler. */
+    protected GeneratedStub(MyInvocationHandler handler) {
+        if (handler == null) {
+            throw new NullPointerException();
+        }
+        this.handler = handler;
+    }
+
+    /** Calls a remote method.
+
+        @param methodId The ID of the method in its interface's method table.
+        @param args The arguments of the call.
+        @return The result of the method, boxed if it is primitive.
+        @throws Exception The exception thrown by the remote method, or an
+                          <code>RMIException</code> if the call could not be
+                          completed.
+     */
+    protected final Object call(int methodId, Object[] args) throws Exception {
+        return handler.call(methodId, args);
+    }
+
+    MyInvocationHandler handler() {
+        return handler;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return handler.sameSkeleton(Stub.handlerOf(other));
+    }
+
+    @Override
+    public int hashCode() {
+        return handler.stubHashCode();
+    }
+
+    @Override
+    public String toString() {
+        return handler.describe();
+    }
+}
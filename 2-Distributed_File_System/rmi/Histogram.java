@@ -0,0 +1,73 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Histogram of durations in nanoseconds, with log-linear buckets in the
+ * manner of HdrHistogram.
+ *
+ * Values below 2^SUB_BITS have a bucket each. Above that, every power of two
+ * is split into 2^SUB_BITS equal buckets, so a recorded value is known to
+ * within about 3% whatever its size, and the whole range of a long fits in a
+ * fixed array. Recording increments a bucket, adds to the sum and raises the
+ * maximum; it allocates nothing and may run concurrently with other
+ * recordings and with snapshots.
+ */
+final class Histogram {
+
+    static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) {
+            /* nanoTime is monotonic, but be safe */
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        sum.addAndGet(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /* Returns the bucket holding the given non-negative value. */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /* Returns the largest value that falls in the given bucket. */
+    static long highestValue(int index) {
+        int group = index >>> SUB_BITS;
+        int sub = index & (SUB_BUCKETS - 1);
+        if (group == 0) {
+            return sub;
+        }
+        long lowest = (long) (SUB_BUCKETS + sub) << (group - 1);
+        return lowest + (1L << (group - 1)) - 1;
+    }
+
+    /* Copies the histogram. Buckets are read one at a time, so a snapshot
+       taken while calls are being recorded may include only some of them. */
+    LatencyDistribution snapshot() {
+        long[] copy = new long[BUCKETS];
+        int used = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            if (copy[i] != 0) {
+                used = i + 1;
+            }
+        }
+        return new LatencyDistribution(copy, used, sum.get(), max.get());
+    }
+}
@@ -0,0 +1,23 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Names the lane in which a skeleton runs calls of a remote method.
+
+    <p>
+    A skeleton runs the calls of each lane on the executor given for that
+    lane with <code>Skeleton.setExecutor(String, ExecutorService)</code>, and
+    calls of methods in no lane, or in a lane without an executor, on its
+    default executor. Methods that may block for a long time can so be kept
+    from occupying the workers of methods that return at once. A server may
+    also place methods in lanes with <code>Skeleton.setLane</code>, which
+    takes precedence over this annotation.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Lane
+{
+    /** The name of the lane. */
+    String value();
+}
@@ -0,0 +1,96 @@
+package rmi;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/** Snapshot of a distribution of call durations.
+
+    <p>
+    Durations are in nanoseconds. They are recorded in buckets whose width is
+    about 3% of the values they hold, so percentiles are reported as the
+    largest value of the bucket in which they fall, and may overstate the
+    exact value by that much. The count, mean and maximum are exact.
+ */
+public class LatencyDistribution implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* bucket counts, up to the last non-empty bucket */
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    LatencyDistribution(long[] counts, int used, long sum, long max) {
+        this.counts = Arrays.copyOf(counts, used);
+        long count = 0;
+        for (int i = 0; i < used; i++) {
+            count += counts[i];
+        }
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    /** Returns the number of durations recorded. */
+    public long getCount() {
+        return count;
+    }
+
+    /** Returns the mean duration, or zero if none were recorded. */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /** Returns the longest duration recorded, or zero if none were. */
+    public long getMax() {
+        return max;
+    }
+
+    public long getMedian() {
+        return percentile(50);
+    }
+
+    public long get90thPercentile() {
+        return percentile(90);
+    }
+
+    public long get99thPercentile() {
+        return percentile(99);
+    }
+
+    /** Returns the duration that the given percentage of recorded durations
+        did not exceed.
+
+        @param percent Percentage between 0 and 100.
+        @return The duration, or zero if none were recorded.
+        @throws IllegalArgumentException If <code>percent</code> is out of
+                                         range.
+     */
+    public long percentile(double percent) {
+        if (!(percent >= 0 && percent <= 100)) {
+            throw new IllegalArgumentException("percent must be between 0 and 100");
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(Histogram.highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    public String toString() {
+        return "count: " + count
+            + ", mean: " + Math.round(getMean()) + " ns"
+            + ", median: " + getMedian() + " ns"
+            + ", 99th percentile: " + get99thPercentile() + " ns"
+            + ", max: " + max + " ns";
+    }
+}
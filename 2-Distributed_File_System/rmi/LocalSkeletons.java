@@ -0,0 +1,71 @@
+package rmi;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* The skeletons running in this JVM, by port.
+ *
+ * Skeletons listen on the wildcard address, so a skeleton serves its port on
+ * every address of this host, and no two running skeletons share a port. A
+ * stub whose address is one of this host's addresses, on the port of a
+ * running skeleton for the stub's interface, can call that skeleton's server
+ * directly. Whether an address belongs to this host is worked out once per
+ * address.
+ */
+final class LocalSkeletons {
+
+    private static final ConcurrentHashMap<Integer, Skeleton<?>> skeletons =
+        new ConcurrentHashMap<Integer, Skeleton<?>>();
+    private static final ConcurrentHashMap<InetAddress, Boolean> local =
+        new ConcurrentHashMap<InetAddress, Boolean>();
+
+    private LocalSkeletons() {
+    }
+
+    static void register(Skeleton<?> skeleton) {
+        skeletons.put(skeleton.getPort(), skeleton);
+    }
+
+    static void unregister(Skeleton<?> skeleton) {
+        skeletons.remove(skeleton.getPort(), skeleton);
+    }
+
+    /* Returns the running skeleton in this JVM serving the given interface at
+       the given address, or null if calls must go over the network. */
+    static Skeleton<?> find(InetSocketAddress address, Class<?> remoteInterface) {
+        if (skeletons.isEmpty()) {
+            return null;
+        }
+        Skeleton<?> skeleton = skeletons.get(address.getPort());
+        if (skeleton == null
+            || skeleton.getServerClass() != remoteInterface
+            || !skeleton.isLocalCallable()
+            || !isLocal(address.getAddress())) {
+            return null;
+        }
+        return skeleton;
+    }
+
+    /* Returns whether an address is one of this host's. */
+    static boolean isLocal(InetAddress address) {
+        if (address == null) {
+            return false;
+        }
+        Boolean known = local.get(address);
+        if (known == null) {
+            boolean mine;
+            try {
+                mine = address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+            } catch (SocketException e) {
+                mine = false;
+            }
+            known = Boolean.valueOf(mine);
+            local.put(address, known);
+        }
+        return known.booleanValue();
+    }
+}
@@ -0,0 +1,50 @@
+package rmi;
+
+import java.io.Serializable;
+
+/** Snapshot of the calls made to one method of a remote interface.
+
+    <p>
+    Part of a <code>CallMetrics</code> snapshot. A call counts as an error if
+    it ended by throwing an exception, whether thrown by the remote method or
+    raised by the RMI layer.
+ */
+public class MethodMetrics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final long errors;
+    private final LatencyDistribution latency;
+
+    MethodMetrics(String name, long errors, LatencyDistribution latency) {
+        this.name = name;
+        this.errors = errors;
+        this.latency = latency;
+    }
+
+    /** Returns the method name followed by its parameter types, such as
+        <code>list(Path)</code>. */
+    public String getName() {
+        return name;
+    }
+
+    /** Returns the number of calls completed. */
+    public long getCalls() {
+        return latency.getCount();
+    }
+
+    /** Returns the number of calls that ended by throwing an exception. */
+    public long getErrors() {
+        return errors;
+    }
+
+    /** Returns the distribution of the durations of completed calls. */
+    public LatencyDistribution getLatency() {
+        return latency;
+    }
+
+    public String toString() {
+        return name + ": errors: " + errors + ", " + latency;
+    }
+}
@@ -0,0 +1,236 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/* Numbering of the methods of a remote interface.
+ *
+ * Methods are sorted by their signature (name, parameter types and return
+ * type) and numbered in that order, so a stub and a skeleton built from the
+ * same interface agree on every method ID without exchanging names. The
+ * fingerprint hashes the interface name and all signatures; it is compared
+ * during the connection handshake so that IDs are never interpreted against
+ * a different version of the interface.
+ *
+ * Tables are built once per interface and shared by every stub and skeleton
+ * for it. Each method is also pre-bound to a MethodHandle taking the target
+ * and an argument array, so that the skeleton dispatches a call without any
+ * reflective lookup or access check. If build.StubGenerator has generated a
+ * dispatcher for the interface, which numbers the methods in the same way,
+ * calls are run by that instead.
+ */
+final class MethodTable {
+
+    private static final ClassValue<MethodTable> tables = new ClassValue<MethodTable>() {
+        protected MethodTable computeValue(Class<?> c) {
+            return new MethodTable(c);
+        }
+    };
+
+    private static final ClassValue<Boolean> remote = new ClassValue<Boolean>() {
+        protected Boolean computeValue(Class<?> c) {
+            return checkRemoteInterface(c);
+        }
+    };
+
+    /* shape every handle is adapted to: (target, arguments) -> result */
+    private static final MethodType DISPATCH_TYPE =
+        MethodType.methodType(Object.class, Object.class, Object[].class);
+
+    private final Class<?> remoteInterface;
+    private final Method[] methods;
+    /* null where the method could not be bound; Method.invoke is used instead */
+    private final MethodHandle[] handles;
+    /* whether calls within one JVM copy the arguments and result */
+    private final boolean[] byValue;
+    /* dispatcher generated at build time, used instead of the handles */
+    private final GeneratedSkeleton dispatcher;
+    private final HashMap<Method, Integer> ids = new HashMap<Method, Integer>();
+    private final long fingerprint;
+
+    private MethodTable(Class<?> remoteInterface) {
+        this.remoteInterface = remoteInterface;
+
+        Method[] all = remoteInterface.getMethods();
+        Arrays.sort(all, new Comparator<Method>() {
+            public int compare(Method m1, Method m2) {
+                return signature(m1).compareTo(signature(m2));
+            }
+        });
+
+        /* an interface may inherit the same method from two superinterfaces;
+           such duplicates share one ID */
+        ArrayList<Method> unique = new ArrayList<Method>();
+        String previous = null;
+        long hash = fnv(0xcbf29ce484222325L, remoteInterface.getName());
+        for (Method method : all) {
+            String signature = signature(method);
+            if (!signature.equals(previous)) {
+                unique.add(method);
+                hash = fnv(hash, signature);
+                previous = signature;
+            }
+            ids.put(method, unique.size() - 1);
+        }
+
+        this.methods = unique.toArray(new Method[unique.size()]);
+        this.fingerprint = hash;
+
+        this.handles = new MethodHandle[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            handles[i] = bind(methods[i]);
+        }
+
+        boolean wholeInterface = remoteInterface.isAnnotationPresent(PassByValue.class);
+        this.byValue = new boolean[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            byValue[i] = wholeInterface || methods[i].isAnnotationPresent(PassByValue.class)
+                || methods[i].getDeclaringClass().isAnnotationPresent(PassByValue.class);
+        }
+
+        this.dispatcher = GeneratedClasses.skeleton(this);
+    }
+
+    /* Returns the table for an interface, building it on first use. */
+    static MethodTable of(Class<?> remoteInterface) {
+        return tables.get(remoteInterface);
+    }
+
+    /* Returns whether c is an interface all of whose methods are declared to
+       throw RMIException. The answer is computed once per class. */
+    static boolean isRemoteInterface(Class<?> c) {
+        return remote.get(c).booleanValue();
+    }
+
+    Class<?> getInterface() {
+        return remoteInterface;
+    }
+
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    int size() {
+        return methods.length;
+    }
+
+    /* Returns the ID of a method of the interface, or -1. */
+    int idOf(Method method) {
+        Integer id = ids.get(method);
+        return id == null ? -1 : id.intValue();
+    }
+
+    /* Returns the method with the given ID, or null. */
+    Method method(int id) {
+        if (id < 0 || id >= methods.length) {
+            return null;
+        }
+        return methods[id];
+    }
+
+    /* Returns the signatures of the methods, in ID order. */
+    String[] signatures() {
+        String[] signatures = new String[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            signatures[i] = signature(methods[i]);
+        }
+        return signatures;
+    }
+
+    /* Returns whether calls are run by a dispatcher generated at build
+       time. */
+    boolean isGenerated() {
+        return dispatcher != null;
+    }
+
+    /* Returns whether the method with the given ID is marked PassByValue. */
+    boolean passByValue(int id) {
+        return byValue[id];
+    }
+
+    /* Calls the method with the given ID on the target. As with
+       Method.invoke, anything thrown by the method itself is wrapped in an
+       InvocationTargetException. */
+    Object invoke(int id, Object target, Object[] args)
+        throws IllegalAccessException, InvocationTargetException {
+        Method method = methods[id];
+        if (args.length != method.getParameterCount()) {
+            throw new IllegalArgumentException("wrong number of arguments");
+        }
+
+        if (dispatcher != null) {
+            try {
+                return dispatcher.invoke(id, target, args);
+            } catch (Throwable e) {
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        MethodHandle handle = handles[id];
+        if (handle == null) {
+            return method.invoke(target, args);
+        }
+        try {
+            return handle.invokeExact(target, args);
+        } catch (Throwable e) {
+            throw new InvocationTargetException(e);
+        }
+    }
+
+    static String signature(Method method) {
+        StringBuilder signature = new StringBuilder(method.getName()).append('(');
+        Class<?>[] parameters = method.getParameterTypes();
+        for (int i = 0; i < parameters.length; i++) {
+            if (i > 0) {
+                signature.append(',');
+            }
+            signature.append(parameters[i].getName());
+        }
+        return signature.append(')').append(method.getReturnType().getName()).toString();
+    }
+
+    private static MethodHandle bind(Method method) {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            /* methods of non-public interfaces need their access check
+               suppressed, as Method.invoke would otherwise refuse them too */
+            try {
+                method.setAccessible(true);
+                handle = MethodHandles.lookup().unreflect(method);
+            } catch (IllegalAccessException | RuntimeException e2) {
+                return null;
+            }
+        }
+        return handle.asSpreader(Object[].class, method.getParameterCount())
+                     .asType(DISPATCH_TYPE);
+    }
+
+    /* check if all the methods of an interface have thrown RMIException */
+    private static boolean checkRemoteInterface(Class<?> c) {
+        if (!c.isInterface()) {
+            return false;
+        }
+        for (Method method : c.getMethods()) {
+            if (!Arrays.asList(method.getExceptionTypes()).contains(RMIException.class)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* 64-bit FNV-1a, continued from the given hash */
+    private static long fnv(long hash, String text) {
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,86 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Counters behind CallMetrics, kept by every skeleton and connection pool.
+ *
+ * Methods are identified by their IDs in the method table, so recording a
+ * call indexes arrays instead of looking anything up, and allocates nothing.
+ */
+final class MetricsRecorder {
+
+    private final MethodTable methodTable;
+    private final Histogram[] latency;
+    private final AtomicLongArray errors;
+    private final Histogram queueTime = new Histogram();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    /* sizes of the frames sent or received compressed, before and after */
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+
+    MetricsRecorder(MethodTable methodTable) {
+        this.methodTable = methodTable;
+        this.latency = new Histogram[methodTable.size()];
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new Histogram();
+        }
+        this.errors = new AtomicLongArray(methodTable.size());
+    }
+
+    /* Records a completed call. Calls to unknown method IDs are not
+       recorded. */
+    void call(int id, long nanos, boolean failed) {
+        if (id < 0 || id >= latency.length) {
+            return;
+        }
+        latency[id].record(nanos);
+        if (failed) {
+            errors.incrementAndGet(id);
+        }
+    }
+
+    void queued(long nanos) {
+        queueTime.record(nanos);
+    }
+
+    void received(int bytes) {
+        bytesIn.add(bytes);
+    }
+
+    void sent(int bytes) {
+        bytesOut.add(bytes);
+    }
+
+    void compressed(int original, int wire) {
+        uncompressedBytes.add(original);
+        compressedBytes.add(wire);
+    }
+
+    CallMetrics snapshot(int activeConnections) {
+        LinkedHashMap<String, MethodMetrics> methods = new LinkedHashMap<String, MethodMetrics>();
+        for (int id = 0; id < latency.length; id++) {
+            String name = name(methodTable.method(id));
+            methods.put(name, new MethodMetrics(name, errors.get(id), latency[id].snapshot()));
+        }
+        return new CallMetrics(methods, bytesIn.sum(), bytesOut.sum(),
+                               uncompressedBytes.sum(), compressedBytes.sum(),
+                               activeConnections, queueTime.snapshot());
+    }
+
+    /* name(Path,long,int) */
+    private static String name(Method method) {
+        StringBuilder name = new StringBuilder(method.getName()).append('(');
+        Class<?>[] parameters = method.getParameterTypes();
+        for (int i = 0; i < parameters.length; i++) {
+            if (i > 0) {
+                name.append(',');
+            }
+            name.append(parameters[i].getSimpleName());
+        }
+        return name.append(')').toString();
+    }
+}
@@ -0,0 +1,413 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/* One persistent connection to a skeleton, opened with the protocol handshake
+ * and shared by any number of concurrent calls.
+ *
+ * Calls are written as soon as they are made, each tagged with a request ID
+ * higher than the last, and a reader thread completes the matching future
+ * when a reply arrives. Futures complete normally with the result, or
+ * exceptionally with the exception thrown by the remote method. A reply that
+ * cannot be decoded fails only its own call.
+ *
+ * If the connection fails, every outstanding call fails with ConnectionLost
+ * and the connection is closed. A call is only marked as never read if the
+ * skeleton said so, in a CLOSING frame naming the last call it read; the
+ * calls after it fail at once, and the connection takes no further calls,
+ * but stays open for the replies to the others.
+ *
+ * The connection is made over TCP, or over the Unix domain socket of a
+ * skeleton on the same host. The skeleton names its local socket, if it has
+ * one, in its answer to the handshake.
+ *
+ * Every reply carries the skeleton's cache generation, which is passed to the
+ * pool's result cache before the call is completed.
+ */
+final class MultiplexedConnection {
+
+    /* the TCP socket or the Unix domain socket channel */
+    private final Closeable socket;
+    /* the local socket advertised by the skeleton, or null */
+    private java.nio.file.Path localSocket = null;
+    /* whether both ends agreed to compress large frames */
+    private boolean compress = false;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    /* guards out and frame */
+    private final WireProtocol.FrameBuffer frame = new WireProtocol.FrameBuffer();
+    private final MetricsRecorder metrics;
+    private final ResultCache cache;
+
+    /* the request ID of the last call sent; guarded by frame, so that IDs
+       are sent in increasing order */
+    private int lastId = 0;
+    private final ConcurrentHashMap<Integer, CompletableFuture<Object>> pending =
+        new ConcurrentHashMap<Integer, CompletableFuture<Object>>();
+    /* whether the connection takes no further calls, and whether it has
+       been closed */
+    private volatile boolean closed = false;
+    private boolean failed = false;
+    /* the last call the skeleton read before it stopped reading, once it
+       has said so; any call may have been read until then */
+    private volatile int lastRead = Integer.MAX_VALUE;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    MultiplexedConnection(InetSocketAddress address, MethodTable methodTable,
+                          MetricsRecorder metrics, ResultCache cache, int connectTimeout)
+        throws IOException {
+        this.metrics = metrics;
+        this.cache = cache;
+        Socket tcp = new Socket();
+        socket = tcp;
+        try {
+            /* the timeout, zero for none, covers the handshake too */
+            tcp.connect(new InetSocketAddress(address.getHostName(), address.getPort()),
+                        connectTimeout);
+            tcp.setSoTimeout(connectTimeout);
+            tcp.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(tcp.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(tcp.getInputStream()));
+            handshake(methodTable);
+            tcp.setSoTimeout(0);
+        } catch (IOException e) {
+            tcp.close();
+            throw e;
+        }
+        startReader(address.toString());
+    }
+
+    /* Connects over a skeleton's Unix domain socket. Connecting to a local
+       socket does not wait, and the handshake is not timed. */
+    MultiplexedConnection(java.nio.file.Path path, MethodTable methodTable,
+                          MetricsRecorder metrics, ResultCache cache) throws IOException {
+        this.metrics = metrics;
+        this.cache = cache;
+        SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        socket = channel;
+        try {
+            channel.connect(UnixDomainSocketAddress.of(path));
+            out = new DataOutputStream(new BufferedOutputStream(ChannelStreams.output(channel)));
+            in = new DataInputStream(new BufferedInputStream(ChannelStreams.input(channel)));
+            handshake(methodTable);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        startReader(path.toString());
+    }
+
+    private void startReader(String peer) {
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readReplies();
+            }
+        }, "rmi-connection-reader-" + peer);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void handshake(MethodTable methodTable) throws IOException {
+        DataOutputStream hello = frame.start(WireProtocol.HELLO);
+        hello.writeInt(WireProtocol.MAGIC);
+        hello.writeByte(WireProtocol.VERSION);
+        hello.writeUTF(methodTable.getInterface().getName());
+        hello.writeLong(methodTable.fingerprint());
+        hello.writeByte(Compression.features());
+        frame.send(out);
+
+        DataInputStream reply = WireProtocol.readFrame(in);
+        byte type = reply.readByte();
+        if (type == WireProtocol.HELLO_REJECTED) {
+            throw new ProtocolException("skeleton rejected connection: " + reply.readUTF());
+        }
+        if (type != WireProtocol.HELLO_OK || reply.readByte() != WireProtocol.VERSION) {
+            throw new ProtocolException("unsupported skeleton protocol");
+        }
+        String advertised = reply.readUTF();
+        if (!advertised.isEmpty()) {
+            localSocket = java.nio.file.Paths.get(advertised);
+        }
+        compress = (reply.readByte() & Compression.DEFLATE) != 0;
+    }
+
+    /* Returns the Unix domain socket the skeleton advertised, or null. */
+    java.nio.file.Path localSocket() {
+        return localSocket;
+    }
+
+    /* Sends a call and returns a future for its result, or returns null if
+       the connection has been closed and another must be used. The future
+       completes on the reader thread. The budget is the number of
+       milliseconds the caller will wait for the reply, or zero. */
+    CompletableFuture<Object> call(final int methodId, final Object[] args, long budget) {
+        return send(WireProtocol.CALL, budget, new Body() {
+            public void write(DataOutputStream request) throws IOException {
+                writeCall(request, methodId, args);
+            }
+        });
+    }
+
+    /* Sends a batch of calls, to be run in order, and returns a future for
+       the array of their results (as myObjects), or returns null if the
+       connection has been closed. */
+    CompletableFuture<Object> batch(final int[] methodIds, final Object[][] args, long budget) {
+        return send(WireProtocol.BATCH, budget, new Body() {
+            public void write(DataOutputStream request) throws IOException {
+                request.writeInt(methodIds.length);
+                for (int i = 0; i < methodIds.length; i++) {
+                    writeCall(request, methodIds[i], args[i]);
+                }
+            }
+        });
+    }
+
+    private static void writeCall(DataOutputStream request, int methodId, Object[] args)
+        throws IOException {
+        request.writeShort(methodId);
+        int count = args == null ? 0 : args.length;
+        request.writeByte(count);
+        for (int i = 0; i < count; i++) {
+            WireProtocol.writeValue(request, args[i]);
+        }
+    }
+
+    /* Writes the part of a request frame following the request ID and
+       budget. */
+    private interface Body {
+        void write(DataOutputStream request) throws IOException;
+    }
+
+    private CompletableFuture<Object> send(byte type, long budget, Body body) {
+        CompletableFuture<Object> result = new CompletableFuture<Object>();
+        int requestId;
+
+        synchronized (frame) {
+            if (closed) {
+                return null;
+            }
+            requestId = ++lastId;
+            lastUsed = System.currentTimeMillis();
+            try {
+                DataOutputStream request = frame.start(type);
+                request.writeInt(requestId);
+                request.writeInt((int) Math.min(budget, Integer.MAX_VALUE));
+                body.write(request);
+                if (compress) {
+                    frame.compress(metrics);
+                }
+            } catch (IOException e) {
+                /* nothing was sent */
+                result.completeExceptionally(new RMIException("call could not be encoded", e));
+                return result;
+            }
+
+            pending.put(requestId, result);
+            try {
+                frame.send(out);
+                metrics.sent(frame.size() + 4);
+            } catch (IOException e) {
+                /* the skeleton may have read the calls sent before, or said
+                   in a frame not read yet which calls it read. The reader
+                   decides, once the skeleton has closed its end too */
+                closed = true;
+                shutdownOutput();
+            }
+        }
+
+        /* the reader may have failed the outstanding calls just before this
+           one was registered */
+        if (failed() && pending.remove(requestId) != null) {
+            result.completeExceptionally(lost(requestId, new IOException("connection closed")));
+        }
+        return result;
+    }
+
+    /* Tells the skeleton no further calls follow, so that it closes the
+       connection once it has answered the calls it read. */
+    private void shutdownOutput() {
+        try {
+            if (socket instanceof Socket) {
+                ((Socket) socket).shutdownOutput();
+            } else {
+                ((SocketChannel) socket).shutdownOutput();
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    /* Reads replies until the connection fails. A reply that cannot be
+       decoded fails only its own call; anything else the reader meets fails
+       the connection, so that no caller is left waiting on a reader that has
+       exited. */
+    private void readReplies() {
+        try {
+            while (true) {
+                DataInputStream reply = WireProtocol.readFrame(in);
+                metrics.received(reply.available() + 4);
+                reply = WireProtocol.expand(reply, metrics);
+                byte type = reply.readByte();
+                if (type == WireProtocol.CLOSING) {
+                    closing(reply.readInt());
+                    continue;
+                }
+                if (type != WireProtocol.RETURN && type != WireProtocol.THROW
+                    && type != WireProtocol.BATCH_RESULT) {
+                    throw new StreamCorruptedException("unexpected frame type " + type);
+                }
+                CompletableFuture<Object> result = pending.remove(reply.readInt());
+                cache.observe(reply.readInt());
+                if (result == null) {
+                    /* the caller gave up waiting for this reply */
+                    continue;
+                }
+                lastUsed = System.currentTimeMillis();
+
+                /* the frame is in memory, so a value that cannot be decoded
+                   leaves the following frames intact */
+                Object value;
+                try {
+                    value = type == WireProtocol.BATCH_RESULT ? readBatchResult(reply)
+                                                              : WireProtocol.readValue(reply);
+                } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                    result.completeExceptionally(new RMIException("undecodable reply", e));
+                    continue;
+                }
+
+                if (type == WireProtocol.THROW && !(value instanceof Throwable)) {
+                    result.completeExceptionally(new RMIException("thrown value is not a Throwable"));
+                } else if (type == WireProtocol.THROW) {
+                    result.completeExceptionally((Throwable) value);
+                } else {
+                    result.complete(value);
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (Throwable t) {
+            fail(new IOException("reply reader failed", t));
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+        }
+    }
+
+    private static myObject[] readBatchResult(DataInputStream reply)
+        throws IOException, ClassNotFoundException {
+        myObject[] results = new myObject[WireProtocol.readLength(reply)];
+        for (int i = 0; i < results.length; i++) {
+            boolean thrown = reply.readByte() == WireProtocol.THROW;
+            results[i] = new myObject(WireProtocol.readValue(reply), thrown);
+        }
+        return results;
+    }
+
+    /* Forgets a call whose caller has stopped waiting. Its reply, if one
+       ever arrives, is dropped. */
+    void abandon(CompletableFuture<Object> result) {
+        pending.values().remove(result);
+    }
+
+    /* Handles the skeleton's notice that it read no calls after the given
+       one: the calls after it fail as never read, and the connection takes
+       no further calls. It is closed once the other calls are answered. */
+    private void closing(int last) {
+        synchronized (frame) {
+            closed = true;
+            lastRead = last;
+        }
+        IOException cause = new IOException("skeleton stopped reading the connection");
+        Iterator<Map.Entry<Integer, CompletableFuture<Object>>> iterator =
+            pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, CompletableFuture<Object>> entry = iterator.next();
+            if (entry.getKey() > last) {
+                iterator.remove();
+                entry.getValue().completeExceptionally(lost(entry.getKey(), cause));
+            }
+        }
+        if (pending.isEmpty()) {
+            fail(cause);
+        }
+    }
+
+    /* Closes the connection and fails every outstanding call. */
+    private void fail(IOException cause) {
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            closed = true;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+
+        Iterator<Map.Entry<Integer, CompletableFuture<Object>>> iterator =
+            pending.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, CompletableFuture<Object>> entry = iterator.next();
+            iterator.remove();
+            entry.getValue().completeExceptionally(lost(entry.getKey(), cause));
+        }
+    }
+
+    private synchronized boolean failed() {
+        return failed;
+    }
+
+    private ConnectionLost lost(int requestId, IOException cause) {
+        return new ConnectionLost(cause, requestId > lastRead);
+    }
+
+    /* Closes the connection if it has had no outstanding calls for longer
+       than the timeout. Holding the write lock keeps calls from being
+       registered while the connection is judged idle. */
+    boolean closeIfIdle(long now, long idleTimeout) {
+        synchronized (frame) {
+            if (!pending.isEmpty() || now - lastUsed < idleTimeout) {
+                return false;
+            }
+            fail(new IOException("idle connection closed"));
+            return true;
+        }
+    }
+
+    /* Closes the connection, failing any outstanding calls. */
+    void close() {
+        fail(new IOException("connection closed"));
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int pending() {
+        return pending.size();
+    }
+
+    /* Failure of the connection rather than of the remote method. The cause
+       is the IOException that closed the connection. */
+    static class ConnectionLost extends RMIException {
+        private static final long serialVersionUID = 1L;
+        private final boolean neverRead;
+
+        ConnectionLost(IOException cause, boolean neverRead) {
+            super(cause);
+            this.neverRead = neverRead;
+        }
+
+        /* whether the skeleton said it never read the call, which may then
+           be sent again */
+        boolean neverRead() {
+            return neverRead;
+        }
+    }
+}
@@ -3,15 +3,54 @@ package rmi;
 import java.net.*;
 import java.io.*;
 import java.lang.reflect.*;
+import java.util.HashMap;
 
 public class MyInvocationHandler implements InvocationHandler, Serializable {
 
     private InetSocketAddress address;
     private Class interfaceclass;
+    /* method IDs for the wire protocol, rebuilt after deserialization */
+    private transient MethodTable methodTable;
+    /* time limits given to this stub, or null for the defaults, and limits
+       for particular methods by name, or null */
+    private Timeouts timeouts = null;
+    private HashMap<String, Timeouts> methodTimeouts = null;
 
     public MyInvocationHandler(InetSocketAddress address, Class c) {
         this.address = address;
         this.interfaceclass = c;
+        this.methodTable = MethodTable.of(c);
+    }
+
+    /* Returns a handler for the same skeleton with other time limits for all
+       methods, or for the methods with the given name if it is not null. */
+    MyInvocationHandler withTimeouts(String method, Timeouts limits) {
+        MyInvocationHandler copy = new MyInvocationHandler(address, interfaceclass);
+        copy.timeouts = this.timeouts;
+        if (method == null) {
+            copy.timeouts = limits;
+        } else {
+            copy.methodTimeouts = this.methodTimeouts == null ? new HashMap<String, Timeouts>()
+                                                              : new HashMap<String, Timeouts>(this.methodTimeouts);
+            copy.methodTimeouts.put(method, limits);
+        }
+        return copy;
+    }
+
+    /* Returns the limits applying to calls of the given method. */
+    Timeouts timeouts(Method method) {
+        if (methodTimeouts != null) {
+            Timeouts limits = methodTimeouts.get(method.getName());
+            if (limits != null) {
+                return limits;
+            }
+        }
+        return timeouts();
+    }
+
+    /* Returns the limits applying to the stub as a whole. */
+    Timeouts timeouts() {
+        return timeouts == null ? Timeouts.getDefault() : timeouts;
     }
 
     public Object invoke(Object proxy, Method method, Object[] args) throws Exception  {
@@ -20,8 +59,7 @@ public class MyInvocationHandler implements InvocationHandler, Serializable {
         if(method.getName().equals("toString")) {
             if (method.getReturnType().getName().equals("java.lang.String") &&
             method.getParameterTypes().length == 0) {
-                return "Interface name : " + this.interfaceclass.getName() + "\n"
-                + "Connecting to : " + this.address.toString();
+                return describe();
             }
         }
 
@@ -29,7 +67,7 @@ public class MyInvocationHandler implements InvocationHandler, Serializable {
         if(method.getName().equals("hashCode")) {
             if (method.getReturnType().getName().equals("int") &&
             method.getParameterTypes().length == 0) {
-                return this.interfaceclass.hashCode() * 1011 + this.address.hashCode() * 17;
+                return stubHashCode();
             } else if(method.getReturnType().getName().equals("int") &&
             method.getParameterTypes().length == 1) {
                 return args[0].hashCode();
@@ -45,50 +83,78 @@ public class MyInvocationHandler implements InvocationHandler, Serializable {
             method.getParameterTypes()[0].getName() == "java.lang.Object")  {
 
                 //if(args.length != 1) throw new Error("equals method called incorrectly");
-                if(args[0] == null) return false;
+                return sameSkeleton(Stub.handlerOf(args[0]));
+            }
+        }
 
-                if(!java.lang.reflect.Proxy.isProxyClass(args[0].getClass())) return false;
-                //if(!ProxyFactory.isProxyClass(args[0].getClass())) return false;
+        int id = methodTable().idOf(method);
+        if (id < 0) {
+            throw new RMIException(method + " is not a remote method");
+        }
+        return call(id, args);
+	}
 
-                MyInvocationHandler otherHandler = (MyInvocationHandler) java.lang.reflect.Proxy.getInvocationHandler(args[0]);
+    /* Performs a call of the method with the given ID, on behalf of a proxy
+       or of a generated stub. */
+    Object call(int id, Object[] args) throws Exception {
 
-                /* if interface are same and the network are same, then they are equal*/
-                if( this.interfaceclass.equals(otherHandler.getinterface()) &&
-                this.address.equals(otherHandler.getAddress()) ) {
-                    return true;
-                }
-                else {
-                    return false;
-                }
-            }
+        /* Call a skeleton running in this JVM directly */
+        Skeleton<?> local = LocalSkeletons.find(address, interfaceclass);
+        if (local != null) {
+            return local.invokeLocally(id, args);
         }
 
-
-        /* Do the real call */
+        /* Do the real call over a pooled connection to the skeleton */
+        MethodTable table = methodTable();
         myObject returnValue = null;
         try {
-            Socket connection = new Socket(address.getHostName(), address.getPort());
-            ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-            ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-
-            out.writeObject(method.getName());
-            out.writeObject(method.getParameterTypes());
-            out.writeObject(method.getReturnType().getName());
-            out.writeObject(args);
-
-            returnValue = (myObject)in.readObject();
-            connection.close();
+            returnValue = ConnectionPool.get(address, table).call(id, args, timeouts(table.method(id)));
         } catch (Exception e) {
-            throw new RMIException(e.getCause());
+            throw new RMIException(e);
         }
 
         if(returnValue.getExceptionStatus()) {
             throw (Exception) returnValue.getObject();
         }
 		return returnValue.getObject();
+    }
 
-	}
 
+    /* The string form of stubs using this handler. */
+    String describe() {
+        return "Interface name : " + this.interfaceclass.getName() + "\n"
+            + "Connecting to : " + this.address.toString();
+    }
+
+    /* The hash code of stubs using this handler. */
+    int stubHashCode() {
+        return this.interfaceclass.hashCode() * 1011 + this.address.hashCode() * 17;
+    }
+
+    /* Stubs are equal if they have the same interface and address. */
+    boolean sameSkeleton(MyInvocationHandler other) {
+        return other != null
+            && this.interfaceclass.equals(other.getinterface())
+            && this.address.equals(other.getAddress());
+    }
+
+    /* Returns a snapshot of the calls made by all stubs sharing this
+       handler's connection pool. */
+    CallMetrics metrics() {
+        return ConnectionPool.get(address, methodTable()).metrics();
+    }
+
+    /* Drops the results cached by the pool of this handler's stubs. */
+    void invalidateCache() {
+        ConnectionPool.get(address, methodTable()).invalidateCache();
+    }
+
+    private MethodTable methodTable() {
+        if (methodTable == null) {
+            methodTable = MethodTable.of(interfaceclass);
+        }
+        return methodTable;
+    }
 
     public InetSocketAddress getAddress() {
         return address;
@@ -104,6 +170,7 @@ public class MyInvocationHandler implements InvocationHandler, Serializable {
 
     public void setinterface(Class c) {
         interfaceclass = c;
+        methodTable = null;
     }
 
 }
@@ -0,0 +1,21 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Asks for arguments and results to be copied on calls made within one JVM.
+
+    <p>
+    A stub whose skeleton runs in the same JVM calls the server object
+    directly, passing the caller's own argument objects and returning the
+    server's own result objects. Remote interfaces whose servers keep or
+    modify their arguments, or whose callers modify results, can be annotated
+    with <code>PassByValue</code>, on the interface as a whole or on single
+    methods. Arguments and results of those methods are then copied as if they
+    had been sent over the network.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+public @interface PassByValue
+{
+}
@@ -0,0 +1,85 @@
+package rmi;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** A sequence of values fetched from a skeleton a chunk at a time.
+
+    <p>
+    A remote method may declare <code>RemoteIterator</code> as its return
+    type, so that a long sequence of results need not be built and sent as
+    one array. The server returns an iterator made with <code>of</code>. The
+    skeleton keeps it and sends the first chunk of values with the reply; the
+    stub's caller receives an iterator that fetches the following chunks from
+    the skeleton as they are needed. The size of a chunk is set by the
+    skeleton with <code>Skeleton.setIteratorChunkSize</code>.
+
+    <p>
+    The skeleton produces a chunk only when the stub asks for one, and a stub
+    asks for the next chunk only once it has started on the current one, so
+    at most two chunks are held by the client and none are queued by the
+    server. Values may be of any type the RMI library can send.
+
+    <p>
+    An iterator that is not read to the end should be closed, so that the
+    skeleton can discard it. Skeletons also discard iterators that have not
+    been read for a minute, or the time set with the
+    <code>rmi.iterator.idleTimeout</code> system property, and iterators
+    still open when they stop. Later calls to an iterator discarded in this
+    way throw <code>RMIException</code>. Iterators are not thread-safe.
+
+    <p>
+    Calls made within one JVM return the server's iterator itself.
+ */
+public interface RemoteIterator<E> extends AutoCloseable
+{
+    /** Returns <code>true</code> if the sequence has more values.
+
+        @throws RMIException If the next chunk cannot be fetched.
+     */
+    public boolean hasNext() throws RMIException;
+
+    /** Returns the next value of the sequence.
+
+        @throws NoSuchElementException If the sequence has no more values.
+        @throws RMIException If the next chunk cannot be fetched.
+     */
+    public E next() throws RMIException;
+
+    /** Discards the rest of the sequence. */
+    @Override
+    public void close();
+
+    /** Returns a remote iterator over the values of a local iterator, for a
+        server to return from a remote method.
+
+        @param values The values of the sequence. They are taken from the
+                      iterator only as the skeleton sends them.
+        @throws NullPointerException If <code>values</code> is
+                                     <code>null</code>.
+     */
+    public static <E> RemoteIterator<E> of(final Iterator<? extends E> values)
+    {
+        if (values == null) {
+            throw new NullPointerException();
+        }
+        return new RemoteIterator<E>() {
+            private boolean closed = false;
+
+            public boolean hasNext() {
+                return !closed && values.hasNext();
+            }
+
+            public E next() {
+                if (closed) {
+                    throw new NoSuchElementException();
+                }
+                return values.next();
+            }
+
+            public void close() {
+                closed = true;
+            }
+        };
+    }
+}
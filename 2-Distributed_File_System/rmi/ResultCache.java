@@ -0,0 +1,161 @@
+package rmi;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Results of Cached methods kept by the stubs of one connection pool.
+ *
+ * Entries are keyed by method ID and arguments and held in access order, so
+ * that the least recently used entry is dropped when the cache is full.
+ * Each skeleton keeps a generation number, sent with every reply and changed
+ * when its cached results must be dropped. The cache holds the last
+ * generation seen. A new one clears it, and a result is stored only if the
+ * generation did not change between the call being sent and its reply
+ * arriving, so that a result computed before a change is never kept after
+ * it.
+ */
+final class ResultCache {
+
+    /* time to live of each method's results in nanoseconds, zero if its
+       results are not cached */
+    private final long[] ttls;
+    private final boolean enabled;
+
+    private volatile int generation;
+    private final LinkedHashMap<Key, Entry> entries =
+        new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+    ResultCache(MethodTable methodTable) {
+        ttls = new long[methodTable.size()];
+        boolean any = false;
+        for (int id = 0; id < ttls.length; id++) {
+            Cached cached = methodTable.method(id).getAnnotation(Cached.class);
+            /* an iterator is read once, so it cannot be shared */
+            if (cached != null && cached.ttl() > 0
+                && !RemoteIterator.class.isAssignableFrom(methodTable.method(id).getReturnType())) {
+                ttls[id] = cached.ttl() * 1000000L;
+                any = true;
+            }
+        }
+        enabled = any;
+    }
+
+    /* Whether results of the method with the given ID are cached. */
+    boolean caches(int id) {
+        return enabled && ttls[id] != 0;
+    }
+
+    /* The generation to pass to put for a call about to be sent. */
+    int generation() {
+        return generation;
+    }
+
+    /* Returns the cached result of a call, or NONE. */
+    synchronized Object get(int id, Object[] args) {
+        Key key = new Key(id, args);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return NONE;
+        }
+        if (System.nanoTime() - entry.expires >= 0) {
+            entries.remove(key);
+            return NONE;
+        }
+        return copy(entry.value);
+    }
+
+    /* Keeps the result of a call sent when the cache was at the given
+       generation, unless the generation has changed since. */
+    synchronized void put(int id, Object[] args, int sentAt, Object value) {
+        if (sentAt != generation) {
+            return;
+        }
+        int max = ConnectionPool.getMaxCachedResults();
+        if (max == 0) {
+            return;
+        }
+        entries.put(new Key(id, args == null ? null : args.clone()),
+                    new Entry(copy(value), System.nanoTime() + ttls[id]));
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (entries.size() > max) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /* Notes the generation sent with a reply, dropping every result if it
+       has changed. */
+    void observe(int replyGeneration) {
+        if (replyGeneration == generation || !enabled) {
+            return;
+        }
+        synchronized (this) {
+            if (replyGeneration != generation) {
+                generation = replyGeneration;
+                entries.clear();
+            }
+        }
+    }
+
+    /* Drops every result. Results of calls already sent are not stored. */
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /* Arrays are copied on the way in and out, so that callers modifying
+       them do not modify the cache. */
+    private static Object copy(Object value) {
+        if (value == null || !value.getClass().isArray()) {
+            return value;
+        }
+        int length = Array.getLength(value);
+        Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+        System.arraycopy(value, 0, copy, 0, length);
+        return copy;
+    }
+
+    /* marks a call missing from the cache, since null is a valid result */
+    static final Object NONE = new Object();
+
+    private static final class Key {
+        private final int id;
+        private final Object[] args;
+        private final int hash;
+
+        Key(int id, Object[] args) {
+            this.id = id;
+            this.args = args;
+            this.hash = id * 31 + Arrays.deepHashCode(args);
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return id == key.id && Arrays.deepEquals(args, key.args);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final Object value;
+        final long expires;
+
+        Entry(Object value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+}
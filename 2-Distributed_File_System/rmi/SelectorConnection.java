@@ -0,0 +1,180 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+
+/* Connection served by a selector thread of a SelectorTransport.
+ *
+ * Reading and framing happen on the selector thread, which owns the input
+ * buffer. Replies are written directly by the thread that finishes a call; if
+ * the socket cannot take the whole frame, the remainder is queued and the
+ * selector thread finishes writing it when the socket becomes writable.
+ */
+final class SelectorConnection extends ServerConnection {
+
+    private static final int INITIAL_BUFFER = 4096;
+
+    private final SocketChannel channel;
+    private final SelectorTransport.Loop loop;
+    private SelectionKey key = null;
+
+    /* used only by the selector thread */
+    private ByteBuffer input = ByteBuffer.allocate(INITIAL_BUFFER);
+    private boolean greeted = false;
+    private boolean reading = true;
+
+    /* frames waiting for the socket to become writable; guarded by itself */
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<ByteBuffer>();
+
+    SelectorConnection(Skeleton<?> skeleton, SocketChannel channel, SelectorTransport.Loop loop) {
+        super(skeleton);
+        this.channel = channel;
+        this.loop = loop;
+    }
+
+    /* Registers the channel; runs on the selector thread. */
+    void register() {
+        try {
+            key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+        } catch (IOException e) {
+            finishReading();
+        }
+    }
+
+    /* Handles readiness of the channel; runs on the selector thread. */
+    void ready(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (CancelledKeyException e) {
+            finishReading();
+        } catch (Throwable e) {
+            /* connections closed by stop() are not errors */
+            if (skeleton.getRunningStatus()) {
+                skeleton.service_error(new RMIException(e));
+            }
+            close();
+            finishReading();
+        }
+    }
+
+    private void read() throws IOException, ClassNotFoundException {
+        if (channel.read(input) < 0) {
+            /* the stub closed the connection */
+            finishReading();
+            return;
+        }
+
+        input.flip();
+        while (reading && input.remaining() >= 4) {
+            int length = WireProtocol.frameLength(input.getInt(input.position()));
+            if (input.remaining() < 4 + length) {
+                if (input.capacity() < 4 + length) {
+                    ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                    larger.put(input);
+                    input = larger;
+                    return;
+                }
+                break;
+            }
+
+            input.getInt();
+            byte[] payload = new byte[length];
+            input.get(payload);
+            frame(new DataInputStream(new ByteArrayInputStream(payload)));
+        }
+        input.compact();
+    }
+
+    private void frame(DataInputStream frame) throws IOException, ClassNotFoundException {
+        if (!greeted) {
+            greeted = true;
+            if (!hello(frame)) {
+                finishReading();
+            }
+        } else if (!skeleton.getRunningStatus()) {
+            /* the stub sends calls not read again, once it knows which */
+            stopReading();
+            finishReading();
+        } else {
+            call(frame);
+        }
+    }
+
+    /* Stops reading. Replies to calls in progress are still written. */
+    private void finishReading() {
+        if (!reading) {
+            return;
+        }
+        reading = false;
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        readerFinished();
+    }
+
+    InetAddress remoteAddress() {
+        try {
+            return ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+        } catch (IOException e) {
+            /* the connection is closing; its calls fail anyway */
+            return null;
+        }
+    }
+
+    void send(WireProtocol.FrameBuffer frame) throws IOException {
+        ByteBuffer buffer = frame.toByteBuffer();
+        synchronized (output) {
+            if (output.isEmpty()) {
+                channel.write(buffer);
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+            }
+            output.add(buffer);
+            if (output.size() == 1) {
+                loop.execute(new Runnable() {
+                    public void run() {
+                        if (key != null && key.isValid()) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /* Writes queued frames; runs on the selector thread. */
+    private void flush() throws IOException {
+        synchronized (output) {
+            while (!output.isEmpty()) {
+                ByteBuffer buffer = output.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                output.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+        }
+        skeleton.connectionClosed(this);
+        loop.selector.wakeup();
+    }
+}
@@ -0,0 +1,155 @@
+package rmi;
+
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Serves the connections of one skeleton from a few selector threads.
+ *
+ * Accepted channels are spread over the threads in turn. Each thread reads
+ * and frames the requests of its channels and hands decoded calls to the
+ * skeleton's executor; replies are written by the threads finishing the
+ * calls, and left to the selector thread only when the socket buffer is
+ * full. An idle connection therefore costs a registered channel and its
+ * buffers, but no thread.
+ *
+ * Once the skeleton has stopped, each thread exits when it has no channels
+ * left. A transport that has exited is replaced on the next accept.
+ */
+final class SelectorTransport {
+
+    private static final AtomicInteger transportNumber = new AtomicInteger();
+
+    private final Skeleton<?> skeleton;
+    private final Loop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    SelectorTransport(Skeleton<?> skeleton, int threads) throws IOException {
+        this.skeleton = skeleton;
+        this.loops = new Loop[threads];
+        String prefix = "rmi-selector-" + transportNumber.incrementAndGet() + "-";
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new Loop(prefix + (i + 1));
+        }
+    }
+
+    /* Starts serving an accepted channel. Returns false if the transport has
+       already shut down. */
+    boolean register(SocketChannel channel) throws IOException {
+        Loop loop = loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final SelectorConnection connection = new SelectorConnection(skeleton, channel, loop);
+        skeleton.connectionOpened(connection);
+        boolean accepted = loop.execute(new Runnable() {
+            public void run() {
+                connection.register();
+            }
+        });
+        if (!accepted) {
+            skeleton.connectionClosed(connection);
+        }
+        return accepted;
+    }
+
+    /* Returns true once any thread has exited; the transport is then no
+       longer used for new connections. */
+    boolean isTerminated() {
+        for (Loop loop : loops) {
+            if (loop.isTerminated()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Wakes every thread, so that stopped transports notice they may exit. */
+    void wakeup() {
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /* One selector and the thread running it. */
+    final class Loop implements Runnable {
+        /* period at which a stopped loop checks for remaining channels */
+        private static final long DRAIN_POLL = 100L;
+
+        final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        /* guarded by this */
+        private boolean terminated = false;
+
+        Loop(String name) throws IOException {
+            this.selector = Selector.open();
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /* Runs a task on the selector thread. Returns false if the loop has
+           exited. */
+        synchronized boolean execute(Runnable task) {
+            if (terminated) {
+                return false;
+            }
+            tasks.add(task);
+            selector.wakeup();
+            return true;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    if (skeleton.getRunningStatus()) {
+                        selector.select();
+                    } else {
+                        selector.select(DRAIN_POLL);
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((SelectorConnection) key.attachment()).ready(key);
+                    }
+
+                    if (!skeleton.getRunningStatus() && tryExit()) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                skeleton.service_error(new RMIException(e));
+            } finally {
+                synchronized (this) {
+                    terminated = true;
+                }
+                for (SelectionKey key : selector.keys()) {
+                    ((SelectorConnection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        synchronized boolean isTerminated() {
+            return terminated;
+        }
+
+        private synchronized boolean tryExit() {
+            if (selector.keys().isEmpty() && tasks.isEmpty()) {
+                terminated = true;
+            }
+            return terminated;
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package rmi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+
+/* Skeleton side of one stub connection, independent of how bytes are moved.
+ *
+ * Subclasses read frames from the connection and pass them to hello() and
+ * call(), and implement send() and close(). Calls are run by the skeleton's
+ * executor; each reply is sent as soon as its call finishes. The connection is
+ * closed once no calls are in progress and either the reading side has
+ * finished or the skeleton has been stopped.
+ *
+ * When the skeleton stops, it tells the stub which call was the last one
+ * read, and calls read after that are dropped without being run, so that
+ * the stub can safely send them again.
+ */
+abstract class ServerConnection {
+
+    protected final Skeleton<?> skeleton;
+    protected final MethodTable methodTable;
+
+    /* calls read from the connection whose replies have not been sent yet,
+       and whether reading has finished; guarded by this */
+    private int inFlight = 0;
+    private boolean readerDone = false;
+
+    /* the request ID of the last call read, whether the handshake succeeded,
+       and whether the stub has been told no further calls will be read;
+       guarded by this */
+    private int lastRequestId = 0;
+    private boolean greeted = false;
+    private boolean closing = false;
+
+    /* whether the stub and skeleton agreed to compress large frames */
+    private volatile boolean compress = false;
+
+    /* the stub's address, null for one on this host, whether the
+       connection was admitted, and the entry it was counted against, if
+       any */
+    private InetAddress peer = null;
+    private boolean admitted = false;
+    private Admission.Client counted = null;
+
+    ServerConnection(Skeleton<?> skeleton) {
+        this.skeleton = skeleton;
+        this.methodTable = skeleton.getMethodTable();
+    }
+
+    /* Sends one frame. Called concurrently by the threads finishing calls. */
+    abstract void send(WireProtocol.FrameBuffer frame) throws IOException;
+
+    abstract void close();
+
+    /* Returns the remote address of a TCP connection, or null for a
+       connection over the local socket. */
+    abstract InetAddress remoteAddress();
+
+    /* Answers the stub's HELLO. The connection is refused if the stub was
+       built from a different version of the remote interface, since its
+       method IDs would then mean different methods. Returns whether calls
+       may follow. */
+    boolean hello(DataInputStream hello) throws IOException {
+        if (hello.readByte() != WireProtocol.HELLO || hello.readInt() != WireProtocol.MAGIC) {
+            throw new ProtocolException("connection did not start with a stub handshake");
+        }
+        byte version = hello.readByte();
+        String interfaceName = hello.readUTF();
+        long fingerprint = hello.readLong();
+        int features = hello.readUnsignedByte();
+        String expected = this.methodTable.getInterface().getName();
+
+        String reason = null;
+        if (version < WireProtocol.VERSION) {
+            reason = "unsupported protocol version " + version;
+        } else if (!interfaceName.equals(expected)
+                   || fingerprint != this.methodTable.fingerprint()) {
+            reason = "interface " + interfaceName + " does not match " + expected;
+        } else {
+            this.peer = remoteAddress();
+            try {
+                this.counted = this.skeleton.admitConnection(this.peer);
+                this.admitted = true;
+            } catch (RMIException e) {
+                reason = e.getMessage();
+            }
+        }
+
+        WireProtocol.FrameBuffer frame = new WireProtocol.FrameBuffer();
+        if (reason != null) {
+            frame.start(WireProtocol.HELLO_REJECTED).writeUTF(reason);
+            send(frame);
+            return false;
+        }
+
+        /* the stub may be newer; answer with the version both understand,
+           and the local socket stubs on this host may use instead */
+        DataOutputStream ok = frame.start(WireProtocol.HELLO_OK);
+        ok.writeByte(WireProtocol.VERSION);
+        ok.writeUTF(this.skeleton.advertisedSocket());
+        int accepted = features & Compression.features();
+        ok.writeByte(accepted);
+        this.compress = (accepted & Compression.DEFLATE) != 0;
+        synchronized (this) {
+            /* sent under the lock, so that CLOSING cannot come first */
+            send(frame);
+            this.greeted = true;
+        }
+        return true;
+    }
+
+    /* Decodes a CALL or BATCH frame and hands it to the skeleton's
+       executor for the lane of its method. A batch is run as one task, its
+       calls in order, in the lane of its first call. */
+    void call(DataInputStream request) throws IOException, ClassNotFoundException {
+        /* the payload is in memory, so this is its length, plus the header */
+        this.skeleton.recorder().received(request.available() + 4);
+        request = WireProtocol.expand(request, this.skeleton.recorder());
+        byte type = request.readByte();
+        if (type != WireProtocol.CALL && type != WireProtocol.BATCH) {
+            throw new StreamCorruptedException("unexpected frame type " + type);
+        }
+        int requestId = request.readInt();
+        int budget = request.readInt();
+
+        int count = type == WireProtocol.BATCH ? request.readInt() : 1;
+        if (count < 0) {
+            throw new StreamCorruptedException("invalid batch size " + count);
+        }
+        int[] ids = new int[count];
+        Object[][] args = new Object[count][];
+        for (int i = 0; i < count; i++) {
+            ids[i] = request.readShort();
+            args[i] = new Object[request.readUnsignedByte()];
+            for (int j = 0; j < args[i].length; j++) {
+                args[i][j] = WireProtocol.readValue(request);
+            }
+        }
+
+        synchronized (this) {
+            if (this.closing) {
+                /* the stub has been told this call was never read */
+                return;
+            }
+            this.lastRequestId = requestId;
+            this.inFlight++;
+        }
+        Call call = new Call(requestId, budget, type == WireProtocol.BATCH, ids, args);
+        try {
+            call.counted = this.skeleton.admit(this.peer, count);
+        } catch (RMIException e) {
+            call.reject(e.getMessage());
+            return;
+        }
+        if (!this.skeleton.execute(count == 0 ? -1 : ids[0], call)) {
+            this.skeleton.release(call.counted);
+            call.reject("call rejected: skeleton is at capacity");
+        }
+    }
+
+    /* Tells the stub that no further calls will be read, and which was the
+       last call read. Calls read after this are dropped without being run.
+       The notice is sent holding the lock, so that the connection cannot be
+       closed as idle before it has been sent. */
+    synchronized void stopReading() {
+        if (this.closing) {
+            return;
+        }
+        this.closing = true;
+        if (!this.greeted) {
+            return;
+        }
+        try {
+            WireProtocol.FrameBuffer frame = new WireProtocol.FrameBuffer();
+            frame.start(WireProtocol.CLOSING).writeInt(this.lastRequestId);
+            send(frame);
+        } catch (IOException e) {
+            /* the stub will see the connection fail */
+        }
+    }
+
+    /* Called once the reading side will read no further calls. */
+    void readerFinished() {
+        synchronized (this) {
+            this.readerDone = true;
+            if (this.admitted) {
+                this.admitted = false;
+                this.skeleton.releaseConnection(this.counted);
+            }
+        }
+        closeIfIdle();
+        this.skeleton.connectionClosed(this);
+    }
+
+    /* Closes the connection unless calls are in progress. The last call to
+       finish closes the connection if the skeleton has stopped meanwhile. */
+    synchronized void closeIfIdle() {
+        if (this.inFlight == 0) {
+            close();
+        }
+    }
+
+    /* One decoded call or batch of calls, run by the skeleton's executor. */
+    final class Call implements Runnable {
+        private final int requestId;
+        private final boolean batch;
+        private final int[] ids;
+        private final Object[][] args;
+        private final long queuedAt = System.nanoTime();
+        /* milliseconds the stub waits for the reply, or zero */
+        private final int budget;
+        /* what admission counted the call against; set before the call is
+           handed to an executor */
+        private Admission.Client counted = null;
+        /* the thread running the call, whether the call has finished, and
+           whether a draining stop cut it off; guarded by this */
+        private Thread runner = null;
+        private boolean finished = false;
+        private volatile boolean cut = false;
+
+        Call(int requestId, int budget, boolean batch, int[] ids, Object[][] args) {
+            this.requestId = requestId;
+            this.budget = budget;
+            this.batch = batch;
+            this.ids = ids;
+            this.args = args;
+        }
+
+        public void run() {
+            skeleton.workerStarted();
+            skeleton.recorder().queued(System.nanoTime() - queuedAt);
+            try {
+                myObject[] results = new myObject[ids.length];
+                synchronized (this) {
+                    runner = Thread.currentThread();
+                }
+                try {
+                    for (int i = 0; i < ids.length; i++) {
+                        results[i] = cut ? dropped() : expired() ? abandoned() : invoke(ids[i], args[i]);
+                    }
+                } finally {
+                    synchronized (this) {
+                        runner = null;
+                        finished = true;
+                    }
+                    /* the worker goes on to other calls */
+                    if (cut) {
+                        Thread.interrupted();
+                    }
+                }
+                reply(results);
+            } finally {
+                skeleton.release(counted);
+                skeleton.workerFinished(this);
+            }
+        }
+
+        /* Has the call fail without running if it has not reached a worker,
+           or stop at the next call of a batch if it has. Returns false if it
+           had already finished. */
+        synchronized boolean cutOff() {
+            if (finished || cut) {
+                return false;
+            }
+            cut = true;
+            return true;
+        }
+
+        /* Interrupts the thread running the call, if it is still running. */
+        synchronized void interrupt() {
+            if (runner != null) {
+                runner.interrupt();
+            }
+        }
+
+        /* Whether the stub has stopped waiting for the reply. The network
+           delay before the call was read is not counted, so a call may
+           still be run shortly after its stub gave up. */
+        private boolean expired() {
+            return budget != 0 && System.nanoTime() - queuedAt > budget * 1000000L;
+        }
+
+        private myObject dropped() {
+            return new myObject(new RMIException("call dropped: the skeleton stopped before it finished"),
+                                true);
+        }
+
+        private myObject abandoned() {
+            skeleton.callExpired();
+            return new myObject(new RMIException("call dropped: its deadline expired before it ran"),
+                                true);
+        }
+
+        /* Fails every call at once, when the skeleton is at capacity or the
+           call is not admitted. */
+        void reject(String reason) {
+            myObject[] results = new myObject[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                results[i] = new myObject(new RMIException(reason), true);
+            }
+            reply(results);
+        }
+
+        private myObject invoke(int id, Object[] args) {
+            long started = System.nanoTime();
+            myObject result = perform(id, args);
+            skeleton.recorder().call(id, System.nanoTime() - started, result.getExceptionStatus());
+            return result;
+        }
+
+        private myObject perform(int id, Object[] args) {
+            if (id < 0) {
+                return iterator(id, args);
+            }
+            if (methodTable.method(id) == null) {
+                return new myObject(new RMIException("unknown method ID"), true);
+            }
+            try {
+                Object result = methodTable.invoke(id, skeleton.getServer(), args);
+                if (result instanceof RemoteIterator) {
+                    result = skeleton.cursors().open((RemoteIterator<?>) result,
+                                                     skeleton.getIteratorChunkSize());
+                }
+                return new myObject(result, false);
+            } catch (InvocationTargetException e) {
+                return new myObject(e.getCause(), true);
+            } catch (Throwable e) {
+                return new myObject(new RMIException(e), true);
+            }
+        }
+
+        /* Fetches the next chunk of a remote iterator, or closes one. */
+        private myObject iterator(int id, Object[] args) {
+            if (args.length != 1 || !(args[0] instanceof Long)) {
+                return new myObject(new RMIException("invalid iterator call"), true);
+            }
+            long cursor = (Long) args[0];
+            try {
+                if (id == Skeleton.FETCH_ITERATOR) {
+                    return new myObject(skeleton.cursors().fetch(cursor, skeleton.getIteratorChunkSize()),
+                                        false);
+                } else if (id == Skeleton.CLOSE_ITERATOR) {
+                    skeleton.cursors().close(cursor);
+                    return new myObject(null, false);
+                }
+                return new myObject(new RMIException("unknown method ID"), true);
+            } catch (Exception e) {
+                return new myObject(e, true);
+            }
+        }
+
+        /* Sends the reply and closes the connection if it was the last
+           outstanding call on a connection that is no longer being read. */
+        private void reply(myObject[] results) {
+            try {
+                WireProtocol.FrameBuffer frame = new WireProtocol.FrameBuffer();
+                DataOutputStream reply;
+                if (batch) {
+                    reply = frame.start(WireProtocol.BATCH_RESULT);
+                    reply.writeInt(requestId);
+                    reply.writeInt(skeleton.cacheGeneration());
+                    reply.writeInt(results.length);
+                    for (myObject result : results) {
+                        reply.writeByte(result.getExceptionStatus() ? WireProtocol.THROW : WireProtocol.RETURN);
+                        WireProtocol.writeValue(reply, result.getObject());
+                    }
+                } else {
+                    myObject result = results[0];
+                    reply = frame.start(result.getExceptionStatus() ? WireProtocol.THROW : WireProtocol.RETURN);
+                    reply.writeInt(requestId);
+                    reply.writeInt(skeleton.cacheGeneration());
+                    WireProtocol.writeValue(reply, result.getObject());
+                }
+                if (compress) {
+                    frame.compress(skeleton.recorder());
+                }
+                send(frame);
+                skeleton.recorder().sent(frame.size() + 4);
+            } catch (Throwable e) {
+                /* the stub will see the connection fail */
+                close();
+                if (skeleton.getRunningStatus()) {
+                    skeleton.service_error(new RMIException(e));
+                }
+            } finally {
+                /* read before taking the lock: stop() holds the skeleton's
+                   lock only while changing the status, never while taking
+                   this one */
+                boolean running = skeleton.getRunningStatus();
+                synchronized (ServerConnection.this) {
+                    inFlight--;
+                    if (inFlight == 0 && (readerDone || !running)) {
+                        if (!running) {
+                            /* stop() may not have reached this connection */
+                            stopReading();
+                        }
+                        close();
+                    }
+                }
+            }
+        }
+    }
+}
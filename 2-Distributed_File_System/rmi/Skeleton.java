@@ -1,8 +1,28 @@
 package rmi;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.*;
-import java.util.Arrays;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /** RMI skeleton
 
@@ -25,18 +45,133 @@ import java.util.Arrays;
     The skeleton's response to these exceptions can be customized by deriving
     a class from <code>Skeleton</code> and overriding <code>listen_error</code>
     or <code>service_error</code>.
+
+    <p>
+    Each accepted connection is read by its own thread. Stubs send calls from
+    many client threads over one connection without waiting for earlier
+    replies, so every call read is handed to an executor and replies are sent
+    as calls finish, possibly out of order. By default a new thread is used
+    whenever no idle one is available; <code>setExecutor</code> accepts any
+    other executor, such as the bounded ones made by
+    <code>SkeletonExecutors</code>. Methods can also be placed in named lanes,
+    by the {@link Lane} annotation or with <code>setLane</code>, each run by
+    an executor of its own, so that calls that block for long do not hold up
+    calls that return at once.
+
+    <p>
+    Servers expecting many mostly idle connections can instead have all
+    connections read by a few selector threads, using
+    <code>setSelectorThreads</code>. Calls are still run by the executor.
+
+    <p>
+    Stubs send with each call the time they will wait for its result. A call
+    that is still waiting for a worker when that time has passed is failed
+    without being run, since its caller has given up on it.
+
+    <p>
+    Limits on the calls in flight, in total and from each remote address, on
+    the rate of calls from each address, and on the connections from each
+    address, can be set with <code>setAdmissionControl</code>. Calls over a
+    limit fail at once instead of waiting, and are counted in
+    <code>getWorkerStatistics</code>.
+
+    <p>
+    The skeleton counts the calls made to each method, how long they took and
+    how long they waited for a worker, and the bytes received and sent. A
+    snapshot is returned by <code>metrics</code>, and the same figures can be
+    published over JMX with <code>registerMetricsMBean</code>.
+
+    <p>
+    Stubs created in the same JVM as a running skeleton, for its interface
+    and with an address of this host and its port, call the server object
+    directly instead of connecting, as long as local calls are enabled with
+    <code>setLocalCalls</code> (the default, unless the
+    <code>rmi.localCalls</code> system property is <code>false</code>). Such
+    calls run in the caller's thread, skip the executor and the stubs' time
+    limits, and pass the caller's own objects, unless the interface or method
+    is marked {@link PassByValue}. They are counted in the skeleton's metrics.
+
+    <p>
+    A skeleton can also listen on a Unix domain socket, given with
+    <code>setLocalSocket</code> or, for every skeleton, by naming a directory in
+    the <code>rmi.localSocketDir</code> system property. The socket's path is
+    sent to stubs when they connect, and stubs on the same host then open
+    their further connections over it instead of over TCP. Connections on the
+    local socket are always read by a thread of their own.
+
+    <p>
+    Stubs may cache the results of methods marked {@link Cached}. A server
+    whose state changes calls <code>invalidateCaches</code>, and stubs drop
+    their cached results as soon as they next receive a reply from the
+    skeleton.
 */
 public class Skeleton<T>
 {
+    private static final int BIND_ATTEMPTS = 20;
+    private static final long BIND_RETRY_DELAY = 50L;
+    private static final boolean LOCAL_CALLS =
+        !"false".equals(System.getProperty("rmi.localCalls"));
+    private static final String LOCAL_SOCKET_DIR = System.getProperty("rmi.localSocketDir");
+
+    /* reserved method IDs of the calls stubs make to read remote iterators */
+    static final int FETCH_ITERATOR = -1;
+    static final int CLOSE_ITERATOR = -2;
+
     private Class<T> sclass = null;
     private T server = null;
+    private MethodTable methodTable = null;
+    private final MetricsRecorder recorder;
+    private ObjectName metricsName = null;
 
     private volatile boolean isRunning = false;
+    private volatile boolean localCalls = LOCAL_CALLS;
+    /* sent with every reply; starts at a random value so that stubs also
+       drop their cached results when the server is restarted */
+    private volatile int cacheGeneration = java.util.concurrent.ThreadLocalRandom.current().nextInt();
+
+    /* remote iterators returned by the server and not yet read to the end */
+    private final Cursors cursors = new Cursors();
+    private volatile int iteratorChunkSize = Integer.getInteger("rmi.iterator.chunkSize", 256);
 
     private int port = 0;
     private String hostName = null;
 
     private ServerSocket listen_socket;
+    private volatile lThread<T> listen_thread = null;
+
+    /* Unix domain socket asked for, and the one listened on while running */
+    private java.nio.file.Path localSocket = null;
+    private ServerSocketChannel localListener = null;
+    private volatile java.nio.file.Path boundSocket = null;
+
+    /* connections currently being served; stubs keep them open between calls */
+    private final Set<ServerConnection> connections = ConcurrentHashMap.newKeySet();
+
+    /* zero for a reading thread per connection */
+    private int selectorThreads = 0;
+    private SelectorTransport selectorTransport = null;
+
+    private volatile ExecutorService executor = null;
+    /* executors of lanes, and lanes given to methods by name; guarded by
+       this, and read only while the skeleton is stopped */
+    private final Map<String, ExecutorService> laneExecutors = new HashMap<String, ExecutorService>();
+    private final Map<String, String> methodLanes = new HashMap<String, String>();
+    /* the executor of each method ID, built when the skeleton starts */
+    private volatile ExecutorService[] methodExecutors = null;
+    private final AtomicInteger queuedCalls = new AtomicInteger();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong rejectedCalls = new AtomicLong();
+    private final AtomicLong expiredCalls = new AtomicLong();
+    /* calls handed to an executor that have not finished, and whether a
+       stop is waiting for them; waiters are woken through the set's
+       monitor */
+    private final Set<ServerConnection.Call> pendingCalls = ConcurrentHashMap.newKeySet();
+    private volatile boolean draining = false;
+
+    private volatile AdmissionControl admissionControl = AdmissionControl.NONE;
+    private final Admission admission = new Admission();
+
+    private static final AtomicInteger readerNumber = new AtomicInteger();
 
 
     /** Creates a <code>Skeleton</code> with no initial server address. The
@@ -63,12 +198,14 @@ public class Skeleton<T>
             throw new NullPointerException();
         }
 
-        if (!c.isInterface() || !RMIExcpetionCheck(c)) {
+        if (!MethodTable.isRemoteInterface(c)) {
             throw new Error("Given class is not a interface or not a remote interface!");
         }
 
         this.sclass = c;
         this.server = server;
+        this.methodTable = MethodTable.of(c);
+        this.recorder = new MetricsRecorder(this.methodTable);
     }
 
     /** Creates a <code>Skeleton</code> with the given initial server address.
@@ -95,12 +232,14 @@ public class Skeleton<T>
             throw new NullPointerException();
         }
 
-        if (!c.isInterface() || !RMIExcpetionCheck(c)) {
+        if (!MethodTable.isRemoteInterface(c)) {
             throw new Error("Given class is not a interface or a remote interface!");
         }
 
         this.sclass = c;
         this.server = server;
+        this.methodTable = MethodTable.of(c);
+        this.recorder = new MetricsRecorder(this.methodTable);
         if(address != null) {
             this.port = address.getPort();
             this.hostName = address.getHostName();
@@ -130,6 +269,20 @@ public class Skeleton<T>
     {
     }
 
+    /** Called by <code>stop(Duration)</code> and <code>drain</code> once the
+        calls in progress have finished or been cut off.
+
+        <p>
+        The default implementation does nothing.
+
+        @param cutOff The number of calls, or batches of calls, that were
+                      interrupted or dropped because they had not finished by
+                      the deadline.
+     */
+    protected void drained(int cutOff)
+    {
+    }
+
     /** Called when an exception occurs at the top level in the listening
         thread.
 
@@ -165,8 +318,8 @@ public class Skeleton<T>
 
         <p>
         A thread is created to listen for connection requests, and the method
-        returns immediately. Additional threads are created when connections are
-        accepted. The network address used for the server is determined by which
+        returns immediately. Calls on accepted connections are run by the
+        skeleton's executor. The network address used for the server is determined by which
         constructor was used to create the <code>Skeleton</code> object.
 
         @throws RMIException When the listening socket cannot be created or
@@ -174,51 +327,695 @@ public class Skeleton<T>
                              or when the server has already been started and has
                              not since stopped.
      */
-    public synchronized void start() throws RMIException
+    public void start() throws RMIException
     {
-        if (this.isRunning == false) {
-            this.setRunningStatus(true);
-            try {
-                listen_socket = new ServerSocket(this.port);
-                this.port = listen_socket.getLocalPort();
+        awaitListenThread();
+        synchronized (this) {
+            if (this.isRunning == false) {
+                this.setRunningStatus(true);
+                try {
+                    listen_socket = bind(this.port, this.selectorThreads > 0);
+                    this.port = listen_socket.getLocalPort();
+
+                    if (this.hostName == null) {
+                        this.hostName = listen_socket.getInetAddress().getHostName();
+                    }
 
-                if (this.hostName == null) {
-                    this.hostName = listen_socket.getInetAddress().getHostName();
+                    if (executor == null) {
+                        executor = SkeletonExecutors.unbounded();
+                    }
+                    methodExecutors = assignLanes();
+
+                    listen_thread = new lThread<T>(this, listen_socket, sclass);
+                    listen_thread.start();
+                    LocalSkeletons.register(this);
+                    bindLocalSocket();
+                }
+                catch (Throwable e) {
+                    System.out.println("Error " + e.getMessage());
+                    e.printStackTrace();
                 }
 
-                lThread listen_thread = new lThread(this, listen_socket, sclass);
-                listen_thread.start();
+            }
+            else {
+                throw new RMIException("Server already started!");
+            }
+        }
+    }
+
+    /** Stops the skeleton server, if it is already running.
+
+        <p>
+        The listening thread terminates. Stubs are told which of their calls
+        were read, so that they can send the others again elsewhere, and idle
+        connections kept open by stubs are closed. Calls already in progress
+        may continue running until they return; the last of them to finish
+        then closes its connection. The server stops at some later time; the
+        method <code>stopped</code> is called at that point. The server may
+        then be restarted.
+     */
+    public void stop()
+    {
+        /* connections are closed outside the lock, since a finishing call
+           checks the running status while holding its connection's lock */
+        SelectorTransport transport;
+        synchronized (this) {
+            try {
+                LocalSkeletons.unregister(this);
+                this.setRunningStatus(false);
+                listen_socket.close();
             }
             catch (Throwable e) {
                 System.out.println("Error " + e.getMessage());
                 e.printStackTrace();
             }
+            transport = this.selectorTransport;
+            closeLocalSocket();
+        }
+        cursors.closeAll();
+        for (ServerConnection connection : connections) {
+            connection.stopReading();
+            connection.closeIfIdle();
+        }
+        if (transport != null) {
+            transport.wakeup();
+        }
+    }
+
+    /** Stops the skeleton server, giving calls in progress time to finish.
+
+        <p>
+        The skeleton stops as with <code>stop()</code>: it accepts no further
+        connections and reads no further calls. This method then waits until
+        the calls already read from the network have finished, or until the
+        timeout has passed. Calls still running then are interrupted, and
+        calls still waiting for a worker are failed without being run. Either
+        way their stubs receive an exception. The number of calls cut off is
+        passed to <code>drained</code> before this method returns.
+
+        <p>
+        Calls from stubs in the same JVM that bypass the network are run by
+        their callers and are not waited for.
+
+        @param drainTimeout The longest time to wait for calls to finish.
+        @throws NullPointerException If <code>drainTimeout</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>drainTimeout</code> is
+                                         negative.
+     */
+    public void stop(Duration drainTimeout)
+    {
+        if (drainTimeout.isNegative()) {
+            throw new IllegalArgumentException("drain timeout must not be negative");
+        }
+        stop();
+        drain(drainTimeout);
+    }
+
+    /** Waits for the calls in progress on a stopped skeleton to finish.
 
+        <p>
+        Calls still running once the timeout has passed are cut off, and
+        <code>drained</code> is called, as by <code>stop(Duration)</code>.
+        A server made of several skeletons can stop each with
+        <code>stop()</code>, so that none accepts further calls, and then
+        drain each against a shared deadline.
+
+        @param drainTimeout The longest time to wait for calls to finish.
+        @throws NullPointerException If <code>drainTimeout</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>drainTimeout</code> is
+                                         negative.
+     */
+    public void drain(Duration drainTimeout)
+    {
+        if (drainTimeout.isNegative()) {
+            throw new IllegalArgumentException("drain timeout must not be negative");
         }
-        else {
-            throw new RMIException("Server already started!");
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+
+        draining = true;
+        try {
+            synchronized (pendingCalls) {
+                long remaining;
+                while (!pendingCalls.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        pendingCalls.wait(Math.max(1, remaining / 1000000));
+                    } catch (InterruptedException e) {
+                        /* cut the calls off now */
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        } finally {
+            draining = false;
         }
 
+        /* every call is marked before any is interrupted, so that a worker
+           freed by an interrupted call cannot start a queued one normally */
+        List<ServerConnection.Call> cut = new ArrayList<ServerConnection.Call>();
+        for (ServerConnection.Call call : pendingCalls) {
+            if (call.cutOff()) {
+                cut.add(call);
+            }
+        }
+        for (ServerConnection.Call call : cut) {
+            call.interrupt();
+        }
+        drained(cut.size());
     }
 
-    /** Stops the skeleton server, if it is already running.
+    /** Tells stubs to drop the results they have cached from this skeleton.
+
+        <p>
+        Stubs learn of this from the next reply they receive, including the
+        reply to the call during which the server invalidated the caches.
+        Results of calls that were in progress when this method was called
+        are not cached. Until a stub next hears from the skeleton, it may go
+        on answering calls from its cache, for at most the time to live given
+        in the {@link Cached} annotation.
+     */
+    public void invalidateCaches()
+    {
+        cacheGeneration++;
+    }
+
+    /* The generation sent with replies. */
+    int cacheGeneration()
+    {
+        return cacheGeneration;
+    }
+
+    /** Sets the number of values of a {@link RemoteIterator} sent at a time.
 
         <p>
-        The listening thread terminates. Threads created to service connections
-        may continue running until their invocations of the <code>service</code>
-        method return. The server stops at some later time; the method
-        <code>stopped</code> is called at that point. The server may then be
-        restarted.
+        The default is 256, or the value of the
+        <code>rmi.iterator.chunkSize</code> system property. The new size
+        applies to chunks sent from now on, including chunks of iterators
+        already being read.
+
+        @param values The number of values in a chunk.
+        @throws IllegalArgumentException If <code>values</code> is not
+                                         positive.
      */
-    public synchronized void stop()
+    public void setIteratorChunkSize(int values)
+    {
+        if (values < 1) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        this.iteratorChunkSize = values;
+    }
+
+    public int getIteratorChunkSize()
+    {
+        return iteratorChunkSize;
+    }
+
+    /* The remote iterators being read by stubs. */
+    Cursors cursors()
     {
+        return cursors;
+    }
+
+    /** Sets whether stubs in this JVM may call the server object directly.
+
+        <p>
+        When disabled, stubs in this JVM connect to the skeleton like stubs
+        in any other, which can be useful to test the network path.
+
+        @param enabled <code>true</code> to let stubs in this JVM bypass the
+                       network, <code>false</code> to make them connect.
+     */
+    public void setLocalCalls(boolean enabled)
+    {
+        this.localCalls = enabled;
+    }
+
+    /* Returns whether stubs in this JVM should currently call the server
+       directly. */
+    boolean isLocalCallable() {
+        return localCalls && isRunning;
+    }
+
+    /* Runs a call from a stub in this JVM in the caller's thread. Anything
+       the method throws is thrown on to the caller, as it would be after a
+       remote call. */
+    Object invokeLocally(int id, Object[] args) throws Exception {
+        boolean copy = methodTable.passByValue(id);
+        if (args == null) {
+            args = new Object[0];
+        } else if (copy) {
+            Object[] copies = new Object[args.length];
+            for (int i = 0; i < args.length; i++) {
+                copies[i] = copyValue(args[i]);
+            }
+            args = copies;
+        }
+
+        /* only the total in-flight limit applies; without one, local calls
+           are not counted */
+        AdmissionControl limits = admissionControl;
+        boolean limited = limits.getMaxInFlight() > 0;
+        if (limited) {
+            admission.admit(limits, null, 1);
+        }
+        long started = System.nanoTime();
+        boolean failed = true;
         try {
-            this.setRunningStatus(false);
-            listen_socket.close();
+            Object result = methodTable.invoke(id, server, args);
+            failed = false;
+            /* a remote iterator is handed over as it is; it cannot be
+               encoded */
+            return copy && !(result instanceof RemoteIterator) ? copyValue(result) : result;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw (Exception) cause;
+        } catch (IllegalAccessException e) {
+            throw new RMIException(e);
+        } finally {
+            if (limited) {
+                admission.release(null);
+            }
+            recorder.call(id, System.nanoTime() - started, failed);
         }
-        catch (Throwable e) {
-            System.out.println("Error " + e.getMessage());
-            e.printStackTrace();
+    }
+
+    private static Object copyValue(Object value) throws RMIException {
+        try {
+            return WireProtocol.copy(value);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RMIException(e);
+        }
+    }
+
+    /** Sets the Unix domain socket the skeleton listens on, in addition to
+        its TCP port.
+
+        <p>
+        Any file already at the path is replaced when the skeleton starts, and
+        the socket is removed when it stops. If the socket cannot be created,
+        the skeleton runs without it and reports the failure to
+        <code>service_error</code>.
+
+        @param path Path of the socket, or <code>null</code> for none (or the
+                    one named by the <code>rmi.localSocketDir</code> system
+                    property).
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setLocalSocket(java.nio.file.Path path)
+    {
+        if (isRunning) {
+            throw new IllegalStateException("cannot change the local socket of a running skeleton");
+        }
+        this.localSocket = path;
+    }
+
+    /* Returns the path of the local socket to advertise to stubs, or the
+       empty string. */
+    String advertisedSocket() {
+        java.nio.file.Path path = boundSocket;
+        return path == null ? "" : path.toString();
+    }
+
+    /* Binds the Unix domain socket, if one was asked for, and starts
+       accepting on it. The skeleton works without it, so a failure is only
+       reported. Called with the lock held, once the port is known. */
+    private void bindLocalSocket() {
+        java.nio.file.Path path = localSocket;
+        if (path == null && LOCAL_SOCKET_DIR != null) {
+            path = Paths.get(LOCAL_SOCKET_DIR, "rmi-" + port + ".sock");
+        }
+        if (path == null) {
+            return;
+        }
+
+        final ServerSocketChannel listener;
+        try {
+            Files.deleteIfExists(path);
+            listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            try {
+                listener.bind(UnixDomainSocketAddress.of(path));
+            } catch (IOException e) {
+                listener.close();
+                throw e;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            service_error(new RMIException("could not listen on " + path, e));
+            return;
+        }
+
+        localListener = listener;
+        boundSocket = path;
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                acceptLocal(listener);
+            }
+        }, "rmi-skeleton-local-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /* Accepts connections on the local socket until it is closed. */
+    private void acceptLocal(ServerSocketChannel listener) {
+        while (true) {
+            java.nio.channels.SocketChannel channel;
+            try {
+                channel = listener.accept();
+            } catch (IOException e) {
+                /* stubs that cannot connect fall back to TCP */
+                if (listener.isOpen() && getRunningStatus()) {
+                    service_error(new RMIException(e));
+                    synchronized (this) {
+                        closeLocalSocket();
+                    }
+                }
+                return;
+            }
+            if (!getRunningStatus()) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+                continue;
+            }
+            serve(new pThread<T>(this, channel));
+        }
+    }
+
+    /* Stops listening on the local socket and removes it. Called with the
+       lock held. */
+    private void closeLocalSocket() {
+        if (localListener == null) {
+            return;
+        }
+        try {
+            localListener.close();
+            Files.deleteIfExists(boundSocket);
+        } catch (IOException e) {
+        }
+        localListener = null;
+        boundSocket = null;
+    }
+
+    /** Sets the executor that runs calls.
+
+        <p>
+        Each call is submitted to the executor as one task. The skeleton
+        does not shut the executor down; an executor supplied here remains the
+        responsibility of the caller and may be shared between skeletons.
+
+        @param executor The executor to use.
+        @throws NullPointerException If <code>executor</code> is
+                                     <code>null</code>.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setExecutor(ExecutorService executor)
+    {
+        if (executor == null) {
+            throw new NullPointerException();
+        }
+        if (this.isRunning) {
+            throw new IllegalStateException("cannot change the executor of a running skeleton");
+        }
+        this.executor = executor;
+    }
+
+    /** Sets the executor that runs calls of the methods in a lane.
+
+        <p>
+        Methods are placed in lanes with the {@link Lane} annotation or with
+        <code>setLane</code>. As with <code>setExecutor</code>, the skeleton
+        does not shut the executor down.
+
+        @param lane The name of the lane.
+        @param executor The executor to use, or <code>null</code> to run the
+                        lane's calls on the default executor.
+        @throws NullPointerException If <code>lane</code> is
+                                     <code>null</code>.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setExecutor(String lane, ExecutorService executor)
+    {
+        if (lane == null) {
+            throw new NullPointerException();
+        }
+        if (this.isRunning) {
+            throw new IllegalStateException("cannot change the executors of a running skeleton");
+        }
+        if (executor == null) {
+            laneExecutors.remove(lane);
+        } else {
+            laneExecutors.put(lane, executor);
+        }
+    }
+
+    /** Places the remote methods with the given name in a lane, in place of
+        any lane given by their {@link Lane} annotations.
+
+        @param method The name of one or more methods of the remote
+                      interface.
+        @param lane The name of the lane, or <code>null</code> to go back to
+                    the lane of the annotation, if any.
+        @throws NullPointerException If <code>method</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If the remote interface has no
+                                         method with that name.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setLane(String method, String lane)
+    {
+        if (method == null) {
+            throw new NullPointerException();
+        }
+        if (this.isRunning) {
+            throw new IllegalStateException("cannot change the lanes of a running skeleton");
+        }
+        boolean found = false;
+        for (int id = 0; id < methodTable.size(); id++) {
+            found = found || methodTable.method(id).getName().equals(method);
+        }
+        if (!found) {
+            throw new IllegalArgumentException("no remote method named " + method);
+        }
+        if (lane == null) {
+            methodLanes.remove(method);
+        } else {
+            methodLanes.put(method, lane);
+        }
+    }
+
+    /** Returns the lane of the remote methods with the given name, or
+        <code>null</code> if they run on the default executor. */
+    public synchronized String getLane(String method)
+    {
+        String lane = methodLanes.get(method);
+        if (lane != null) {
+            return lane;
+        }
+        for (int id = 0; id < methodTable.size(); id++) {
+            Method m = methodTable.method(id);
+            if (m.getName().equals(method) && m.isAnnotationPresent(Lane.class)) {
+                return m.getAnnotation(Lane.class).value();
+            }
+        }
+        return null;
+    }
+
+    /* Works out the executor of each method from its lane. */
+    private ExecutorService[] assignLanes()
+    {
+        ExecutorService[] executors = new ExecutorService[methodTable.size()];
+        for (int id = 0; id < executors.length; id++) {
+            Method method = methodTable.method(id);
+            String lane = methodLanes.get(method.getName());
+            if (lane == null && method.isAnnotationPresent(Lane.class)) {
+                lane = method.getAnnotation(Lane.class).value();
+            }
+            ExecutorService laneExecutor = lane == null ? null : laneExecutors.get(lane);
+            executors[id] = laneExecutor == null ? executor : laneExecutor;
+        }
+        return executors;
+    }
+
+    /** Serves connections from a fixed number of selector threads instead of
+        a thread per connection.
+
+        <p>
+        The selector threads only read and frame requests; calls are run by
+        the executor as usual, and their replies are written by the threads
+        that ran them. A connection with no calls in progress then holds no
+        thread, so a server can keep a very large number of idle stub
+        connections open. Executors using
+        <code>ThreadPoolExecutor.CallerRunsPolicy</code> should not be
+        combined with selector threads, since a rejected call would then run
+        on, and block, a selector thread.
+
+        @param threads The number of selector threads, or zero to read each
+                       connection from its own thread, which is the default.
+        @throws IllegalArgumentException If <code>threads</code> is negative.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setSelectorThreads(int threads)
+    {
+        if (threads < 0) {
+            throw new IllegalArgumentException("threads must not be negative");
+        }
+        if (this.isRunning) {
+            throw new IllegalStateException("cannot change the transport of a running skeleton");
+        }
+        this.selectorThreads = threads;
+    }
+
+    /** Returns the number of active workers, the number of calls waiting for
+        a worker, and the numbers of calls rejected and dropped so far. */
+    public WorkerStatistics getWorkerStatistics()
+    {
+        return new WorkerStatistics(activeWorkers.get(), queuedCalls.get(),
+                                    rejectedCalls.get(), expiredCalls.get(),
+                                    admission.refusedCalls(), admission.throttledCalls(),
+                                    admission.refusedConnections());
+    }
+
+    /** Sets the limits on the calls and connections the skeleton accepts.
+
+        <p>
+        The limits may be changed while the skeleton is running. They apply
+        to calls and connections arriving from then on.
+
+        @param limits The new limits, or <code>AdmissionControl.NONE</code>
+                      for none, which is the default.
+        @throws NullPointerException If <code>limits</code> is
+                                     <code>null</code>.
+     */
+    public void setAdmissionControl(AdmissionControl limits)
+    {
+        if (limits == null) {
+            throw new NullPointerException();
+        }
+        this.admissionControl = limits;
+    }
+
+    public AdmissionControl getAdmissionControl()
+    {
+        return admissionControl;
+    }
+
+    /* Admits a call from the given address, or null for this host, or
+       throws the reason it is refused. What is returned is passed to
+       release once the call has finished. */
+    Admission.Client admit(InetAddress address, int calls) throws RMIException
+    {
+        return admission.admit(admissionControl, address, calls);
+    }
+
+    void release(Admission.Client counted)
+    {
+        admission.release(counted);
+    }
+
+    Admission.Client admitConnection(InetAddress address) throws RMIException
+    {
+        return admission.admitConnection(admissionControl, address);
+    }
+
+    void releaseConnection(Admission.Client counted)
+    {
+        admission.releaseConnection(counted);
+    }
+
+    /** Returns a snapshot of the calls served by the skeleton since it was
+        created. */
+    public CallMetrics metrics()
+    {
+        return recorder.snapshot(connections.size());
+    }
+
+    /** Publishes the skeleton's metrics on the platform MBean server.
+
+        <p>
+        The MBean is named <code>rmi:type=Skeleton,interface=</code> followed
+        by the name of the remote interface and <code>,port=</code> followed by
+        the port, so the skeleton should be started, or have a fixed port,
+        before this is called. It stays registered until
+        <code>unregisterMetricsMBean</code> is called, including while the
+        skeleton is stopped.
+
+        @return The name under which the MBean was registered.
+        @throws RMIException If the MBean cannot be registered, for instance
+                             because another skeleton for the same interface
+                             and port has registered one.
+     */
+    public synchronized ObjectName registerMetricsMBean() throws RMIException
+    {
+        if (metricsName != null) {
+            return metricsName;
+        }
+        try {
+            ObjectName name = new ObjectName("rmi:type=Skeleton,interface="
+                                             + sclass.getName() + ",port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), name);
+            metricsName = name;
+            return name;
+        } catch (JMException e) {
+            throw new RMIException(e);
+        }
+    }
+
+    /** Removes the MBean registered by <code>registerMetricsMBean</code>, if
+        any. */
+    public synchronized void unregisterMetricsMBean()
+    {
+        if (metricsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+            /* already unregistered by someone else */
+        }
+        metricsName = null;
+    }
+
+    /* Answers every attribute from a fresh snapshot. */
+    private class MetricsBean implements SkeletonMetricsMXBean {
+        public long getCalls() {
+            return metrics().getCalls();
+        }
+
+        public long getErrors() {
+            return metrics().getErrors();
+        }
+
+        public long getBytesIn() {
+            return metrics().getBytesIn();
+        }
+
+        public long getBytesOut() {
+            return metrics().getBytesOut();
+        }
+
+        public double getCompressionRatio() {
+            return metrics().getCompressionRatio();
+        }
+
+        public int getActiveConnections() {
+            return connections.size();
+        }
+
+        public int getQueuedCalls() {
+            return queuedCalls.get();
+        }
+
+        public LatencyDistribution getQueueTime() {
+            return metrics().getQueueTime();
+        }
+
+        public Map<String, MethodMetrics> getMethods() {
+            return metrics().getMethods();
         }
     }
 
@@ -230,6 +1027,14 @@ public class Skeleton<T>
         return this.server;
     }
 
+    MethodTable getMethodTable() {
+        return this.methodTable;
+    }
+
+    MetricsRecorder recorder() {
+        return this.recorder;
+    }
+
     public String getHostName() {
 		    return hostName;
 	  }
@@ -246,14 +1051,146 @@ public class Skeleton<T>
         isRunning = rs;
     }
 
-    private static boolean RMIExcpetionCheck(Class<?> c){
-        Method[] methods = c.getMethods();
-        for (Method method : methods) {
-            Class<?>[] exceptions = method.getExceptionTypes();
-            if (!Arrays.asList(exceptions).contains(RMIException.class)) {
-                return false;
+    /* Binds the listening socket. Connections closed by stop() may linger in
+       TIME_WAIT on the port, so address reuse is enabled. A skeleton that
+       was stopped an instant ago, possibly a different one on the same fixed
+       port, keeps the port until its thread blocked in accept() has woken up,
+       so binding is retried for a short while. */
+    private static ServerSocket bind(int port, boolean channel) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            ServerSocket socket = channel ? ServerSocketChannel.open().socket() : new ServerSocket();
+            try {
+                socket.setReuseAddress(true);
+                socket.bind(new InetSocketAddress(port));
+                return socket;
+            } catch (BindException e) {
+                socket.close();
+                if (port == 0 || attempt == BIND_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(BIND_RETRY_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while binding");
+            }
+        }
+    }
+
+    /* A listening socket closed by stop() keeps its port until the thread
+       blocked in accept() has returned, so a restart waits for the previous
+       listening thread. This is done outside the lock, which the exiting
+       thread may need in stopped(). */
+    private void awaitListenThread() {
+        lThread<T> previous = this.listen_thread;
+        if (previous == null || previous == Thread.currentThread() || this.isRunning) {
+            return;
+        }
+        try {
+            previous.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Starts serving an accepted connection, either from a thread of its
+       own or from the selector threads. */
+    void dispatch(Socket socket) {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null) {
+            try {
+                while (!selectorTransport().register(channel)) {
+                    /* the transport left over from before a restart has
+                       just exited, and the next call makes a new one; a
+                       skeleton that is stopping would only make transports
+                       that exit at once, so the connection is closed */
+                    if (!getRunningStatus()) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                        }
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException f) {
+                }
+                service_error(new RMIException(e));
+            }
+            return;
+        }
+
+        serve(new pThread<T>(this, socket));
+    }
+
+    /* Starts a thread reading calls from a connection. */
+    private void serve(pThread<T> connection) {
+        connectionOpened(connection);
+        Thread reader = new Thread(connection, "rmi-skeleton-reader-" + readerNumber.incrementAndGet());
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /* Returns the running selector transport, making one if there is none or
+       if the previous one has exited. */
+    private synchronized SelectorTransport selectorTransport() throws IOException {
+        if (selectorTransport == null || selectorTransport.isTerminated()) {
+            selectorTransport = new SelectorTransport(this, selectorThreads);
+        }
+        return selectorTransport;
+    }
+
+    /* Hands a call of the given method to the executor of its lane. Returns
+       false if the executor rejected it; the caller then fails the call at
+       once instead of leaving the stub waiting. */
+    boolean execute(int methodId, ServerConnection.Call call) {
+        ExecutorService[] executors = methodExecutors;
+        ExecutorService target = methodId >= 0 && methodId < executors.length
+            ? executors[methodId] : executor;
+        queuedCalls.incrementAndGet();
+        pendingCalls.add(call);
+        try {
+            target.execute(call);
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingCalls.remove(call);
+            queuedCalls.decrementAndGet();
+            rejectedCalls.incrementAndGet();
+            return false;
+        }
+    }
+
+    void workerStarted() {
+        queuedCalls.decrementAndGet();
+        activeWorkers.incrementAndGet();
+    }
+
+    void workerFinished(ServerConnection.Call call) {
+        activeWorkers.decrementAndGet();
+        pendingCalls.remove(call);
+        if (draining) {
+            synchronized (pendingCalls) {
+                pendingCalls.notifyAll();
             }
         }
-        return true;
+    }
+
+    void callExpired() {
+        expiredCalls.incrementAndGet();
+    }
+
+    void connectionOpened(ServerConnection connection) {
+        connections.add(connection);
+    }
+
+    void connectionClosed(ServerConnection connection) {
+        connections.remove(connection);
+    }
+
+    int connectionCount() {
+        return connections.size();
     }
 }
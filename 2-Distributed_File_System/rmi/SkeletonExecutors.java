@@ -0,0 +1,138 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Factory methods for executors that run skeleton calls.
+
+    <p>
+    A skeleton hands every call it reads to its executor as one task. A worker
+    is occupied only while a call runs, so bounded executors should be sized
+    for the expected number of concurrently executing calls, including calls
+    that block in the server, such as naming server <code>lock</code>.
+
+    <p>
+    All threads created by these executors are daemon threads.
+ */
+public abstract class SkeletonExecutors {
+
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+
+    /** Returns an executor that starts a new thread whenever no idle thread is
+        available. This is the default for skeletons. Idle threads exit after
+        one minute.
+     */
+    public static ExecutorService unbounded() {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                                      new SynchronousQueue<Runnable>(),
+                                      threadFactory());
+    }
+
+    /** Returns an executor with a fixed number of threads and an unbounded
+        queue of waiting calls.
+
+        @param threads The number of worker threads.
+        @throws IllegalArgumentException If <code>threads</code> is not
+                                         positive.
+     */
+    public static ExecutorService fixed(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                      new LinkedBlockingQueue<Runnable>(),
+                                      threadFactory());
+    }
+
+    /** Returns an executor with a fixed number of threads and a bounded queue
+        of waiting calls.
+
+        <p>
+        When all threads are busy and the queue is full, the given policy
+        decides what happens to a newly read call. With
+        <code>ThreadPoolExecutor.AbortPolicy</code> the skeleton fails the call
+        immediately, and the calling stub throws <code>RMIException</code>.
+        With <code>ThreadPoolExecutor.CallerRunsPolicy</code> the thread
+        reading the connection runs the call itself, which stops further calls
+        on that connection from being read until it is done.
+
+        @param threads The number of worker threads.
+        @param queueCapacity The number of calls that may wait for a worker.
+        @param rejectionPolicy Handler for calls that cannot be queued.
+        @throws IllegalArgumentException If <code>threads</code> or
+                                         <code>queueCapacity</code> is not
+                                         positive.
+        @throws NullPointerException If <code>rejectionPolicy</code> is
+                                     <code>null</code>.
+     */
+    public static ExecutorService bounded(int threads, int queueCapacity,
+                                          RejectedExecutionHandler rejectionPolicy) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                      threadFactory(), rejectionPolicy);
+    }
+
+    /** Returns an executor that runs every call on its own virtual
+        thread, if the running JVM supports virtual threads (Java 21 and
+        later).
+
+        <p>
+        Virtual threads make it cheap to keep a very large number of calls
+        blocked inside the server, such as clients waiting for a naming server
+        lock. On a JVM without virtual threads this method returns
+        <code>unbounded()</code>, so code using it runs unchanged on older
+        runtimes.
+     */
+    public static ExecutorService virtual() {
+        return virtual(virtualThreadFactoryMethod());
+    }
+
+    /* Returns the executor made by the given factory method, or unbounded()
+       if there is none or it fails. Tests pass their own method to stand in
+       for JVMs without virtual threads. */
+    static ExecutorService virtual(Method factory) {
+        if (factory != null) {
+            try {
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                /* present but disabled, as with preview builds */
+            }
+        }
+        return unbounded();
+    }
+
+    /** Returns <code>true</code> if <code>virtual()</code> creates virtual
+        threads on this JVM. */
+    public static boolean virtualThreadsAvailable() {
+        Method factory = virtualThreadFactoryMethod();
+        if (factory == null) {
+            return false;
+        }
+        try {
+            ((ExecutorService) factory.invoke(null)).shutdown();
+            return true;
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /* Executors.newVirtualThreadPerTaskExecutor is looked up reflectively so
+       that the library still compiles and runs on Java versions before 21. */
+    private static Method virtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory threadFactory() {
+        final String prefix = "rmi-skeleton-" + poolNumber.incrementAndGet() + "-worker-";
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
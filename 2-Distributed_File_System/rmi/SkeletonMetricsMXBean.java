@@ -0,0 +1,32 @@
+package rmi;
+
+import java.util.Map;
+
+/** Management interface through which a skeleton's metrics are published
+    over JMX.
+
+    <p>
+    Registered by <code>Skeleton.registerMetricsMBean</code>. Every attribute
+    is read from a fresh <code>CallMetrics</code> snapshot; see that class for
+    the meaning of each.
+ */
+public interface SkeletonMetricsMXBean
+{
+    public long getCalls();
+
+    public long getErrors();
+
+    public long getBytesIn();
+
+    public long getBytesOut();
+
+    public double getCompressionRatio();
+
+    public int getActiveConnections();
+
+    public int getQueuedCalls();
+
+    public LatencyDistribution getQueueTime();
+
+    public Map<String, MethodMetrics> getMethods();
+}
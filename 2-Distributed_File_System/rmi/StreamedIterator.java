@@ -0,0 +1,95 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/* Client side of a remote iterator: the values of the current chunk, and the
+ * fetch of the next chunk, which is started as soon as the current one is
+ * installed. Fetches and closes are calls to reserved method IDs on the
+ * pool's connections, and use the time limits of the call that returned the
+ * iterator.
+ */
+final class StreamedIterator<E> implements RemoteIterator<E> {
+
+    private final ConnectionPool pool;
+    private final Timeouts timeouts;
+
+    private long cursor;
+    private Object[] values;
+    private int index = 0;
+    private boolean more;
+    private CompletableFuture<Object> next = null;
+
+    StreamedIterator(ConnectionPool pool, Cursors.Chunk first, Timeouts timeouts) {
+        this.pool = pool;
+        this.timeouts = timeouts;
+        install(first);
+    }
+
+    public boolean hasNext() throws RMIException {
+        while (index == values.length) {
+            if (!more) {
+                return false;
+            }
+            install(await());
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public E next() throws RMIException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        E value = (E) values[index];
+        values[index++] = null;
+        return value;
+    }
+
+    public void close() {
+        if (more) {
+            more = false;
+            values = new Object[0];
+            index = 0;
+            try {
+                pool.submit(Skeleton.CLOSE_ITERATOR, new Object[] { cursor }, timeouts);
+            } catch (IOException e) {
+                /* the skeleton drops the iterator once it is idle */
+            }
+        }
+    }
+
+    private void install(Cursors.Chunk chunk) {
+        values = chunk.values;
+        index = 0;
+        more = chunk.more;
+        cursor = chunk.cursor;
+        next = null;
+        if (more) {
+            try {
+                next = pool.submit(Skeleton.FETCH_ITERATOR, new Object[] { cursor }, timeouts);
+            } catch (IOException e) {
+                next = new CompletableFuture<Object>();
+                next.completeExceptionally(e);
+            }
+        }
+    }
+
+    private Cursors.Chunk await() throws RMIException {
+        try {
+            return (Cursors.Chunk) next.get();
+        } catch (ExecutionException e) {
+            more = false;
+            Throwable cause = e.getCause();
+            if (cause instanceof RMIException) {
+                throw (RMIException) cause;
+            }
+            throw new RMIException(cause);
+        } catch (InterruptedException e) {
+            more = false;
+            throw new RMIException("interrupted waiting for a chunk", e);
+        }
+    }
+}
@@ -3,8 +3,6 @@ package rmi;
 import java.net.*;
 import java.lang.reflect.*;
 import java.lang.reflect.Proxy;
-import java.lang.reflect.Method;
-import java.util.Arrays;
 
 /** RMI stub factory.
 
@@ -18,6 +16,14 @@ import java.util.Arrays;
     may not be modified afterwards. Two stubs are equal if they implement the
     same interface and carry the same remote server address - and would
     therefore connect to the same skeleton. Stubs are serializable.
+
+    <p>
+    For remote interfaces whose stub classes were generated at build time by
+    <code>build.StubGenerator</code>, stubs are instances of the generated
+    class, which calls the remote methods by ID without going through a
+    dynamic proxy. A generated class that no longer matches its interface is
+    ignored, and a proxy is used instead. Generated and proxy stubs behave
+    alike and compare equal to each other.
  */
 public abstract class Stub
 {
@@ -56,7 +62,7 @@ public abstract class Stub
             throw new NullPointerException();
         } else if(skeleton.getHostName() == null && !skeleton.getRunningStatus() ) {
             throw new IllegalStateException();
-        } else if( !c.isInterface() || !RMIExcpetionCheck(c) ) {
+        } else if( !MethodTable.isRemoteInterface(c) ) {
             throw new Error("C does not represent a remote interface");
         }
 
@@ -67,9 +73,7 @@ public abstract class Stub
         }
 
         InetSocketAddress address = new InetSocketAddress(skeleton.getHostName(), skeleton.getPort());
-        InvocationHandler handler = new MyInvocationHandler(address, c);
-
-        return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c }, handler);
+        return make(c, new MyInvocationHandler(address, c));
     }
 
     /** Creates a stub, given a skeleton with an assigned address and a hostname
@@ -109,14 +113,12 @@ public abstract class Stub
             throw new NullPointerException();
         } else if(skeleton.getPort() == 0) {
             throw new IllegalStateException();
-        } else if( !c.isInterface() || !RMIExcpetionCheck(c) ) {
+        } else if( !MethodTable.isRemoteInterface(c) ) {
             throw new Error("C does not represent a remote interface");
         }
 
         InetSocketAddress address = new InetSocketAddress(hostname, skeleton.getPort());
-        InvocationHandler handler = new MyInvocationHandler(address, c);
-
-        return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c }, handler);
+        return make(c, new MyInvocationHandler(address, c));
     }
 
     /** Creates a stub, given the address of a remote server.
@@ -140,27 +142,144 @@ public abstract class Stub
     {
         if(c == null || address == null) {
             throw new NullPointerException();
-        } else if( !c.isInterface() || !RMIExcpetionCheck(c) ) {
+        } else if( !MethodTable.isRemoteInterface(c) ) {
             throw new Error("C does not represent a remote interface");
         }
 
-        InvocationHandler handler = new MyInvocationHandler(address, c);
-        return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class[] { c }, handler);
+        return make(c, new MyInvocationHandler(address, c));
     }
 
-    /* Following are private helper functions */
+    /** Returns a stub for the same skeleton as an existing stub, with other
+        time limits for its calls.
 
-    /* check if all the methods of an interface have thrown RMIException */
-    private static boolean RMIExcpetionCheck(Class<?> c){
-        Method[] methods = c.getMethods();
-        for (Method method : methods) {
-            Class<?>[] exceptions = method.getExceptionTypes();
-            if (!Arrays.asList(exceptions).contains(RMIException.class)) {
-                return false;
-            }
+        <p>
+        The new stub is equal to the existing one, which keeps its own limits.
+        Limits given for particular methods with
+        <code>withTimeouts(stub, method, timeouts)</code> are carried over.
+
+        @param stub A stub created by one of the <code>create</code> methods.
+        @param timeouts The limits for all methods of the stub.
+        @return The new stub.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    public static <T> T withTimeouts(T stub, Timeouts timeouts)
+    {
+        if(timeouts == null) {
+            throw new NullPointerException();
         }
-        return true;
+
+        return copy(stub, handler(stub).withTimeouts(null, timeouts));
     }
 
+    /** Returns a stub for the same skeleton as an existing stub, with other
+        time limits for calls to the methods with the given name.
 
+        @param stub A stub created by one of the <code>create</code> methods.
+        @param method Name of the methods whose calls are to be limited.
+        @param timeouts The limits for those methods.
+        @return The new stub.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub, or
+                                         if its remote interface has no method
+                                         with the given name.
+     */
+    public static <T> T withTimeouts(T stub, String method, Timeouts timeouts)
+    {
+        if(method == null || timeouts == null) {
+            throw new NullPointerException();
+        }
+
+        MyInvocationHandler handler = handler(stub);
+        boolean found = false;
+        for(Method m : handler.getinterface().getMethods()) {
+            found = found || m.getName().equals(method);
+        }
+        if(!found) {
+            throw new IllegalArgumentException("no remote method named " + method);
+        }
+
+        return copy(stub, handler.withTimeouts(method, timeouts));
+    }
+
+    /** Returns a snapshot of the calls made through a stub.
+
+        <p>
+        All stubs for the same interface and remote address share their
+        connections, and so share their metrics: the snapshot covers the calls
+        made by all of them, including asynchronous and batched calls.
+
+        @param stub A stub created by one of the <code>create</code> methods.
+        @return The metrics snapshot.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    public static CallMetrics metrics(Object stub)
+    {
+        return handler(stub).metrics();
+    }
+
+    /** Drops the results of {@link Cached} methods cached for a stub.
+
+        <p>
+        All stubs for the same interface and remote address share one cache,
+        so the results are dropped for all of them. Results of calls in
+        progress are not cached.
+
+        @param stub A stub created by one of the <code>create</code> methods.
+        @throws NullPointerException If <code>stub</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> is not a stub.
+     */
+    public static void invalidateCache(Object stub)
+    {
+        handler(stub).invalidateCache();
+    }
+
+    /* Returns the invocation handler of a stub. */
+    private static MyInvocationHandler handler(Object stub)
+    {
+        if(stub == null) {
+            throw new NullPointerException();
+        }
+
+        MyInvocationHandler handler = handlerOf(stub);
+        if(handler == null) {
+            throw new IllegalArgumentException("not a stub");
+        }
+        return handler;
+    }
+
+    /* Returns the invocation handler of a proxy or generated stub, or null if
+       the object is not a stub. */
+    static MyInvocationHandler handlerOf(Object stub)
+    {
+        if(stub instanceof GeneratedStub) {
+            return ((GeneratedStub) stub).handler();
+        } else if(stub == null || !Proxy.isProxyClass(stub.getClass())
+                  || !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler)) {
+            return null;
+        }
+        return (MyInvocationHandler) Proxy.getInvocationHandler(stub);
+    }
+
+    /* Makes a stub for an interface: an instance of the class generated for
+       it at build time if there is one, or else a proxy. */
+    @SuppressWarnings("unchecked")
+    private static <T> T make(Class<T> c, MyInvocationHandler handler)
+    {
+        GeneratedStub generated = GeneratedClasses.stub(c, handler);
+        if(generated != null) {
+            return (T) generated;
+        }
+        return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c }, handler);
+    }
+
+    /* Makes a stub of the same interface as another, with a new handler. */
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T stub, MyInvocationHandler handler)
+    {
+        return make((Class<T>) handler.getinterface(), handler);
+    }
 }
@@ -0,0 +1,184 @@
+package rmi;
+
+import java.io.Serializable;
+import java.net.SocketTimeoutException;
+
+/** Time limits applied to calls made through a stub.
+
+    <p>
+    Three limits are applied, each in milliseconds, with zero meaning no
+    limit:
+    <ul>
+    <li>The <em>connect timeout</em> bounds the time taken to open a new
+        connection to the skeleton, including the protocol handshake. Calls
+        that find a connection already open do not wait for one.</li>
+    <li>The <em>read timeout</em> bounds the time spent waiting for the reply
+        once a call has been sent.</li>
+    <li>The <em>deadline</em> bounds the whole call, from the moment the stub
+        method is invoked, including connecting and any retries.</li>
+    </ul>
+
+    <p>
+    A call that exceeds a limit fails with an <code>RMIException</code> whose
+    cause is a <code>SocketTimeoutException</code>. The time the stub is still
+    willing to wait is sent with the call, so that a skeleton that only gets
+    to the call after its caller has given up drops it instead of running it.
+
+    <p>
+    Stubs use the default limits unless given others with
+    <code>Stub.withTimeouts</code>. The defaults can be set with the
+    <code>rmi.call.connectTimeout</code>, <code>rmi.call.readTimeout</code>
+    and <code>rmi.call.deadline</code> system properties, or changed at run
+    time. Only the connect timeout has a default limit, of ten seconds, since
+    some remote methods, such as naming server locks, legitimately block for a
+    long time.
+ */
+public final class Timeouts implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /** No limits at all. */
+    public static final Timeouts NONE = new Timeouts(0, 0, 0);
+
+    private static volatile Timeouts defaults = new Timeouts(
+        Long.getLong("rmi.call.connectTimeout", 10000L),
+        Long.getLong("rmi.call.readTimeout", 0L),
+        Long.getLong("rmi.call.deadline", 0L));
+
+    private final long connect;
+    private final long read;
+    private final long deadline;
+
+    /** Creates a set of limits.
+
+        @param connect Connect timeout in milliseconds, or zero.
+        @param read Read timeout in milliseconds, or zero.
+        @param deadline Deadline in milliseconds, or zero.
+        @throws IllegalArgumentException If any limit is negative.
+     */
+    public Timeouts(long connect, long read, long deadline)
+    {
+        if (connect < 0 || read < 0 || deadline < 0) {
+            throw new IllegalArgumentException("timeouts must not be negative");
+        }
+        this.connect = connect;
+        this.read = read;
+        this.deadline = deadline;
+    }
+
+    /** Returns the limits used by stubs that have not been given others. */
+    public static Timeouts getDefault()
+    {
+        return defaults;
+    }
+
+    /** Sets the limits used by stubs that have not been given others.
+
+        @throws NullPointerException If <code>timeouts</code> is
+                                     <code>null</code>.
+     */
+    public static void setDefault(Timeouts timeouts)
+    {
+        if (timeouts == null) {
+            throw new NullPointerException();
+        }
+        defaults = timeouts;
+    }
+
+    public long getConnectTimeout()
+    {
+        return connect;
+    }
+
+    public long getReadTimeout()
+    {
+        return read;
+    }
+
+    public long getDeadline()
+    {
+        return deadline;
+    }
+
+    public boolean equals(Object other)
+    {
+        if (!(other instanceof Timeouts)) {
+            return false;
+        }
+        Timeouts that = (Timeouts) other;
+        return connect == that.connect && read == that.read && deadline == that.deadline;
+    }
+
+    public int hashCode()
+    {
+        return (int) (connect * 961 + read * 31 + deadline);
+    }
+
+    public String toString()
+    {
+        return "connect timeout: " + connect + " ms, read timeout: " + read
+            + " ms, deadline: " + deadline + " ms";
+    }
+
+    /* Tracks the limits of one call as it proceeds. */
+    Clock start()
+    {
+        return new Clock(this);
+    }
+
+    static final class Clock {
+        private final Timeouts timeouts;
+        /* System.nanoTime() at which the deadline passes, if there is one */
+        private final long expires;
+
+        private Clock(Timeouts timeouts) {
+            this.timeouts = timeouts;
+            this.expires = System.nanoTime() + timeouts.deadline * 1000000L;
+        }
+
+        /* Returns the milliseconds left before the deadline, or zero if
+           there is none; throws once it has passed. */
+        private long remaining() throws SocketTimeoutException {
+            if (timeouts.deadline == 0) {
+                return 0;
+            }
+            long left = (expires - System.nanoTime() + 999999L) / 1000000L;
+            if (left <= 0) {
+                throw new SocketTimeoutException("call deadline of " + timeouts.deadline
+                                                 + " ms expired");
+            }
+            return left;
+        }
+
+        /* Returns the limit for opening a connection now, or zero. */
+        int connectTimeout() throws SocketTimeoutException {
+            return (int) Math.min(Integer.MAX_VALUE, earliest(timeouts.connect, remaining()));
+        }
+
+        /* Returns how long to wait for a reply to a call sent now, or zero.
+           This is also the budget sent to the skeleton. */
+        long replyTimeout() throws SocketTimeoutException {
+            return earliest(timeouts.read, remaining());
+        }
+
+        /* Reports a wait for a reply that lasted the given time without one. */
+        SocketTimeoutException expired(long waited) {
+            if (timeouts.read != 0 && waited >= timeouts.read) {
+                return new SocketTimeoutException("no reply within the read timeout of "
+                                                  + timeouts.read + " ms");
+            }
+            return new SocketTimeoutException("call deadline of " + timeouts.deadline
+                                              + " ms expired");
+        }
+
+        private static long earliest(long a, long b) {
+            if (a == 0) {
+                return b;
+            }
+            if (b == 0) {
+                return a;
+            }
+            return Math.min(a, b);
+        }
+    }
+}
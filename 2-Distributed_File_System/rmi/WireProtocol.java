@@ -0,0 +1,360 @@
+package rmi;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import common.Path;
+
+/* Binary wire format spoken between stubs and skeletons.
+ *
+ * Every message is a frame: a four-byte payload length followed by the
+ * payload, whose first byte is the frame type. A connection starts with a
+ * HELLO frame from the stub naming the protocol version, the remote interface,
+ * the fingerprint of its method table and the optional features it offers;
+ * the skeleton answers HELLO_OK with the version it will speak, the path of
+ * the skeleton's Unix domain socket (empty if it has none) and the features
+ * it accepts, or HELLO_REJECTED with a reason. After that the
+ * stub sends CALL frames carrying a request ID, a budget, a method ID and the
+ * encoded arguments, and the skeleton answers each with RETURN or THROW
+ * carrying the same request ID, the skeleton's cache generation and one
+ * encoded value. Request IDs let a stub
+ * have several calls outstanding on one connection and match each reply to
+ * its call. The budget is the number of milliseconds the stub will wait for
+ * the reply, or zero if it will wait indefinitely; a skeleton that only
+ * reaches the call after that time fails it without running it, and the stub
+ * drops replies to calls it has given up on.
+ *
+ * A BATCH frame carries a request ID, a budget and a count followed by that
+ * many calls, each a method ID and its arguments. The skeleton runs them in order and
+ * answers with one BATCH_RESULT frame holding the request ID, the cache
+ * generation, the count and, for each call, a RETURN or THROW byte and the
+ * encoded value.
+ *
+ * The cache generation is a number the skeleton changes whenever results its
+ * stubs have cached must be dropped.
+ *
+ * A skeleton that stops reading a connection, because it is being stopped,
+ * first sends a CLOSING frame holding the request ID of the last call it
+ * read, or zero. Stubs send calls with increasing request IDs, so the calls
+ * after that one were never read, and the stub may send them again
+ * elsewhere. Replies to the calls read are still sent before the skeleton
+ * closes the connection. A connection closed without a CLOSING frame may
+ * have been closed after any of its calls was read.
+ *
+ * On connections that accepted the compression feature, any frame after the
+ * handshake may be sent as a COMPRESSED frame: the length of the original
+ * payload followed by the payload, type byte included, compressed with
+ * Deflater.
+ *
+ * Values are written as a one-byte tag followed by the value. The types that
+ * dominate filesystem traffic (Path, long, int, boolean, String, byte[],
+ * String[] and Path[]) have hand-written encodings; anything else is written
+ * with Java serialization as a length-prefixed blob. A chunk of a remote
+ * iterator is written as its cursor ID, the number of values, the values
+ * and whether more follow.
+ *
+ * Method IDs below zero are reserved for calls the skeleton handles itself:
+ * fetching the next chunk of a remote iterator, and closing one.
+ *
+ * Lengths read from a peer are checked before anything is allocated for
+ * them: a frame may be at most MAX_FRAME_SIZE bytes long, set with the
+ * rmi.maxFrameSize system property, and a value within a frame no longer
+ * than what remains of the frame. A peer sending more is treated as sending
+ * a corrupt stream, and its connection is closed.
+ */
+final class WireProtocol {
+
+    static final int MAGIC = 0x524d4931;
+    static final byte VERSION = 8;
+
+    /* the longest frame payload read from a peer */
+    static final int MAX_FRAME_SIZE = Integer.getInteger("rmi.maxFrameSize", 64 * 1024 * 1024);
+
+    /* frame types */
+    static final byte HELLO = 1;
+    static final byte HELLO_OK = 2;
+    static final byte HELLO_REJECTED = 3;
+    static final byte CALL = 4;
+    static final byte RETURN = 5;
+    static final byte THROW = 6;
+    static final byte BATCH = 7;
+    static final byte BATCH_RESULT = 8;
+    static final byte COMPRESSED = 9;
+    static final byte CLOSING = 10;
+
+    /* value tags */
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte STRING = 5;
+    private static final byte PATH = 6;
+    private static final byte BYTES = 7;
+    private static final byte STRINGS = 8;
+    private static final byte PATHS = 9;
+    private static final byte SERIALIZED = 10;
+    private static final byte CHUNK = 11;
+
+    private WireProtocol() {
+    }
+
+    /* Reads the payload of the next frame. An EOFException before the length
+       means the peer closed the connection between frames. */
+    static DataInputStream readFrame(DataInputStream in) throws IOException {
+        int length = frameLength(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return new DataInputStream(new ByteArrayInputStream(payload));
+    }
+
+    /* Checks the length of a frame read from a peer, and returns it. */
+    static int frameLength(int length) throws StreamCorruptedException {
+        if (length < 1) {
+            throw new StreamCorruptedException("invalid frame length " + length);
+        }
+        if (length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("frame of " + length + " bytes exceeds the limit of "
+                                               + MAX_FRAME_SIZE);
+        }
+        return length;
+    }
+
+    /* Undoes the compression of a frame read from the connection, if it was
+       compressed, and records the sizes. Other frames are returned as they
+       are. */
+    static DataInputStream expand(DataInputStream frame, MetricsRecorder metrics) throws IOException {
+        frame.mark(1);
+        if (frame.readByte() != COMPRESSED) {
+            frame.reset();
+            return frame;
+        }
+        int length = frame.readInt();
+        if (length < 1) {
+            throw new StreamCorruptedException("invalid frame length " + length);
+        }
+        byte[] packed = frame.readAllBytes();
+        metrics.compressed(length + 4, packed.length + 9);
+        return new DataInputStream(new ByteArrayInputStream(Compression.inflate(packed, length)));
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+            return;
+        }
+
+        Class<?> type = value.getClass();
+        if (type == Boolean.class) {
+            out.writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+        } else if (type == Integer.class) {
+            out.writeByte(INT);
+            out.writeInt(((Integer) value).intValue());
+        } else if (type == Long.class) {
+            out.writeByte(LONG);
+            out.writeLong(((Long) value).longValue());
+        } else if (type == String.class) {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        } else if (type == Path.class) {
+            out.writeByte(PATH);
+            writeString(out, value.toString());
+        } else if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } else if (type == String[].class) {
+            String[] strings = (String[]) value;
+            out.writeByte(STRINGS);
+            out.writeInt(strings.length);
+            for (String string : strings) {
+                writeString(out, string);
+            }
+        } else if (type == Path[].class) {
+            Path[] paths = (Path[]) value;
+            out.writeByte(PATHS);
+            out.writeInt(paths.length);
+            for (Path path : paths) {
+                writeString(out, path == null ? null : path.toString());
+            }
+        } else if (type == Cursors.Chunk.class) {
+            Cursors.Chunk chunk = (Cursors.Chunk) value;
+            out.writeByte(CHUNK);
+            out.writeLong(chunk.cursor);
+            out.writeInt(chunk.values.length);
+            for (Object element : chunk.values) {
+                writeValue(out, element);
+            }
+            out.writeBoolean(chunk.more);
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream serializer = new ObjectOutputStream(bytes);
+            serializer.writeObject(value);
+            serializer.close();
+            out.writeByte(SERIALIZED);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    static Object readValue(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case NULL:
+            return null;
+        case TRUE:
+            return Boolean.TRUE;
+        case FALSE:
+            return Boolean.FALSE;
+        case INT:
+            return in.readInt();
+        case LONG:
+            return in.readLong();
+        case STRING:
+            return readString(in);
+        case PATH:
+            return new Path(readString(in));
+        case BYTES: {
+            byte[] bytes = new byte[readLength(in)];
+            in.readFully(bytes);
+            return bytes;
+        }
+        case STRINGS: {
+            String[] strings = new String[readLength(in)];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(in);
+            }
+            return strings;
+        }
+        case PATHS: {
+            Path[] paths = new Path[readLength(in)];
+            for (int i = 0; i < paths.length; i++) {
+                String path = readString(in);
+                paths[i] = path == null ? null : new Path(path);
+            }
+            return paths;
+        }
+        case SERIALIZED: {
+            byte[] bytes = new byte[readLength(in)];
+            in.readFully(bytes);
+            ObjectInputStream deserializer =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            return deserializer.readObject();
+        }
+        case CHUNK: {
+            long cursor = in.readLong();
+            Object[] values = new Object[readLength(in)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue(in);
+            }
+            return new Cursors.Chunk(cursor, values, in.readBoolean());
+        }
+        default:
+            throw new StreamCorruptedException("unknown value tag " + tag);
+        }
+    }
+
+    /* Returns a copy of a value, made by encoding and decoding it as if it
+       had been sent to another JVM. */
+    static Object copy(Object value) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeValue(new DataOutputStream(bytes), value);
+        return readValue(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.available()) {
+            throw new StreamCorruptedException("invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* Reads the length of a byte array, or the number of elements of an
+       array, each of which takes at least one byte. Values are only read
+       from frames held in memory, whose remaining length is known. */
+    static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new StreamCorruptedException("invalid length " + length);
+        }
+        return length;
+    }
+
+    /* Growable buffer in which one outgoing frame is assembled, so that the
+       length can be written ahead of the payload. One buffer is kept per
+       connection and reused for every frame sent on it. */
+    static class FrameBuffer extends ByteArrayOutputStream {
+        /* larger buffers, left behind by bulk reads and writes, are dropped */
+        private static final int RETAINED_CAPACITY = 64 * 1024;
+
+        final DataOutputStream data = new DataOutputStream(this);
+
+        FrameBuffer() {
+            super(256);
+        }
+
+        /* Discards the previous frame and starts one of the given type. */
+        DataOutputStream start(byte type) throws IOException {
+            if (buf.length > RETAINED_CAPACITY) {
+                buf = new byte[256];
+            }
+            reset();
+            data.writeByte(type);
+            return data;
+        }
+
+        /* Replaces the frame with a COMPRESSED frame holding it, if it is
+           long enough, does not look compressed already, and shrinks.
+           Records the sizes if it is replaced. */
+        void compress(MetricsRecorder metrics) throws IOException {
+            if (count < Compression.getThreshold() || !Compression.looksCompressible(buf, count)) {
+                return;
+            }
+            /* the result must save at least the COMPRESSED header */
+            byte[] packed = new byte[count - 8];
+            int length = Compression.deflate(buf, count, packed);
+            if (length < 0) {
+                return;
+            }
+            int original = count;
+            reset();
+            data.writeByte(COMPRESSED);
+            data.writeInt(original);
+            write(packed, 0, length);
+            metrics.compressed(original + 4, count + 4);
+        }
+
+        /* Writes the length-prefixed frame and flushes the stream. */
+        void send(DataOutputStream out) throws IOException {
+            out.writeInt(count);
+            out.write(buf, 0, count);
+            out.flush();
+        }
+
+        /* Returns a copy of the length-prefixed frame, ready to be written to
+           a channel. */
+        ByteBuffer toByteBuffer() {
+            ByteBuffer frame = ByteBuffer.allocate(4 + count);
+            frame.putInt(count).put(buf, 0, count).flip();
+            return frame;
+        }
+    }
+}
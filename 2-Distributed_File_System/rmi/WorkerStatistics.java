@@ -0,0 +1,89 @@
+package rmi;
+
+import java.io.Serializable;
+
+/** Snapshot of the worker counters of a skeleton.
+
+    <p>
+    Obtained from <code>Skeleton.getWorkerStatistics</code>. The counters are
+    read independently of each other and may not be mutually consistent if the
+    skeleton is busy.
+ */
+public class WorkerStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int activeWorkers;
+    private final int queuedCalls;
+    private final long rejectedCalls;
+    private final long expiredCalls;
+    private final long refusedCalls;
+    private final long throttledCalls;
+    private final long refusedConnections;
+
+    WorkerStatistics(int activeWorkers, int queuedCalls, long rejectedCalls,
+                     long expiredCalls, long refusedCalls, long throttledCalls,
+                     long refusedConnections) {
+        this.activeWorkers = activeWorkers;
+        this.queuedCalls = queuedCalls;
+        this.rejectedCalls = rejectedCalls;
+        this.expiredCalls = expiredCalls;
+        this.refusedCalls = refusedCalls;
+        this.throttledCalls = throttledCalls;
+        this.refusedConnections = refusedConnections;
+    }
+
+    /** Returns the number of workers currently running a call. */
+    public int getActiveWorkers() {
+        return activeWorkers;
+    }
+
+    /** Returns the number of calls waiting for a worker. */
+    public int getQueuedCalls() {
+        return queuedCalls;
+    }
+
+    /** Returns the number of calls failed because the executor rejected
+        them, since the skeleton was created. */
+    public long getRejectedCalls() {
+        return rejectedCalls;
+    }
+
+    /** Returns the number of calls failed without being run because their
+        stubs had stopped waiting for them by the time a worker was free,
+        since the skeleton was created. */
+    public long getExpiredCalls() {
+        return expiredCalls;
+    }
+
+    /** Returns the number of calls refused because the skeleton or their
+        remote address had as many calls in flight as its
+        <code>AdmissionControl</code> allows, since the skeleton was
+        created. */
+    public long getRefusedCalls() {
+        return refusedCalls;
+    }
+
+    /** Returns the number of calls refused because their remote address
+        exceeded the rate limit, since the skeleton was created. */
+    public long getThrottledCalls() {
+        return throttledCalls;
+    }
+
+    /** Returns the number of connections refused because their remote
+        address had as many connections open as allowed, since the skeleton
+        was created. */
+    public long getRefusedConnections() {
+        return refusedConnections;
+    }
+
+    public String toString() {
+        return "active workers: " + activeWorkers
+            + ", queued calls: " + queuedCalls
+            + ", rejected calls: " + rejectedCalls
+            + ", expired calls: " + expiredCalls
+            + ", refused calls: " + refusedCalls
+            + ", throttled calls: " + throttledCalls
+            + ", refused connections: " + refusedConnections;
+    }
+}
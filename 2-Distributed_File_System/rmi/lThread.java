@@ -20,9 +20,10 @@ public class lThread<T> extends Thread {
         while (this.skeleton.getRunningStatus() && !this.isInterrupted()) {
             try {
                 Socket connection = listen_socket.accept();
-                pThread process_thread = new pThread(this.skeleton, connection, sclass);
                 if (skeleton.getRunningStatus()) {
-                    process_thread.start();
+                    this.skeleton.dispatch(connection);
+                } else {
+                    connection.close();
                 }
             }
             catch (IOException e) {
@@ -1,53 +1,97 @@
 package rmi;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.Method;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 
-public class pThread<T> extends Thread {
-    private Skeleton<?> skeleton;
+/* Connection served with blocking streams by a thread of its own, over a TCP
+   socket or over the channel of a Unix domain socket. */
+public class pThread<T> extends ServerConnection implements Runnable {
     private Socket connection;
-    private Class<T> sclass = null;
+    private SocketChannel channel;
+    private DataOutputStream out;
 
-    public pThread (Skeleton<?> s, Socket cs, Class<T> c) {
-        this.skeleton = s;
+    public pThread (Skeleton<?> s, Socket cs) {
+        super(s);
         this.connection = cs;
-        this.sclass = c;
     }
 
+    pThread (Skeleton<?> s, SocketChannel channel) {
+        super(s);
+        this.channel = channel;
+    }
+
+    /* Reads calls from the connection until the stub closes it or the
+       skeleton is stopped. */
     public void run() {
         try {
-            myObject serverMyObject = null;
-            ObjectOutputStream out = new ObjectOutputStream(this.connection.getOutputStream());
-            out.flush();
-            ObjectInputStream in = new ObjectInputStream(this.connection.getInputStream());
-            String methodName = (String) in.readObject();
-
-            Class<?>[] parameterTypes = (Class[]) in.readObject();
-
-            Method serverMethod = null;
-            try {
-                serverMethod = sclass.getMethod(methodName, parameterTypes);
-            } catch(Exception e) {
-                serverMyObject = new myObject(new RMIException(e.getCause()), true);
+            InputStream input;
+            OutputStream output;
+            if (this.connection != null) {
+                this.connection.setTcpNoDelay(true);
+                input = this.connection.getInputStream();
+                output = this.connection.getOutputStream();
+            } else {
+                input = ChannelStreams.input(this.channel);
+                output = ChannelStreams.output(this.channel);
             }
+            this.out = new DataOutputStream(new BufferedOutputStream(output));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(input));
 
-            String returnType = (String) in.readObject();
+            if (!hello(WireProtocol.readFrame(in))) {
+                return;
+            }
 
-            if (serverMethod != null) {
+            while (this.skeleton.getRunningStatus()) {
+                DataInputStream request;
                 try {
-                    Object serverObject = serverMethod.invoke(this.skeleton.getServer(), (Object[])in.readObject());
-                    serverMyObject = new myObject(serverObject, false);
-                } catch (Throwable e) {
-                    serverMyObject = new myObject(e.getCause(), true);
+                    request = WireProtocol.readFrame(in);
+                } catch (EOFException e) {
+                    /* the stub closed an idle connection */
+                    return;
+                }
+                if (!this.skeleton.getRunningStatus()) {
+                    break;
                 }
+                call(request);
             }
-
-            out.writeObject(serverMyObject);
-            connection.close();
+            /* the stub sends calls not read again, once it knows which */
+            stopReading();
         } catch (Throwable e) {
-            this.skeleton.service_error(new RMIException(e.getCause()));
+            /* connections closed by stop() are not errors */
+            if (this.skeleton.getRunningStatus()) {
+                this.skeleton.service_error(new RMIException(e.getCause()));
+            }
+        } finally {
+            readerFinished();
+        }
+    }
+
+    InetAddress remoteAddress() {
+        return this.connection == null ? null : this.connection.getInetAddress();
+    }
+
+    void send(WireProtocol.FrameBuffer frame) throws IOException {
+        synchronized (this.out) {
+            frame.send(this.out);
+        }
+    }
+
+    void close() {
+        try {
+            if (this.connection != null) {
+                this.connection.close();
+            } else {
+                this.channel.close();
+            }
+        } catch (IOException e) {
         }
     }
 }
@@ -0,0 +1,398 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import common.*;
+import rmi.Timeouts;
+
+/** Connection to the bulk transfer channel of a storage server.
+
+    <p>
+    The bulk channel carries file data alongside the RMI interfaces of a
+    storage server, without going through the RMI wire protocol. The server
+    sends file regions with <code>FileChannel.transferTo</code>, so read data
+    goes from the page cache to the socket without being copied into the
+    server's heap, and bytes received are placed directly into the caller's
+    buffer. Writes travel the other way, from the caller's buffer to the file
+    through <code>FileChannel.transferFrom</code>. A file can also be copied
+    from one storage server to another entirely through file channels, which
+    is how replicas are made.
+
+    <p>
+    The address of a server's bulk channel is returned by
+    {@link Storage#bulkAddress()}. A connection carries one transfer at a time
+    and may be reused for any number of transfers. Like the
+    <code>Storage</code> methods, transfers do not lock the file; this must be
+    done on the naming server.
+
+    <p>
+    Each request is a four-byte header length, a header holding the operation,
+    the path, the offset and the length, and for writes the data. Each
+    response is a status byte, followed by a message if the request failed, or
+    by the data for a successful read.
+ */
+public class BulkChannel implements Closeable
+{
+    /** Read operation code. */
+    static final byte       READ = 1;
+    /** Write operation code. */
+    static final byte       WRITE = 2;
+
+    /** Status of a successful request. */
+    static final byte       OK = 0;
+    /** Status of a request for a missing file or a directory. */
+    static final byte       NOT_FOUND = 1;
+    /** Status of a request outside the bounds of the file. */
+    static final byte       OUT_OF_BOUNDS = 2;
+    /** Status of a request that failed on the server. */
+    static final byte       FAILED = 3;
+
+    /** Length of the longest request header: the operation, a path written
+        with <code>writeUTF</code>, the offset and the length. */
+    static final int        MAX_HEADER = 1 + (2 + 65535) + 8 + 8;
+    /** Length of the longest failure message, which is a short description
+        followed at most by a path. */
+    static final int        MAX_MESSAGE = 256 + 65535;
+
+    /** Connected socket, in non-blocking mode. */
+    private final SocketChannel     channel;
+    /** Selector waiting for the socket to become ready. */
+    private final Selector          selector;
+    /** Key of the socket in <code>selector</code>. */
+    private final SelectionKey      key;
+    /** Longest time, in milliseconds, to wait for the server to make
+        progress, or zero. */
+    private final long              readTimeout;
+    /** Buffer for status bytes and message lengths. */
+    private final ByteBuffer        small = ByteBuffer.allocate(4);
+    /** Set when a transfer has failed part way, leaving the connection in an
+        unknown state. */
+    private boolean                 broken = false;
+
+    /** Connects to the bulk channel of a storage server, with the default
+        time limits of stubs.
+
+        @param address Address returned by <code>Storage.bulkAddress</code>.
+        @throws IOException If the connection cannot be made.
+     */
+    public BulkChannel(InetSocketAddress address) throws IOException
+    {
+        this(address, Timeouts.getDefault());
+    }
+
+    /** Connects to the bulk channel of a storage server.
+
+        <p>
+        The connect timeout bounds the time taken to connect. The read timeout
+        bounds the time a transfer may wait for the server to send or take
+        any data; a transfer waiting longer fails with a
+        <code>SocketTimeoutException</code>, and the channel cannot be used
+        again. The deadline is not applied.
+
+        @param address Address returned by <code>Storage.bulkAddress</code>.
+        @param timeouts Time limits.
+        @throws IOException If the connection cannot be made.
+     */
+    public BulkChannel(InetSocketAddress address, Timeouts timeouts)
+        throws IOException
+    {
+        channel = SocketChannel.open();
+        try
+        {
+            channel.socket().connect(address,
+                (int)Math.min(Integer.MAX_VALUE, timeouts.getConnectTimeout()));
+            channel.socket().setTcpNoDelay(true);
+            channel.configureBlocking(false);
+            selector = Selector.open();
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+
+        key = channel.register(selector, 0);
+        readTimeout = timeouts.getReadTimeout();
+    }
+
+    /** Reads a sequence of bytes from a file into a buffer.
+
+        @param file Path to the file.
+        @param offset Offset into the file of the first byte to be read.
+        @param buffer Buffer receiving the bytes.
+        @param buffer_offset Offset into the buffer of the first byte.
+        @param length Number of bytes to be read.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IndexOutOfBoundsException If the sequence is outside the bounds
+                                          of the file.
+        @throws IOException If the read fails on the server or the connection
+                            fails.
+     */
+    public synchronized void read(Path file, long offset, byte[] buffer,
+                                  int buffer_offset, int length)
+        throws IOException
+    {
+        if(buffer_offset < 0 || length < 0 ||
+           buffer_offset + length > buffer.length)
+        {
+            throw new IndexOutOfBoundsException("range extends past buffer");
+        }
+
+        request(READ, file, offset, length, null);
+        checkStatus();
+        receive(ByteBuffer.wrap(buffer, buffer_offset, length));
+    }
+
+    /** Copies the beginning of a file into a local file channel.
+
+        @param file Path to the file on the storage server.
+        @param length Number of bytes to copy.
+        @param target Channel to which the bytes are written, starting at
+                      position zero.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IndexOutOfBoundsException If the file is shorter than
+                                          <code>length</code>.
+        @throws IOException If the read fails on the server, the connection
+                            fails or the target cannot be written.
+     */
+    public synchronized void copy(Path file, long length, FileChannel target)
+        throws IOException
+    {
+        request(READ, file, 0, length, null);
+        checkStatus();
+
+        long    position = 0;
+        try
+        {
+            while(position < length)
+            {
+                long    received =
+                    target.transferFrom(channel, position, length - position);
+
+                // Nothing is transferred when no data is ready or at end of
+                // stream; receiving one byte waits for data or reports the
+                // end.
+                if(received == 0)
+                    received = receiveByte(target, position);
+
+                position += received;
+            }
+        }
+        catch(IOException e)
+        {
+            broken = true;
+            throw e;
+        }
+    }
+
+    /** Writes a sequence of bytes from a buffer to a file.
+
+        @param file Path to the file.
+        @param offset Offset into the file at which the bytes are written.
+        @param buffer Buffer holding the bytes.
+        @param buffer_offset Offset into the buffer of the first byte.
+        @param length Number of bytes to be written.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IndexOutOfBoundsException If <code>offset</code> is negative.
+        @throws IOException If the write fails on the server or the connection
+                            fails.
+     */
+    public synchronized void write(Path file, long offset, byte[] buffer,
+                                   int buffer_offset, int length)
+        throws IOException
+    {
+        if(buffer_offset < 0 || length < 0 ||
+           buffer_offset + length > buffer.length)
+        {
+            throw new IndexOutOfBoundsException("range extends past buffer");
+        }
+
+        request(WRITE, file, offset, length,
+                ByteBuffer.wrap(buffer, buffer_offset, length));
+        checkStatus();
+    }
+
+    /** Closes the connection. */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            channel.close();
+        }
+        finally
+        {
+            selector.close();
+        }
+    }
+
+    /** Sends a request, followed by the data of a write. */
+    private void request(byte operation, Path file, long offset, long length,
+                         ByteBuffer data)
+        throws IOException
+    {
+        if(broken)
+            throw new IOException("bulk channel failed in an earlier transfer");
+
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        header = new DataOutputStream(bytes);
+
+        header.writeByte(operation);
+        header.writeUTF(file.toString());
+        header.writeLong(offset);
+        header.writeLong(length);
+
+        ByteBuffer  request = ByteBuffer.allocate(4 + bytes.size());
+        request.putInt(bytes.size()).put(bytes.toByteArray()).flip();
+
+        ByteBuffer[]    buffers = data == null ? new ByteBuffer[] {request}
+                                                : new ByteBuffer[] {request, data};
+        try
+        {
+            ByteBuffer  last = buffers[buffers.length - 1];
+            while(last.hasRemaining() || buffers[0].hasRemaining())
+            {
+                if(channel.write(buffers) == 0)
+                    await(SelectionKey.OP_WRITE);
+            }
+        }
+        catch(IOException e)
+        {
+            broken = true;
+            throw e;
+        }
+    }
+
+    /** Reads the status of a request and throws the exception it reports. */
+    private void checkStatus() throws IOException
+    {
+        byte    status;
+        String  message;
+
+        try
+        {
+            small.clear().limit(1);
+            receive(small);
+            status = small.get(0);
+            if(status == OK)
+                return;
+
+            small.clear();
+            receive(small);
+            int         length = small.getInt(0);
+            if(length < 0 || length > MAX_MESSAGE)
+            {
+                throw new StreamCorruptedException("bulk message of " + length
+                                                   + " bytes");
+            }
+            ByteBuffer  text = ByteBuffer.allocate(length);
+            receive(text);
+            message = new String(text.array(), StandardCharsets.UTF_8);
+        }
+        catch(IOException e)
+        {
+            broken = true;
+            throw e;
+        }
+
+        switch(status)
+        {
+        case NOT_FOUND:
+            throw new FileNotFoundException(message);
+        case OUT_OF_BOUNDS:
+            throw new IndexOutOfBoundsException(message);
+        default:
+            throw new IOException(message);
+        }
+    }
+
+    /** Fills a buffer from the socket. */
+    private void receive(ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            while(buffer.hasRemaining())
+            {
+                int     count = channel.read(buffer);
+                if(count < 0)
+                    throw new EOFException("bulk channel closed");
+                if(count == 0)
+                    await(SelectionKey.OP_READ);
+            }
+        }
+        catch(IOException e)
+        {
+            broken = true;
+            throw e;
+        }
+    }
+
+    /** Receives one byte into a file channel, after
+        <code>transferFrom</code> made no progress.
+
+        @return The number of bytes transferred, which is one.
+        @throws EOFException If the server closed the connection.
+     */
+    private long receiveByte(FileChannel target, long position)
+        throws IOException
+    {
+        ByteBuffer  one = ByteBuffer.allocate(1);
+        receive(one);
+        one.flip();
+        target.write(one, position);
+        return 1;
+    }
+
+    /** Waits for the socket to become ready for an operation.
+
+        @throws SocketTimeoutException If the read timeout passes first.
+        @throws InterruptedIOException If the thread is interrupted.
+     */
+    private void await(int operation) throws IOException
+    {
+        key.interestOps(operation);
+        int     ready = selector.select(readTimeout);
+        selector.selectedKeys().clear();
+
+        if(Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("bulk transfer interrupted");
+        if(ready == 0 && readTimeout > 0)
+        {
+            throw new SocketTimeoutException("bulk channel made no progress " +
+                                             "in " + readTimeout + " ms");
+        }
+    }
+
+    /** Fills a buffer from a blocking socket channel.
+
+        @throws EOFException If the connection is closed first.
+     */
+    static void receive(SocketChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        while(buffer.hasRemaining())
+        {
+            if(channel.read(buffer) < 0)
+                throw new EOFException("bulk channel closed");
+        }
+    }
+
+    /** Writes buffers in full to a blocking socket channel. */
+    static void send(SocketChannel channel, ByteBuffer[] buffers)
+        throws IOException
+    {
+        ByteBuffer  last = buffers[buffers.length - 1];
+        while(last.hasRemaining() || buffers[0].hasRemaining())
+            channel.write(buffers);
+    }
+}
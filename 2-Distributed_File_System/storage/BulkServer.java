@@ -0,0 +1,382 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.*;
+
+/** Server side of the bulk transfer channel of a storage server.
+
+    <p>
+    Requests are described in {@link BulkChannel}. Each connection is served
+    by a thread of its own, one request at a time. File data is sent with
+    <code>FileChannel.transferTo</code> and received with
+    <code>FileChannel.transferFrom</code>, so it is never copied into a Java
+    array on the server.
+ */
+class BulkServer implements Runnable
+{
+    /** Directory whose files are served. */
+    private final File                  root;
+    /** Listening socket, or <code>null</code> when stopped. */
+    private ServerSocketChannel         listener = null;
+    /** Open connections, closed when the server stops. */
+    private final Set<SocketChannel>    connections =
+        ConcurrentHashMap.newKeySet();
+    /** Connections serving a request; guarded by this. */
+    private final Set<SocketChannel>    busy = new HashSet<SocketChannel>();
+    /** Set while a drain waits for requests in progress; guarded by this. */
+    private boolean                     draining = false;
+
+    /** Creates a bulk server for the files under the given directory. */
+    BulkServer(File root)
+    {
+        this.root = root;
+    }
+
+    /** Starts listening on a port chosen by the system.
+
+        @return The port.
+        @throws IOException If the listening socket cannot be created.
+     */
+    synchronized int start() throws IOException
+    {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(0));
+
+        Thread  thread = new Thread(this, "storage-bulk-listener");
+        thread.setDaemon(true);
+        thread.start();
+
+        return listener.socket().getLocalPort();
+    }
+
+    /** Stops listening and closes all connections. Transfers in progress
+        fail. */
+    synchronized void stop()
+    {
+        stopAccepting();
+        draining = false;
+
+        for(SocketChannel connection : connections)
+            close(connection);
+    }
+
+    /** Stops listening. Connections already open go on being served. */
+    synchronized void stopAccepting()
+    {
+        if(listener == null)
+            return;
+
+        close(listener);
+        listener = null;
+    }
+
+    /** Closes idle connections, and waits for requests in progress to
+        finish, closing each connection as its request finishes. Requests
+        still in progress at the deadline are cut off by stopping the
+        server.
+
+        @param deadline Value of <code>System.nanoTime()</code> by which the
+                        requests are to have finished.
+     */
+    synchronized void drain(long deadline)
+    {
+        draining = true;
+        for(SocketChannel connection : connections)
+        {
+            if(!busy.contains(connection))
+                close(connection);
+        }
+
+        long    remaining;
+        while(!busy.isEmpty() &&
+              (remaining = deadline - System.nanoTime()) > 0)
+        {
+            try
+            {
+                wait(Math.max(1, remaining / 1000000));
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        stop();
+    }
+
+    /** Accepts connections until the server is stopped. */
+    @Override
+    public void run()
+    {
+        ServerSocketChannel     socket;
+
+        synchronized(this)
+        {
+            socket = listener;
+        }
+
+        while(socket.isOpen())
+        {
+            final SocketChannel     connection;
+
+            try
+            {
+                connection = socket.accept();
+            }
+            catch(IOException e)
+            {
+                return;
+            }
+
+            connections.add(connection);
+            Thread  thread = new Thread(new Runnable() {
+                public void run()
+                {
+                    serve(connection);
+                }
+            }, "storage-bulk-connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /** Serves requests on a connection until the client closes it. */
+    private void serve(SocketChannel connection)
+    {
+        ByteBuffer  length = ByteBuffer.allocate(4);
+
+        try
+        {
+            connection.socket().setTcpNoDelay(true);
+
+            while(true)
+            {
+                length.clear();
+                if(connection.read(length) < 0)
+                    break;
+                BulkChannel.receive(connection, length);
+
+                // The length comes from the peer; a request outside these
+                // bounds cannot be valid, and the connection is closed.
+                int         size = length.getInt(0);
+                if(size < 1 || size > BulkChannel.MAX_HEADER)
+                    break;
+
+                ByteBuffer  header = ByteBuffer.allocate(size);
+                synchronized(this)
+                {
+                    busy.add(connection);
+                }
+
+                boolean     more;
+                try
+                {
+                    BulkChannel.receive(connection, header);
+                    request(connection, new DataInputStream(
+                        new ByteArrayInputStream(header.array())));
+                }
+                finally
+                {
+                    more = finished(connection);
+                }
+
+                if(!more)
+                    break;
+            }
+        }
+        catch(IOException e)
+        {
+            // The client sees the connection close.
+        }
+        finally
+        {
+            connections.remove(connection);
+            close(connection);
+        }
+    }
+
+    /** Records that a connection has finished a request. Returns whether it
+        is to be read for another, which is not the case once a drain has
+        started. */
+    private synchronized boolean finished(SocketChannel connection)
+    {
+        busy.remove(connection);
+        if(draining)
+            notifyAll();
+        return !draining;
+    }
+
+    /** Serves one request. */
+    private void request(SocketChannel connection, DataInputStream header)
+        throws IOException
+    {
+        byte    operation = header.readByte();
+        String  path = header.readUTF();
+        long    offset = header.readLong();
+        long    length = header.readLong();
+
+        File    file;
+        try
+        {
+            file = new Path(path).toFile(root);
+        }
+        catch(IllegalArgumentException e)
+        {
+            refuse(connection, operation, length, BulkChannel.FAILED,
+                   "invalid path " + path);
+            return;
+        }
+
+        if(!file.exists() || file.isDirectory())
+        {
+            refuse(connection, operation, length, BulkChannel.NOT_FOUND, path);
+            return;
+        }
+
+        if(operation == BulkChannel.READ)
+        {
+            if(offset < 0 || length < 0 || offset + length > file.length())
+            {
+                refuse(connection, operation, length,
+                       BulkChannel.OUT_OF_BOUNDS, "read outside " + path);
+                return;
+            }
+            read(connection, file, offset, length);
+        }
+        else if(operation == BulkChannel.WRITE)
+        {
+            if(offset < 0 || length < 0)
+            {
+                refuse(connection, operation, length,
+                       BulkChannel.OUT_OF_BOUNDS, "write outside " + path);
+                return;
+            }
+            write(connection, file, offset, length);
+        }
+        else
+            throw new StreamCorruptedException("unknown bulk operation");
+    }
+
+    /** Sends a file region. */
+    private void read(SocketChannel connection, File file, long offset,
+                      long length)
+        throws IOException
+    {
+        try(FileChannel source = FileChannel.open(file.toPath(),
+                                                   StandardOpenOption.READ))
+        {
+            status(connection, BulkChannel.OK, null);
+
+            long    sent = 0;
+            while(sent < length)
+            {
+                long    count = source.transferTo(offset + sent,
+                                                  length - sent, connection);
+
+                // The file was truncated after the request was checked. The
+                // promised bytes cannot be sent; the connection is closed.
+                if(count == 0 && offset + sent >= source.size())
+                    throw new EOFException("file truncated during transfer");
+
+                sent += count;
+            }
+        }
+    }
+
+    /** Receives data into a file region. */
+    private void write(SocketChannel connection, File file, long offset,
+                       long length)
+        throws IOException
+    {
+        try(FileChannel target = FileChannel.open(file.toPath(),
+                                                   StandardOpenOption.WRITE))
+        {
+            long    received = 0;
+            while(received < length)
+            {
+                long    count = target.transferFrom(connection,
+                                                    offset + received,
+                                                    length - received);
+
+                // A blocking socket at end of stream transfers nothing.
+                if(count == 0)
+                {
+                    ByteBuffer  one = ByteBuffer.allocate(1);
+                    BulkChannel.receive(connection, one);
+                    one.flip();
+                    target.write(one, offset + received);
+                    count = 1;
+                }
+
+                received += count;
+            }
+        }
+
+        status(connection, BulkChannel.OK, null);
+    }
+
+    /** Answers a request that cannot be served. The data of a refused write
+        is discarded first, so that the connection can be reused. */
+    private void refuse(SocketChannel connection, byte operation, long length,
+                        byte status, String message)
+        throws IOException
+    {
+        if(operation == BulkChannel.WRITE)
+        {
+            ByteBuffer  discard = ByteBuffer.allocate(8192);
+            while(length > 0)
+            {
+                discard.clear();
+                if(length < discard.capacity())
+                    discard.limit((int)length);
+                BulkChannel.receive(connection, discard);
+                length -= discard.limit();
+            }
+        }
+
+        status(connection, status, message);
+    }
+
+    /** Sends a status byte, followed by a message if the status is not
+        <code>OK</code>. */
+    private static void status(SocketChannel connection, byte status,
+                               String message)
+        throws IOException
+    {
+        byte[]      text = message == null ? new byte[0]
+                         : message.getBytes(StandardCharsets.UTF_8);
+        if(text.length > BulkChannel.MAX_MESSAGE)
+            text = Arrays.copyOf(text, BulkChannel.MAX_MESSAGE);
+        ByteBuffer  response = ByteBuffer.allocate(1 + 4 + text.length);
+
+        response.put(status);
+        if(status != BulkChannel.OK)
+            response.putInt(text.length).put(text);
+        response.flip();
+
+        BulkChannel.send(connection, new ByteBuffer[] {response});
+    }
+
+    /** Closes a channel, ignoring errors. */
+    private static void close(Closeable channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e) { }
+    }
+}
@@ -1,6 +1,7 @@
 package storage;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 
 import common.*;
 import rmi.RMIException;
@@ -60,4 +61,22 @@ public interface Storage
      */
     public void write(Path file, long offset, byte[] data)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the address of the storage server's bulk transfer channel.
+
+        <p>
+        Large reads and writes can be carried out over a {@link BulkChannel}
+        connected to this address, which moves file data without copying it
+        through the RMI layer. The default implementation returns
+        <code>null</code>, for storage servers that have no bulk channel.
+
+        @return The address, or <code>null</code> if data must be moved with
+                <code>read</code> and <code>write</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default InetSocketAddress bulkAddress() throws RMIException
+    {
+        return null;
+    }
 }
@@ -0,0 +1,37 @@
+package storage;
+
+import java.util.concurrent.CompletableFuture;
+
+import common.*;
+import rmi.AsyncInterface;
+
+/** Asynchronous companion of the storage server client interface.
+
+    <p>
+    Stubs implementing this interface are created with
+    <code>rmi.AsyncStub.create</code>. Each method sends the corresponding
+    {@link Storage} call and returns without waiting for the result. The
+    returned future completes exceptionally with the exceptions documented for
+    <code>Storage</code>.
+ */
+@AsyncInterface(Storage.class)
+public interface StorageAsync
+{
+    /** Returns the length of a file, in bytes.
+
+        @see Storage#size(Path)
+     */
+    public CompletableFuture<Long> size(Path file);
+
+    /** Reads a sequence of bytes from a file.
+
+        @see Storage#read(Path, long, int)
+     */
+    public CompletableFuture<byte[]> read(Path file, long offset, int length);
+
+    /** Writes bytes to a file.
+
+        @see Storage#write(Path, long, byte[])
+     */
+    public CompletableFuture<Void> write(Path file, long offset, byte[] data);
+}
@@ -2,6 +2,9 @@ package storage;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 
 import common.*;
 import rmi.*;
@@ -15,12 +18,22 @@ import java.util.*;
     Storage servers respond to client file access requests. The files accessible
     through a storage server are those accessible under a given directory of the
     local filesystem.
+
+    <p>
+    Besides the client and command interfaces, a storage server runs a bulk
+    transfer channel, whose address is returned by <code>bulkAddress</code>.
+    Clients use it for large reads and writes, and storage servers use it to
+    copy files from each other.
  */
 public class StorageServer implements Storage, Command
 {
+    /** Number of selector threads reading client interface connections. */
+    private static final int CLIENT_SELECTOR_THREADS = 2;
 
     private Skeleton<Storage> storageSkeleton;
     private Skeleton<Command> commandSkeleton;
+    private BulkServer bulkServer;
+    private volatile InetSocketAddress bulkAddress = null;
     private File root;
     boolean isRunning = false;
 
@@ -47,6 +60,11 @@ public class StorageServer implements Storage, Command
         this.root = root;
         this.storageSkeleton = new NotifySkeleton<Storage>(Storage.class, this, new InetSocketAddress(client_port));
         this.commandSkeleton = new NotifySkeleton<Command>(Command.class, this, new InetSocketAddress(command_port));
+
+        // Clients may keep many idle connections open; read them all from a
+        // few selector threads rather than a thread each.
+        this.storageSkeleton.setSelectorThreads(CLIENT_SELECTOR_THREADS);
+        this.bulkServer = new BulkServer(root);
     }
 
     /** Creats a storage server, given a directory on the local filesystem.
@@ -90,6 +108,11 @@ public class StorageServer implements Storage, Command
     {
         this.commandSkeleton.start();
         this.storageSkeleton.start();
+        try {
+            this.bulkAddress = new InetSocketAddress(hostname, this.bulkServer.start());
+        } catch (IOException e) {
+            throw new RMIException("could not start the bulk transfer channel", e);
+        }
 
         Storage storageStub = Stub.create(Storage.class, this.storageSkeleton, hostname);
         Command commandStub = Stub.create(Command.class, this.commandSkeleton, hostname);
@@ -110,8 +133,40 @@ public class StorageServer implements Storage, Command
     {
         this.commandSkeleton.stop();
         this.storageSkeleton.stop();
-        isRunning = false;
-        this.stopped(null);
+        this.bulkServer.stop();
+        this.finishStop();
+    }
+
+    /** Stops the storage server, letting calls and transfers in progress
+        finish first.
+
+        <p>
+        Both interfaces and the bulk transfer channel stop accepting at once.
+        Calls and bulk transfers already being served are given until the
+        timeout has passed to finish, after which they are cut off, as by
+        <code>Skeleton.stop(Duration)</code>. Rolling restarts can use this in
+        place of <code>stop()</code> so that no client call or transfer is
+        lost to the restart unless it runs too long.
+
+        @param drainTimeout The longest time to wait for calls and transfers
+                            to finish.
+        @throws IllegalArgumentException If <code>drainTimeout</code> is
+                                         negative.
+     */
+    public void stop(Duration drainTimeout)
+    {
+        if (drainTimeout.isNegative())
+            throw new IllegalArgumentException("drain timeout must not be negative");
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+
+        this.commandSkeleton.stop();
+        this.storageSkeleton.stop();
+        this.bulkServer.stopAccepting();
+
+        this.storageSkeleton.drain(remaining(deadline));
+        this.commandSkeleton.drain(remaining(deadline));
+        this.bulkServer.drain(deadline);
+        this.finishStop();
     }
 
     /** Called when the storage server has shut down.
@@ -171,6 +226,12 @@ public class StorageServer implements Storage, Command
         fileWriter.close();
     }
 
+    @Override
+    public InetSocketAddress bulkAddress()
+    {
+        return this.bulkAddress;
+    }
+
     // The following methods are documented in Command.java.
     @Override
     public synchronized boolean create(Path file)
@@ -203,14 +264,31 @@ public class StorageServer implements Storage, Command
     }
 
     @Override
-    public synchronized boolean copy(Path file, Storage server)
+    public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException
     {
-        int size = (int)server.size(file);
-        this.delete(file.toFile(this.root));
-        this.create(file);
-        byte[] data = server.read(file, 0, size);
-        this.write(file, 0, data);
+        long size = server.size(file);
+        synchronized (this) {
+            this.delete(file.toFile(this.root));
+            this.create(file);
+        }
+
+        // Copy straight from the other server's file to this one when it has
+        // a bulk channel, without holding the file in memory. The naming
+        // server only lists this server as a replica once the copy returns,
+        // so the transfer does not hold the server's lock.
+        InetSocketAddress address = server.bulkAddress();
+        if (address == null) {
+            byte[] data = server.read(file, 0, (int)size);
+            this.write(file, 0, data);
+            return true;
+        }
+
+        try (BulkChannel channel = new BulkChannel(address);
+             FileChannel target = FileChannel.open(file.toFile(this.root).toPath(),
+                                                   StandardOpenOption.WRITE)) {
+            channel.copy(file, size, target);
+        }
         return true;
     }
 
@@ -218,6 +296,17 @@ public class StorageServer implements Storage, Command
 
 /***************************help functions********************************/
 
+    /* Records that the server has stopped, once everything it runs has. */
+    private void finishStop() {
+        this.bulkAddress = null;
+        isRunning = false;
+        this.stopped(null);
+    }
+
+    private static Duration remaining(long deadline) {
+        return Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+    }
+
     private boolean delete(File f) {
         if (f.isDirectory()) {
             for (File c : f.listFiles()) {
@@ -5,7 +5,33 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    Tests performed are:
+    <ul>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.IdlePoolTest}</li>
+    <li>{@link rmi.SkeletonExecutorTest}</li>
+    <li>{@link rmi.WireProtocolTest}</li>
+    <li>{@link rmi.AsyncStubTest}</li>
+    <li>{@link rmi.MultiplexTest}</li>
+    <li>{@link rmi.SelectorTransportTest}</li>
+    <li>{@link rmi.BatchTest}</li>
+    <li>{@link rmi.MetricsTest}</li>
+    <li>{@link rmi.TimeoutTest}</li>
+    <li>{@link rmi.LocalCallTest}</li>
+    <li>{@link rmi.LocalSocketTest}</li>
+    <li>{@link rmi.GeneratedStubTest}</li>
+    <li>{@link rmi.CompressionTest}</li>
+    <li>{@link rmi.ResultCacheTest}</li>
+    <li>{@link rmi.CallbackTest}</li>
+    <li>{@link rmi.RemoteIteratorTest}</li>
+    <li>{@link rmi.AdmissionTest}</li>
+    <li>{@link rmi.LaneTest}</li>
+    <li>{@link rmi.DrainTest}</li>
+    <li>{@link naming.JournalTest}</li>
+    <li>{@link naming.LockTest}</li>
+    <li>{@link naming.InodeTest}</li>
+    <li>{@link storage.BulkChannelTest}</li>
+    </ul>
  */
 public class UnitTests
 {
@@ -18,7 +44,30 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {rmi.ConnectionPoolTest.class,
+                         rmi.IdlePoolTest.class,
+                         rmi.SkeletonExecutorTest.class,
+                         rmi.WireProtocolTest.class,
+                         rmi.AsyncStubTest.class,
+                         rmi.MultiplexTest.class,
+                         rmi.SelectorTransportTest.class,
+                         rmi.BatchTest.class,
+                         rmi.MetricsTest.class,
+                         rmi.TimeoutTest.class,
+                         rmi.LocalCallTest.class,
+                         rmi.LocalSocketTest.class,
+                         rmi.GeneratedStubTest.class,
+                         rmi.CompressionTest.class,
+                         rmi.ResultCacheTest.class,
+                         rmi.CallbackTest.class,
+                         rmi.RemoteIteratorTest.class,
+                         rmi.AdmissionTest.class,
+                         rmi.LaneTest.class,
+                         rmi.DrainTest.class,
+                         naming.JournalTest.class,
+                         naming.LockTest.class,
+                         naming.InodeTest.class,
+                         storage.BulkChannelTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
@@ -0,0 +1,238 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Unit test for the table of children kept by namespace directories.
+
+    <p>
+    The test adds children until the table has grown several times, checking
+    that it is never more than three quarters full, and then removes most of
+    them, checking that it shrinks. It then removes and adds again a child
+    whose name hashes like a second child's, so that a tombstone lies on the
+    second child's probe path: the second child must still be found, and the
+    tombstone reused. Last, readers list and look up children while a writer
+    adds and removes others, growing and shrinking the table, and must always
+    see every child that is not being changed.
+ */
+public class InodeTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking namespace directory tables";
+
+    /** Number of children added to grow the table. */
+    private static final int    CHILDREN = 1000;
+    /** Number of children left when the table is shrunk. */
+    private static final int    REMAINING = 10;
+    /** Two names with the same hash code. */
+    private static final String FIRST = "Aa";
+    private static final String SECOND = "BB";
+    /** Number of children never changed while readers run. */
+    private static final int    STABLE = 64;
+    /** Number of changes made by the writer while readers run. */
+    private static final int    CHANGES = 20000;
+    /** Number of readers. */
+    private static final int    READERS = 3;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        checkGrowAndShrink();
+        checkTombstones();
+        checkConcurrentReaders();
+    }
+
+    /** Checks that the table grows before it is three quarters full, and
+        shrinks as children are removed. */
+    private void checkGrowAndShrink() throws TestFailed
+    {
+        Inode.Directory     directory = new Inode.Directory("d");
+
+        for(int index = 0; index < CHILDREN; ++index)
+        {
+            Inode           child = new Inode.Directory("f" + index);
+            if(directory.putIfAbsent(child) != null)
+                throw new TestFailed("new child reported as existing");
+            if(directory.slotsTaken() * 4 > directory.slots() * 3)
+            {
+                throw new TestFailed("table more than three quarters full " +
+                                     "after " + (index + 1) + " children");
+            }
+        }
+
+        Inode               existing = directory.child("f7");
+        if(directory.putIfAbsent(new Inode.Directory("f7")) != existing)
+            throw new TestFailed("existing child replaced");
+        checkChildren(directory, "f", CHILDREN);
+        if(directory.child("g0") != null || directory.child("") != null)
+            throw new TestFailed("missing child found");
+
+        int                 grown = directory.slots();
+        for(int index = REMAINING; index < CHILDREN; ++index)
+        {
+            Inode           removed = directory.remove("f" + index);
+            if(removed == null || !removed.name.equals("f" + index))
+                throw new TestFailed("child f" + index + " not removed");
+        }
+        if(directory.remove("f" + REMAINING) != null)
+            throw new TestFailed("removed child removed again");
+
+        if(directory.slots() >= grown / 8)
+        {
+            throw new TestFailed("table of " + grown + " slots only shrunk " +
+                                 "to " + directory.slots());
+        }
+        checkChildren(directory, "f", REMAINING);
+        for(int index = REMAINING; index < CHILDREN; ++index)
+        {
+            if(directory.child("f" + index) != null)
+                throw new TestFailed("removed child f" + index + " found");
+        }
+    }
+
+    /** Checks lookups past a tombstone, and that tombstones are reused. */
+    private void checkTombstones() throws TestFailed
+    {
+        Inode.Directory     directory = new Inode.Directory("d");
+        Inode               second = new Inode.Directory(SECOND);
+
+        if(FIRST.hashCode() != SECOND.hashCode())
+            throw new TestFailed("names used by the test do not collide");
+
+        directory.putIfAbsent(new Inode.Directory(FIRST));
+        directory.putIfAbsent(second);
+        int                 slots = directory.slots();
+
+        for(int round = 0; round < 1000; ++round)
+        {
+            if(directory.remove(FIRST) == null)
+                throw new TestFailed("colliding child not removed");
+            if(directory.child(SECOND) != second)
+                throw new TestFailed("child behind a tombstone not found");
+            if(directory.child(FIRST) != null)
+                throw new TestFailed("removed child found");
+
+            Inode           readded = new Inode.Directory(FIRST);
+            if(directory.putIfAbsent(readded) != null)
+                throw new TestFailed("removed child reported as existing");
+            if(directory.child(FIRST) != readded)
+                throw new TestFailed("child added again not found");
+            if(directory.slotsTaken() != 2 || directory.slots() != slots)
+                throw new TestFailed("tombstone not reused");
+        }
+
+        /* the second child, removed from behind the first, and added again */
+        directory.remove(SECOND);
+        Inode               readded = new Inode.Directory(SECOND);
+        directory.putIfAbsent(readded);
+        if(directory.child(SECOND) != readded)
+            throw new TestFailed("child added again not found");
+        if(directory.children().length != 2)
+            throw new TestFailed("wrong number of children after re-adding");
+
+        /* tombstones left by names never used again must not fill the table */
+        for(int index = 0; index < 1000; ++index)
+        {
+            directory.putIfAbsent(new Inode.Directory("t" + index));
+            directory.remove("t" + index);
+            if(directory.slotsTaken() * 4 > directory.slots() * 3)
+                throw new TestFailed("table filled with tombstones");
+        }
+        if(directory.child("t0") != null || directory.children().length != 2)
+            throw new TestFailed("wrong children after tombstones dropped");
+    }
+
+    /** Checks that readers always see unchanged children while a writer
+        adds and removes others. */
+    private void checkConcurrentReaders() throws Throwable
+    {
+        final Inode.Directory   directory = new Inode.Directory("d");
+        final AtomicBoolean     writing = new AtomicBoolean(true);
+        ExecutorService         executor =
+            Executors.newFixedThreadPool(READERS);
+
+        for(int index = 0; index < STABLE; ++index)
+            directory.putIfAbsent(new Inode.Directory("s" + index));
+
+        try
+        {
+            Future<?>[]         readers = new Future<?>[READERS];
+            for(int reader = 0; reader < READERS; ++reader)
+            {
+                readers[reader] = executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception
+                    {
+                        do
+                        {
+                            checkChildren(directory, "s", STABLE);
+                        } while(writing.get());
+                        return null;
+                    }
+                });
+            }
+
+            /* add children in runs long enough to grow the table several
+               times, and then remove them, shrinking it again */
+            for(int change = 0; change < CHANGES; ++change)
+            {
+                int             index = change % 2000;
+                if(index < 1000)
+                    directory.putIfAbsent(new Inode.Directory("w" + index));
+                else
+                    directory.remove("w" + (index - 1000));
+            }
+            writing.set(false);
+
+            for(Future<?> reader : readers)
+            {
+                try
+                {
+                    reader.get();
+                }
+                catch(ExecutionException e)
+                {
+                    throw e.getCause();
+                }
+            }
+        }
+        finally
+        {
+            writing.set(false);
+            executor.shutdownNow();
+        }
+    }
+
+    /** Checks that the children named by a prefix followed by a number
+        below a count are found, both by name and among the listed
+        children. */
+    private static void checkChildren(Inode.Directory directory,
+                                      String prefix, int count)
+        throws TestFailed
+    {
+        Set<String>         listed = new HashSet<String>();
+        for(Inode child : directory.children())
+        {
+            if(child == null)
+                throw new TestFailed("null child listed");
+            if(!listed.add(child.name))
+                throw new TestFailed("child " + child.name + " listed twice");
+        }
+
+        for(int index = 0; index < count; ++index)
+        {
+            String          name = prefix + index;
+            Inode           child = directory.child(name);
+            if(child == null || !child.name.equals(name))
+                throw new TestFailed("child " + name + " not found");
+            if(!listed.contains(name))
+                throw new TestFailed("child " + name + " not listed");
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package naming;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Unit test for the naming server's metadata journal and snapshots.
+
+    <p>
+    The test changes the namespace of a naming server kept in a temporary
+    directory, takes a snapshot part way, and then recovers a second naming
+    server from the directory without the first having been stopped, as
+    after a crash. The namespace must be recovered exactly, a recovered
+    storage server must be able to register again, and a torn record at the
+    end of the journal must be ignored. A snapshot that cannot start the
+    next journal must leave the current one in use. Last, the journal is appended to from
+    many threads at once, and every record must be read back intact.
+ */
+public class JournalTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server journal";
+
+    /** Directory holding the journal and snapshots. */
+    private TemporaryDirectory  directory = null;
+    /** Skeleton for the command interface of the fake storage server. */
+    private Skeleton<Command>   commandSkeleton = null;
+    /** Stub for the storage interface of the fake storage server. It is
+        never called. */
+    private Storage             storageStub;
+    /** Stub for the command interface of the fake storage server. */
+    private Command             commandStub;
+
+    /** Starts the fake storage server. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        directory = new TemporaryDirectory();
+
+        commandSkeleton = new Skeleton<Command>(Command.class, new Command() {
+            public boolean create(Path file)
+            {
+                return true;
+            }
+
+            public boolean delete(Path path)
+            {
+                return true;
+            }
+
+            public boolean copy(Path file, Storage server)
+            {
+                return true;
+            }
+        });
+        commandSkeleton.start();
+
+        commandStub = Stub.create(Command.class, commandSkeleton, "127.0.0.1");
+        storageStub = Stub.create(Storage.class,
+                                  new InetSocketAddress("127.0.0.1", 9));
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        File            metadata = new File(directory.root(), "metadata");
+        NamingServer    first = new NamingServer(metadata);
+
+        Path[]          duplicates = first.register(storageStub, commandStub,
+            new Path[] {new Path("/a/b"), new Path("/c"), new Path("/a")});
+        if(duplicates.length != 1 || !duplicates[0].equals(new Path("/a")))
+            throw new TestFailed("duplicate paths reported incorrectly");
+
+        first.createDirectory(new Path("/d"));
+        first.createFile(new Path("/d/e"));
+        first.delete(new Path("/c"));
+        first.snapshot();
+        first.createFile(new Path("/d/f"));
+        first.createDirectory(new Path("/g"));
+
+        // Recover without stopping the first server, as after a crash.
+        NamingServer    second = new NamingServer(metadata);
+        checkRecovered(second);
+
+        // The recovered storage server registers again, once.
+        duplicates = second.register(storageStub, commandStub,
+                                     new Path[] {new Path("/a/b"),
+                                                 new Path("/h")});
+        if(duplicates.length != 0)
+            throw new TestFailed("storage server registering again had " +
+                                 "duplicate files");
+
+        try
+        {
+            second.register(storageStub, commandStub, new Path[0]);
+            throw new TestFailed("storage server registered twice");
+        }
+        catch(IllegalStateException e) { }
+
+        File            journal = latest(metadata, "journal.");
+        checkRegisteredAgain(new NamingServer(metadata));
+
+        // A torn record at the end of the journal is ignored.
+        try(FileOutputStream out = new FileOutputStream(journal, true))
+        {
+            out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        }
+        checkRegisteredAgain(new NamingServer(metadata));
+
+        checkFailedRotation(new NamingServer(metadata), metadata);
+
+        checkConcurrentAppends(new File(directory.root(), "concurrent"));
+    }
+
+    /** Checks the namespace recovered from the first server's changes. */
+    private void checkRecovered(NamingServer server) throws Throwable
+    {
+        if(!server.isDirectory(new Path("/a")) ||
+           server.isDirectory(new Path("/a/b")))
+        {
+            throw new TestFailed("registered paths not recovered");
+        }
+
+        try
+        {
+            server.isDirectory(new Path("/c"));
+            throw new TestFailed("deleted file recovered");
+        }
+        catch(FileNotFoundException e) { }
+
+        Set<String>     listed =
+            new HashSet<String>(Arrays.asList(server.list(new Path("/d"))));
+        if(!listed.equals(new HashSet<String>(Arrays.asList("e", "f"))))
+            throw new TestFailed("directory listed as " + listed);
+
+        if(!server.isDirectory(new Path("/g")))
+            throw new TestFailed("directory created after snapshot lost");
+
+        if(!server.getStorage(new Path("/d/f")).equals(storageStub))
+            throw new TestFailed("storage server of file not recovered");
+    }
+
+    /** Checks the namespace recovered after the storage server registered
+        again. */
+    private void checkRegisteredAgain(NamingServer server) throws Throwable
+    {
+        if(server.list(new Path("/d")).length != 0)
+            throw new TestFailed("files not listed again were kept");
+        if(server.isDirectory(new Path("/h")) ||
+           !server.getStorage(new Path("/h")).equals(storageStub) ||
+           !server.getStorage(new Path("/a/b")).equals(storageStub))
+        {
+            throw new TestFailed("files listed again were not recovered");
+        }
+    }
+
+    /** Has a snapshot fail to start the next journal, and checks that
+        changes are still journaled and the next snapshot succeeds. */
+    private void checkFailedRotation(NamingServer server, File metadata)
+        throws Throwable
+    {
+        // The next journal cannot be created where a directory stands.
+        String          name = latest(metadata, "journal.").getName();
+        long            next = Long.parseLong(name.substring(8), 16) + 1;
+        File            blocked =
+            new File(metadata, String.format("journal.%016x", next));
+        if(!blocked.mkdir())
+            throw new TestFailed("cannot block the next journal");
+
+        try
+        {
+            server.snapshot();
+            throw new TestFailed("snapshot succeeded without a journal");
+        }
+        catch(IOException e) { }
+
+        server.createDirectory(new Path("/i"));
+        if(!blocked.delete())
+            throw new TestFailed("cannot unblock the next journal");
+
+        server.snapshot();
+        server.createFile(new Path("/i/j"));
+
+        NamingServer    recovered = new NamingServer(metadata);
+        if(!recovered.isDirectory(new Path("/i")) ||
+           recovered.isDirectory(new Path("/i/j")))
+        {
+            throw new TestFailed("changes after failed snapshot not " +
+                                 "recovered");
+        }
+    }
+
+    /** Appends to a journal from many threads and reads it back. */
+    private void checkConcurrentAppends(File file) throws Throwable
+    {
+        final int       threads = 8;
+        final int       records = 100;
+        final Journal   journal = new Journal(file);
+        final List<Throwable>   failures =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread[]        writers = new Thread[threads];
+        for(int index = 0; index < threads; ++index)
+        {
+            final int   writer = index;
+            writers[index] = new Thread(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        for(int record = 0; record < records; ++record)
+                            journal.append(new byte[] {(byte)writer,
+                                                       (byte)record});
+                    }
+                    catch(Throwable t)
+                    {
+                        failures.add(t);
+                    }
+                }
+            });
+            writers[index].start();
+        }
+
+        for(Thread writer : writers)
+            writer.join();
+        journal.close();
+
+        if(!failures.isEmpty())
+            throw new TestFailed("append failed", failures.get(0));
+        if(journal.syncs() > journal.records())
+            throw new TestFailed("more syncs than records");
+
+        // Each writer's records are read back in the order it wrote them.
+        int[]           next = new int[threads];
+        List<byte[]>    read = Journal.read(file);
+        for(byte[] record : read)
+        {
+            if(record.length != 2 || record[1] != next[record[0]]++)
+                throw new TestFailed("journal records read back out of order");
+        }
+        if(read.size() != threads * records)
+            throw new TestFailed("journal records lost");
+    }
+
+    /** Returns the file in a directory with the greatest name having the
+        given prefix. */
+    private static File latest(File directory, String prefix)
+    {
+        String[]        names = directory.list();
+        Arrays.sort(names);
+        for(int index = names.length - 1; index >= 0; --index)
+        {
+            if(names[index].startsWith(prefix))
+                return new File(directory, names[index]);
+        }
+        return null;
+    }
+
+    /** Stops the fake storage server and removes the directory. */
+    @Override
+    protected void clean()
+    {
+        if(commandSkeleton != null)
+            commandSkeleton.stop();
+        if(directory != null)
+            directory.remove();
+    }
+}
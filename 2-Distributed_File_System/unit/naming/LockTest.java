@@ -0,0 +1,414 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import test.*;
+
+/** Unit test for the naming server's path locks.
+
+    <p>
+    A thread waiting for a single lock must be woken when the lock is
+    released, whether it waits to read behind a writer or to write behind a
+    reader. A waiting reader that is interrupted must give up with
+    <code>InterruptedException</code>, leaving the lock free once released.
+
+    <p>
+    While a reader holds a lock, a writer and then a second reader queue for
+    it. The writer must be granted the lock before the second reader, even
+    though the lock is only held for reading. The test then interrupts a
+    queued writer, after which the reader queued behind it must be let
+    through. Locking a path that does not exist must leave no lock held on
+    the directories above it. Many threads then lock paths sharing the same
+    ancestors at once, and no two may ever hold the same exclusive lock.
+    Last, every read lock taken by threads at once must be counted, since
+    the count decides when a file is replicated.
+ */
+public class LockTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server path locks";
+
+    /** Time allowed for a thread that should be blocked to get a lock, in
+        milliseconds. */
+    private static final long   SETTLE = 100;
+    /** Number of threads locking paths at once. */
+    private static final int    THREADS = 8;
+    /** Number of locks taken by each of those threads. */
+    private static final int    ROUNDS = 2000;
+
+    /** Naming server whose locks are tested. */
+    private NamingServer        server;
+    /** Path locked by the threads queueing. */
+    private final Path          directory = new Path("/a");
+
+    /** Thread that locks a path and holds the lock until released. */
+    private class Locker extends Thread
+    {
+        /** Whether the lock is taken for writing. */
+        private final boolean           exclusive;
+        /** Signalled when the lock has been taken. */
+        private final CountDownLatch    locked = new CountDownLatch(1);
+        /** Signalled to release the lock. */
+        private final CountDownLatch    release = new CountDownLatch(1);
+        /** Exception thrown by the attempt to lock, if any. */
+        private volatile Throwable      failure = null;
+
+        Locker(boolean exclusive)
+        {
+            this.exclusive = exclusive;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                server.lock(directory, exclusive);
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+                return;
+            }
+
+            locked.countDown();
+            while(release.getCount() > 0)
+            {
+                try
+                {
+                    release.await();
+                }
+                catch(InterruptedException e) { }
+            }
+            server.unlock(directory, exclusive);
+        }
+
+        /** Checks whether the lock has been taken, waiting briefly. */
+        boolean locked(long milliseconds) throws InterruptedException
+        {
+            return locked.await(milliseconds, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Thread that takes a single lock and releases it at once. */
+    private static class Waiter extends Thread
+    {
+        /** Lock taken. */
+        private final ReadWriteLock     lock;
+        /** Whether the lock is taken for writing. */
+        private final boolean           exclusive;
+        /** Signalled when the lock has been taken. */
+        private final CountDownLatch    locked = new CountDownLatch(1);
+        /** Exception thrown by the attempt to lock, if any. */
+        private volatile Throwable      failure = null;
+
+        Waiter(ReadWriteLock lock, boolean exclusive)
+        {
+            this.lock = lock;
+            this.exclusive = exclusive;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                if(exclusive)
+                {
+                    lock.lockWrite();
+                    locked.countDown();
+                    lock.unlockWrite();
+                }
+                else
+                {
+                    lock.lockRead();
+                    locked.countDown();
+                    lock.unlockRead();
+                }
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+
+    /** Creates the naming server and the directories locked. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        server = new NamingServer();
+        server.createDirectory(directory);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        checkWakeUp(false);
+        checkWakeUp(true);
+        checkInterruptedReader();
+        checkQueueOrder();
+        checkInterruptedWriter();
+        checkMissingPath();
+        checkContention();
+        checkRequestCount();
+    }
+
+    /** Checks that a waiter is woken when the lock it waits for is released.
+
+        @param exclusive Whether the waiter writes, behind a reader, or reads,
+                         behind a writer.
+     */
+    private void checkWakeUp(boolean exclusive) throws Throwable
+    {
+        ReadWriteLock   lock = new ReadWriteLock();
+        if(exclusive)
+            lock.lockRead();
+        else
+            lock.lockWrite();
+
+        Waiter          waiter = new Waiter(lock, exclusive);
+        if(waiter.locked.await(SETTLE, TimeUnit.MILLISECONDS))
+            throw new TestFailed("lock taken while held in conflicting mode");
+
+        if(exclusive)
+            lock.unlockRead();
+        else
+            lock.unlockWrite();
+        if(!waiter.locked.await(10 * SETTLE, TimeUnit.MILLISECONDS))
+            throw new TestFailed("waiter not woken when lock was released");
+        waiter.join();
+        if(waiter.failure != null)
+            throw new TestFailed("waiter failed", waiter.failure);
+    }
+
+    /** Checks that a waiting reader can be interrupted. */
+    private void checkInterruptedReader() throws Throwable
+    {
+        ReadWriteLock   lock = new ReadWriteLock();
+        lock.lockWrite();
+
+        Waiter          reader = new Waiter(lock, false);
+        reader.locked.await(SETTLE, TimeUnit.MILLISECONDS);
+        reader.interrupt();
+        reader.join(10 * SETTLE);
+        if(reader.isAlive() ||
+           !(reader.failure instanceof InterruptedException))
+        {
+            throw new TestFailed("interrupted reader did not give up");
+        }
+
+        lock.unlockWrite();
+        Waiter          writer = new Waiter(lock, true);
+        if(!writer.locked.await(10 * SETTLE, TimeUnit.MILLISECONDS))
+            throw new TestFailed("lock not free after interrupted reader");
+        writer.join();
+    }
+
+    /** Checks that a writer queued before a reader gets the lock first. */
+    private void checkQueueOrder() throws Throwable
+    {
+        server.lock(directory, false);
+
+        Locker  writer = start(true);
+        Locker  reader = start(false);
+        if(writer.locked(SETTLE) || reader.locked(SETTLE))
+            throw new TestFailed("lock held for reading was taken for writing");
+
+        server.unlock(directory, false);
+        if(!writer.locked(10 * SETTLE))
+            throw new TestFailed("queued writer not granted released lock");
+        if(reader.locked(SETTLE))
+            throw new TestFailed("reader granted lock ahead of queued writer");
+
+        writer.release.countDown();
+        if(!reader.locked(10 * SETTLE))
+            throw new TestFailed("queued reader not granted released lock");
+        reader.release.countDown();
+        reader.join();
+        writer.join();
+    }
+
+    /** Checks that readers queued behind an interrupted writer go ahead. */
+    private void checkInterruptedWriter() throws Throwable
+    {
+        server.lock(directory, false);
+
+        Locker  writer = start(true);
+        Locker  reader = start(false);
+        if(reader.locked(SETTLE))
+            throw new TestFailed("reader granted lock ahead of queued writer");
+
+        writer.interrupt();
+        writer.join();
+        if(!(writer.failure instanceof IllegalStateException))
+            throw new TestFailed("interrupted writer did not fail", writer.failure);
+        if(!reader.locked(10 * SETTLE))
+            throw new TestFailed("reader held back by interrupted writer");
+
+        reader.release.countDown();
+        reader.join();
+        server.unlock(directory, false);
+        checkUnlocked();
+    }
+
+    /** Checks that no lock is left held when a path does not exist. */
+    private void checkMissingPath() throws Throwable
+    {
+        try
+        {
+            server.lock(new Path("/a/missing/file"), true);
+            throw new TestFailed("missing path locked");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            server.unlock(new Path("/a/missing"), false);
+            throw new TestFailed("missing path unlocked");
+        }
+        catch(IllegalArgumentException e) { }
+
+        checkUnlocked();
+    }
+
+    /** Checks exclusion while many threads lock paths under one directory.
+
+        <p>
+        Each thread takes turns locking a file of its own for reading and one
+        shared with all other threads for writing, so that the shared
+        ancestors are locked for reading by all of them throughout.
+     */
+    private void checkContention() throws Throwable
+    {
+        final Path              shared = new Path(directory, "shared");
+        final AtomicInteger     writers = new AtomicInteger();
+        final AtomicBoolean     overlapped = new AtomicBoolean(false);
+        ExecutorService         executor =
+            Executors.newFixedThreadPool(THREADS);
+
+        server.createDirectory(shared);
+        for(int thread = 0; thread < THREADS; ++thread)
+            server.createDirectory(new Path(directory, "d" + thread));
+
+        try
+        {
+            Future<?>[]         futures = new Future<?>[THREADS];
+            for(int thread = 0; thread < THREADS; ++thread)
+            {
+                final Path      own = new Path(directory, "d" + thread);
+                futures[thread] = executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception
+                    {
+                        for(int round = 0; round < ROUNDS; ++round)
+                        {
+                            server.lock(own, false);
+                            server.unlock(own, false);
+
+                            server.lock(shared, true);
+                            if(writers.incrementAndGet() != 1)
+                                overlapped.set(true);
+                            writers.decrementAndGet();
+                            server.unlock(shared, true);
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            for(Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        if(overlapped.get())
+            throw new TestFailed("exclusive lock held by two threads at once");
+        checkUnlocked();
+    }
+
+    /** Checks that read locks taken by many threads at once are all
+        counted. */
+    private void checkRequestCount() throws Throwable
+    {
+        final ReadWriteLock     lock = new ReadWriteLock();
+        ExecutorService         executor =
+            Executors.newFixedThreadPool(THREADS);
+
+        try
+        {
+            Future<?>[]         futures = new Future<?>[THREADS];
+            for(int thread = 0; thread < THREADS; ++thread)
+            {
+                futures[thread] = executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception
+                    {
+                        for(int round = 0; round < ROUNDS; ++round)
+                        {
+                            lock.lockRead();
+                            lock.unlockRead();
+                        }
+                        return null;
+                    }
+                });
+            }
+
+            for(Future<?> future : futures)
+                future.get();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        if(lock.getRequests() != THREADS * ROUNDS)
+        {
+            throw new TestFailed("counted " + lock.getRequests() +
+                                 " read locks of " + THREADS * ROUNDS);
+        }
+    }
+
+    /** Checks that no thread holds a lock, by locking the root for writing
+        without waiting for long. */
+    private void checkUnlocked() throws Throwable
+    {
+        Thread      locker = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    server.lock(new Path(), true);
+                    server.unlock(new Path(), true);
+                }
+                catch(Throwable t) { }
+            }
+        };
+        locker.setDaemon(true);
+        locker.start();
+        locker.join(10 * SETTLE);
+        if(locker.isAlive())
+            throw new TestFailed("lock left held on the root directory");
+    }
+
+    /** Starts a thread locking the directory, and gives it time to queue. */
+    private Locker start(boolean exclusive) throws InterruptedException
+    {
+        Locker      locker = new Locker(exclusive);
+        locker.start();
+        locker.locked(SETTLE);
+        return locker;
+    }
+}
@@ -0,0 +1,301 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Unit test for skeleton admission control.
+
+    <p>
+    The test checks that a skeleton refuses connections beyond the limit for
+    an address, refuses calls beyond the in-flight limits for an address and
+    for all clients, and throttles calls beyond an address's rate limit. It
+    checks that refused calls fail at once rather than waiting, that they are
+    counted, and that calls are admitted again once the calls in flight
+    finish. Finally, it sweeps an address's entry while a call is being
+    admitted, and changes the limits while calls are admitted, and checks
+    that no count is left behind.
+ */
+public class AdmissionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking skeleton admission control";
+
+    /** Skeleton used in the test. */
+    private Skeleton<Gate>      skeleton;
+    /** Released to let blocked calls return. */
+    private volatile CountDownLatch release;
+    /** Counts the blocked calls that have started. */
+    private final Semaphore     entered = new Semaphore(0);
+    /** Threads making blocked calls. */
+    private final ExecutorService   callers = Executors.newCachedThreadPool();
+    /** Connections opened directly by the test. */
+    private MultiplexedConnection   first;
+
+    /** Remote interface used in the test. */
+    public interface Gate
+    {
+        /** Blocks until the test releases it. */
+        public void block() throws RMIException;
+
+        /** Returns at once. */
+        public void ping() throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Gate>(Gate.class, new Gate() {
+            public void block()
+            {
+                entered.release();
+                try
+                {
+                    release.await();
+                }
+                catch(InterruptedException e) { }
+            }
+
+            public void ping()
+            {
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1", skeleton.getPort());
+        MethodTable         table = MethodTable.of(Gate.class);
+        MetricsRecorder     metrics = new MetricsRecorder(table);
+        ResultCache         cache = new ResultCache(table);
+
+        skeleton.setAdmissionControl(
+            AdmissionControl.NONE.withMaxConnectionsPerAddress(1));
+        first = new MultiplexedConnection(address, table, metrics, cache, 0);
+        try
+        {
+            new MultiplexedConnection(address, table, metrics, cache, 0).close();
+            throw new TestFailed("connection beyond limit accepted");
+        }
+        catch(IOException e) { }
+        expect(skeleton.getWorkerStatistics().getRefusedConnections(), 1,
+               "refused connections");
+        first.close();
+        first = null;
+        skeleton.setAdmissionControl(AdmissionControl.NONE);
+
+        final Gate          stub = Stub.create(Gate.class, skeleton, "127.0.0.1");
+
+        skeleton.setAdmissionControl(
+            AdmissionControl.NONE.withMaxInFlightPerAddress(2));
+        block(stub, 2);
+        expectRefused(stub, "call beyond per-address limit");
+        expect(skeleton.getWorkerStatistics().getRefusedCalls(), 1,
+               "refused calls");
+        unblock();
+        stub.ping();
+
+        skeleton.setAdmissionControl(AdmissionControl.NONE.withMaxInFlight(1));
+        block(stub, 1);
+        expectRefused(stub, "call beyond total limit");
+        expect(skeleton.getWorkerStatistics().getRefusedCalls(), 2,
+               "refused calls");
+        unblock();
+        stub.ping();
+
+        skeleton.setAdmissionControl(AdmissionControl.NONE.withRateLimit(1, 3));
+        for(int call = 0; call < 3; ++call)
+            stub.ping();
+        expectRefused(stub, "call beyond rate limit");
+        expect(skeleton.getWorkerStatistics().getThrottledCalls(), 1,
+               "throttled calls");
+
+        checkSweep();
+        checkLimitChange();
+    }
+
+    /** Sweeps an address's entry between its lookup and the admission of a
+        call or connection, and checks that the counts return to zero and the
+        limits still hold. */
+    private void checkSweep() throws Throwable
+    {
+        SweepingAdmission       admission = new SweepingAdmission();
+        AdmissionControl        limits = AdmissionControl.NONE
+            .withMaxInFlightPerAddress(1).withMaxConnectionsPerAddress(1);
+        InetAddress             peer = InetAddress.getByName("127.0.0.1");
+
+        admission.sweepNext = true;
+        admission.release(admission.admit(limits, peer, 1));
+
+        admission.sweepNext = true;
+        admission.releaseConnection(admission.admitConnection(limits, peer));
+
+        expect(admission.inFlight(peer), 0, "calls in flight after sweep");
+        expect(admission.connections(peer), 0, "connections after sweep");
+
+        admission.admit(limits, peer, 1);
+        expectRefused(admission, limits, peer, false);
+        admission.admitConnection(limits, peer);
+        expectRefused(admission, limits, peer, true);
+    }
+
+    /** Checks that addresses are not counted when no per-address limit
+        applies, and that calls admitted under one set of limits are released
+        correctly under another. */
+    private void checkLimitChange() throws Throwable
+    {
+        Admission               admission = new Admission();
+        AdmissionControl        limits = AdmissionControl.NONE
+            .withMaxInFlightPerAddress(1).withMaxConnectionsPerAddress(1);
+        InetAddress             peer = InetAddress.getByName("127.0.0.1");
+
+        Admission.Client        call =
+            admission.admit(AdmissionControl.NONE, peer, 1);
+        Admission.Client        connection =
+            admission.admitConnection(AdmissionControl.NONE, peer);
+        if(call != null || connection != null)
+            throw new TestFailed("address counted without per-address limits");
+
+        Admission.Client        limitedCall = admission.admit(limits, peer, 1);
+        Admission.Client        limitedConnection =
+            admission.admitConnection(limits, peer);
+
+        // Released after the limits have changed.
+        admission.release(call);
+        admission.releaseConnection(connection);
+        expect(admission.inFlight(), 1, "calls in flight after limit change");
+        expect(admission.inFlight(peer), 1,
+               "address calls in flight after limit change");
+        expectRefused(admission, limits, peer, false);
+        expectRefused(admission, limits, peer, true);
+
+        admission.release(limitedCall);
+        admission.releaseConnection(limitedConnection);
+        expect(admission.inFlight(), 0, "calls in flight after release");
+        expect(admission.inFlight(peer), 0, "address calls after release");
+        expect(admission.connections(peer), 0, "address connections after " +
+               "release");
+    }
+
+    /** Checks that admission refuses a call or a connection. */
+    private void expectRefused(Admission admission, AdmissionControl limits,
+                               InetAddress peer, boolean connection)
+        throws TestFailed
+    {
+        try
+        {
+            if(connection)
+                admission.admitConnection(limits, peer);
+            else
+                admission.admit(limits, peer, 1);
+            throw new TestFailed((connection ? "connection" : "call") +
+                                 " beyond limit admitted");
+        }
+        catch(RMIException e) { }
+    }
+
+    /** Admission state that can sweep all idle addresses right after the
+        next lookup of an address. */
+    private static class SweepingAdmission extends Admission
+    {
+        /** Whether the next lookup is followed by a sweep. */
+        boolean     sweepNext = false;
+
+        @Override
+        Client lookup(InetAddress address)
+        {
+            Client  client = super.lookup(address);
+            if(sweepNext)
+            {
+                sweepNext = false;
+                sweep(0);
+            }
+            return client;
+        }
+    }
+
+    /** Starts calls that block in the server and waits for them to arrive. */
+    private void block(final Gate stub, int calls) throws Exception
+    {
+        release = new CountDownLatch(1);
+        for(int call = 0; call < calls; ++call)
+        {
+            callers.execute(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        stub.block();
+                    }
+                    catch(RMIException e) { }
+                }
+            });
+        }
+
+        if(!entered.tryAcquire(calls, 2, TimeUnit.SECONDS))
+            throw new TestFailed("blocking calls did not reach the server");
+    }
+
+    /** Lets the blocked calls return, and waits for them to finish. */
+    private void unblock() throws Exception
+    {
+        release.countDown();
+        long            deadline = System.currentTimeMillis() + 1000;
+        while(skeleton.getWorkerStatistics().getActiveWorkers() > 0 &&
+              System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+    }
+
+    /** Checks that a call is refused without waiting. */
+    private void expectRefused(Gate stub, String what) throws TestFailed
+    {
+        long            started = System.nanoTime();
+        try
+        {
+            stub.ping();
+            throw new TestFailed(what + " was admitted");
+        }
+        catch(RMIException e) { }
+
+        if(System.nanoTime() - started > 500000000L)
+            throw new TestFailed(what + " was not refused at once");
+    }
+
+    /** Checks the value of a counter. */
+    private void expect(long actual, long expected, String what)
+        throws TestFailed
+    {
+        if(actual != expected)
+        {
+            throw new TestFailed("skeleton counted " + actual + " " + what +
+                                 ", expected " + expected);
+        }
+    }
+
+    /** Stops the skeleton and releases blocked calls. */
+    @Override
+    protected void clean()
+    {
+        if(release != null)
+            release.countDown();
+        if(first != null)
+            first.close();
+        callers.shutdown();
+        skeleton.stop();
+    }
+}
@@ -0,0 +1,130 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Unit test for asynchronous stubs.
+
+    <p>
+    The test starts many calls through an asynchronous stub before waiting for
+    any of them, and checks that each future completes with its own result
+    and that all the calls shared one connection. It also checks that an
+    exception thrown by the remote method completes the future exceptionally,
+    and that an interface that is not a valid companion is refused.
+ */
+public class AsyncStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+
+    /** Number of calls in flight at once. This is within the number of
+        outstanding calls a pooled connection carries before another is
+        opened. */
+    private static final int    CALLS = 50;
+
+    /** Skeleton used in the test. */
+    private Skeleton<Square>    skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Square
+    {
+        /** Returns the square of its argument.
+
+            @throws FileNotFoundException If the argument is negative.
+         */
+        public long square(int value)
+            throws RMIException, FileNotFoundException;
+    }
+
+    /** Asynchronous companion of <code>Square</code>. */
+    @AsyncInterface(Square.class)
+    public interface SquareAsync
+    {
+        /** Returns the square of its argument. */
+        public CompletableFuture<Long> square(int value);
+    }
+
+    /** Companion with a method that has no remote counterpart. */
+    @AsyncInterface(Square.class)
+    public interface BadAsync
+    {
+        /** Not present in <code>Square</code>. */
+        public CompletableFuture<Long> cube(int value);
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Square>(Square.class, new Square() {
+            public long square(int value) throws FileNotFoundException
+            {
+                if(value < 0)
+                    throw new FileNotFoundException("negative");
+
+                return (long)value * value;
+            }
+        });
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        SquareAsync     stub =
+            AsyncStub.create(SquareAsync.class,
+                             Stub.create(Square.class, skeleton));
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        CompletableFuture<Long>[]   results = new CompletableFuture[CALLS];
+        for(int call = 0; call < CALLS; ++call)
+            results[call] = stub.square(call);
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            if(results[call].get(10, TimeUnit.SECONDS) != (long)call * call)
+                throw new TestFailed("incorrect result for call " + call);
+        }
+
+        if(skeleton.connectionCount() != 1)
+        {
+            throw new TestFailed("asynchronous calls used " +
+                                 skeleton.connectionCount() + " connections");
+        }
+
+        try
+        {
+            stub.square(-1).get(10, TimeUnit.SECONDS);
+            throw new TestFailed("remote exception not reported");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+            {
+                throw new TestFailed("unexpected exception from remote " +
+                                     "method", e.getCause());
+            }
+        }
+
+        try
+        {
+            AsyncStub.create(BadAsync.class,
+                             Stub.create(Square.class, skeleton));
+            throw new TestFailed("companion with unknown method accepted");
+        }
+        catch(Error e) { }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
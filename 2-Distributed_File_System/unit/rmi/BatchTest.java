@@ -0,0 +1,107 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+
+import test.*;
+
+/** Unit test for batched calls.
+
+    <p>
+    The test records several calls, one of which throws, and flushes them as
+    one batch. It checks that the recording proxy returns zero values, that
+    the calls ran in the order recorded, that the failing call did not stop
+    the calls after it, and that each result carries the right value or
+    exception.
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batched calls";
+
+    /** Skeleton used in the test. */
+    private Skeleton<Log>       skeleton;
+    /** Entries appended by the server, in order. */
+    private final ArrayList<Integer>    entries = new ArrayList<Integer>();
+
+    /** Remote interface used in the test. */
+    public interface Log
+    {
+        /** Appends an entry and returns the number of entries.
+
+            @throws FileNotFoundException If the entry is negative.
+         */
+        public int append(int entry)
+            throws RMIException, FileNotFoundException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Log>(Log.class, new Log() {
+            public synchronized int append(int entry)
+                throws FileNotFoundException
+            {
+                if(entry < 0)
+                    throw new FileNotFoundException("negative entry");
+
+                entries.add(entry);
+                return entries.size();
+            }
+        });
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        Batch<Log>      batch = new Batch<Log>(Stub.create(Log.class, skeleton));
+
+        if(batch.calls().append(1) != 0)
+            throw new TestFailed("recorded call did not return zero");
+
+        batch.calls().append(-1);
+        batch.calls().append(2);
+
+        if(batch.size() != 3)
+            throw new TestFailed("batch holds " + batch.size() + " calls");
+
+        if(!entries.isEmpty())
+            throw new TestFailed("recorded call ran before flush");
+
+        Batch.Result[]  results = batch.flush();
+
+        if(batch.size() != 0)
+            throw new TestFailed("flush did not empty the batch");
+
+        if(results.length != 3)
+            throw new TestFailed("flush returned " + results.length + " results");
+
+        if(!entries.equals(java.util.Arrays.asList(1, 2)))
+            throw new TestFailed("calls ran as " + entries);
+
+        if(results[0].failed() || !Integer.valueOf(1).equals(results[0].get()))
+            throw new TestFailed("incorrect result for the first call");
+
+        if(!(results[1].getException() instanceof FileNotFoundException))
+            throw new TestFailed("exception of the second call not reported");
+
+        if(results[2].failed() || !Integer.valueOf(2).equals(results[2].get()))
+            throw new TestFailed("incorrect result for the third call");
+
+        if(batch.flush().length != 0)
+            throw new TestFailed("empty batch returned results");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
@@ -0,0 +1,161 @@
+package rmi;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Unit test for exported callbacks and their delivery queues.
+
+    <p>
+    The test exports a listener, passes its stub to a server over the
+    network, and has the server notify it through a
+    <code>CallbackQueue</code>. It checks that calls return before they are
+    delivered, that they are delivered in order on another thread, that equal
+    waiting calls are merged, that calls beyond the capacity are dropped and
+    counted, and that the queue fails once the listener is unexported.
+ */
+public class CallbackTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking callback delivery";
+
+    /** Capacity of the server's queue. */
+    private static final int    CAPACITY = 4;
+
+    /** Skeleton of the server. */
+    private Skeleton<Subject>   skeleton;
+    /** Queue through which the server calls the listener. */
+    private volatile CallbackQueue<Listener>    queue;
+    /** Stub of the exported listener. */
+    private Listener            exported;
+
+    /** Values delivered to the listener, in order. */
+    private final BlockingQueue<Integer>    delivered =
+        new LinkedBlockingQueue<Integer>();
+    /** Thread that ran the last delivery. */
+    private volatile Thread     deliveryThread;
+    /** Signalled when the listener starts blocking. */
+    private final CountDownLatch    blocking = new CountDownLatch(1);
+    /** Released to let the blocked listener continue. */
+    private final CountDownLatch    release = new CountDownLatch(1);
+
+    /** Interface of the listener. */
+    public interface Listener
+    {
+        /** Receives a value. */
+        public void notify(int value) throws RMIException;
+
+        /** Blocks until the test releases it. */
+        public void block() throws RMIException;
+    }
+
+    /** Interface of the server. */
+    public interface Subject
+    {
+        /** Subscribes a listener. */
+        public void subscribe(Listener listener) throws RMIException;
+    }
+
+    /** Starts the server. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Subject>(Subject.class, new Subject() {
+            public void subscribe(Listener listener)
+            {
+                queue = new CallbackQueue<Listener>(Listener.class, listener,
+                                                    CAPACITY);
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        exported = Callbacks.export(Listener.class, new Listener() {
+            public void notify(int value)
+            {
+                deliveryThread = Thread.currentThread();
+                delivered.add(value);
+            }
+
+            public void block() throws RMIException
+            {
+                blocking.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch(InterruptedException e) { }
+            }
+        }, "127.0.0.1");
+
+        Stub.create(Subject.class, skeleton, "127.0.0.1").subscribe(exported);
+        if(queue == null)
+            throw new TestFailed("listener stub did not reach the server");
+
+        queue.calls().block();
+        if(!blocking.await(2, TimeUnit.SECONDS))
+            throw new TestFailed("blocking call not delivered");
+
+        for(int value = 1; value <= CAPACITY; ++value)
+            queue.calls().notify(value);
+        queue.calls().notify(2);
+        if(queue.getDropped() != 0)
+            throw new TestFailed("call equal to a waiting one was dropped");
+
+        queue.calls().notify(CAPACITY + 1);
+        if(queue.getDropped() != 1)
+        {
+            throw new TestFailed("call beyond capacity not dropped: " +
+                                 queue.getDropped() + " dropped");
+        }
+
+        if(!delivered.isEmpty())
+            throw new TestFailed("calls delivered past a blocked listener");
+        release.countDown();
+
+        for(int value = 1; value <= CAPACITY; ++value)
+        {
+            Integer     received = delivered.poll(2, TimeUnit.SECONDS);
+            if(received == null || received != value)
+            {
+                throw new TestFailed("expected delivery of " + value +
+                                     ", got " + received);
+            }
+        }
+
+        if(deliveryThread == Thread.currentThread())
+            throw new TestFailed("call delivered on the caller's thread");
+
+        if(!Callbacks.unexport(exported))
+            throw new TestFailed("listener was not unexported");
+        exported = null;
+
+        queue.calls().notify(0);
+        long        deadline = System.currentTimeMillis() + 2000;
+        while(!queue.isFailed() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+
+        if(!queue.isFailed())
+            throw new TestFailed("queue did not fail after listener left");
+    }
+
+    /** Stops the server and the listener. */
+    @Override
+    protected void clean()
+    {
+        release.countDown();
+        if(exported != null)
+            Callbacks.unexport(exported);
+        skeleton.stop();
+    }
+}
@@ -0,0 +1,122 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+
+import test.*;
+
+/** Unit test for the compression of large frames.
+
+    <p>
+    With compression enabled, the test echoes a large block of repetitive text
+    and a block of random bytes of the same size through a skeleton. Both must
+    come back intact. The text must be compressed, which shows in the
+    compression ratio of the stub's metrics, while the random block must be
+    sent as it is. Calls below the threshold are never compressed. Last, a
+    compressed frame claiming to inflate to more than the limit must be
+    refused.
+ */
+public class CompressionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking frame compression";
+
+    /** Size of the blocks echoed. */
+    private static final int    SIZE = 64 * 1024;
+
+    /** Skeleton used in the test. */
+    private Skeleton<Echo>      skeleton;
+    /** Whether compression was enabled before the test. */
+    private boolean             enabled;
+
+    /** Remote interface used in the test. */
+    public interface Echo
+    {
+        /** Returns its argument. */
+        public byte[] echo(byte[] data) throws RMIException;
+    }
+
+    /** Enables compression and starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        enabled = Compression.isEnabled();
+        Compression.setEnabled(true);
+
+        skeleton = new Skeleton<Echo>(Echo.class, new Echo() {
+            public byte[] echo(byte[] data)
+            {
+                return data;
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        Echo            stub = Stub.create(Echo.class,
+            new InetSocketAddress("127.0.0.1", skeleton.getPort()));
+
+        byte[]          small = new byte[16];
+        if(!Arrays.equals(stub.echo(small), small))
+            throw new TestFailed("small block corrupted");
+
+        if(Stub.metrics(stub).getCompressedBytes() != 0)
+            throw new TestFailed("frame below the threshold compressed");
+
+        byte[]          text = new byte[SIZE];
+        byte[]          line = "the quick brown fox jumps over the lazy dog\n"
+                                   .getBytes("UTF-8");
+        for(int index = 0; index < SIZE; ++index)
+            text[index] = line[index % line.length];
+
+        if(!Arrays.equals(stub.echo(text), text))
+            throw new TestFailed("compressed block corrupted");
+
+        CallMetrics     metrics = Stub.metrics(stub);
+        if(metrics.getCompressionRatio() < 4)
+        {
+            throw new TestFailed("text compressed only " +
+                                 metrics.getCompressionRatio() + " times");
+        }
+
+        if(skeleton.metrics().getCompressedBytes() == 0)
+            throw new TestFailed("skeleton did not compress its reply");
+
+        long            compressed = metrics.getCompressedBytes();
+        byte[]          random = new byte[SIZE];
+        new Random(1).nextBytes(random);
+
+        if(!Arrays.equals(stub.echo(random), random))
+            throw new TestFailed("random block corrupted");
+
+        if(Stub.metrics(stub).getCompressedBytes() != compressed)
+            throw new TestFailed("random block was compressed");
+
+        byte[]          packed = new byte[SIZE];
+        int             length = Compression.deflate(text, SIZE, packed);
+        try
+        {
+            Compression.inflate(Arrays.copyOf(packed, length),
+                                Integer.MAX_VALUE);
+            throw new TestFailed("oversized compressed frame accepted");
+        }
+        catch(java.io.StreamCorruptedException e) { }
+    }
+
+    /** Stops the skeleton and restores the compression setting. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        Compression.setEnabled(enabled);
+    }
+}
@@ -0,0 +1,491 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Unit test for stub connection pooling.
+
+    <p>
+    The test checks that consecutive calls made through a stub reuse a single
+    connection, and that a stub recovers transparently when the skeleton is
+    restarted and the pooled connection has been closed by the server.
+
+    <p>
+    It then checks that a connection being opened does not hold up calls that
+    can use one already open: the stub reaches the skeleton through a relay
+    that forwards only the first connection, and leaves later ones
+    unanswered. While one call is running and a second is waiting for a new
+    connection to be opened, a third must still be answered at once.
+
+    <p>
+    Last, the test checks when a call lost with its connection is sent again.
+    A stopped skeleton must name the last call it read before closing the
+    connection. A call the skeleton says it never read must be sent again on
+    another connection, while a call it read, or any call on a connection
+    closed without notice, must fail instead, since it may have run.
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking stub connection pooling";
+
+    /** Skeleton used in the test. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Echo
+    {
+        /** Returns its argument. */
+        public int echo(int value) throws RMIException;
+        /** Returns after the given number of milliseconds. */
+        public void sleep(int millis) throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new Echo() {
+            public int echo(int value)
+            {
+                return value;
+            }
+
+            public void sleep(int millis) throws RMIException
+            {
+                try
+                {
+                    Thread.sleep(millis);
+                }
+                catch(InterruptedException e)
+                {
+                    throw new RMIException(e);
+                }
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        Echo        stub = Stub.create(Echo.class, skeleton);
+
+        for(int call = 0; call < 100; ++call)
+        {
+            if(stub.echo(call) != call)
+                throw new TestFailed("incorrect result from stub");
+        }
+
+        if(skeleton.connectionCount() != 1)
+        {
+            throw new TestFailed("sequential calls used " +
+                                 skeleton.connectionCount() + " connections");
+        }
+
+        skeleton.stop();
+        skeleton.start();
+
+        if(stub.echo(42) != 42)
+            throw new TestFailed("incorrect result after skeleton restart");
+
+        checkConnectOutsideLock();
+        checkClosingNotice();
+        checkResend(Scripted.UNREAD, true);
+        checkResend(Scripted.READ, false);
+        checkResend(Scripted.DROPPED, false);
+    }
+
+    /** Checks that a stopped skeleton names the last call it read. */
+    private void checkClosingNotice() throws Throwable
+    {
+        Socket              socket = new Socket(skeleton.getHostName(),
+                                                skeleton.getPort());
+        try
+        {
+            socket.setSoTimeout(1000);
+            DataInputStream     in =
+                new DataInputStream(new BufferedInputStream(
+                    socket.getInputStream()));
+            DataOutputStream    out =
+                new DataOutputStream(new BufferedOutputStream(
+                    socket.getOutputStream()));
+
+            hello(in, out, MethodTable.of(Echo.class));
+            WireProtocol.FrameBuffer    frame = new WireProtocol.FrameBuffer();
+            DataOutputStream    call = frame.start(WireProtocol.CALL);
+            call.writeInt(5);
+            call.writeInt(0);
+            call.writeShort(MethodTable.of(Echo.class).idOf(
+                Echo.class.getMethod("echo", int.class)));
+            call.writeByte(1);
+            WireProtocol.writeValue(call, 9);
+            frame.send(out);
+
+            DataInputStream     reply = WireProtocol.readFrame(in);
+            if(reply.readByte() != WireProtocol.RETURN || reply.readInt() != 5)
+                throw new TestFailed("call not answered");
+
+            skeleton.stop();
+            DataInputStream     closing = WireProtocol.readFrame(in);
+            if(closing.readByte() != WireProtocol.CLOSING)
+                throw new TestFailed("skeleton stopped without notice");
+            if(closing.readInt() != 5)
+                throw new TestFailed("wrong last call named on stopping");
+        }
+        finally
+        {
+            socket.close();
+            skeleton.start();
+        }
+    }
+
+    /** Checks whether a call lost with its connection is sent again.
+
+        @param ending How the scripted skeleton ends the first connection.
+        @param resent Whether the call must be sent again.
+     */
+    private void checkResend(int ending, boolean resent) throws Throwable
+    {
+        Scripted        scripted = new Scripted(ending);
+        Echo            stub = Stub.create(Echo.class, scripted.address());
+
+        try
+        {
+            try
+            {
+                if(stub.echo(7) != 7)
+                    throw new TestFailed("incorrect result after resending");
+                if(!resent)
+                    throw new TestFailed("call that may have run sent again");
+            }
+            catch(RMIException e)
+            {
+                if(resent)
+                    throw new TestFailed("call never read was not sent again", e);
+            }
+
+            if(scripted.calls.get() != (resent ? 2 : 1))
+            {
+                throw new TestFailed("call sent " + scripted.calls.get() +
+                                     " times");
+            }
+        }
+        finally
+        {
+            scripted.close();
+        }
+    }
+
+    /** Performs the stub's side of the handshake. */
+    private static void hello(DataInputStream in, DataOutputStream out,
+                              MethodTable table) throws IOException
+    {
+        WireProtocol.FrameBuffer    frame = new WireProtocol.FrameBuffer();
+        DataOutputStream            hello = frame.start(WireProtocol.HELLO);
+        hello.writeInt(WireProtocol.MAGIC);
+        hello.writeByte(WireProtocol.VERSION);
+        hello.writeUTF(table.getInterface().getName());
+        hello.writeLong(table.fingerprint());
+        hello.writeByte(0);
+        frame.send(out);
+
+        if(WireProtocol.readFrame(in).readByte() != WireProtocol.HELLO_OK)
+            throw new IOException("handshake rejected");
+    }
+
+    /** Checks that calls use an open connection while another is opened. */
+    private void checkConnectOutsideLock() throws Throwable
+    {
+        int             maxPending =
+            ConnectionPool.getMaxPendingPerConnection();
+        Relay           relay = new Relay(skeleton);
+        final Echo      stub = Stub.create(Echo.class, relay.address());
+
+        ConnectionPool.setMaxPendingPerConnection(1);
+        try
+        {
+            if(stub.echo(1) != 1)
+                throw new TestFailed("incorrect result through relay");
+
+            Thread      sleeper = call(new Callable<Void>() {
+                public Void call() throws Exception
+                {
+                    stub.sleep(1000);
+                    return null;
+                }
+            });
+            while(skeleton.getWorkerStatistics().getActiveWorkers() != 1)
+                Thread.sleep(10);
+
+            // This call finds the connection busy, and opens another.
+            Thread      opener = call(new Callable<Void>() {
+                public Void call() throws Exception
+                {
+                    stub.echo(2);
+                    return null;
+                }
+            });
+            relay.held.await();
+
+            long        started = System.nanoTime();
+            if(stub.echo(3) != 3)
+                throw new TestFailed("incorrect result while connecting");
+            long        elapsed = (System.nanoTime() - started) / 1000000L;
+            if(elapsed > 500)
+            {
+                throw new TestFailed("call waited " + elapsed + " ms for " +
+                                     "another connection to be opened");
+            }
+
+            relay.close();
+            sleeper.join();
+            opener.join();
+        }
+        finally
+        {
+            ConnectionPool.setMaxPendingPerConnection(maxPending);
+            relay.close();
+        }
+    }
+
+    /** Runs a call on a daemon thread, ignoring its outcome. */
+    private static Thread call(final Callable<Void> call)
+    {
+        Thread          thread = new Thread() {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    call.call();
+                }
+                catch(Exception e) { }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /** Skeleton that reads one call on each of two connections. It ends the
+        first as scripted, and answers the call on the second. */
+    private static class Scripted extends Thread
+    {
+        /** The first connection is closed after saying no call was read. */
+        static final int                UNREAD = 0;
+        /** The first connection is closed after saying the call was read. */
+        static final int                READ = 1;
+        /** The first connection is closed without notice. */
+        static final int                DROPPED = 2;
+
+        /** Socket stubs connect to. */
+        private final ServerSocket      listener = new ServerSocket(0);
+        /** How the first connection ends. */
+        private final int               ending;
+        /** Number of calls read. */
+        final AtomicInteger             calls = new AtomicInteger();
+
+        Scripted(int ending) throws IOException
+        {
+            this.ending = ending;
+            setDaemon(true);
+            start();
+        }
+
+        /** Returns the address stubs connect to. */
+        InetSocketAddress address()
+        {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                         listener.getLocalPort());
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                serve(true);
+                serve(false);
+            }
+            catch(IOException e) { }
+        }
+
+        /** Accepts a connection and reads one call from it. */
+        private void serve(boolean first) throws IOException
+        {
+            Socket      socket = listener.accept();
+            try
+            {
+                DataInputStream     in =
+                    new DataInputStream(new BufferedInputStream(
+                        socket.getInputStream()));
+                DataOutputStream    out =
+                    new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream()));
+
+                WireProtocol.readFrame(in);
+                WireProtocol.FrameBuffer    frame =
+                    new WireProtocol.FrameBuffer();
+                DataOutputStream    ok = frame.start(WireProtocol.HELLO_OK);
+                ok.writeByte(WireProtocol.VERSION);
+                ok.writeUTF("");
+                ok.writeByte(0);
+                frame.send(out);
+
+                DataInputStream     call = WireProtocol.readFrame(in);
+                call.readByte();
+                int                 requestId = call.readInt();
+                call.readInt();
+                call.readShort();
+                call.readUnsignedByte();
+                Object              value = WireProtocol.readValue(call);
+                calls.incrementAndGet();
+
+                if(!first)
+                {
+                    DataOutputStream    reply =
+                        frame.start(WireProtocol.RETURN);
+                    reply.writeInt(requestId);
+                    reply.writeInt(0);
+                    WireProtocol.writeValue(reply, value);
+                    frame.send(out);
+                }
+                else if(ending != DROPPED)
+                {
+                    frame.start(WireProtocol.CLOSING).writeInt(
+                        ending == READ ? requestId : requestId - 1);
+                    frame.send(out);
+                }
+            }
+            catch(ClassNotFoundException e)
+            {
+                throw new IOException(e);
+            }
+            finally
+            {
+                socket.close();
+            }
+        }
+
+        /** Stops accepting connections. */
+        void close()
+        {
+            try
+            {
+                listener.close();
+            }
+            catch(IOException e) { }
+        }
+    }
+
+    /** Forwards the first connection made to it to a skeleton, and accepts
+        later connections without ever answering them. */
+    private static class Relay extends Thread
+    {
+        /** Socket stubs connect to. */
+        private final ServerSocket      listener = new ServerSocket(0);
+        /** Address of the skeleton. */
+        private final InetSocketAddress target;
+        /** Sockets opened by the relay, closed with it. */
+        private final ConcurrentLinkedQueue<Socket>   sockets =
+            new ConcurrentLinkedQueue<Socket>();
+        /** Signalled when a connection is being held unanswered. */
+        final CountDownLatch            held = new CountDownLatch(1);
+
+        Relay(Skeleton<?> skeleton) throws IOException
+        {
+            target = new InetSocketAddress(skeleton.getHostName(),
+                                           skeleton.getPort());
+            setDaemon(true);
+            start();
+        }
+
+        /** Returns the address stubs connect to. */
+        InetSocketAddress address()
+        {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                         listener.getLocalPort());
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                Socket      first = listener.accept();
+                Socket      forward = new Socket(target.getAddress(),
+                                                 target.getPort());
+                sockets.add(first);
+                sockets.add(forward);
+                pump(first, forward);
+                pump(forward, first);
+
+                while(true)
+                {
+                    sockets.add(listener.accept());
+                    held.countDown();
+                }
+            }
+            catch(IOException e) { }
+        }
+
+        /** Copies bytes from one socket to another on a daemon thread. */
+        private static void pump(final Socket from, final Socket to)
+        {
+            Thread      pump = new Thread() {
+                @Override
+                public void run()
+                {
+                    byte[]  buffer = new byte[4096];
+                    try
+                    {
+                        InputStream     in = from.getInputStream();
+                        OutputStream    out = to.getOutputStream();
+                        int             read;
+                        while((read = in.read(buffer)) >= 0)
+                            out.write(buffer, 0, read);
+                    }
+                    catch(IOException e) { }
+                }
+            };
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        /** Closes every socket the relay opened. */
+        void close()
+        {
+            try
+            {
+                listener.close();
+            }
+            catch(IOException e) { }
+            for(Socket socket : sockets)
+            {
+                try
+                {
+                    socket.close();
+                }
+                catch(IOException e) { }
+            }
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
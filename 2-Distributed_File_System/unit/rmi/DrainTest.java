@@ -0,0 +1,179 @@
+package rmi;
+
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Unit test for stopping a skeleton gracefully.
+
+    <p>
+    The skeleton runs calls on a single worker. The test first stops it
+    while a short call is in progress, which must be allowed to finish.
+    It then stops it while a call that never returns by itself is running
+    and another waits for the worker: the first must be interrupted, the
+    second failed without being run, and both reported as cut off.
+ */
+public class DrainTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking graceful stop of skeletons";
+
+    /** Skeleton used in the test. */
+    private DrainingSkeleton    skeleton;
+    /** Executor of the skeleton. */
+    private ExecutorService     executor;
+    /** Signalled each time a call starts running on the server. */
+    private final Semaphore     started = new Semaphore(0);
+    /** Number of calls the server has run to the end. */
+    private final AtomicInteger finished = new AtomicInteger();
+    /** Number of calls interrupted on the server. */
+    private final AtomicInteger interrupted = new AtomicInteger();
+
+    /** Remote interface used in the test. */
+    public interface Sleeper
+    {
+        /** Sleeps for the given number of milliseconds. */
+        public void sleep(long milliseconds) throws RMIException;
+    }
+
+    /** Skeleton recording the number of calls cut off. */
+    private static class DrainingSkeleton extends Skeleton<Sleeper>
+    {
+        /** Number of calls reported cut off, or -1 before the report. */
+        private volatile int    cutOff = -1;
+
+        DrainingSkeleton(Sleeper server)
+        {
+            super(Sleeper.class, server);
+        }
+
+        @Override
+        protected void drained(int cutOff)
+        {
+            this.cutOff = cutOff;
+        }
+    }
+
+    /** Creates the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new DrainingSkeleton(new Sleeper() {
+            public void sleep(long milliseconds)
+            {
+                started.release();
+                try
+                {
+                    Thread.sleep(milliseconds);
+                    finished.incrementAndGet();
+                }
+                catch(InterruptedException e)
+                {
+                    interrupted.incrementAndGet();
+                }
+            }
+        });
+
+        executor = SkeletonExecutors.fixed(1);
+
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.setExecutor(executor);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        skeleton.start();
+        Sleeper         stub = Stub.create(Sleeper.class, skeleton, "127.0.0.1");
+
+        Caller          quick = new Caller(stub, 300);
+        started.acquire();
+        skeleton.stop(Duration.ofSeconds(10));
+
+        if(skeleton.cutOff != 0)
+            throw new TestFailed("call reported cut off while draining");
+        if(finished.get() != 1 || interrupted.get() != 0)
+            throw new TestFailed("call in progress did not finish");
+        quick.join(2000);
+        if(quick.failure != null)
+            throw new TestFailed("drained call failed", quick.failure);
+
+        skeleton.cutOff = -1;
+        skeleton.start();
+        stub = Stub.create(Sleeper.class, skeleton, "127.0.0.1");
+
+        Caller          slow = new Caller(stub, 60000);
+        started.acquire();
+        Caller          queued = new Caller(stub, 0);
+        // Give the second call time to reach the executor's queue.
+        Thread.sleep(200);
+
+        long            stopping = System.nanoTime();
+        skeleton.stop(Duration.ofMillis(200));
+        long            waited = (System.nanoTime() - stopping) / 1000000;
+
+        if(waited < 150 || waited > 5000)
+            throw new TestFailed("stop waited " + waited + " ms");
+        if(skeleton.cutOff != 2)
+        {
+            throw new TestFailed(skeleton.cutOff + " calls reported cut " +
+                                 "off, expected 2");
+        }
+
+        slow.join(5000);
+        queued.join(5000);
+        if(interrupted.get() != 1)
+            throw new TestFailed("running call was not interrupted");
+        if(finished.get() != 1 || started.tryAcquire(200, TimeUnit.MILLISECONDS))
+            throw new TestFailed("queued call was run");
+        if(slow.isAlive() || queued.isAlive() || queued.failure == null)
+            throw new TestFailed("stubs of cut off calls did not fail");
+    }
+
+    /** Stops the skeleton and the executor. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        executor.shutdownNow();
+    }
+
+    /** Makes one call from a thread of its own. */
+    private static class Caller extends Thread
+    {
+        /** The stub. */
+        private final Sleeper       stub;
+        /** The argument of the call. */
+        private final long          milliseconds;
+        /** The exception thrown by the call, if any. */
+        private volatile Throwable  failure = null;
+
+        Caller(Sleeper stub, long milliseconds)
+        {
+            this.stub = stub;
+            this.milliseconds = milliseconds;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                stub.sleep(milliseconds);
+            }
+            catch(Throwable t)
+            {
+                failure = t;
+            }
+        }
+    }
+}
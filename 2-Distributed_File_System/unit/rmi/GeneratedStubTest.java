@@ -0,0 +1,110 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+
+import common.Path;
+import storage.Command;
+import storage.Storage;
+
+import test.*;
+
+/** Unit test for the stub and skeleton classes generated at build time.
+
+    <p>
+    The test relies on the <code>stubs</code> Makefile target having generated
+    classes for <code>storage.Command</code>. It checks that stubs and
+    skeletons for the interface use the generated classes, that results and
+    declared exceptions pass through them over the network, and that
+    generated stubs are equal to proxy stubs for the same address, survive
+    serialization, and keep their class when given time limits.
+ */
+public class GeneratedStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking generated stubs and skeletons";
+
+    /** Skeleton used in the test. */
+    private Skeleton<Command>   skeleton;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Command>(Command.class, new Command() {
+            public boolean create(Path file)
+            {
+                return file.isRoot();
+            }
+
+            public boolean delete(Path path)
+            {
+                return !path.isRoot();
+            }
+
+            public boolean copy(Path file, Storage server) throws IOException
+            {
+                throw new FileNotFoundException(file.toString());
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the skeleton's dispatcher.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1", skeleton.getPort());
+        Command             stub = Stub.create(Command.class, address);
+
+        if(!(stub instanceof GeneratedStub))
+            throw new TestFailed("Stub.create did not use the generated stub");
+
+        if(!MethodTable.of(Command.class).isGenerated())
+            throw new TestFailed("skeleton does not use the generated dispatcher");
+
+        if(!stub.create(new Path("/")) || !stub.delete(new Path("/file")))
+            throw new TestFailed("incorrect result from generated stub");
+
+        try
+        {
+            stub.copy(new Path("/file"), null);
+            throw new TestFailed("declared exception not thrown");
+        }
+        catch(FileNotFoundException e) { }
+
+        Command             proxy = (Command) Proxy.newProxyInstance(
+            Command.class.getClassLoader(), new Class<?>[] {Command.class},
+            new MyInvocationHandler(address, Command.class));
+
+        if(!stub.equals(proxy) || !proxy.equals(stub) ||
+           stub.hashCode() != proxy.hashCode() ||
+           !stub.toString().equals(proxy.toString()))
+        {
+            throw new TestFailed("generated stub differs from proxy stub");
+        }
+
+        Object              copy = WireProtocol.copy(stub);
+        if(!(copy instanceof GeneratedStub) || !copy.equals(stub))
+            throw new TestFailed("generated stub not serialized correctly");
+
+        Command             limited = Stub.withTimeouts(stub, new Timeouts(0, 1000, 0));
+        if(!(limited instanceof GeneratedStub) || !limited.equals(stub))
+            throw new TestFailed("withTimeouts did not keep the generated stub");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
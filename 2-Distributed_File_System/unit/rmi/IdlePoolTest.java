@@ -0,0 +1,102 @@
+package rmi;
+
+import java.net.*;
+
+import test.*;
+
+/** Unit test for the dropping of idle connection pools.
+
+    <p>
+    Calls to a skeleton make a connection pool for its address. Once the
+    skeleton has gone away, as an unexported listener does, and the pool has
+    been idle for the idle timeout, the pool must be dropped rather than kept
+    for the lifetime of the process. A caller still holding a dropped pool
+    must be able to go on using it once the skeleton is back.
+ */
+public class IdlePoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking that idle pools are dropped";
+
+    /** Idle timeout in force before the test. */
+    private long                idleTimeout;
+    /** Skeleton used in the test. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Echo
+    {
+        /** Returns its argument. */
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Starts the skeleton, and has idle connections and pools dropped at
+        the reaper's next pass. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new Echo() {
+            public int echo(int value)
+            {
+                return value;
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+
+        idleTimeout = ConnectionPool.getIdleTimeout();
+        ConnectionPool.setIdleTimeout(0);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        Echo                stub = Stub.create(Echo.class, skeleton);
+        InetSocketAddress   address = Stub.handlerOf(stub).getAddress();
+        MethodTable         table = MethodTable.of(Echo.class);
+        ConnectionPool      pool = ConnectionPool.get(address, table);
+
+        if(stub.echo(1) != 1)
+            throw new TestFailed("incorrect result from stub");
+
+        skeleton.stop();
+        waitDropped(address, table, pool);
+        if(pool.metrics().getActiveConnections() != 0)
+            throw new TestFailed("connection left open to stopped skeleton");
+
+        // A pool still held, as by a remote iterator, must still work.
+        skeleton.start();
+        int                 id =
+            table.idOf(Echo.class.getMethod("echo", int.class));
+        myObject            result =
+            pool.call(id, new Object[] {2}, Timeouts.NONE);
+        if(result.getExceptionStatus() || !result.getObject().equals(2))
+            throw new TestFailed("incorrect result from dropped pool");
+    }
+
+    /** Waits for a pool to be dropped. */
+    private static void waitDropped(InetSocketAddress address,
+                                    MethodTable table, ConnectionPool pool)
+        throws Throwable
+    {
+        for(int wait = 0; ConnectionPool.get(address, table) == pool; ++wait)
+        {
+            if(wait == 120)
+                throw new TestFailed("idle pool not dropped");
+            Thread.sleep(20);
+        }
+    }
+
+    /** Restores the idle timeout, and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        ConnectionPool.setIdleTimeout(idleTimeout);
+        skeleton.stop();
+    }
+}
@@ -0,0 +1,158 @@
+package rmi;
+
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Unit test for lanes of remote methods.
+
+    <p>
+    The test gives a skeleton a default executor with a single worker, and a
+    lane of its own to a method that returns at once. While the only default
+    worker is blocked, calls in the lane must still be run, on the lane's
+    executor. It also checks that a lane given with <code>setLane</code>
+    takes precedence over the annotation, and that lanes cannot be changed
+    while the skeleton runs.
+ */
+public class LaneTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking lanes of remote methods";
+
+    /** Skeleton used in the test. */
+    private Skeleton<Mixed>     skeleton;
+    /** Default executor, with one worker. */
+    private ExecutorService     slow;
+    /** Executor of the fast lane. */
+    private ExecutorService     fast;
+    /** Released to let the blocked call return. */
+    private final CountDownLatch    release = new CountDownLatch(1);
+    /** Signalled when the blocking call starts. */
+    private final CountDownLatch    blocked = new CountDownLatch(1);
+    /** Threads of the fast lane, recorded by the fast executor. */
+    private final ConcurrentHashMap<Thread, Boolean>    fastThreads =
+        new ConcurrentHashMap<Thread, Boolean>();
+
+    /** Remote interface used in the test. */
+    public interface Mixed
+    {
+        /** Blocks until the test releases it. */
+        public void block() throws RMIException;
+
+        /** Returns the name of the thread running the call. */
+        @Lane("fast")
+        public String quick() throws RMIException;
+
+        /** Returns the name of the thread running the call. Placed in the
+            fast lane with <code>setLane</code>. */
+        @Lane("unused")
+        public String moved() throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Mixed>(Mixed.class, new Mixed() {
+            public void block()
+            {
+                blocked.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch(InterruptedException e) { }
+            }
+
+            public String quick()
+            {
+                return Thread.currentThread().getName();
+            }
+
+            public String moved()
+            {
+                return Thread.currentThread().getName();
+            }
+        });
+
+        slow = SkeletonExecutors.fixed(1);
+        fast = Executors.newFixedThreadPool(1, new ThreadFactory() {
+            public Thread newThread(Runnable r)
+            {
+                Thread  thread = new Thread(r, "fast-lane");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.setExecutor(slow);
+        skeleton.setExecutor("fast", fast);
+        skeleton.setLane("moved", "fast");
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        final Mixed     stub = Stub.create(Mixed.class, skeleton, "127.0.0.1");
+
+        if(!"fast".equals(skeleton.getLane("quick")) ||
+           !"fast".equals(skeleton.getLane("moved")) ||
+           skeleton.getLane("block") != null)
+        {
+            throw new TestFailed("lanes reported incorrectly");
+        }
+
+        Thread          caller = new Thread(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    stub.block();
+                }
+                catch(RMIException e) { }
+            }
+        });
+        caller.setDaemon(true);
+        caller.start();
+
+        if(!blocked.await(2, TimeUnit.SECONDS))
+            throw new TestFailed("blocking call did not start");
+
+        if(!"fast-lane".equals(stub.quick()))
+            throw new TestFailed("annotated method not run in its lane");
+        if(!"fast-lane".equals(stub.moved()))
+            throw new TestFailed("method given a lane not run in it");
+
+        try
+        {
+            skeleton.setLane("quick", null);
+            throw new TestFailed("lane changed while running");
+        }
+        catch(IllegalStateException e) { }
+
+        try
+        {
+            skeleton.stop();
+            skeleton.setLane("missing", "fast");
+            throw new TestFailed("lane given to missing method");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Stops the skeleton and the executors. */
+    @Override
+    protected void clean()
+    {
+        release.countDown();
+        skeleton.stop();
+        slow.shutdown();
+        fast.shutdown();
+    }
+}
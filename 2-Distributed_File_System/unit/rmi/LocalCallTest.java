@@ -0,0 +1,124 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.net.InetSocketAddress;
+
+import test.*;
+
+/** Unit test for calls to skeletons running in the same JVM.
+
+    <p>
+    The test calls a skeleton in this JVM through stubs whose addresses name
+    the skeleton's port on a loopback address and on the wildcard address. It
+    checks that the calls run in the calling thread, that arguments and results
+    are passed as they are unless the method is marked
+    <code>PassByValue</code>, that exceptions thrown by the server reach the
+    caller, and that the calls are counted by the skeleton. Once the skeleton
+    is stopped, the stub must go to the network and fail.
+ */
+public class LocalCallTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking calls within one JVM";
+
+    /** Skeleton used in the test. */
+    private Skeleton<Holder>    skeleton;
+    /** Thread that ran the last call on the server. */
+    private volatile Thread     caller;
+
+    /** Remote interface used in the test. */
+    public interface Holder
+    {
+        /** Returns its argument.
+
+            @throws FileNotFoundException If the argument is <code>null</code>.
+         */
+        public int[] same(int[] array)
+            throws RMIException, FileNotFoundException;
+
+        /** Returns its argument, which is copied on the way in and out. */
+        @PassByValue
+        public int[] copied(int[] array) throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Holder>(Holder.class, new Holder() {
+            public int[] same(int[] array) throws FileNotFoundException
+            {
+                caller = Thread.currentThread();
+
+                if(array == null)
+                    throw new FileNotFoundException("no array");
+
+                return array;
+            }
+
+            public int[] copied(int[] array)
+            {
+                return array;
+            }
+        });
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        int             port = skeleton.getPort();
+        int[]           array = new int[] {1, 2, 3};
+
+        for(String host : new String[] {"127.0.0.1", "0.0.0.0"})
+        {
+            Holder      stub = Stub.create(Holder.class,
+                                           new InetSocketAddress(host, port));
+
+            if(stub.same(array) != array)
+                throw new TestFailed("argument copied on call to " + host);
+
+            if(caller != Thread.currentThread())
+                throw new TestFailed("call to " + host + " ran in another " +
+                                     "thread");
+        }
+
+        Holder          stub = Stub.create(Holder.class, skeleton, "127.0.0.1");
+        int[]           copy = stub.copied(array);
+
+        if(copy == array || !java.util.Arrays.equals(copy, array))
+            throw new TestFailed("PassByValue method did not copy its result");
+
+        try
+        {
+            stub.same(null);
+            throw new TestFailed("server exception not thrown to caller");
+        }
+        catch(FileNotFoundException e) { }
+
+        long            calls =
+            skeleton.metrics().getMethod("same(int[])").getCalls();
+        if(calls != 3)
+            throw new TestFailed("skeleton counted " + calls + " local calls");
+
+        skeleton.stop();
+
+        try
+        {
+            stub.same(array);
+            throw new TestFailed("call reached a stopped skeleton");
+        }
+        catch(RMIException e) { }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
@@ -0,0 +1,115 @@
+package rmi;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import test.*;
+
+/** Unit test for connections over a skeleton's Unix domain socket.
+
+    <p>
+    The test starts a skeleton listening on a local socket as well as on TCP,
+    and checks that a stub moves to the local socket once the skeleton has
+    named it, closing its TCP connection. It then restarts the skeleton
+    without the local socket and checks that the stub goes back to TCP.
+ */
+public class LocalSocketTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking the Unix domain socket transport";
+
+    /** Skeleton used in the test. */
+    private Skeleton<Echo>      skeleton;
+    /** Directory holding the socket. */
+    private Path                directory;
+    /** Path of the socket. */
+    private Path                socket;
+
+    /** Remote interface used in the test. */
+    public interface Echo
+    {
+        /** Returns its argument. */
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        directory = Files.createTempDirectory("rmi");
+        socket = directory.resolve("echo.sock");
+
+        skeleton = new Skeleton<Echo>(Echo.class, new Echo() {
+            public int echo(int value)
+            {
+                return value;
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.setLocalSocket(socket);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        InetSocketAddress   address =
+            new InetSocketAddress("127.0.0.1", skeleton.getPort());
+        Echo                stub = Stub.create(Echo.class, address);
+        ConnectionPool      pool =
+            ConnectionPool.get(address, MethodTable.of(Echo.class));
+
+        if(!Files.exists(socket))
+            throw new TestFailed("skeleton did not create its local socket");
+
+        for(int call = 0; call < 10; ++call)
+        {
+            if(stub.echo(call) != call)
+                throw new TestFailed("incorrect result over the local socket");
+        }
+
+        if(!socket.equals(pool.localSocket()))
+            throw new TestFailed("stub did not move to the local socket");
+
+        // The TCP connection is closed once the skeleton reads its end.
+        for(int wait = 0; skeleton.connectionCount() != 1; ++wait)
+        {
+            if(wait == 100)
+            {
+                throw new TestFailed("stub kept " + skeleton.connectionCount()
+                                     + " connections open");
+            }
+            Thread.sleep(10);
+        }
+
+        skeleton.stop();
+
+        if(Files.exists(socket))
+            throw new TestFailed("stopped skeleton left its local socket");
+
+        skeleton.setLocalSocket(null);
+        skeleton.start();
+
+        if(stub.echo(42) != 42)
+            throw new TestFailed("incorrect result after falling back to TCP");
+
+        if(pool.localSocket() != null)
+            throw new TestFailed("stub kept using a removed local socket");
+    }
+
+    /** Stops the skeleton and removes the socket directory. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        new File(directory.toFile(), "echo.sock").delete();
+        directory.toFile().delete();
+    }
+}
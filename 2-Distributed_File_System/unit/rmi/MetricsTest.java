@@ -0,0 +1,226 @@
+package rmi;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import test.*;
+
+/** Unit test for call metrics.
+
+    <p>
+    The test checks the accuracy of the latency histograms, then makes
+    successful and failing calls through a stub and checks that they are
+    counted by both the skeleton and the stub, and that the skeleton's metrics
+    can be read over JMX.
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call metrics";
+
+    /** Number of successful calls made. */
+    private static final int    CALLS = 20;
+    /** Number of failing calls made. */
+    private static final int    FAILURES = 5;
+
+    /** Skeleton used in the test. */
+    private Skeleton<Counter>   skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Counter
+    {
+        /** Returns the argument plus one. */
+        public int increment(int value) throws RMIException;
+
+        /** Always throws <code>IllegalStateException</code>. */
+        public void fail() throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Counter>(Counter.class, new Counter() {
+            public int increment(int value)
+            {
+                return value + 1;
+            }
+
+            public void fail()
+            {
+                throw new IllegalStateException("failed on purpose");
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        checkHistogram();
+
+        Counter     stub = Stub.create(Counter.class, skeleton);
+
+        for(int call = 0; call < CALLS; ++call)
+            stub.increment(call);
+
+        for(int call = 0; call < FAILURES; ++call)
+        {
+            try
+            {
+                stub.fail();
+                throw new TestFailed("remote exception not thrown");
+            }
+            catch(IllegalStateException e) { }
+        }
+
+        checkMetrics(skeleton.metrics(), "skeleton");
+        checkMetrics(Stub.metrics(stub), "stub");
+
+        CallMetrics     server = skeleton.metrics();
+        if(server.getActiveConnections() < 1)
+            throw new TestFailed("skeleton reports no open connections");
+
+        if(server.getQueueTime().getCount() != CALLS + FAILURES)
+        {
+            throw new TestFailed("skeleton measured the queue time of " +
+                                 server.getQueueTime().getCount() + " calls");
+        }
+
+        checkMBean();
+    }
+
+    /** Records a known distribution and checks the percentiles reported.
+
+        @throws TestFailed If a percentile is off by more than the bucket
+                           width.
+     */
+    private void checkHistogram() throws TestFailed
+    {
+        Histogram   histogram = new Histogram();
+
+        for(long value = 1; value <= 100000; ++value)
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(value));
+
+        LatencyDistribution     distribution = histogram.snapshot();
+
+        if(distribution.getCount() != 100000)
+            throw new TestFailed("histogram lost values");
+
+        if(distribution.getMax() != TimeUnit.MICROSECONDS.toNanos(100000))
+            throw new TestFailed("histogram maximum is incorrect");
+
+        checkPercentile(distribution, 50, TimeUnit.MICROSECONDS.toNanos(50000));
+        checkPercentile(distribution, 99, TimeUnit.MICROSECONDS.toNanos(99000));
+        checkPercentile(distribution, 100, TimeUnit.MICROSECONDS.toNanos(100000));
+
+        if(histogram.snapshot().percentile(0) > 1000 + 1000 / 32)
+            throw new TestFailed("lowest percentile is incorrect");
+    }
+
+    /** Checks that a percentile is within the bucket width of its exact
+        value, and does not understate it. */
+    private void checkPercentile(LatencyDistribution distribution,
+                                 double percent, long exact)
+        throws TestFailed
+    {
+        long    reported = distribution.percentile(percent);
+
+        if(reported < exact || reported > exact + exact / 16)
+        {
+            throw new TestFailed(percent + "th percentile reported as " +
+                                 reported + " instead of " + exact);
+        }
+    }
+
+    /** Checks the per-method counters of a metrics snapshot. */
+    private void checkMetrics(CallMetrics metrics, String side)
+        throws TestFailed
+    {
+        MethodMetrics   increment = metrics.getMethod("increment(int)");
+        MethodMetrics   fail = metrics.getMethod("fail()");
+
+        if(increment == null || fail == null)
+            throw new TestFailed(side + " metrics do not list every method");
+
+        if(increment.getCalls() != CALLS || increment.getErrors() != 0)
+        {
+            throw new TestFailed(side + " counted " + increment.getCalls() +
+                                 " calls and " + increment.getErrors() +
+                                 " errors for increment");
+        }
+
+        if(fail.getCalls() != FAILURES || fail.getErrors() != FAILURES)
+        {
+            throw new TestFailed(side + " counted " + fail.getCalls() +
+                                 " calls and " + fail.getErrors() +
+                                 " errors for fail");
+        }
+
+        if(metrics.getCalls() != CALLS + FAILURES)
+            throw new TestFailed(side + " total call count is incorrect");
+
+        if(metrics.getBytesIn() <= 0 || metrics.getBytesOut() <= 0)
+            throw new TestFailed(side + " did not count bytes");
+
+        LatencyDistribution     latency = increment.getLatency();
+        if(latency.getMedian() <= 0 ||
+           latency.getMedian() > latency.get99thPercentile() ||
+           latency.getMax() < latency.get99thPercentile())
+        {
+            throw new TestFailed(side + " latency is inconsistent: " +
+                                 latency);
+        }
+    }
+
+    /** Reads the metrics back through the platform MBean server. */
+    private void checkMBean() throws Throwable
+    {
+        MBeanServer     server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName      name = skeleton.registerMetricsMBean();
+
+        try
+        {
+            if(!Long.valueOf(CALLS + FAILURES).equals(
+                    server.getAttribute(name, "Calls")))
+            {
+                throw new TestFailed("MBean call count is incorrect");
+            }
+
+            TabularData     methods =
+                (TabularData)server.getAttribute(name, "Methods");
+            if(methods.size() != 2)
+                throw new TestFailed("MBean does not list every method");
+
+            CompositeData   queueTime =
+                (CompositeData)server.getAttribute(name, "QueueTime");
+            if(!Long.valueOf(CALLS + FAILURES).equals(queueTime.get("count")))
+                throw new TestFailed("MBean queue time count is incorrect");
+        }
+        finally
+        {
+            skeleton.unregisterMetricsMBean();
+        }
+
+        if(server.isRegistered(name))
+            throw new TestFailed("MBean not unregistered");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.unregisterMetricsMBean();
+        skeleton.stop();
+    }
+}
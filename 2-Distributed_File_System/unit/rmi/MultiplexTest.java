@@ -0,0 +1,178 @@
+package rmi;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Unit test for calls multiplexed on one connection.
+
+    <p>
+    One thread makes a call that blocks in the server until a second thread,
+    using the same stub, makes a call that releases it. This can only succeed
+    if both calls travel over the shared connection without waiting for each
+    other, run concurrently in the skeleton, and are answered out of order.
+    The test also checks that the two callers used a single connection.
+
+    <p>
+    While the first call is blocked, further calls return values that cannot
+    be decoded by the stub, one with a checked and one with an unchecked
+    exception. Only those calls may fail: the blocked call must still
+    complete, without being sent a second time.
+ */
+public class MultiplexTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking call multiplexing on one connection";
+
+    /** Skeleton used in the test. */
+    private Skeleton<Gate>      skeleton;
+    /** Number of calls to <code>pass</code> run by the server. */
+    private final AtomicInteger passes = new AtomicInteger();
+
+    /** Remote interface used in the test. */
+    public interface Gate
+    {
+        /** Blocks until <code>open</code> is called. */
+        public void pass() throws RMIException;
+        /** Releases callers of <code>pass</code>. */
+        public void open() throws RMIException;
+        /** Returns a value the stub cannot decode. */
+        public Undecodable undecodable() throws RMIException;
+        /** Returns a value whose decoding throws an unchecked exception. */
+        public Failing failing() throws RMIException;
+    }
+
+    /** Value whose serialized form cannot be read back. */
+    public static class Undecodable implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Fails to read the value. */
+        private void readObject(ObjectInputStream in) throws IOException
+        {
+            throw new InvalidObjectException("value cannot be decoded");
+        }
+    }
+
+    /** Value whose serialized form throws an unchecked exception when read
+        back. */
+    public static class Failing implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+
+        /** Fails to read the value. */
+        private void readObject(ObjectInputStream in)
+        {
+            throw new IllegalStateException("value cannot be decoded");
+        }
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        final CountDownLatch    latch = new CountDownLatch(1);
+
+        skeleton = new Skeleton<Gate>(Gate.class, new Gate() {
+            public void pass() throws RMIException
+            {
+                passes.incrementAndGet();
+                try
+                {
+                    if(!latch.await(10, TimeUnit.SECONDS))
+                        throw new RMIException("gate never opened");
+                }
+                catch(InterruptedException e)
+                {
+                    throw new RMIException(e);
+                }
+            }
+
+            public void open()
+            {
+                latch.countDown();
+            }
+
+            public Undecodable undecodable()
+            {
+                return new Undecodable();
+            }
+
+            public Failing failing()
+            {
+                return new Failing();
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        final Gate          stub = Stub.create(Gate.class, skeleton);
+        FutureTask<Void>    blocked = new FutureTask<Void>(
+            new Callable<Void>() {
+                public Void call() throws Exception
+                {
+                    stub.pass();
+                    return null;
+                }
+            });
+
+        new Thread(blocked).start();
+
+        // Wait until the first call is running in the server.
+        while(skeleton.getWorkerStatistics().getActiveWorkers() != 1)
+            Thread.sleep(10);
+
+        try
+        {
+            stub.undecodable();
+            throw new TestFailed("undecodable reply accepted");
+        }
+        catch(RMIException e) { }
+
+        try
+        {
+            stub.failing();
+            throw new TestFailed("failing reply accepted");
+        }
+        catch(RMIException e) { }
+
+        stub.open();
+
+        try
+        {
+            blocked.get(10, TimeUnit.SECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            throw new TestFailed("blocked call failed", e.getCause());
+        }
+
+        if(skeleton.connectionCount() != 1)
+        {
+            throw new TestFailed("concurrent calls used " +
+                                 skeleton.connectionCount() + " connections");
+        }
+
+        if(passes.get() != 1)
+            throw new TestFailed("blocked call was run " + passes.get() + " times");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
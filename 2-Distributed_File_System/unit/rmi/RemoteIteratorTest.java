@@ -0,0 +1,164 @@
+package rmi;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Unit test for remote iterators.
+
+    <p>
+    The test reads sequences returned by a server through a remote iterator
+    in small chunks. It checks that values arrive in order, that the server
+    produces no more than the chunk being read and the one after it, that
+    the skeleton discards iterators that are exhausted or closed, that an
+    empty sequence has no values, and that a failure of the server's iterator
+    reaches the reader.
+ */
+public class RemoteIteratorTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking remote iterators";
+
+    /** Number of values in a chunk. */
+    private static final int    CHUNK = 10;
+
+    /** Skeleton used in the test. */
+    private Skeleton<Numbers>   skeleton;
+    /** Number of values taken from the server's iterators. */
+    private final AtomicInteger produced = new AtomicInteger();
+
+    /** Remote interface used in the test. */
+    public interface Numbers
+    {
+        /** Returns the numbers from zero up to, but not including, the
+            argument. The server's iterator throws
+            <code>IllegalStateException</code> on reaching
+            <code>failAt</code>, if that is not negative. */
+        public RemoteIterator<Integer> count(int limit, int failAt)
+            throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        skeleton = new Skeleton<Numbers>(Numbers.class, new Numbers() {
+            public RemoteIterator<Integer> count(final int limit,
+                                                 final int failAt)
+            {
+                return RemoteIterator.of(new Iterator<Integer>() {
+                    private int     next = 0;
+
+                    public boolean hasNext()
+                    {
+                        return next < limit;
+                    }
+
+                    public Integer next()
+                    {
+                        if(next == failAt)
+                            throw new IllegalStateException("failed");
+                        produced.incrementAndGet();
+                        return next++;
+                    }
+                });
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.setIteratorChunkSize(CHUNK);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        Numbers         stub = Stub.create(Numbers.class, skeleton, "127.0.0.1");
+
+        RemoteIterator<Integer> values = stub.count(95, -1);
+        for(int expected = 0; expected < 95; ++expected)
+        {
+            if(!values.hasNext())
+                throw new TestFailed("sequence ended after " + expected);
+
+            int         value = values.next();
+            if(value != expected)
+            {
+                throw new TestFailed("expected " + expected + ", got " +
+                                     value);
+            }
+
+            if(expected == 0)
+            {
+                Thread.sleep(100);
+                if(produced.get() > 2 * CHUNK)
+                {
+                    throw new TestFailed("server produced " + produced.get() +
+                                         " values ahead of the reader");
+                }
+            }
+        }
+
+        if(values.hasNext())
+            throw new TestFailed("sequence did not end");
+        try
+        {
+            values.next();
+            throw new TestFailed("next past the end did not throw");
+        }
+        catch(NoSuchElementException e) { }
+        expectOpen(0, "after an iterator was exhausted");
+
+        values = stub.count(1000, -1);
+        values.next();
+        expectOpen(1, "while an iterator is being read");
+        values.close();
+        if(values.hasNext())
+            throw new TestFailed("closed iterator has more values");
+        expectOpen(0, "after an iterator was closed");
+
+        if(stub.count(0, -1).hasNext())
+            throw new TestFailed("empty sequence has values");
+
+        values = stub.count(100, 25);
+        try
+        {
+            for(int index = 0; index < 100; ++index)
+                values.next();
+            throw new TestFailed("failure of server iterator not reported");
+        }
+        catch(RMIException e) { }
+        expectOpen(0, "after an iterator failed");
+    }
+
+    /** Waits briefly for the skeleton to hold the given number of
+        iterators. */
+    private void expectOpen(int expected, String when) throws Exception
+    {
+        long            deadline = System.currentTimeMillis() + 1000;
+        while(skeleton.cursors().size() != expected &&
+              System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        if(skeleton.cursors().size() != expected)
+        {
+            throw new TestFailed("skeleton holds " + skeleton.cursors().size() +
+                                 " iterators " + when);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
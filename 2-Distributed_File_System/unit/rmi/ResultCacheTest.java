@@ -0,0 +1,173 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Unit test for the caching of results of <code>Cached</code> methods.
+
+    <p>
+    The test checks that repeated calls with the same arguments are answered
+    by the stub, that other arguments, other methods and calls that throw go
+    to the server, that array results are copied, that results expire, that
+    the least recently used result is dropped when the cache is full, and that
+    results are dropped when the server or the client invalidates them.
+ */
+public class ResultCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking cached results";
+
+    /** Skeleton used in the test. */
+    private Skeleton<Lookup>    skeleton;
+    /** Number of calls run by the server. */
+    private final AtomicInteger calls = new AtomicInteger();
+    /** Cache size in effect before the test. */
+    private int                 maxCachedResults;
+
+    /** Remote interface used in the test. */
+    public interface Lookup
+    {
+        /** Returns the argument as a one-element array.
+
+            @throws FileNotFoundException If the argument is negative.
+         */
+        @Cached(ttl = 60000)
+        public int[] find(int key) throws RMIException, FileNotFoundException;
+
+        /** Returns the argument. Results expire quickly. */
+        @Cached(ttl = 50)
+        public int brief(int key) throws RMIException;
+
+        /** Returns the argument, without caching. */
+        public int plain(int key) throws RMIException;
+
+        /** Invalidates the caches of the skeleton's stubs. */
+        public void change() throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        maxCachedResults = ConnectionPool.getMaxCachedResults();
+
+        skeleton = new Skeleton<Lookup>(Lookup.class, new Lookup() {
+            public int[] find(int key) throws FileNotFoundException
+            {
+                calls.incrementAndGet();
+                if(key < 0)
+                    throw new FileNotFoundException("negative key");
+                return new int[] {key};
+            }
+
+            public int brief(int key)
+            {
+                calls.incrementAndGet();
+                return key;
+            }
+
+            public int plain(int key)
+            {
+                calls.incrementAndGet();
+                return key;
+            }
+
+            public void change()
+            {
+                skeleton.invalidateCaches();
+            }
+        });
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        Lookup          stub = Stub.create(Lookup.class, skeleton, "127.0.0.1");
+
+        // The first reply tells the stub the skeleton's cache generation.
+        stub.plain(0);
+        stub.plain(0);
+        expect(2, "uncached method");
+
+        stub.find(1);
+        int[]           first = stub.find(1);
+        expect(1, "repeated call");
+
+        first[0] = 99;
+        if(stub.find(1)[0] != 1)
+            throw new TestFailed("cached array result was modified by caller");
+
+        stub.find(2);
+        expect(1, "call with other arguments");
+
+        for(int attempt = 0; attempt < 2; ++attempt)
+        {
+            try
+            {
+                stub.find(-1);
+                throw new TestFailed("cached call did not throw");
+            }
+            catch(FileNotFoundException e) { }
+        }
+        expect(2, "calls that throw");
+
+        stub.change();
+        stub.find(1);
+        expect(1, "call after server invalidated caches");
+        stub.find(1);
+        expect(0, "repeated call after invalidation");
+
+        Stub.invalidateCache(stub);
+        stub.find(1);
+        expect(1, "call after client invalidated cache");
+
+        stub.brief(5);
+        stub.brief(5);
+        expect(1, "repeated call of method with short time to live");
+        Thread.sleep(100);
+        stub.brief(5);
+        expect(1, "call after result expired");
+
+        ConnectionPool.setMaxCachedResults(2);
+        Stub.invalidateCache(stub);
+        stub.plain(0);
+        calls.set(0);
+        stub.find(10);
+        stub.find(11);
+        stub.find(10);
+        stub.find(12);
+        stub.find(10);
+        expect(3, "calls beyond cache size");
+        stub.find(11);
+        expect(1, "call of least recently used result");
+    }
+
+    /** Checks the number of calls run by the server since the last check. */
+    private void expect(int expected, String what) throws TestFailed
+    {
+        int             actual = calls.getAndSet(0);
+
+        if(actual != expected)
+        {
+            throw new TestFailed(what + " ran " + actual + " times on the " +
+                                 "server, expected " + expected);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        ConnectionPool.setMaxCachedResults(maxCachedResults);
+        skeleton.stop();
+    }
+}
@@ -0,0 +1,187 @@
+package rmi;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Unit test for skeletons served by selector threads.
+
+    <p>
+    The test opens many connections to a skeleton using selector threads and
+    checks that they are all served without a reading thread each. It then
+    echoes an array larger than a socket buffer, so that frames are read in
+    pieces and replies are written in pieces, and checks that a call blocked
+    in the server does not hold up other calls on the same connection. Last,
+    a connection announcing a frame longer than the limit must be closed
+    without the frame being allocated.
+ */
+public class SelectorTransportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking skeleton selector transport";
+
+    /** Number of idle connections opened. */
+    private static final int    CONNECTIONS = 200;
+    /** Size of the array echoed in one call. */
+    private static final int    LARGE = 4 * 1024 * 1024;
+
+    /** Skeleton used in the test. */
+    private Skeleton<Echo>          skeleton;
+    /** Connections opened by the test. */
+    private final ArrayList<MultiplexedConnection>  opened =
+        new ArrayList<MultiplexedConnection>();
+
+    /** Remote interface used in the test. */
+    public interface Echo
+    {
+        /** Returns its argument. */
+        public byte[] echo(byte[] data) throws RMIException;
+        /** Blocks until <code>open</code> is called. */
+        public void pass() throws RMIException;
+        /** Releases callers of <code>pass</code>. */
+        public void open() throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        final CountDownLatch    latch = new CountDownLatch(1);
+
+        skeleton = new Skeleton<Echo>(Echo.class, new Echo() {
+            public byte[] echo(byte[] data)
+            {
+                return data;
+            }
+
+            public void pass() throws RMIException
+            {
+                try
+                {
+                    if(!latch.await(10, TimeUnit.SECONDS))
+                        throw new RMIException("gate never opened");
+                }
+                catch(InterruptedException e)
+                {
+                    throw new RMIException(e);
+                }
+            }
+
+            public void open()
+            {
+                latch.countDown();
+            }
+        });
+        skeleton.setSelectorThreads(2);
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        InetSocketAddress   address =
+            new InetSocketAddress(skeleton.getHostName(), skeleton.getPort());
+        MethodTable         table = MethodTable.of(Echo.class);
+        MetricsRecorder     metrics = new MetricsRecorder(table);
+        ResultCache         cache = new ResultCache(table);
+
+        for(int index = 0; index < CONNECTIONS; ++index)
+            opened.add(new MultiplexedConnection(address, table, metrics, cache, 0));
+
+        if(skeleton.connectionCount() < CONNECTIONS)
+        {
+            throw new TestFailed("only " + skeleton.connectionCount() +
+                                 " of " + CONNECTIONS +
+                                 " connections are being served");
+        }
+
+        for(Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if(thread.getName().startsWith("rmi-skeleton-reader-"))
+                throw new TestFailed("connection read by its own thread");
+        }
+
+        // Echo a large array.
+        final Echo  stub = Stub.create(Echo.class, skeleton);
+        byte[]      data = new byte[LARGE];
+        for(int index = 0; index < data.length; ++index)
+            data[index] = (byte)index;
+
+        byte[]      echoed = stub.echo(data);
+        if(!java.util.Arrays.equals(data, echoed))
+            throw new TestFailed("large array corrupted in transfer");
+
+        // Check that a blocked call does not hold up the connection.
+        FutureTask<Void>    blocked = new FutureTask<Void>(
+            new Callable<Void>() {
+                public Void call() throws Exception
+                {
+                    stub.pass();
+                    return null;
+                }
+            });
+
+        new Thread(blocked).start();
+
+        while(skeleton.getWorkerStatistics().getActiveWorkers() != 1)
+            Thread.sleep(10);
+
+        stub.open();
+
+        try
+        {
+            blocked.get(10, TimeUnit.SECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            throw new TestFailed("blocked call failed", e.getCause());
+        }
+
+        checkOversizedFrame(address);
+        if(!java.util.Arrays.equals(data, stub.echo(data)))
+            throw new TestFailed("skeleton not serving after oversized frame");
+    }
+
+    /** Checks that a connection announcing an oversized frame is closed. */
+    private void checkOversizedFrame(InetSocketAddress address)
+        throws Throwable
+    {
+        Socket      socket = new Socket(address.getAddress(), address.getPort());
+        try
+        {
+            socket.setSoTimeout(5000);
+            new DataOutputStream(socket.getOutputStream())
+                .writeInt(WireProtocol.MAX_FRAME_SIZE + 1);
+            if(socket.getInputStream().read() != -1)
+                throw new TestFailed("reply to oversized frame");
+        }
+        catch(IOException e)
+        {
+            // A reset also shows that the connection was closed.
+            if(e instanceof java.net.SocketTimeoutException)
+                throw new TestFailed("connection with oversized frame left open");
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
@@ -0,0 +1,183 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Unit test for skeletons served by a bounded executor.
+
+    <p>
+    The skeleton is given one worker and room for one waiting call. One call
+    occupies the worker and a second call waits in the queue. A third call
+    must then be rejected, and must fail with <code>RMIException</code>
+    rather than wait.
+
+    <p>
+    The test then checks <code>SkeletonExecutors.virtual</code>. Where the
+    JVM has virtual threads, calls must run on them. Without the factory
+    method, as on Java 17, or with one that fails, as when virtual threads
+    are a disabled preview, an unbounded pool of daemon threads must be
+    returned instead.
+ */
+public class SkeletonExecutorTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking skeleton executor bounds and counters";
+
+    /** Released to let the blocked call return. */
+    private final CountDownLatch    release = new CountDownLatch(1);
+    /** Skeleton used in the test. */
+    private Skeleton<Blocker>       skeleton;
+    /** Executor serving the skeleton. */
+    private ExecutorService         executor;
+
+    /** Remote interface used in the test. */
+    public interface Blocker
+    {
+        /** Blocks until the test releases it. */
+        public void block() throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        executor = SkeletonExecutors.bounded(
+            1, 1, new ThreadPoolExecutor.AbortPolicy());
+
+        skeleton = new Skeleton<Blocker>(Blocker.class, new Blocker() {
+            public void block()
+            {
+                try
+                {
+                    release.await();
+                }
+                catch(InterruptedException e) { }
+            }
+        });
+        skeleton.setExecutor(executor);
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        final Blocker   stub = Stub.create(Blocker.class, skeleton);
+
+        for(int caller = 0; caller < 2; ++caller)
+        {
+            new Thread(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        stub.block();
+                    }
+                    catch(RMIException e) { }
+                }
+            }).start();
+        }
+
+        WorkerStatistics    statistics = skeleton.getWorkerStatistics();
+        while(statistics.getActiveWorkers() != 1 ||
+              statistics.getQueuedCalls() != 1)
+        {
+            Thread.sleep(10);
+            statistics = skeleton.getWorkerStatistics();
+        }
+
+        try
+        {
+            stub.block();
+            throw new TestFailed("call succeeded while executor was full");
+        }
+        catch(RMIException e) { }
+
+        if(skeleton.getWorkerStatistics().getRejectedCalls() != 1)
+            throw new TestFailed("rejected call was not counted");
+
+        checkVirtual();
+    }
+
+    /** Checks that <code>virtual</code> uses virtual threads when it can,
+        and otherwise falls back to the unbounded pool. */
+    private void checkVirtual() throws Throwable
+    {
+        Method      isVirtual = null;
+        try
+        {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        }
+        catch(NoSuchMethodException e) { }
+
+        Thread      worker = workerOf(SkeletonExecutors.virtual());
+        boolean     virtual =
+            isVirtual != null && (Boolean)isVirtual.invoke(worker);
+        if(virtual != SkeletonExecutors.virtualThreadsAvailable())
+            throw new TestFailed("virtual executor disagrees with JVM support");
+
+        checkFallback(SkeletonExecutors.virtual(null), "missing");
+        checkFallback(SkeletonExecutors.virtual(
+            SkeletonExecutorTest.class.getMethod("disabledFactory")),
+            "failing");
+    }
+
+    /** Checks that an executor is the unbounded pool of daemon threads. */
+    private void checkFallback(ExecutorService fallback, String factory)
+        throws Throwable
+    {
+        if(!(fallback instanceof ThreadPoolExecutor) ||
+           ((ThreadPoolExecutor)fallback).getMaximumPoolSize() !=
+               Integer.MAX_VALUE)
+        {
+            throw new TestFailed("no unbounded pool with " + factory +
+                                 " virtual thread factory");
+        }
+
+        if(!workerOf(fallback).isDaemon())
+            throw new TestFailed("fallback pool thread is not a daemon");
+    }
+
+    /** Runs a task on an executor, shuts it down, and returns the thread
+        that ran the task. */
+    private static Thread workerOf(ExecutorService executor) throws Throwable
+    {
+        try
+        {
+            return executor.submit(new Callable<Thread>() {
+                public Thread call()
+                {
+                    return Thread.currentThread();
+                }
+            }).get();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /** Stands in for a virtual thread factory that is present but
+        disabled. */
+    public static ExecutorService disabledFactory()
+    {
+        throw new UnsupportedOperationException("virtual threads disabled");
+    }
+
+    /** Releases the blocked call and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        release.countDown();
+        skeleton.stop();
+        executor.shutdown();
+    }
+}
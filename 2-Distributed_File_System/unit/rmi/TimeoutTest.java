@@ -0,0 +1,210 @@
+package rmi;
+
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import test.*;
+
+/** Unit test for call time limits.
+
+    <p>
+    The test checks that connect and read timeouts fail calls promptly, that
+    limits given for one method leave the others alone, that a connection
+    stays usable after a reply arrives too late, that asynchronous calls
+    time out, and that a skeleton drops a call whose stub has given up on it
+    before a worker became free.
+ */
+public class TimeoutTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call time limits";
+
+    /** Short limit used in the test, in milliseconds. */
+    private static final long   LIMIT = 100;
+    /** Time for which calls to <code>sleep</code> block the worker. */
+    private static final long   SLEEP = 500;
+
+    /** Skeleton used in the test, with a single worker. */
+    private Skeleton<Slow>      skeleton;
+    /** Executor of the skeleton. */
+    private ExecutorService     executor;
+    /** Listening socket that never answers the handshake. */
+    private ServerSocket        silent;
+    /** Number of calls to <code>echo</code> run by the server. */
+    private final AtomicInteger echoes = new AtomicInteger();
+
+    /** Remote interface used in the test. */
+    public interface Slow
+    {
+        /** Blocks for the given number of milliseconds. */
+        public void sleep(long millis) throws RMIException;
+
+        /** Returns the argument. */
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Asynchronous companion of <code>Slow</code>. */
+    @AsyncInterface(Slow.class)
+    public interface SlowAsync
+    {
+        /** Blocks for the given number of milliseconds. */
+        public CompletableFuture<Void> sleep(long millis);
+    }
+
+    /** Starts the skeleton and the silent socket. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        executor = SkeletonExecutors.fixed(1);
+        skeleton = new Skeleton<Slow>(Slow.class, new Slow() {
+            public void sleep(long millis)
+            {
+                try
+                {
+                    Thread.sleep(millis);
+                }
+                catch(InterruptedException e) { }
+            }
+
+            public int echo(int value)
+            {
+                echoes.incrementAndGet();
+                return value;
+            }
+        });
+        skeleton.setExecutor(executor);
+        // Stubs in this JVM would otherwise bypass the network.
+        skeleton.setLocalCalls(false);
+        skeleton.start();
+
+        silent = new ServerSocket(0);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        Slow        stub = Stub.create(Slow.class, skeleton);
+        Timeouts    limit = new Timeouts(0, LIMIT, 0);
+
+        // Read timeout on one method only.
+        Slow        limited = Stub.withTimeouts(stub, "sleep", limit);
+        if(!limited.equals(stub))
+            throw new TestFailed("stub with time limits not equal to original");
+
+        expectTimeout("read timeout", limited, SLEEP);
+
+        // The connection is still usable, and the limit does not apply to
+        // other methods.
+        if(limited.echo(5) != 5)
+            throw new TestFailed("call after a timed out call failed");
+
+        // A deadline on the whole stub, while the single worker is busy:
+        // the call times out, and the skeleton drops it instead of running
+        // it once the worker is free.
+        Slow        deadline = Stub.withTimeouts(stub, new Timeouts(0, 0, LIMIT));
+        AsyncStub.create(SlowAsync.class, stub).sleep(SLEEP);
+        waitForWorker();
+
+        int         before = echoes.get();
+        long        started = System.nanoTime();
+        try
+        {
+            deadline.echo(1);
+            throw new TestFailed("deadline not enforced");
+        }
+        catch(RMIException e)
+        {
+            checkTimeout(e, started, "deadline");
+        }
+
+        long        waited = System.nanoTime();
+        while(skeleton.getWorkerStatistics().getExpiredCalls() < 1)
+        {
+            if(System.nanoTime() - waited > TimeUnit.SECONDS.toNanos(10))
+                throw new TestFailed("skeleton did not drop the expired call");
+            Thread.sleep(10);
+        }
+
+        if(echoes.get() != before)
+            throw new TestFailed("skeleton ran a call after its deadline");
+
+        // Asynchronous stubs made from a limited stub time out too.
+        SlowAsync   async = AsyncStub.create(SlowAsync.class, limited);
+        try
+        {
+            async.sleep(SLEEP).get();
+            throw new TestFailed("asynchronous call did not time out");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof SocketTimeoutException))
+                throw new TestFailed("asynchronous call failed", e.getCause());
+        }
+
+        // Connect timeout, against a socket that accepts connections but
+        // never answers the handshake.
+        Slow        unresponsive = Stub.withTimeouts(
+            Stub.create(Slow.class, new InetSocketAddress("127.0.0.1",
+                                                          silent.getLocalPort())),
+            new Timeouts(LIMIT, 0, 0));
+        expectTimeout("connect timeout", unresponsive, 0);
+    }
+
+    /** Calls <code>sleep</code> and checks that the call times out. */
+    private void expectTimeout(String limit, Slow stub, long millis)
+        throws TestFailed
+    {
+        long    started = System.nanoTime();
+        try
+        {
+            stub.sleep(millis);
+            throw new TestFailed(limit + " not enforced");
+        }
+        catch(RMIException e)
+        {
+            checkTimeout(e, started, limit);
+        }
+    }
+
+    /** Checks that a call failed because of a time limit, and promptly. */
+    private void checkTimeout(RMIException e, long started, String limit)
+        throws TestFailed
+    {
+        if(!(e.getCause() instanceof SocketTimeoutException))
+            throw new TestFailed(limit + ": call failed for another reason", e);
+
+        long    elapsed =
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        if(elapsed < LIMIT - 10 || elapsed > SLEEP - 150)
+        {
+            throw new TestFailed(limit + ": call failed after " + elapsed +
+                                 " ms");
+        }
+    }
+
+    /** Waits until the single worker of the skeleton is busy. */
+    private void waitForWorker() throws Throwable
+    {
+        while(skeleton.getWorkerStatistics().getActiveWorkers() != 1)
+            Thread.sleep(5);
+    }
+
+    /** Stops the skeleton and closes the silent socket. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        executor.shutdownNow();
+
+        try
+        {
+            silent.close();
+        }
+        catch(Exception e) { }
+    }
+}
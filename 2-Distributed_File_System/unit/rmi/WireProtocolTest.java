@@ -0,0 +1,107 @@
+package rmi;
+
+import java.io.*;
+import java.util.Arrays;
+
+import common.Path;
+import test.*;
+
+/** Unit test for the value encodings of the binary wire protocol.
+
+    <p>
+    Each value is written and read back, and the result is compared with the
+    original. The values cover every hand-encoded type and the serialization
+    fallback. Lengths longer than the frame limit, or than what remains of a
+    frame, must be refused as corrupt rather than allocated.
+ */
+public class WireProtocolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking wire protocol encodings";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        checkRoundTrip(null);
+        checkRoundTrip(Boolean.TRUE);
+        checkRoundTrip(Boolean.FALSE);
+        checkRoundTrip(Integer.MIN_VALUE);
+        checkRoundTrip(Long.MAX_VALUE);
+        checkRoundTrip("café");
+        checkRoundTrip(new Path("/directory/file"));
+        checkRoundTrip(new Path());
+        checkRoundTrip(new byte[] {0, 1, -1, 127});
+        checkRoundTrip(new String[] {"a", null, ""});
+        checkRoundTrip(new Path[] {new Path("/a"), new Path("/a/b")});
+        checkRoundTrip(new FileNotFoundException("missing"));
+        checkRoundTrip(3.5);
+
+        checkOversized();
+    }
+
+    /** Checks that oversized frame and value lengths are refused.
+
+        @throws TestFailed If an oversized length is accepted.
+     */
+    private void checkOversized() throws Throwable
+    {
+        ByteArrayOutputStream   frame = new ByteArrayOutputStream();
+        new DataOutputStream(frame).writeInt(Integer.MAX_VALUE);
+        try
+        {
+            WireProtocol.readFrame(new DataInputStream(
+                new ByteArrayInputStream(frame.toByteArray())));
+            throw new TestFailed("oversized frame accepted");
+        }
+        catch(StreamCorruptedException e) { }
+
+        /* a byte array claiming to be longer than the rest of its frame */
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        WireProtocol.writeValue(new DataOutputStream(bytes), new byte[4]);
+        byte[]                  encoded = bytes.toByteArray();
+        encoded[1] = 0x7f;
+        try
+        {
+            WireProtocol.readValue(new DataInputStream(
+                new ByteArrayInputStream(encoded)));
+            throw new TestFailed("byte array longer than its frame accepted");
+        }
+        catch(StreamCorruptedException e) { }
+    }
+
+    /** Encodes and decodes a value and checks that the result equals the
+        original value.
+
+        @throws TestFailed If the decoded value differs.
+     */
+    private void checkRoundTrip(Object value) throws Throwable
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        WireProtocol.writeValue(new DataOutputStream(bytes), value);
+
+        DataInputStream         in =
+            new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Object                  decoded = WireProtocol.readValue(in);
+
+        if(in.available() != 0)
+            throw new TestFailed("bytes left over after decoding " + value);
+
+        boolean                 equal;
+        if(value instanceof Throwable)
+        {
+            equal = decoded.getClass() == value.getClass() &&
+                ((Throwable)decoded).getMessage().equals(
+                    ((Throwable)value).getMessage());
+        }
+        else
+            equal = Arrays.deepEquals(new Object[] {value},
+                                      new Object[] {decoded});
+
+        if(!equal)
+            throw new TestFailed("value " + value + " decoded as " + decoded);
+    }
+}
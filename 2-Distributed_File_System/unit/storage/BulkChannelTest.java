@@ -0,0 +1,254 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import common.*;
+import rmi.Timeouts;
+import test.*;
+
+/** Unit test for the bulk transfer channel.
+
+    <p>
+    The test reads, writes and copies file regions over one connection to a
+    bulk server, and checks that refused requests, including a refused write
+    whose data must be discarded, leave the connection usable. A read from a server that never answers must
+    time out. Last, it drains the server during a read, which must complete.
+ */
+public class BulkChannelTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage bulk channel";
+
+    /** Length of the test file, spanning several socket buffers. */
+    private static final int    LENGTH = 3 * 1024 * 1024 + 17;
+
+    /** Directory served by the bulk server. */
+    private TemporaryDirectory  directory = null;
+    /** Bulk server under test. */
+    private BulkServer          server = null;
+    /** Port of the bulk server. */
+    private int                 port;
+    /** Connection to the bulk server. */
+    private BulkChannel         channel = null;
+    /** Contents of the test file. */
+    private final byte[]        contents = new byte[LENGTH];
+
+    /** Creates the test file and starts the bulk server. */
+    @Override
+    protected void initialize() throws Throwable
+    {
+        for(int index = 0; index < LENGTH; ++index)
+            contents[index] = (byte)(index * 31 + index / 977);
+
+        directory = new TemporaryDirectory();
+        try(FileOutputStream file =
+                new FileOutputStream(new File(directory.root(), "file")))
+        {
+            file.write(contents);
+        }
+
+        server = new BulkServer(directory.root());
+        port = server.start();
+        channel = new BulkChannel(new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        Path        file = new Path("/file");
+
+        // Read a region into the middle of a buffer.
+        byte[]      buffer = new byte[LENGTH];
+        channel.read(file, 5, buffer, 3, LENGTH - 10);
+        if(!Arrays.equals(buffer, 3, LENGTH - 7, contents, 5, LENGTH - 5))
+            throw new TestFailed("region read incorrectly");
+
+        // Refused requests.
+        try
+        {
+            channel.read(new Path("/missing"), 0, buffer, 0, 1);
+            throw new TestFailed("read of missing file not refused");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            channel.read(file, LENGTH - 1, buffer, 0, 2);
+            throw new TestFailed("read past end of file not refused");
+        }
+        catch(IndexOutOfBoundsException e) { }
+
+        try
+        {
+            channel.write(new Path("/missing"), 0, buffer, 0, 100000);
+            throw new TestFailed("write to missing file not refused");
+        }
+        catch(FileNotFoundException e) { }
+
+        // Overwrite a region and read the whole file back.
+        byte[]      update = new byte[200000];
+        Arrays.fill(update, (byte)7);
+        channel.write(file, 1000, update, 0, update.length);
+        System.arraycopy(update, 0, contents, 1000, update.length);
+
+        channel.read(file, 0, buffer, 0, LENGTH);
+        if(!Arrays.equals(buffer, contents))
+            throw new TestFailed("written region read back incorrectly");
+
+        // Copy the file into a local channel.
+        File        copy = new File(directory.root(), "copy");
+        try(FileChannel target = FileChannel.open(copy.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            channel.copy(file, LENGTH, target);
+        }
+
+        byte[]      copied = new byte[LENGTH];
+        try(DataInputStream input =
+                new DataInputStream(new FileInputStream(copy)))
+        {
+            input.readFully(copied);
+        }
+
+        if(copy.length() != LENGTH || !Arrays.equals(copied, contents))
+            throw new TestFailed("file copied incorrectly");
+
+        // Header lengths that no request can have close the connection, and
+        // leave the server serving others.
+        checkRejected(-1);
+        checkRejected(0);
+        checkRejected(BulkChannel.MAX_HEADER + 1);
+        checkRejected(Integer.MAX_VALUE);
+
+        channel.read(file, 0, buffer, 0, 1);
+        if(buffer[0] != contents[0])
+            throw new TestFailed("read after rejected header incorrect");
+
+        checkTimeout();
+        checkDrain();
+    }
+
+    /** Checks that a transfer from a server that never answers fails once
+        the read timeout has passed. */
+    private void checkTimeout() throws Throwable
+    {
+        try(ServerSocket silent = new ServerSocket(0, 1,
+                InetAddress.getByName("127.0.0.1"));
+            BulkChannel stalled = new BulkChannel(
+                new InetSocketAddress("127.0.0.1", silent.getLocalPort()),
+                new Timeouts(2000, 200, 0)))
+        {
+            long        started = System.nanoTime();
+            try
+            {
+                stalled.read(new Path("/file"), 0, new byte[1], 0, 1);
+                throw new TestFailed("read from silent server returned");
+            }
+            catch(SocketTimeoutException e) { }
+
+            if(System.nanoTime() - started > 5000000000L)
+                throw new TestFailed("read timeout not applied");
+        }
+    }
+
+    /** Drains the server while a read is in progress, and checks that the
+        read completes and the idle connection is closed. */
+    private void checkDrain() throws Throwable
+    {
+        try(Socket socket = new Socket("127.0.0.1", port))
+        {
+            socket.setSoTimeout(10000);
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream        header = new DataOutputStream(bytes);
+            header.writeByte(BulkChannel.READ);
+            header.writeUTF("/file");
+            header.writeLong(0);
+            header.writeLong(LENGTH);
+
+            DataOutputStream        out =
+                new DataOutputStream(socket.getOutputStream());
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+
+            // Once the status has arrived, the server is sending the file,
+            // and blocks when the socket buffers are full.
+            DataInputStream         in =
+                new DataInputStream(socket.getInputStream());
+            if(in.readByte() != BulkChannel.OK)
+                throw new TestFailed("read before drain refused");
+
+            Thread                  drainer = new Thread(new Runnable() {
+                public void run()
+                {
+                    server.drain(System.nanoTime() + 10000000000L);
+                }
+            });
+            drainer.start();
+            Thread.sleep(100);
+
+            byte[]                  read = new byte[LENGTH];
+            in.readFully(read);
+            if(!Arrays.equals(read, contents))
+                throw new TestFailed("read during drain incorrect");
+
+            drainer.join(5000);
+            if(drainer.isAlive())
+                throw new TestFailed("drain did not finish with the read");
+            if(in.read() != -1)
+                throw new TestFailed("connection open after drain");
+        }
+
+        try
+        {
+            channel.read(new Path("/file"), 0, new byte[1], 0, 1);
+            throw new TestFailed("idle connection open after drain");
+        }
+        catch(IOException e) { }
+    }
+
+    /** Sends a header length on a raw connection and checks that the server
+        closes it. */
+    private void checkRejected(int length) throws Throwable
+    {
+        try(Socket socket = new Socket("127.0.0.1", port))
+        {
+            socket.setSoTimeout(10000);
+            new DataOutputStream(socket.getOutputStream()).writeInt(length);
+
+            if(socket.getInputStream().read() != -1)
+                throw new TestFailed("header length " + length + " answered");
+        }
+        catch(SocketTimeoutException e)
+        {
+            throw new TestFailed("header length " + length + " not rejected");
+        }
+    }
+
+    /** Stops the bulk server and removes the test directory. */
+    @Override
+    protected void clean()
+    {
+        if(channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch(IOException e) { }
+        }
+
+        if(server != null)
+            server.stop();
+
+        if(directory != null)
+            directory.remove();
+    }
+}